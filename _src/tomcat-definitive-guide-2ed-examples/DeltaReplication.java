@@ -0,0 +1,1466 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * DeltaReplication is a prototype session replication channel on top of
+ * a MulticastNode.  Instead of sending the whole session after each
+ * request, as full-session replication does, it sends only the
+ * attributes that the request set or removed.  All of a request's
+ * changes go out together, in one datagram, when the request commits,
+ * and a change made twice in one request is sent once.  The message is
+ * compressed with LZF, a fast compressor with no dictionary to share,
+ * when that makes it smaller.
+ *
+ * <br><br>
+ *
+ * Every node keeps the sessions in an in-memory store.  The node that
+ * serves a request applies its changes to its own copy of the session
+ * and gives them the session's next version; the other nodes apply
+ * each attribute change only if it is newer than the one they have.
+ * Changes commute this way, so they may be applied in any order, on
+ * any thread, and a lost datagram leaves only the attributes it
+ * changed out of date, until the next change to them.  This assumes
+ * sticky sessions: one node at a time serves the requests of a
+ * session.  Attribute values are the serialized bytes, which the
+ * application serializes and deserializes.  Every node remembers the
+ * version an invalidated session ended at for a while, so that an older
+ * change that arrives after the invalidation doesn't bring it back.
+ *
+ * <br><br>
+ *
+ * With fullSession set, every message carries all of the session's
+ * attributes instead, for comparison.  Run the class to compare the two
+ * on several nodes in this JVM, by bytes on the wire and by the time
+ * from commit to apply on the other nodes.  The demo uses a group of its
+ * own, so that it doesn't send sessions into a running cluster.
+ *
+ * <br><br>
+ *
+ * Usage: <code>DeltaReplication [-nodes n] [-sessions n] [-attributes
+ * n] [-size bytes] [-changes n] [-requests n] [-rate
+ * requests/s]</code>
+ */
+public class DeltaReplication {
+
+    /**
+     * "DRP1".
+     */
+    private static final int MAGIC = 0x44525031;
+
+    private static final byte DELTA = 1;
+    private static final byte FULL = 2;
+
+    private static final byte COMPRESSED = 1;
+
+    /**
+     * Magic, type, flags, sender, send time and uncompressed length.
+     */
+    private static final int HEADER_LENGTH = 4 + 1 + 1 + 4 + 8 + 4;
+
+    /**
+     * The largest message, the largest UDP payload.
+     */
+    public static final int MAX_MESSAGE = 65507;
+
+    /**
+     * The largest message body before compression, which the receivers
+     * refuse to decompress beyond.
+     */
+    private static final int MAX_RAW_LENGTH = 16 * MAX_MESSAGE;
+
+    private static final byte SET = 1;
+    private static final byte REMOVE = 2;
+    private static final byte INVALIDATE = 3;
+
+    /**
+     * How long the last version of an invalidated session is remembered,
+     * in ms; far longer than a message waits to be applied.
+     */
+    private static final long TOMBSTONE_TIME = 60000L;
+
+    private final MulticastNode node;
+    private final int id = new Random().nextInt();
+    private final ConcurrentMap<String, ReplicatedSession> sessions =
+        new ConcurrentHashMap<String, ReplicatedSession>();
+
+    /**
+     * The last versions of the invalidated sessions, and the order they
+     * were invalidated in, to forget them.
+     */
+    private final ConcurrentMap<String, Long> tombstones =
+        new ConcurrentHashMap<String, Long>();
+    private final Queue<Tombstone> tombstoneQueue =
+        new ConcurrentLinkedQueue<Tombstone>();
+
+    private boolean fullSession = false;
+    private boolean compress = true;
+    private volatile ApplyListener applyListener = null;
+
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong sentBytes = new AtomicLong();
+    private final AtomicLong rawBytes = new AtomicLong();
+    private final AtomicLong oversizedCount = new AtomicLong();
+    private final AtomicLong appliedCount = new AtomicLong();
+    private final AtomicLong staleCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    /**
+     * Buffers for encoding, one set per sending thread.
+     */
+    private static final ThreadLocal<Workspace> workspaces =
+        new ThreadLocal<Workspace>() {
+            protected Workspace initialValue() {
+                return new Workspace();
+            }
+        };
+
+    private final MulticastNode.Decoder<byte[]> decoder =
+        new MulticastNode.Decoder<byte[]>() {
+            public byte[] decode(byte[] buf, int offset, int length) {
+                if (length < HEADER_LENGTH
+                    || getInt(buf, offset) != MAGIC
+                    || getInt(buf, offset + 6) == id) {
+                    return null;
+                }
+                return Arrays.copyOfRange(buf, offset, offset + length);
+            }
+        };
+
+    private final MulticastNode.Listener<byte[]> listener =
+        new MulticastNode.Listener<byte[]>() {
+            public void messageReceived(byte[] message,
+                                        InetAddress sender) {
+                try {
+                    apply(message);
+                } catch (IOException e) {
+                    failedCount.incrementAndGet();
+                }
+            }
+        };
+
+
+    /**
+     * Told about every message applied from another node.
+     */
+    public interface ApplyListener {
+
+        /**
+         * Called after the changes have been applied.
+         *
+         * @param session The session, or null if it was invalidated
+         * @param sentNanos System.nanoTime() on the sending node when
+         *        the message was sent
+         */
+        public void applied(ReplicatedSession session, long sentNanos);
+
+    }
+
+
+    public static void main(String[] args) throws Exception {
+
+        Demo demo = new Demo();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            int value = Integer.parseInt(args[i + 1]);
+            if (args[i].equals("-nodes")) {
+                demo.nodeCount = value;
+            } else if (args[i].equals("-sessions")) {
+                demo.sessionCount = value;
+            } else if (args[i].equals("-attributes")) {
+                demo.attributeCount = value;
+            } else if (args[i].equals("-size")) {
+                demo.size = value;
+            } else if (args[i].equals("-changes")) {
+                demo.changes = value;
+            } else if (args[i].equals("-requests")) {
+                demo.requests = value;
+            } else if (args[i].equals("-rate")) {
+                demo.rate = value;
+            } else {
+                usage();
+            }
+        }
+        if (args.length % 2 != 0 || demo.nodeCount < 2
+            || demo.changes > demo.attributeCount) {
+            usage();
+        }
+        demo.run();
+        System.exit(0);
+
+    }
+
+
+    private static void usage() {
+
+        System.out.println("Usage: DeltaReplication [-nodes n] "
+            + "[-sessions n] [-attributes n] [-size bytes] [-changes n] "
+            + "[-requests n] [-rate requests/s]");
+        System.exit(1);
+
+    }
+
+
+    /**
+     * Construct a channel that sends and receives through a node.  The
+     * node must be started for changes from other nodes to be applied.
+     */
+    public DeltaReplication(MulticastNode node) {
+
+        this.node = node;
+
+    }
+
+
+    /**
+     * Send all of a session's attributes with every request, instead of
+     * the changed ones only.
+     */
+    public void setFullSession(boolean fullSession) {
+
+        this.fullSession = fullSession;
+
+    }
+
+
+    /**
+     * Compress messages, when that makes them smaller.
+     */
+    public void setCompress(boolean compress) {
+
+        this.compress = compress;
+
+    }
+
+
+    public void setApplyListener(ApplyListener applyListener) {
+
+        this.applyListener = applyListener;
+
+    }
+
+
+    /**
+     * Start applying the changes sent by other nodes.
+     */
+    public void start() {
+
+        node.addListener(decoder, listener);
+
+    }
+
+
+    /**
+     * Stop applying the changes sent by other nodes.
+     */
+    public void stop() {
+
+        node.removeListener(listener);
+
+    }
+
+
+    /**
+     * Begin a request to a session.  The request collects the session's
+     * changes, to apply and send them when it commits.  Requests are
+     * not thread safe; use each on one thread.
+     */
+    public Request begin(String sessionId) {
+
+        return new Request(sessionId);
+
+    }
+
+
+    /**
+     * Return a session in the store, or null if there is none.
+     */
+    public ReplicatedSession getSession(String sessionId) {
+
+        return sessions.get(sessionId);
+
+    }
+
+
+    public int getSessionCount() {
+
+        return sessions.size();
+
+    }
+
+
+    /**
+     * Return the number of messages sent.
+     */
+    public long getSentCount() {
+
+        return sentCount.get();
+
+    }
+
+
+    /**
+     * Return the number of bytes sent, the UDP payloads.
+     */
+    public long getSentBytes() {
+
+        return sentBytes.get();
+
+    }
+
+
+    /**
+     * Return the number of bytes that would have been sent without
+     * compression.
+     */
+    public long getRawBytes() {
+
+        return rawBytes.get();
+
+    }
+
+
+    /**
+     * Return the number of requests whose changes were too big to send
+     * in one datagram, or too big for the other nodes to decompress.
+     */
+    public long getOversizedCount() {
+
+        return oversizedCount.get();
+
+    }
+
+
+    /**
+     * Return the number of messages from other nodes applied.
+     */
+    public long getAppliedCount() {
+
+        return appliedCount.get();
+
+    }
+
+
+    /**
+     * Return the number of attribute changes from other nodes ignored
+     * because a newer one had been applied already.
+     */
+    public long getStaleCount() {
+
+        return staleCount.get();
+
+    }
+
+
+    /**
+     * Return the number of messages from other nodes that could not be
+     * read.
+     */
+    public long getFailedCount() {
+
+        return failedCount.get();
+
+    }
+
+
+    public void resetCounters() {
+
+        sentCount.set(0L);
+        sentBytes.set(0L);
+        rawBytes.set(0L);
+        oversizedCount.set(0L);
+        appliedCount.set(0L);
+        staleCount.set(0L);
+        failedCount.set(0L);
+
+    }
+
+
+    // ---------------------------------------------------------- Sending
+
+
+    /**
+     * Apply a request's changes to the session, and send them.
+     */
+    private boolean replicate(String sessionId,
+                              Map<String, byte[]> changes,
+                              boolean invalidate) {
+
+        if (changes.isEmpty() && !invalidate) {
+            return true;
+        }
+        Workspace workspace = workspaces.get();
+        Writer body = workspace.body;
+        body.reset();
+        byte type = DELTA;
+
+        ReplicatedSession session = sessions.get(sessionId);
+        if (session == null) {
+            if (invalidate) {
+                return true;
+            }
+            // A session id used again continues from the invalidated
+            // session's version, so that the others don't ignore it.
+            session = new ReplicatedSession(sessionId);
+            session.version = tombstone(sessionId);
+            ReplicatedSession existing =
+                sessions.putIfAbsent(sessionId, session);
+            if (existing != null) {
+                session = existing;
+            }
+        }
+
+        // Encode under the session's lock, so that a full session is
+        // encoded as it was at this version.
+        synchronized (session) {
+            long version = session.version + 1;
+            body.putString(sessionId);
+            body.putLong(version);
+            if (invalidate) {
+                session.version = version;
+                bury(sessionId, version);
+                sessions.remove(sessionId, session);
+                body.putVarint(1);
+                body.put(INVALIDATE);
+            } else {
+                for (Map.Entry<String, byte[]> change : changes.entrySet()) {
+                    session.set(change.getKey(), change.getValue(), version);
+                }
+                session.version = version;
+                if (fullSession) {
+                    type = FULL;
+                    body.putVarint(session.size);
+                    for (Map.Entry<String, Attribute> entry
+                             : session.attributes.entrySet()) {
+                        byte[] value = entry.getValue().value;
+                        if (value != null) {
+                            body.put(SET);
+                            body.putString(entry.getKey());
+                            body.putBytes(value);
+                        }
+                    }
+                } else {
+                    body.putVarint(changes.size());
+                    for (Map.Entry<String, byte[]> change
+                             : changes.entrySet()) {
+                        byte[] value = change.getValue();
+                        body.put(value == null ? REMOVE : SET);
+                        body.putString(change.getKey());
+                        if (value != null) {
+                            body.putBytes(value);
+                        }
+                    }
+                }
+            }
+        }
+
+        if (body.pos > MAX_RAW_LENGTH) {
+            // It might compress to fit, but the others would refuse it.
+            oversizedCount.incrementAndGet();
+            return false;
+        }
+        byte[] packet = workspace.packet;
+        byte flags = 0;
+        int length = -1;
+        if (compress) {
+            int limit = Math.min(MAX_MESSAGE, HEADER_LENGTH + body.pos - 1);
+            length = Lzf.compress(body.buf, body.pos, packet, HEADER_LENGTH,
+                                  limit, workspace.table);
+            if (length > 0) {
+                flags = COMPRESSED;
+            }
+        }
+        if (length < 0) {
+            if (HEADER_LENGTH + body.pos > MAX_MESSAGE) {
+                oversizedCount.incrementAndGet();
+                return false;
+            }
+            System.arraycopy(body.buf, 0, packet, HEADER_LENGTH, body.pos);
+            length = HEADER_LENGTH + body.pos;
+        }
+        putInt(packet, 0, MAGIC);
+        packet[4] = type;
+        packet[5] = flags;
+        putInt(packet, 6, id);
+        putLong(packet, 10, System.nanoTime());
+        putInt(packet, 18, body.pos);
+        node.send(packet, 0, length);
+
+        sentCount.incrementAndGet();
+        sentBytes.addAndGet(length);
+        rawBytes.addAndGet(HEADER_LENGTH + body.pos);
+        return true;
+
+    }
+
+
+    // --------------------------------------------------------- Applying
+
+
+    /**
+     * Apply a message from another node to the store.
+     */
+    private void apply(byte[] packet) throws IOException {
+
+        byte type = packet[4];
+        byte flags = packet[5];
+        long sentNanos = getLong(packet, 10);
+        int rawLength = getInt(packet, 18);
+
+        Reader body;
+        if ((flags & COMPRESSED) != 0) {
+            if (rawLength < 0 || rawLength > MAX_RAW_LENGTH) {
+                throw new IOException("Bad length " + rawLength);
+            }
+            byte[] raw = new byte[rawLength];
+            Lzf.decompress(packet, HEADER_LENGTH, packet.length, raw);
+            body = new Reader(raw, 0, rawLength);
+        } else {
+            body = new Reader(packet, HEADER_LENGTH, packet.length);
+        }
+
+        String sessionId = body.getString();
+        long version = body.getLong();
+        int count = body.getVarint();
+        ReplicatedSession session = sessions.get(sessionId);
+        if (count == 1 && body.peek() == INVALIDATE) {
+            bury(sessionId, version);
+            if (session != null) {
+                synchronized (session) {
+                    if (session.version < version) {
+                        sessions.remove(sessionId, session);
+                    }
+                }
+            }
+            session = null;
+        } else {
+            if (version <= tombstone(sessionId)) {
+                staleCount.addAndGet(count);
+                return;
+            }
+            if (session == null) {
+                session = new ReplicatedSession(sessionId);
+                ReplicatedSession existing =
+                    sessions.putIfAbsent(sessionId, session);
+                if (existing != null) {
+                    session = existing;
+                }
+            }
+            synchronized (session) {
+                // Check again, in case the session was invalidated, and
+                // this copy created, since the check above.
+                long buried = tombstone(sessionId);
+                if (version <= buried) {
+                    if (session.version <= buried) {
+                        sessions.remove(sessionId, session);
+                    }
+                    staleCount.addAndGet(count);
+                    return;
+                }
+                Set<String> names =
+                    (type == FULL) ? new HashSet<String>() : null;
+                for (int i = 0; i < count; i++) {
+                    byte op = body.get();
+                    String name = body.getString();
+                    byte[] value = null;
+                    if (op == SET) {
+                        value = body.getBytes();
+                    } else if (op != REMOVE) {
+                        throw new IOException("Bad operation " + op);
+                    }
+                    if (!session.set(name, value, version)) {
+                        staleCount.incrementAndGet();
+                    }
+                    if (names != null) {
+                        names.add(name);
+                    }
+                }
+                if (names != null) {
+                    // A full session removes the attributes it leaves out.
+                    List<String> removed = new ArrayList<String>();
+                    for (String name : session.attributes.keySet()) {
+                        if (!names.contains(name)) {
+                            removed.add(name);
+                        }
+                    }
+                    for (String name : removed) {
+                        session.set(name, null, version);
+                    }
+                }
+                if (session.version < version) {
+                    session.version = version;
+                }
+            }
+        }
+        appliedCount.incrementAndGet();
+
+        ApplyListener applyListener = this.applyListener;
+        if (applyListener != null) {
+            applyListener.applied(session, sentNanos);
+        }
+
+    }
+
+
+    /**
+     * Remember the last version of an invalidated session, and forget
+     * the ones invalidated longer than TOMBSTONE_TIME ago.
+     */
+    private void bury(String sessionId, long version) {
+
+        Long boxed = Long.valueOf(version);
+        while (true) {
+            Long previous = tombstones.putIfAbsent(sessionId, boxed);
+            if (previous == null || previous.longValue() >= version
+                || tombstones.replace(sessionId, previous, boxed)) {
+                break;
+            }
+        }
+        long now = System.nanoTime();
+        tombstoneQueue.add(new Tombstone(sessionId, boxed, now));
+
+        Tombstone oldest;
+        while ((oldest = tombstoneQueue.peek()) != null
+               && now - oldest.buried > TOMBSTONE_TIME * 1000000L) {
+            if (tombstoneQueue.remove(oldest)) {
+                tombstones.remove(oldest.sessionId, oldest.version);
+            }
+        }
+
+    }
+
+
+    /**
+     * Return the last version of an invalidated session, or 0 if it
+     * hasn't been invalidated lately.
+     */
+    private long tombstone(String sessionId) {
+
+        Long version = tombstones.get(sessionId);
+        return (version == null) ? 0L : version.longValue();
+
+    }
+
+
+    // ------------------------------------------------ Byte order helpers
+
+
+    private static int getInt(byte[] buf, int offset) {
+
+        return ((buf[offset] & 0xff) << 24)
+            | ((buf[offset + 1] & 0xff) << 16)
+            | ((buf[offset + 2] & 0xff) << 8)
+            | (buf[offset + 3] & 0xff);
+
+    }
+
+
+    private static long getLong(byte[] buf, int offset) {
+
+        return ((long) getInt(buf, offset) << 32)
+            | (getInt(buf, offset + 4) & 0xffffffffL);
+
+    }
+
+
+    private static void putInt(byte[] buf, int offset, int value) {
+
+        buf[offset] = (byte) (value >>> 24);
+        buf[offset + 1] = (byte) (value >>> 16);
+        buf[offset + 2] = (byte) (value >>> 8);
+        buf[offset + 3] = (byte) value;
+
+    }
+
+
+    private static void putLong(byte[] buf, int offset, long value) {
+
+        putInt(buf, offset, (int) (value >>> 32));
+        putInt(buf, offset + 4, (int) value);
+
+    }
+
+
+    // --------------------------------------------------- Nested classes
+
+
+    /**
+     * The changes of one request to a session.
+     */
+    public final class Request {
+
+        private final String sessionId;
+        private final Map<String, byte[]> changes =
+            new LinkedHashMap<String, byte[]>();
+        private boolean invalidate = false;
+
+
+        Request(String sessionId) {
+
+            this.sessionId = sessionId;
+
+        }
+
+
+        public String getSessionId() {
+
+            return sessionId;
+
+        }
+
+
+        /**
+         * Set an attribute to its serialized value.
+         */
+        public void setAttribute(String name, byte[] value) {
+
+            if (value == null) {
+                throw new NullPointerException("value");
+            }
+            changes.put(name, value);
+
+        }
+
+
+        public void removeAttribute(String name) {
+
+            changes.put(name, null);
+
+        }
+
+
+        /**
+         * Remove the session from every node when the request commits.
+         */
+        public void invalidate() {
+
+            invalidate = true;
+
+        }
+
+
+        /**
+         * Apply the changes to this node's copy of the session, and
+         * send them to the others.
+         *
+         * @return false if the changes were too big to send, so the
+         *         other nodes' copies are out of date
+         */
+        public boolean commit() {
+
+            boolean sent = replicate(sessionId, changes, invalidate);
+            changes.clear();
+            invalidate = false;
+            return sent;
+
+        }
+    }
+
+
+    /**
+     * A session in the store.  Its methods lock it, as do the changes
+     * applied to it.
+     */
+    public static final class ReplicatedSession {
+
+        private final String id;
+        private final Map<String, Attribute> attributes =
+            new HashMap<String, Attribute>();
+        private long version = 0L;
+        private int size = 0;
+
+
+        ReplicatedSession(String id) {
+
+            this.id = id;
+
+        }
+
+
+        public String getId() {
+
+            return id;
+
+        }
+
+
+        public synchronized long getVersion() {
+
+            return version;
+
+        }
+
+
+        /**
+         * Return an attribute's serialized value, or null if it is not
+         * set.
+         */
+        public synchronized byte[] getAttribute(String name) {
+
+            Attribute attribute = attributes.get(name);
+            return (attribute == null) ? null : attribute.value;
+
+        }
+
+
+        public synchronized List<String> getAttributeNames() {
+
+            List<String> names = new ArrayList<String>(size);
+            for (Map.Entry<String, Attribute> entry
+                     : attributes.entrySet()) {
+                if (entry.getValue().value != null) {
+                    names.add(entry.getKey());
+                }
+            }
+            return names;
+
+        }
+
+
+        /**
+         * Set or, if the value is null, remove an attribute, unless a
+         * newer change to it has been applied already.  The caller
+         * holds the lock.
+         */
+        boolean set(String name, byte[] value, long version) {
+
+            Attribute attribute = attributes.get(name);
+            if (attribute == null) {
+                attribute = new Attribute();
+                attributes.put(name, attribute);
+            } else if (attribute.version >= version) {
+                return false;
+            }
+            if (attribute.value == null && value != null) {
+                size++;
+            } else if (attribute.value != null && value == null) {
+                size--;
+            }
+            attribute.value = value;
+            attribute.version = version;
+            return true;
+
+        }
+    }
+
+
+    /**
+     * An attribute's value, or null once it is removed, and the version
+     * of the session that last changed it.  Removed attributes are kept
+     * until the session is invalidated, so that an older change that
+     * arrives late doesn't bring them back.
+     */
+    private static final class Attribute {
+
+        byte[] value;
+        long version;
+
+    }
+
+
+    /**
+     * The last version of an invalidated session, and when it was
+     * invalidated.
+     */
+    private static final class Tombstone {
+
+        final String sessionId;
+        final Long version;
+        final long buried;
+
+        Tombstone(String sessionId, Long version, long buried) {
+            this.sessionId = sessionId;
+            this.version = version;
+            this.buried = buried;
+        }
+    }
+
+
+    /**
+     * The buffers a thread encodes messages in.
+     */
+    private static final class Workspace {
+
+        final Writer body = new Writer();
+        final byte[] packet = new byte[MAX_MESSAGE];
+        final int[] table = new int[Lzf.HASH_SIZE];
+
+    }
+
+
+    /**
+     * Writes a message body to a growing buffer.
+     */
+    private static final class Writer {
+
+        byte[] buf = new byte[4096];
+        int pos = 0;
+
+
+        void reset() {
+
+            pos = 0;
+
+        }
+
+
+        void put(byte b) {
+
+            ensure(1);
+            buf[pos++] = b;
+
+        }
+
+
+        void putLong(long value) {
+
+            ensure(8);
+            DeltaReplication.putLong(buf, pos, value);
+            pos += 8;
+
+        }
+
+
+        void putVarint(int value) {
+
+            ensure(5);
+            while ((value & ~0x7f) != 0) {
+                buf[pos++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buf[pos++] = (byte) value;
+
+        }
+
+
+        void putBytes(byte[] value) {
+
+            putVarint(value.length);
+            ensure(value.length);
+            System.arraycopy(value, 0, buf, pos, value.length);
+            pos += value.length;
+
+        }
+
+
+        void putString(String value) {
+
+            putBytes(value.getBytes(StandardCharsets.UTF_8));
+
+        }
+
+
+        private void ensure(int length) {
+
+            if (pos + length > buf.length) {
+                buf = Arrays.copyOf(buf,
+                    Math.max(buf.length * 2, pos + length));
+            }
+
+        }
+    }
+
+
+    /**
+     * Reads a message body, checking that it doesn't run past the end.
+     */
+    private static final class Reader {
+
+        private final byte[] buf;
+        private int pos;
+        private final int end;
+
+
+        Reader(byte[] buf, int offset, int end) {
+
+            this.buf = buf;
+            this.pos = offset;
+            this.end = end;
+
+        }
+
+
+        byte peek() throws IOException {
+
+            check(1);
+            return buf[pos];
+
+        }
+
+
+        byte get() throws IOException {
+
+            check(1);
+            return buf[pos++];
+
+        }
+
+
+        long getLong() throws IOException {
+
+            check(8);
+            long value = DeltaReplication.getLong(buf, pos);
+            pos += 8;
+            return value;
+
+        }
+
+
+        int getVarint() throws IOException {
+
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                byte b = get();
+                value |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Bad varint");
+
+        }
+
+
+        byte[] getBytes() throws IOException {
+
+            int length = getVarint();
+            check(length);
+            byte[] value = Arrays.copyOfRange(buf, pos, pos + length);
+            pos += length;
+            return value;
+
+        }
+
+
+        String getString() throws IOException {
+
+            int length = getVarint();
+            check(length);
+            String value =
+                new String(buf, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return value;
+
+        }
+
+
+        private void check(int length) throws IOException {
+
+            if (length < 0 || length > end - pos) {
+                throw new IOException("Truncated message");
+            }
+
+        }
+    }
+
+
+    /**
+     * The LZF compressed format: a run of 1 to 32 literal bytes, after a
+     * control byte holding its length less one, or a back reference of
+     * 3 to 264 bytes to up to 8 KB back, with the length less two in the
+     * top 3 bits of the control byte (and, if that is 7, the rest of it
+     * in the next byte), and the distance less one in the low 5 bits and
+     * the byte after.  Matches are found with a hash table of the last
+     * position each 3 byte sequence was seen at.
+     */
+    static final class Lzf {
+
+        static final int HASH_BITS = 14;
+        static final int HASH_SIZE = 1 << HASH_BITS;
+        private static final int MAX_LITERAL = 32;
+        private static final int MAX_OFFSET = 1 << 13;
+        private static final int MAX_MATCH = (1 << 8) + (1 << 3);
+
+
+        /**
+         * Compress in[0, length) to out[offset, limit).
+         *
+         * @return The end of the compressed data, or -1 if it would not
+         *         fit
+         */
+        static int compress(byte[] in, int length, byte[] out, int offset,
+                            int limit, int[] table) {
+
+            Arrays.fill(table, -1);
+            int ip = 0;
+            int op = offset + 1;
+            int literals = 0;
+            while (ip < length) {
+                if (op + 4 > limit) {
+                    return -1;
+                }
+                int ref = -1;
+                if (ip + 2 < length) {
+                    int h = hash(in, ip);
+                    ref = table[h];
+                    table[h] = ip;
+                }
+                int distance = ip - ref - 1;
+                if (ref >= 0 && distance < MAX_OFFSET
+                    && in[ref] == in[ip] && in[ref + 1] == in[ip + 1]
+                    && in[ref + 2] == in[ip + 2]) {
+                    int max = Math.min(MAX_MATCH, length - ip);
+                    int match = 3;
+                    while (match < max && in[ref + match] == in[ip + match]) {
+                        match++;
+                    }
+                    // End the literal run, or take back its control byte
+                    // if it is empty.
+                    if (literals == 0) {
+                        op--;
+                    } else {
+                        out[op - literals - 1] = (byte) (literals - 1);
+                        literals = 0;
+                    }
+                    int len = match - 2;
+                    if (len < 7) {
+                        out[op++] = (byte) ((len << 5) | (distance >>> 8));
+                    } else {
+                        out[op++] = (byte) ((7 << 5) | (distance >>> 8));
+                        out[op++] = (byte) (len - 7);
+                    }
+                    out[op++] = (byte) distance;
+                    op++;
+                    ip += match;
+                } else {
+                    out[op++] = in[ip++];
+                    if (++literals == MAX_LITERAL) {
+                        out[op - literals - 1] = (byte) (literals - 1);
+                        literals = 0;
+                        op++;
+                    }
+                }
+            }
+            if (literals == 0) {
+                op--;
+            } else {
+                out[op - literals - 1] = (byte) (literals - 1);
+            }
+            return op;
+
+        }
+
+
+        /**
+         * Decompress in[offset, end) to all of out.
+         */
+        static void decompress(byte[] in, int offset, int end, byte[] out)
+            throws IOException {
+
+            int ip = offset;
+            int op = 0;
+            while (ip < end) {
+                int control = in[ip++] & 0xff;
+                if (control < MAX_LITERAL) {
+                    int run = control + 1;
+                    if (ip + run > end || op + run > out.length) {
+                        throw new IOException("Corrupt LZF data");
+                    }
+                    System.arraycopy(in, ip, out, op, run);
+                    ip += run;
+                    op += run;
+                } else {
+                    int len = control >>> 5;
+                    if (len == 7) {
+                        if (ip >= end) {
+                            throw new IOException("Corrupt LZF data");
+                        }
+                        len += in[ip++] & 0xff;
+                    }
+                    len += 2;
+                    if (ip >= end) {
+                        throw new IOException("Corrupt LZF data");
+                    }
+                    int ref = op - ((control & 0x1f) << 8)
+                        - (in[ip++] & 0xff) - 1;
+                    if (ref < 0 || op + len > out.length) {
+                        throw new IOException("Corrupt LZF data");
+                    }
+                    // The reference may overlap the bytes it produces.
+                    for (int i = 0; i < len; i++) {
+                        out[op++] = out[ref++];
+                    }
+                }
+            }
+            if (op != out.length) {
+                throw new IOException("Corrupt LZF data");
+            }
+
+        }
+
+
+        private static int hash(byte[] in, int i) {
+
+            int v = ((in[i] & 0xff) << 16) | ((in[i + 1] & 0xff) << 8)
+                | (in[i + 2] & 0xff);
+            return (v * 0x9e3779b1) >>> (32 - HASH_BITS);
+
+        }
+    }
+
+
+    /**
+     * Compares full-session and delta replication on several nodes in
+     * this JVM.  The first node serves all of the requests, and the
+     * others apply them.
+     */
+    private static final class Demo implements ApplyListener {
+
+        /**
+         * Apart from the Tomcat cluster group, 228.0.0.4:45564.
+         */
+        static final String GROUP = "228.0.0.23";
+        static final int PORT = 45580;
+
+        int nodeCount = 3;
+        int sessionCount = 200;
+        int attributeCount = 20;
+        int size = 256;
+        int changes = 2;
+        int requests = 5000;
+        int rate = 2000;
+
+        private long[] latencies = new long[1024];
+        private int latencyCount = 0;
+
+
+        public synchronized void applied(ReplicatedSession session,
+                                         long sentNanos) {
+
+            if (latencyCount == latencies.length) {
+                latencies = Arrays.copyOf(latencies, latencyCount * 2);
+            }
+            latencies[latencyCount++] = System.nanoTime() - sentNanos;
+
+        }
+
+
+        void run() throws InterruptedException {
+
+            System.out.println(nodeCount + " nodes, " + sessionCount
+                + " sessions of " + attributeCount + " attributes of "
+                + size + " bytes, " + requests + " requests changing "
+                + changes + " attributes, at " + rate + " requests/s");
+            System.out.println();
+            System.out.println(
+                "mode        bytes/req  raw/req  vs full"
+                + "  p50 us  p99 us  max us  applied  stale  diverged");
+            long fullBytes = 0L;
+            String[] modes = {"full", "full+lzf", "delta", "delta+lzf"};
+            for (String mode : modes) {
+                long bytes = run(mode, fullBytes);
+                if (fullBytes == 0L) {
+                    fullBytes = bytes;
+                }
+                Thread.sleep(200L);
+            }
+
+        }
+
+
+        /**
+         * Run the workload in one mode, print its line of the report, and
+         * return the bytes sent.
+         */
+        private long run(String mode, long fullBytes)
+            throws InterruptedException {
+
+            MulticastNode[] nodes = new MulticastNode[nodeCount];
+            DeltaReplication[] channels = new DeltaReplication[nodeCount];
+            for (int i = 0; i < nodeCount; i++) {
+                nodes[i] = new MulticastNode(GROUP, PORT);
+                channels[i] = new DeltaReplication(nodes[i]);
+                channels[i].setFullSession(mode.startsWith("full"));
+                channels[i].setCompress(mode.endsWith("+lzf"));
+                channels[i].setApplyListener(this);
+                channels[i].start();
+                nodes[i].start();
+            }
+
+            // The same workload in every mode.
+            Random random = new Random(42L);
+            String[] words = new String[200];
+            for (int i = 0; i < words.length; i++) {
+                char[] word = new char[3 + random.nextInt(7)];
+                for (int j = 0; j < word.length; j++) {
+                    word[j] = (char) ('a' + random.nextInt(26));
+                }
+                words[i] = new String(word);
+            }
+
+            // Create the sessions, and wait for the others to have them.
+            DeltaReplication primary = channels[0];
+            long interval = 1000000000L / rate;
+            long next = System.nanoTime();
+            for (int i = 0; i < sessionCount; i++) {
+                Request request = primary.begin("session-" + i);
+                for (int j = 0; j < attributeCount; j++) {
+                    request.setAttribute("attribute-" + j,
+                                         value(random, words));
+                }
+                request.commit();
+                next = pace(next, interval);
+            }
+            await(channels, sessionCount);
+            synchronized (this) {
+                latencyCount = 0;
+            }
+            for (DeltaReplication channel : channels) {
+                channel.resetCounters();
+            }
+
+            for (int i = 0; i < requests; i++) {
+                Request request = primary.begin(
+                    "session-" + random.nextInt(sessionCount));
+                for (int j = 0; j < changes; j++) {
+                    request.setAttribute(
+                        "attribute-" + random.nextInt(attributeCount),
+                        value(random, words));
+                }
+                request.commit();
+                next = pace(next, interval);
+            }
+            long applied = await(channels, primary.getSentCount());
+
+            long stale = 0L;
+            int diverged = 0;
+            for (int i = 1; i < nodeCount; i++) {
+                stale += channels[i].getStaleCount();
+                diverged += diverged(primary, channels[i]);
+            }
+            for (int i = 0; i < nodeCount; i++) {
+                channels[i].stop();
+                nodes[i].stop();
+            }
+
+            long sent = primary.getSentBytes();
+            long perRequest = sent / requests;
+            String versus = (fullBytes == 0L) ? "1.00x"
+                : String.format("%.2fx", (double) sent / fullBytes);
+            long[] sorted;
+            synchronized (this) {
+                sorted = Arrays.copyOf(latencies, latencyCount);
+            }
+            Arrays.sort(sorted);
+            System.out.println(String.format(
+                "%-10s %10d %8d %8s %7d %7d %7d %8s %6d %9d",
+                mode, perRequest, primary.getRawBytes() / requests, versus,
+                percentile(sorted, 0.50) / 1000L,
+                percentile(sorted, 0.99) / 1000L,
+                percentile(sorted, 1.0) / 1000L,
+                (100L * applied / Math.max(1L, primary.getSentCount()
+                    * (nodeCount - 1))) + "%",
+                stale, diverged));
+            return sent;
+
+        }
+
+
+        private byte[] value(Random random, String[] words) {
+
+            StringBuilder value = new StringBuilder(size + 16);
+            while (value.length() < size) {
+                value.append(words[random.nextInt(words.length)])
+                     .append(' ');
+            }
+            value.setLength(size);
+            return value.toString().getBytes(StandardCharsets.UTF_8);
+
+        }
+
+
+        private static long pace(long next, long interval) {
+
+            next += interval;
+            long now = System.nanoTime();
+            if (next > now) {
+                LockSupport.parkNanos(next - now);
+            }
+            return next;
+
+        }
+
+
+        /**
+         * Wait for every other node to apply the messages, or stop
+         * changing, and return the number applied.
+         */
+        private static long await(DeltaReplication[] channels,
+                                  long messages)
+            throws InterruptedException {
+
+            long applied = -1L;
+            for (int quiet = 0; quiet < 5; ) {
+                long total = 0L;
+                for (int i = 1; i < channels.length; i++) {
+                    total += channels[i].getAppliedCount();
+                }
+                if (total == messages * (channels.length - 1)) {
+                    return total;
+                }
+                quiet = (total == applied) ? quiet + 1 : 0;
+                applied = total;
+                Thread.sleep(100L);
+            }
+            return applied;
+
+        }
+
+
+        /**
+         * Return the number of sessions that differ between two nodes.
+         */
+        private static int diverged(DeltaReplication primary,
+                                    DeltaReplication other) {
+
+            int diverged = 0;
+            for (Iterator<ReplicatedSession> i =
+                     primary.sessions.values().iterator(); i.hasNext(); ) {
+                ReplicatedSession session = i.next();
+                ReplicatedSession copy = other.getSession(session.getId());
+                if (copy == null) {
+                    diverged++;
+                    continue;
+                }
+                List<String> names = session.getAttributeNames();
+                boolean same = names.size()
+                    == copy.getAttributeNames().size();
+                for (String name : names) {
+                    same &= Arrays.equals(session.getAttribute(name),
+                                          copy.getAttribute(name));
+                }
+                if (!same) {
+                    diverged++;
+                }
+            }
+            return diverged;
+
+        }
+
+
+        private static long percentile(long[] sorted, double fraction) {
+
+            if (sorted.length == 0) {
+                return 0L;
+            }
+            int rank = (int) Math.ceil(fraction * sorted.length);
+            return sorted[Math.max(0, rank - 1)];
+
+        }
+    }
+}
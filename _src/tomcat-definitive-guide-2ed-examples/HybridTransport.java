@@ -0,0 +1,1213 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HybridTransport finds the other nodes of a cluster over multicast, and
+ * talks to them over TCP.  Every node announces its id and the port of
+ * its TCP server to the Tomcat 6 cluster group, 228.0.0.4 on port 45564,
+ * through a MulticastNode, so no node needs a list of the others.  When
+ * a node hears of a new peer, the one of the two with the lower id
+ * opens a persistent, non-blocking TCP connection to the other; after
+ * that, messages between them go over the connection, in order, and of
+ * any size up to MAX_MESSAGE.
+ *
+ * <br><br>
+ *
+ * One thread serves the server and every connection through a Selector.
+ * send() copies a message, after its length, into the peer's queue of
+ * pooled direct buffers, and returns without waiting for it to be
+ * written, so a sender can keep the connection busy with one message
+ * after another.  The selector thread writes the queued buffers with
+ * gathering writes, and returns them to the pool once written.  Small
+ * messages sent in quick succession share buffers, and are written
+ * together.  A sender waits only when its peer has more than
+ * maxQueuedBytes queued.  Messages are received into a pooled buffer
+ * per connection, and handed to the listener as views of it, unless
+ * they are bigger than the buffer.
+ *
+ * <br><br>
+ *
+ * A peer is removed when its connection closes; if the node is still
+ * there, its next announcement connects it again.  Messages still
+ * queued for a removed peer are discarded.
+ *
+ * <br><br>
+ *
+ * To test it, run it in several JVMs on one host, or on several hosts,
+ * telling each how many peers to wait for.  Each sends messages to all
+ * the others as fast as it can, checks that the ones it receives arrive
+ * whole and in order, and prints the throughput.
+ *
+ * <br><br>
+ *
+ * Usage: <code>HybridTransport [-name name] [-peers n] [-count n]
+ * [-size bytes]</code>
+ */
+public class HybridTransport implements Runnable {
+
+    /**
+     * "HTD1".
+     */
+    private static final int MAGIC = 0x48544431;
+
+    /**
+     * The size of the pooled buffers.
+     */
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The largest message.
+     */
+    public static final int MAX_MESSAGE = 64 * 1024 * 1024;
+
+    /**
+     * The most buffers written by one gathering write.
+     */
+    private static final int MAX_GATHER = 64;
+
+    /**
+     * The most reads from one connection before the others get a turn.
+     */
+    private static final int MAX_READS_PER_SELECT = 16;
+
+    private final long id = new Random().nextLong();
+    private final String name;
+    private int port = 0;
+    private long announceInterval = 1000L;
+    private long maxQueuedBytes = 4 * 1024 * 1024;
+    private Listener listener = null;
+
+    private final Selector selector;
+    private ServerSocketChannel server = null;
+    private MulticastNode discovery = null;
+    private volatile Thread thread = null;
+    private Thread announcer = null;
+
+    private final ConcurrentMap<Long, Peer> peers =
+        new ConcurrentHashMap<Long, Peer>();
+
+    /**
+     * Peers to connect to, waiting for the selector thread.
+     */
+    private final ConcurrentLinkedQueue<Peer> connecting =
+        new ConcurrentLinkedQueue<Peer>();
+
+    /**
+     * Peers with messages to write, waiting for the selector thread.
+     */
+    private final ConcurrentLinkedQueue<Peer> writable =
+        new ConcurrentLinkedQueue<Peer>();
+
+    private final ConcurrentLinkedQueue<ByteBuffer> pool =
+        new ConcurrentLinkedQueue<ByteBuffer>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+    private final MulticastNode.Decoder<Announcement> decoder =
+        new MulticastNode.Decoder<Announcement>() {
+            public Announcement decode(byte[] buf, int offset,
+                                       int length) {
+                ByteBuffer in = ByteBuffer.wrap(buf, offset, length);
+                if (length < 16 || in.getInt() != MAGIC) {
+                    return null;
+                }
+                Announcement announcement = new Announcement();
+                announcement.id = in.getLong();
+                announcement.port = in.getInt();
+                announcement.name = new String(buf, in.position(),
+                    in.remaining(), StandardCharsets.UTF_8);
+                return (announcement.id == id) ? null : announcement;
+            }
+        };
+
+    private final MulticastNode.Listener<Announcement> announcements =
+        new MulticastNode.Listener<Announcement>() {
+            public void messageReceived(Announcement announcement,
+                                        InetAddress sender) {
+                discovered(announcement, sender);
+            }
+        };
+
+
+    /**
+     * Told about peers and their messages, on the selector thread.  The
+     * methods must not block, nor send to a peer whose queue may be
+     * full.
+     */
+    public interface Listener {
+
+        /**
+         * Called when a peer is connected.
+         */
+        public void peerAdded(Peer peer);
+
+        /**
+         * Called for each message from a peer, in the order sent.  The
+         * message is valid during the call only.
+         */
+        public void received(Peer peer, ByteBuffer message);
+
+        /**
+         * Called when a peer's connection is closed.
+         */
+        public void peerRemoved(Peer peer);
+
+    }
+
+
+    public static void main(String[] args) throws Exception {
+
+        String name = "node-" + Long.toHexString(System.nanoTime() & 0xffff);
+        int peerCount = 1;
+        int count = 2000;
+        int size = 256 * 1024;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (args[i].equals("-name")) {
+                name = args[i + 1];
+            } else if (args[i].equals("-peers")) {
+                peerCount = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-count")) {
+                count = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-size")) {
+                size = Integer.parseInt(args[i + 1]);
+            } else {
+                usage();
+            }
+        }
+        if (args.length % 2 != 0 || size < 8 || size > MAX_MESSAGE) {
+            usage();
+        }
+        boolean passed = new Demo(name, peerCount, count, size).run();
+        System.exit(passed ? 0 : 1);
+
+    }
+
+
+    private static void usage() {
+
+        System.out.println("Usage: HybridTransport [-name name] "
+            + "[-peers n] [-count n] [-size bytes]");
+        System.exit(1);
+
+    }
+
+
+    /**
+     * Construct a transport.
+     *
+     * @param name The name announced to the other nodes
+     *
+     * @exception IOException if the selector can't be opened
+     */
+    public HybridTransport(String name) throws IOException {
+
+        this.name = name;
+        this.selector = Selector.open();
+
+    }
+
+
+    /**
+     * Set the port of the TCP server, or 0, the default, for any free
+     * port.  Takes effect when the transport is started.
+     */
+    public void setPort(int port) {
+
+        this.port = port;
+
+    }
+
+
+    /**
+     * Return the port of the TCP server, once started.
+     */
+    public int getPort() {
+
+        return server.socket().getLocalPort();
+
+    }
+
+
+    /**
+     * Set the milliseconds between announcements.
+     */
+    public void setAnnounceInterval(long announceInterval) {
+
+        this.announceInterval = announceInterval;
+
+    }
+
+
+    /**
+     * Set the most bytes queued for a peer before send() waits.
+     */
+    public void setMaxQueuedBytes(long maxQueuedBytes) {
+
+        this.maxQueuedBytes = maxQueuedBytes;
+
+    }
+
+
+    public void setListener(Listener listener) {
+
+        this.listener = listener;
+
+    }
+
+
+    public String getName() {
+
+        return name;
+
+    }
+
+
+    /**
+     * Return the peers that are connected.
+     */
+    public List<Peer> getPeers() {
+
+        List<Peer> connected = new ArrayList<Peer>();
+        for (Peer peer : peers.values()) {
+            if (peer.connected) {
+                connected.add(peer);
+            }
+        }
+        return connected;
+
+    }
+
+
+    /**
+     * Start the TCP server, the selector thread, and announcing this
+     * node.
+     *
+     * @exception IOException if the server can't be bound
+     */
+    public synchronized void start() throws IOException {
+
+        if (thread != null) {
+            return;
+        }
+        server = ServerSocketChannel.open();
+        server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+
+        thread = new Thread(this, "HybridTransport-" + name);
+        thread.setDaemon(true);
+        thread.start();
+
+        discovery = new MulticastNode();
+        discovery.addListener(decoder, announcements);
+        discovery.start();
+        announcer = new Thread(new Runnable() {
+            public void run() {
+                while (announcer == Thread.currentThread()) {
+                    announce();
+                    try {
+                        Thread.sleep(announceInterval);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "HybridTransport-announcer-" + name);
+        announcer.setDaemon(true);
+        announcer.start();
+
+    }
+
+
+    /**
+     * Stop announcing, and close every connection and the server.
+     */
+    public void stop() {
+
+        Thread t;
+        synchronized (this) {
+            t = thread;
+            thread = null;
+            if (announcer != null) {
+                announcer.interrupt();
+                announcer = null;
+            }
+            if (discovery != null) {
+                discovery.stop();
+                discovery = null;
+            }
+        }
+        if (t == null) {
+            return;
+        }
+        selector.wakeup();
+        try {
+            t.join(1000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+    }
+
+
+    /**
+     * Queue a message for a peer, waiting while the peer has more than
+     * maxQueuedBytes queued already.
+     *
+     * @param peer The peer
+     * @param message The message, from its position to its limit, which
+     *  is consumed
+     *
+     * @return false if the peer has been removed
+     *
+     * @exception InterruptedException if interrupted while waiting
+     */
+    public boolean send(Peer peer, ByteBuffer message)
+        throws InterruptedException {
+
+        int length = message.remaining();
+        if (length > MAX_MESSAGE) {
+            throw new IllegalArgumentException("Message of " + length
+                + " bytes is over " + MAX_MESSAGE);
+        }
+        boolean schedule;
+        synchronized (peer) {
+            // One message may go over the limit, so that a message bigger
+            // than the limit can still be sent.
+            while (!peer.closed && peer.queuedBytes > 0
+                   && peer.queuedBytes + 4 + length > maxQueuedBytes) {
+                peer.wait();
+            }
+            if (peer.closed) {
+                return false;
+            }
+            peer.append(message);
+            schedule = !peer.writeScheduled;
+            peer.writeScheduled = true;
+        }
+        if (schedule) {
+            writable.add(peer);
+            selector.wakeup();
+        }
+        return true;
+
+    }
+
+
+    /**
+     * Queue a message for a peer.
+     *
+     * @see #send(Peer, ByteBuffer)
+     */
+    public boolean send(Peer peer, byte[] buf, int offset, int length)
+        throws InterruptedException {
+
+        return send(peer, ByteBuffer.wrap(buf, offset, length));
+
+    }
+
+
+    // -------------------------------------------------------- Discovery
+
+
+    /**
+     * Announce this node to the group.
+     */
+    private void announce() {
+
+        MulticastNode node = discovery;
+        if (node == null) {
+            return;
+        }
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer out = ByteBuffer.allocate(16 + nameBytes.length);
+        out.putInt(MAGIC).putLong(id).putInt(getPort()).put(nameBytes);
+        node.send(out.array(), 0, out.position());
+
+    }
+
+
+    /**
+     * Note a peer's announcement, and connect to the peer if it is new
+     * and this node has the lower id.
+     */
+    private void discovered(Announcement announcement, InetAddress sender) {
+
+        Peer peer = peers.get(announcement.id);
+        if (peer != null) {
+            peer.lastSeen = System.currentTimeMillis();
+            return;
+        }
+        peer = new Peer(announcement.id, announcement.name,
+                        new InetSocketAddress(sender, announcement.port));
+        if (peers.putIfAbsent(peer.id, peer) != null) {
+            return;
+        }
+        // Let the new peer hear of this node without waiting.
+        announce();
+        if (id < peer.id) {
+            connecting.add(peer);
+            selector.wakeup();
+        }
+
+    }
+
+
+    // ---------------------------------------------------- Selector thread
+
+
+    /**
+     * Serve the connections until stopped.
+     */
+    public void run() {
+
+        try {
+            long nextExpiry = System.currentTimeMillis() + announceInterval;
+            while (thread == Thread.currentThread()) {
+                Peer peer;
+                while ((peer = connecting.poll()) != null) {
+                    connect(peer);
+                }
+                while ((peer = writable.poll()) != null) {
+                    if (peer.connected) {
+                        flush(peer);
+                    }
+                }
+
+                selector.select(announceInterval);
+                Iterator<SelectionKey> keys =
+                    selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isConnectable()) {
+                            connection.channel.finishConnect();
+                            established(connection);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            read(connection);
+                        }
+                        if (key.isValid() && key.isWritable()
+                            && connection.peer.connected) {
+                            flush(connection.peer);
+                        }
+                    } catch (IOException e) {
+                        close(connection);
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (now >= nextExpiry) {
+                    expire(now);
+                    nextExpiry = now + announceInterval;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    close((Connection) key.attachment());
+                }
+            }
+            try {
+                server.close();
+                selector.close();
+            } catch (IOException e) {
+                // Nothing more to release.
+            }
+        }
+
+    }
+
+
+    /**
+     * Remove the peers that were announced but never connected, and
+     * have not been announced for three intervals.
+     */
+    private void expire(long now) {
+
+        for (Peer peer : peers.values()) {
+            if (peer.connection == null
+                && now - peer.lastSeen > 3 * announceInterval) {
+                peers.remove(peer.id, peer);
+                peer.discard();
+            }
+        }
+
+    }
+
+
+    private void connect(Peer peer) {
+
+        if (peer.closed || peer.connection != null) {
+            return;
+        }
+        Connection connection = null;
+        try {
+            SocketChannel channel = SocketChannel.open();
+            connection = new Connection(channel);
+            connection.peer = peer;
+            peer.connection = connection;
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            connection.key = channel.register(selector,
+                SelectionKey.OP_CONNECT, connection);
+            if (channel.connect(peer.address)) {
+                established(connection);
+            }
+        } catch (IOException e) {
+            if (connection != null) {
+                close(connection);
+            } else {
+                peers.remove(peer.id, peer);
+                peer.discard();
+            }
+        }
+
+    }
+
+
+    /**
+     * Introduce this node on a new outgoing connection, and start
+     * writing what is queued for the peer.
+     */
+    private void established(Connection connection) throws IOException {
+
+        // The socket's send buffer is empty, so the whole introduction is
+        // written at once.
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer hello = ByteBuffer.allocate(16 + nameBytes.length);
+        hello.putInt(12 + nameBytes.length).putLong(id).putInt(getPort())
+             .put(nameBytes).flip();
+        connection.channel.write(hello);
+        if (hello.hasRemaining()) {
+            throw new IOException("Introduction not written");
+        }
+        connected(connection);
+
+    }
+
+
+    private void accept() throws IOException {
+
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ,
+                                          connection);
+
+    }
+
+
+    /**
+     * Make an incoming connection the connection of the peer that
+     * introduced itself on it.
+     */
+    private void introduced(Connection connection, ByteBuffer hello)
+        throws IOException {
+
+        long peerId = hello.getLong();
+        int peerPort = hello.getInt();
+        String peerName = StandardCharsets.UTF_8.decode(hello).toString();
+        Peer peer = peers.get(peerId);
+        if (peer == null) {
+            InetSocketAddress remote = (InetSocketAddress)
+                connection.channel.getRemoteAddress();
+            peer = new Peer(peerId, peerName, new InetSocketAddress(
+                remote.getAddress(), peerPort));
+            Peer existing = peers.putIfAbsent(peerId, peer);
+            if (existing != null) {
+                peer = existing;
+            }
+        }
+        if (peer.connection != null || peer.closed) {
+            throw new IOException("Peer " + peerName + " already connected");
+        }
+        connection.peer = peer;
+        peer.connection = connection;
+        connected(connection);
+
+    }
+
+
+    private void connected(Connection connection) {
+
+        Peer peer = connection.peer;
+        peer.connected = true;
+        connection.key.interestOps(SelectionKey.OP_READ);
+        Listener listener = this.listener;
+        if (listener != null) {
+            listener.peerAdded(peer);
+        }
+        flush(peer);
+
+    }
+
+
+    /**
+     * Write as much of a peer's queue as the socket takes.
+     */
+    private void flush(Peer peer) {
+
+        Connection connection = peer.connection;
+        int count;
+        synchronized (peer) {
+            // Send the buffer being filled too, if it is all there is.
+            if (peer.sealed.isEmpty() && peer.filling != null
+                && peer.filling.position() > 0) {
+                peer.seal();
+            }
+            count = 0;
+            for (ByteBuffer buffer : peer.sealed) {
+                if (count == MAX_GATHER) {
+                    break;
+                }
+                gather[count++] = buffer;
+            }
+        }
+
+        long written = 0L;
+        if (count > 0) {
+            try {
+                written = connection.channel.write(gather, 0, count);
+            } catch (IOException e) {
+                close(connection);
+                return;
+            } finally {
+                for (int i = 0; i < count; i++) {
+                    gather[i] = null;
+                }
+            }
+        }
+
+        synchronized (peer) {
+            peer.queuedBytes -= written;
+            peer.sentBytes += written;
+            while (!peer.sealed.isEmpty()
+                   && !peer.sealed.peekFirst().hasRemaining()) {
+                release(peer.sealed.pollFirst());
+            }
+            if (written > 0L) {
+                peer.notifyAll();
+            }
+            if (peer.queuedBytes == 0L) {
+                peer.writeScheduled = false;
+                connection.key.interestOps(SelectionKey.OP_READ);
+            } else {
+                connection.key.interestOps(
+                    SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+    }
+
+
+    /**
+     * Read what a connection has, and hand each whole message to the
+     * listener.
+     */
+    private void read(Connection connection) throws IOException {
+
+        ByteBuffer in = connection.readBuffer;
+        for (int i = 0; i < MAX_READS_PER_SELECT; i++) {
+            int n = connection.channel.read(in);
+            if (n < 0) {
+                close(connection);
+                return;
+            }
+            if (connection.peer != null) {
+                connection.peer.receivedBytes += n;
+            }
+            in.flip();
+            deliver(connection, in);
+            in.compact();
+            if (n == 0 || in.hasRemaining()) {
+                return;
+            }
+        }
+
+    }
+
+
+    private void deliver(Connection connection, ByteBuffer in)
+        throws IOException {
+
+        Listener listener = this.listener;
+        while (true) {
+            ByteBuffer assembly = connection.assembly;
+            if (assembly != null) {
+                // A message bigger than the read buffer, being copied
+                // into a buffer of its own.
+                int n = Math.min(assembly.remaining(), in.remaining());
+                int limit = in.limit();
+                in.limit(in.position() + n);
+                assembly.put(in);
+                in.limit(limit);
+                if (assembly.hasRemaining()) {
+                    return;
+                }
+                connection.assembly = null;
+                assembly.flip();
+                if (listener != null) {
+                    listener.received(connection.peer, assembly);
+                }
+                continue;
+            }
+
+            if (in.remaining() < 4) {
+                return;
+            }
+            int start = in.position();
+            int length = in.getInt(start);
+            if (length < 0 || length > MAX_MESSAGE
+                || (connection.peer == null && length > 1024)) {
+                throw new IOException("Bad message length " + length);
+            }
+            if (in.remaining() >= 4 + length) {
+                ByteBuffer view = connection.view;
+                view.clear();
+                view.limit(start + 4 + length).position(start + 4);
+                in.position(start + 4 + length);
+                if (connection.peer == null) {
+                    introduced(connection, view);
+                } else if (listener != null) {
+                    listener.received(connection.peer, view);
+                }
+            } else if (4 + length > in.capacity()) {
+                in.position(start + 4);
+                connection.assembly = ByteBuffer.allocate(length);
+            } else {
+                return;
+            }
+        }
+
+    }
+
+
+    /**
+     * Close a connection, and remove its peer.
+     */
+    private void close(Connection connection) {
+
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            // Closed anyway.
+        }
+        if (connection.readBuffer != null) {
+            release(connection.readBuffer);
+            connection.readBuffer = null;
+        }
+        Peer peer = connection.peer;
+        if (peer == null || peer.connection != connection) {
+            return;
+        }
+        boolean wasConnected = peer.connected;
+        peer.connected = false;
+        peers.remove(peer.id, peer);
+        peer.discard();
+        Listener listener = this.listener;
+        if (wasConnected && listener != null) {
+            listener.peerRemoved(peer);
+        }
+
+    }
+
+
+    private ByteBuffer acquire() {
+
+        ByteBuffer buffer = pool.poll();
+        return (buffer != null) ? buffer
+                                : ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    }
+
+
+    private void release(ByteBuffer buffer) {
+
+        buffer.clear();
+        pool.offer(buffer);
+
+    }
+
+
+    // --------------------------------------------------- Nested classes
+
+
+    private static final class Announcement {
+
+        long id;
+        int port;
+        String name;
+
+    }
+
+
+    /**
+     * A connection, and the buffers its messages are read into.  Used by
+     * the selector thread only.
+     */
+    private final class Connection {
+
+        final SocketChannel channel;
+        SelectionKey key;
+        Peer peer = null;
+        ByteBuffer readBuffer = acquire();
+        final ByteBuffer view = readBuffer.duplicate();
+        ByteBuffer assembly = null;
+
+
+        Connection(SocketChannel channel) {
+
+            this.channel = channel;
+
+        }
+    }
+
+
+    /**
+     * Another node, and the messages queued for it.  The queue is
+     * guarded by the peer's lock.
+     */
+    public final class Peer {
+
+        private final long id;
+        private final String name;
+        private final InetSocketAddress address;
+        volatile long lastSeen = System.currentTimeMillis();
+        volatile boolean connected = false;
+        volatile boolean closed = false;
+
+        /**
+         * Used by the selector thread only.
+         */
+        Connection connection = null;
+
+        /**
+         * Buffers ready to write, in order.
+         */
+        final ArrayDeque<ByteBuffer> sealed = new ArrayDeque<ByteBuffer>();
+
+        /**
+         * The buffer messages are being copied into, after the sealed
+         * ones.
+         */
+        ByteBuffer filling = null;
+
+        long queuedBytes = 0L;
+        boolean writeScheduled = false;
+        volatile long sentBytes = 0L;
+        volatile long receivedBytes = 0L;
+
+
+        Peer(long id, String name, InetSocketAddress address) {
+
+            this.id = id;
+            this.name = name;
+            this.address = address;
+
+        }
+
+
+        public long getId() {
+
+            return id;
+
+        }
+
+
+        public String getName() {
+
+            return name;
+
+        }
+
+
+        /**
+         * Return the address of the peer's TCP server.
+         */
+        public InetSocketAddress getAddress() {
+
+            return address;
+
+        }
+
+
+        public boolean isConnected() {
+
+            return connected;
+
+        }
+
+
+        public synchronized long getQueuedBytes() {
+
+            return queuedBytes;
+
+        }
+
+
+        public long getSentBytes() {
+
+            return sentBytes;
+
+        }
+
+
+        public long getReceivedBytes() {
+
+            return receivedBytes;
+
+        }
+
+
+        public String toString() {
+
+            return name + " (" + address + ")";
+
+        }
+
+
+        /**
+         * Copy a message, after its length, into the queue.  The caller
+         * holds the lock.
+         */
+        void append(ByteBuffer message) {
+
+            if (filling == null || filling.remaining() < 4) {
+                seal();
+                filling = acquire();
+            }
+            int length = message.remaining();
+            filling.putInt(length);
+            while (message.hasRemaining()) {
+                if (!filling.hasRemaining()) {
+                    seal();
+                    filling = acquire();
+                }
+                int n = Math.min(filling.remaining(), message.remaining());
+                int limit = message.limit();
+                message.limit(message.position() + n);
+                filling.put(message);
+                message.limit(limit);
+            }
+            queuedBytes += 4 + length;
+
+        }
+
+
+        /**
+         * Move the buffer being filled to the end of the sealed ones.
+         * The caller holds the lock.
+         */
+        void seal() {
+
+            if (filling != null) {
+                filling.flip();
+                sealed.addLast(filling);
+                filling = null;
+            }
+
+        }
+
+
+        /**
+         * Mark the peer closed, drop its queue, and wake its senders.
+         */
+        synchronized void discard() {
+
+            closed = true;
+            connected = false;
+            for (ByteBuffer buffer : sealed) {
+                release(buffer);
+            }
+            sealed.clear();
+            if (filling != null) {
+                release(filling);
+                filling = null;
+            }
+            queuedBytes = 0L;
+            notifyAll();
+
+        }
+    }
+
+
+    /**
+     * Sends messages to every peer, checks the ones received, and
+     * reports the throughput.
+     */
+    private static final class Demo implements Listener {
+
+        private final String name;
+        private final int peerCount;
+        private final int count;
+        private final int size;
+
+        private final ConcurrentMap<Peer, long[]> expected =
+            new ConcurrentHashMap<Peer, long[]>();
+        private final AtomicLong receivedMessages = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private volatile long firstReceived = 0L;
+        private volatile long lastReceived = 0L;
+
+
+        Demo(String name, int peerCount, int count, int size) {
+
+            this.name = name;
+            this.peerCount = peerCount;
+            this.count = count;
+            this.size = size;
+
+        }
+
+
+        public void peerAdded(Peer peer) {
+
+            expected.put(peer, new long[1]);
+            System.out.println(name + ": connected to " + peer);
+
+        }
+
+
+        public void received(Peer peer, ByteBuffer message) {
+
+            long now = System.nanoTime();
+            if (firstReceived == 0L) {
+                firstReceived = now;
+            }
+            lastReceived = now;
+            long[] next = expected.get(peer);
+            long seq = message.getLong(message.position());
+            if (next == null || seq != next[0]
+                || message.remaining() != size
+                || message.get(message.limit() - 1) != (byte) seq) {
+                errors.incrementAndGet();
+            }
+            if (next != null) {
+                next[0] = seq + 1;
+            }
+            receivedMessages.incrementAndGet();
+
+        }
+
+
+        public void peerRemoved(Peer peer) {
+
+            System.out.println(name + ": lost " + peer);
+
+        }
+
+
+        boolean run() throws Exception {
+
+            final HybridTransport transport = new HybridTransport(name);
+            transport.setListener(this);
+            long start = System.nanoTime();
+            transport.start();
+            System.out.println(name + ": listening on port "
+                + transport.getPort() + ", waiting for " + peerCount
+                + " peers");
+            long deadline = System.currentTimeMillis() + 30000L;
+            while (transport.getPeers().size() < peerCount) {
+                if (System.currentTimeMillis() > deadline) {
+                    System.out.println(name + ": only found "
+                        + transport.getPeers());
+                    transport.stop();
+                    return false;
+                }
+                Thread.sleep(10L);
+            }
+            System.out.println(name + ": found " + peerCount + " peers in "
+                + (System.nanoTime() - start) / 1000000L + " ms");
+
+            // One sender per peer, each pipelining its messages.
+            List<Thread> senders = new ArrayList<Thread>();
+            for (final Peer peer : transport.getPeers()) {
+                Thread sender = new Thread(new Runnable() {
+                    public void run() {
+                        ByteBuffer message = ByteBuffer.allocate(size);
+                        try {
+                            for (long seq = 0L; seq < count; seq++) {
+                                message.clear();
+                                message.putLong(0, seq);
+                                message.put(size - 1, (byte) seq);
+                                if (!transport.send(peer, message)) {
+                                    errors.incrementAndGet();
+                                    return;
+                                }
+                            }
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                });
+                sender.start();
+                senders.add(sender);
+            }
+
+            long total = (long) count * peerCount;
+            deadline = System.currentTimeMillis() + 120000L;
+            while (receivedMessages.get() < total
+                   && System.currentTimeMillis() < deadline
+                   && transport.getPeers().size() == peerCount) {
+                Thread.sleep(10L);
+            }
+            for (Thread sender : senders) {
+                sender.join(10000L);
+            }
+            // Let the peers finish reading what is still queued for them.
+            for (Peer peer : transport.getPeers()) {
+                while (peer.isConnected() && peer.getQueuedBytes() > 0L
+                       && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10L);
+                }
+            }
+            Thread.sleep(1000L);
+            transport.stop();
+
+            long received = receivedMessages.get();
+            double seconds = Math.max(1L, lastReceived - firstReceived)
+                / 1e9;
+            System.out.println(String.format(
+                "%s: received %d of %d messages of %d bytes, "
+                + "%.1f MB/s, %d errors", name, received, total, size,
+                received * (double) size / seconds / (1024 * 1024),
+                errors.get()));
+            return received == total && errors.get() == 0L;
+
+        }
+    }
+}
@@ -0,0 +1,588 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * MulticastBatcher coalesces the messages that any number of threads
+ * send to a multicast group into frames of up to a datagram's worth,
+ * and sends a frame when the next message doesn't fit in it, or when
+ * its first message has waited for the maximum delay.  A burst of small
+ * updates then costs a few datagrams, and a few system calls and
+ * interrupts on every node, instead of one of each per update.
+ *
+ * <br><br>
+ *
+ * A frame is a 4 byte magic number followed by the messages, each
+ * prefixed with its length as a variable length integer: one byte up to
+ * 127 bytes, two up to 16383.  Receiver unpacks frames and hands each
+ * message to a MessageHandler as a window of the received datagram,
+ * without copying it.
+ *
+ * <br><br>
+ *
+ * Frames are pooled direct buffers.  A producer only holds the lock for
+ * as long as it takes to copy its message into the current frame; the
+ * producer that fills a frame, or the flushing thread, swaps it for an
+ * empty one and sends it after releasing the lock.
+ */
+public class MulticastBatcher {
+
+    /**
+     * "MBF1".
+     */
+    public static final int MAGIC = 0x4d424631;
+
+    private static final int HEADER_LENGTH = 4;
+
+    /**
+     * The default frame size, which fits in an Ethernet frame with the
+     * IP and UDP headers.
+     */
+    public static final int DEFAULT_FRAME_SIZE = 1472;
+
+    private final NioMulticastNode.Membership membership;
+    private final int frameSize;
+    private final long maxDelay;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Guarded by lock.
+    private ByteBuffer frame;
+    private long frameStarted = 0L;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> pool =
+        new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private final AtomicLong messageCount = new AtomicLong();
+    private final AtomicLong frameCount = new AtomicLong();
+    private final AtomicLong deadlineFrameCount = new AtomicLong();
+    private final AtomicLong unsentFrameCount = new AtomicLong();
+
+    private volatile Thread flusher = null;
+
+
+    /**
+     * Receives the messages unpacked from frames.
+     */
+    public interface MessageHandler {
+
+        /**
+         * Called on the receiving thread for each message.  The message
+         * is the window of the received datagram from the buffer's
+         * position to its limit, and is only valid until this method
+         * returns.
+         *
+         * @param source The address of the sender
+         * @param message The message
+         */
+        public void received(SocketAddress source, ByteBuffer message);
+
+    }
+
+
+    /**
+     * Send a number of small messages from several threads one datagram
+     * per message, and then batched, to a receiver in this JVM on the
+     * loopback interface, and compare the message rates and the number
+     * of datagrams sent.
+     *
+     * <br><br>
+     *
+     * Usage: <code>MulticastBatcher [threads [messages [size [port]]]]</code>
+     */
+    public static void main(String[] args) throws Exception {
+
+        int threads = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+        int messages = (args.length > 1) ? Integer.parseInt(args[1])
+                                         : 250000;
+        int size = (args.length > 2) ? Integer.parseInt(args[2]) : 64;
+        int port = (args.length > 3) ? Integer.parseInt(args[3])
+                                     : NioMulticastNode.DEFAULT_PORT;
+        InetAddress group =
+            InetAddress.getByName(NioMulticastNode.DEFAULT_GROUP);
+        NetworkInterface loopback = NetworkInterface.getByName("lo");
+
+        final AtomicLong received = new AtomicLong();
+        NioMulticastNode receiverNode = new NioMulticastNode();
+        receiverNode.setReceiveBufferSize(4 * 1024 * 1024);
+        final Receiver receiver = new Receiver(new MessageHandler() {
+            public void received(SocketAddress source, ByteBuffer message) {
+                received.lazySet(received.get() + 1);
+            }
+        });
+        final NioMulticastNode.Handler counter =
+            new NioMulticastNode.Handler() {
+                public void received(NioMulticastNode.Membership m,
+                                     SocketAddress source,
+                                     ByteBuffer payload) {
+                    if (payload.remaining() > 0
+                        && payload.get(0) == (byte) 'U') {
+                        received.lazySet(received.get() + 1);
+                    } else {
+                        receiver.received(m, source, payload);
+                    }
+                }
+            };
+        receiverNode.join(group, port, loopback, counter);
+        receiverNode.start("receiver");
+
+        NioMulticastNode senderNode = new NioMulticastNode();
+        final NioMulticastNode.Membership out =
+            senderNode.join(group, port, loopback, null);
+
+        System.out.println(threads + " threads sending " + messages
+            + " messages of " + size + " bytes each");
+        for (int batched = 0; batched < 2; batched++) {
+            received.set(0L);
+            final MulticastBatcher batcher = (batched == 1)
+                ? new MulticastBatcher(out, DEFAULT_FRAME_SIZE, 1000000L)
+                : null;
+            if (batcher != null) {
+                batcher.start("batcher");
+            }
+            long sentBefore = out.getSentPackets();
+            final byte[] message = new byte[size];
+            message[0] = (byte) ((batched == 1) ? 'B' : 'U');
+            final int perThread = messages / threads;
+
+            Thread[] producers = new Thread[threads];
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                producers[t] = new Thread(new Runnable() {
+                    public void run() {
+                        ByteBuffer buffer = ByteBuffer.wrap(message);
+                        try {
+                            for (int i = 0; i < perThread; i++) {
+                                buffer.clear();
+                                if (batcher != null) {
+                                    batcher.send(buffer);
+                                } else {
+                                    out.send(buffer);
+                                }
+                            }
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                });
+                producers[t].start();
+            }
+            for (int t = 0; t < threads; t++) {
+                producers[t].join();
+            }
+            if (batcher != null) {
+                batcher.stop();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            Thread.sleep(500L);
+
+            long sent = (long) perThread * threads;
+            System.out.println(((batcher != null) ? "batched:   "
+                                                  : "unbatched: ")
+                + Math.round(sent / seconds) + " messages/s, "
+                + (out.getSentPackets() - sentBefore) + " datagrams, "
+                + received.get() + " of " + sent + " messages received"
+                + ((batcher != null) ? " (" + batcher + ")" : ""));
+        }
+        receiverNode.stop();
+
+    }
+
+
+    /**
+     * Construct a batcher, which sends frames as they fill up, and, once
+     * started, when their first message has waited for the maximum
+     * delay.
+     *
+     * @param membership The group to send to
+     * @param frameSize The largest frame, in bytes
+     * @param maxDelay The longest a message waits for others to share
+     *  its frame, in nanoseconds
+     */
+    public MulticastBatcher(NioMulticastNode.Membership membership,
+                            int frameSize, long maxDelay) {
+
+        if (frameSize <= HEADER_LENGTH + 1
+            || frameSize > NioMulticastNode.MAX_DATAGRAM) {
+            throw new IllegalArgumentException("Invalid frame size "
+                                               + frameSize);
+        }
+        this.membership = membership;
+        this.frameSize = frameSize;
+        this.maxDelay = maxDelay;
+        this.frame = take();
+
+    }
+
+
+    /**
+     * Return the largest message that fits in a frame.
+     */
+    public int getMaxMessageSize() {
+
+        int max = frameSize - HEADER_LENGTH - 1;
+        while (varintLength(max) + max > frameSize - HEADER_LENGTH) {
+            max--;
+        }
+        return max;
+
+    }
+
+
+    /**
+     * Start the thread that sends frames whose first message has waited
+     * for the maximum delay.
+     *
+     * @param name The name of the thread
+     */
+    public synchronized void start(String name) {
+
+        if (flusher != null) {
+            return;
+        }
+        flusher = new Thread(new Runnable() {
+            public void run() {
+                flushOnDeadline();
+            }
+        }, name);
+        flusher.setDaemon(true);
+        flusher.start();
+
+    }
+
+
+    /**
+     * Stop the flushing thread, and send what is left.
+     */
+    public void stop() throws IOException {
+
+        Thread t;
+        synchronized (this) {
+            t = flusher;
+            flusher = null;
+        }
+        if (t != null) {
+            LockSupport.unpark(t);
+            try {
+                t.join(1000L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+
+    }
+
+
+    /**
+     * Add a message to the current frame, sending the frame first if the
+     * message doesn't fit.  May be called by any thread.
+     *
+     * @param message The message, from its position to its limit, which
+     *  is consumed
+     *
+     * @exception IOException if a full frame can't be sent
+     */
+    public void send(ByteBuffer message) throws IOException {
+
+        int length = message.remaining();
+        int needed = varintLength(length) + length;
+        if (needed > frameSize - HEADER_LENGTH) {
+            throw new IllegalArgumentException("A message of " + length
+                + " bytes doesn't fit in a frame of " + frameSize);
+        }
+
+        ByteBuffer full = null;
+        lock.lock();
+        try {
+            if (frame.remaining() < needed) {
+                full = frame;
+                frame = take();
+            }
+            if (frame.position() == HEADER_LENGTH) {
+                frameStarted = System.nanoTime();
+            }
+            putVarint(frame, length);
+            frame.put(message);
+        } finally {
+            lock.unlock();
+        }
+        messageCount.incrementAndGet();
+        if (full != null) {
+            transmit(full);
+        }
+
+    }
+
+
+    /**
+     * Send the current frame now, if it holds any message.
+     *
+     * @exception IOException if it can't be sent
+     */
+    public void flush() throws IOException {
+
+        ByteBuffer full = null;
+        lock.lock();
+        try {
+            if (frame.position() > HEADER_LENGTH) {
+                full = frame;
+                frame = take();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (full != null) {
+            transmit(full);
+        }
+
+    }
+
+
+    public long getMessageCount() {
+
+        return messageCount.get();
+
+    }
+
+
+    public long getFrameCount() {
+
+        return frameCount.get();
+
+    }
+
+
+    /**
+     * Return the number of frames sent because their first message had
+     * waited for the maximum delay, rather than because they were full.
+     */
+    public long getDeadlineFrameCount() {
+
+        return deadlineFrameCount.get();
+
+    }
+
+
+    /**
+     * Return the number of frames lost because the socket's send buffer
+     * was full.
+     */
+    public long getUnsentFrameCount() {
+
+        return unsentFrameCount.get();
+
+    }
+
+
+    public String toString() {
+
+        long frames = frameCount.get();
+        return messageCount.get() + " messages in " + frames + " frames, "
+            + deadlineFrameCount.get() + " sent on deadline, "
+            + unsentFrameCount.get() + " unsent";
+
+    }
+
+
+    /**
+     * Unpack the messages of a frame, and hand each to a handler.
+     *
+     * @param frame The frame, from its position to its limit
+     * @param source The address of the sender
+     * @param handler The handler of the messages
+     *
+     * @return The number of messages, or -1 if the frame is malformed,
+     *  in which case the messages before the error were handled
+     */
+    public static int unpack(ByteBuffer frame, SocketAddress source,
+                             MessageHandler handler) {
+
+        int limit = frame.limit();
+        if (frame.remaining() < HEADER_LENGTH || frame.getInt() != MAGIC) {
+            return -1;
+        }
+        int count = 0;
+        while (frame.position() < limit) {
+            int length = getVarint(frame, limit);
+            int start = frame.position();
+            if (length < 0 || length > limit - start) {
+                frame.limit(limit);
+                return -1;
+            }
+            frame.limit(start + length);
+            handler.received(source, frame);
+            frame.limit(limit);
+            frame.position(start + length);
+            count++;
+        }
+        return count;
+
+    }
+
+
+    /**
+     * Send a frame's messages now and then, until stopped.
+     */
+    private void flushOnDeadline() {
+
+        while (flusher == Thread.currentThread()) {
+            LockSupport.parkNanos(Math.max(maxDelay / 4, 50000L));
+            ByteBuffer full = null;
+            lock.lock();
+            try {
+                if (frame.position() > HEADER_LENGTH
+                    && System.nanoTime() - frameStarted >= maxDelay) {
+                    full = frame;
+                    frame = take();
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (full != null) {
+                deadlineFrameCount.incrementAndGet();
+                try {
+                    transmit(full);
+                } catch (IOException e) {
+                    // Lost, like a dropped datagram.
+                }
+            }
+        }
+
+    }
+
+
+    /**
+     * Send a frame, and return its buffer to the pool.
+     */
+    private void transmit(ByteBuffer full) throws IOException {
+
+        full.flip();
+        try {
+            if (membership.send(full)) {
+                frameCount.incrementAndGet();
+            } else {
+                unsentFrameCount.incrementAndGet();
+            }
+        } finally {
+            full.clear();
+            full.putInt(MAGIC);
+            pool.offer(full);
+        }
+
+    }
+
+
+    /**
+     * Return an empty frame from the pool, or a new one.
+     */
+    private ByteBuffer take() {
+
+        ByteBuffer empty = pool.poll();
+        if (empty == null) {
+            empty = ByteBuffer.allocateDirect(frameSize);
+            empty.putInt(MAGIC);
+        }
+        return empty;
+
+    }
+
+
+    private static int varintLength(int value) {
+
+        int length = 1;
+        while ((value >>>= 7) != 0) {
+            length++;
+        }
+        return length;
+
+    }
+
+
+    private static void putVarint(ByteBuffer buffer, int value) {
+
+        while ((value & ~0x7f) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+
+    }
+
+
+    /**
+     * Read a variable length integer, or return -1 if it is malformed or
+     * runs past the limit.
+     */
+    private static int getVarint(ByteBuffer buffer, int limit) {
+
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (buffer.position() >= limit) {
+                return -1;
+            }
+            byte b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        return -1;
+
+    }
+
+
+    /**
+     * A NioMulticastNode.Handler that unpacks frames, and hands their
+     * messages to a MessageHandler.
+     */
+    public static class Receiver implements NioMulticastNode.Handler {
+
+        private final MessageHandler handler;
+        private volatile long frameCount = 0L;
+        private volatile long malformedFrameCount = 0L;
+
+
+        public Receiver(MessageHandler handler) {
+
+            this.handler = handler;
+
+        }
+
+
+        public void received(NioMulticastNode.Membership membership,
+                             SocketAddress source, ByteBuffer payload) {
+
+            if (unpack(payload, source, handler) < 0) {
+                malformedFrameCount++;
+            } else {
+                frameCount++;
+            }
+
+        }
+
+
+        public long getFrameCount() {
+
+            return frameCount;
+
+        }
+
+
+        /**
+         * Return the number of datagrams that weren't frames, or were
+         * cut short.
+         */
+        public long getMalformedFrameCount() {
+
+            return malformedFrameCount;
+
+        }
+    }
+}
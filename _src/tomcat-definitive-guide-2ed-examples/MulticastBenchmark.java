@@ -0,0 +1,579 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * MulticastBenchmark qualifies a network segment for Tomcat cluster
+ * traffic.  It runs a number of virtual nodes in this JVM, each with its
+ * own socket in the multicast group, and has some or all of them send
+ * sequenced, timestamped packets of a given size at a given rate.  Every
+ * node reports, for every sender it heard, the throughput, the packets
+ * lost, reordered and duplicated, and a histogram of the latency.
+ *
+ * <br><br>
+ *
+ * On one host, on the loopback interface, the latency is one way, since
+ * all of the nodes share a clock; this is the default, and runs anywhere
+ * without touching the network, so it can run in CI.  To qualify the
+ * network between hosts, run one instance with <code>-nodes 1</code> on
+ * each host, on the interface that faces the others, in round-trip mode:
+ * each node then echoes the packets it hears, and the senders measure
+ * the round trip on their own clock.
+ *
+ * <br><br>
+ *
+ * Usage: <code>MulticastBenchmark [-nodes n] [-senders n] [-rate
+ * packets/s] [-size bytes] [-duration seconds] [-group address]
+ * [-port port] [-interface name] [-rcvbuf bytes] [-rtt] [-maxLoss
+ * percent]</code>
+ * <br>
+ * With <code>-maxLoss</code>, exits with status 1 if any receiver lost
+ * more than that percentage of any sender's packets.
+ */
+public class MulticastBenchmark {
+
+    /**
+     * "MCB1".
+     */
+    private static final int MAGIC = 0x4d434231;
+
+    private static final byte DATA = 1;
+    private static final byte ECHO = 2;
+
+    /**
+     * Magic, type, sender, origin, sequence number and timestamp.
+     */
+    private static final int HEADER_LENGTH = 4 + 1 + 4 + 4 + 8 + 8;
+
+    private int nodeCount = 3;
+    private int senderCount = -1;
+    private int rate = 10000;
+    private int size = 256;
+    private int duration = 10;
+    private String group = NioMulticastNode.DEFAULT_GROUP;
+    private int port = NioMulticastNode.DEFAULT_PORT;
+    private String interfaceName = "lo";
+    private int receiveBufferSize = 0;
+    private boolean roundTrip = false;
+    private double maxLoss = -1.0;
+
+    private final List<VirtualNode> nodes = new ArrayList<VirtualNode>();
+
+
+    public static void main(String[] args) throws Exception {
+
+        MulticastBenchmark benchmark = new MulticastBenchmark();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            String value = (i + 1 < args.length) ? args[i + 1] : null;
+            if (value == null && !arg.equals("-rtt")) {
+                usage();
+            }
+            if (arg.equals("-nodes")) {
+                benchmark.nodeCount = Integer.parseInt(value);
+            } else if (arg.equals("-senders")) {
+                benchmark.senderCount = Integer.parseInt(value);
+            } else if (arg.equals("-rate")) {
+                benchmark.rate = Integer.parseInt(value);
+            } else if (arg.equals("-size")) {
+                benchmark.size = Integer.parseInt(value);
+            } else if (arg.equals("-duration")) {
+                benchmark.duration = Integer.parseInt(value);
+            } else if (arg.equals("-group")) {
+                benchmark.group = value;
+            } else if (arg.equals("-port")) {
+                benchmark.port = Integer.parseInt(value);
+            } else if (arg.equals("-interface")) {
+                benchmark.interfaceName = value;
+            } else if (arg.equals("-rcvbuf")) {
+                benchmark.receiveBufferSize = Integer.parseInt(value);
+            } else if (arg.equals("-maxLoss")) {
+                benchmark.maxLoss = Double.parseDouble(value);
+            } else if (arg.equals("-rtt")) {
+                benchmark.roundTrip = true;
+                continue;
+            } else {
+                usage();
+            }
+            i++;
+        }
+        if (benchmark.size < HEADER_LENGTH
+            || benchmark.size > NioMulticastNode.MAX_DATAGRAM) {
+            System.out.println("The size must be between " + HEADER_LENGTH
+                + " and " + NioMulticastNode.MAX_DATAGRAM + " bytes.");
+            System.exit(1);
+        }
+
+        boolean passed = benchmark.run();
+        System.exit(passed ? 0 : 1);
+
+    }
+
+
+    private static void usage() {
+
+        System.out.println("Usage: MulticastBenchmark [-nodes n] "
+            + "[-senders n] [-rate packets/s] [-size bytes] "
+            + "[-duration seconds] [-group address] [-port port] "
+            + "[-interface name] [-rcvbuf bytes] [-rtt] "
+            + "[-maxLoss percent]");
+        System.exit(1);
+
+    }
+
+
+    /**
+     * Run the benchmark, print the report, and return false if a
+     * receiver lost more packets than allowed.
+     */
+    public boolean run() throws IOException, InterruptedException {
+
+        NetworkInterface networkInterface =
+            NetworkInterface.getByName(interfaceName);
+        if (networkInterface == null) {
+            throw new IOException("No network interface named "
+                                  + interfaceName);
+        }
+        InetAddress address = InetAddress.getByName(group);
+        if (senderCount < 0 || senderCount > nodeCount) {
+            senderCount = nodeCount;
+        }
+
+        System.out.println("Multicast benchmark: " + nodeCount
+            + " node(s), " + senderCount + " sending " + rate
+            + " packets/s of " + size + " bytes for " + duration
+            + " s, on " + group + ":" + port + "@" + interfaceName
+            + (roundTrip ? ", round trip" : ", one way"));
+
+        int firstId = new Random().nextInt() & 0x7fff0000;
+        for (int i = 0; i < nodeCount; i++) {
+            VirtualNode node = new VirtualNode(firstId + i, "node-" + i);
+            node.start(address, networkInterface);
+            nodes.add(node);
+        }
+
+        // Send, and then give the last packets time to arrive.
+        List<Thread> senders = new ArrayList<Thread>();
+        final long end = System.nanoTime() + duration * 1000000000L;
+        for (int i = 0; i < senderCount; i++) {
+            final VirtualNode node = nodes.get(i);
+            Thread sender = new Thread(new Runnable() {
+                public void run() {
+                    node.send(end);
+                }
+            }, node.name + "-sender");
+            sender.start();
+            senders.add(sender);
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        Thread.sleep(500L);
+        for (VirtualNode node : nodes) {
+            node.receiver.stop();
+        }
+
+        return report();
+
+    }
+
+
+    /**
+     * Print what every node sent and received, and return false if any
+     * receiver lost more than maxLoss percent.
+     */
+    private boolean report() {
+
+        Map<Integer, VirtualNode> byId = new HashMap<Integer, VirtualNode>();
+        for (VirtualNode node : nodes) {
+            byId.put(Integer.valueOf(node.id), node);
+        }
+        boolean passed = true;
+
+        System.out.println();
+        for (VirtualNode node : nodes) {
+            if (node.sent == 0 && node.unsent == 0) {
+                continue;
+            }
+            System.out.println(node.name + " sent " + node.sent
+                + " packets (" + node.unsent + " not sent, send buffer "
+                + "full), " + format(node.sent / (double) duration)
+                + " packets/s");
+            if (roundTrip) {
+                System.out.println("    round trip us: " + node.roundTrips);
+            }
+        }
+
+        System.out.println();
+        for (VirtualNode node : nodes) {
+            Iterator<Flow> flows = node.flows.values().iterator();
+            while (flows.hasNext()) {
+                Flow flow = flows.next();
+                VirtualNode sender = byId.get(Integer.valueOf(flow.sender));
+                String name = (sender != null) ? sender.name
+                    : Integer.toHexString(flow.sender);
+                // A sender in this JVM says how many it sent; otherwise,
+                // only the highest sequence number heard is known.
+                long expected = (sender != null) ? sender.sent
+                                                 : flow.highest + 1;
+                long lost = Math.max(0L, expected - flow.unique);
+                double lossPercent = (expected > 0)
+                    ? lost * 100.0 / expected : 0.0;
+                if (maxLoss >= 0.0 && lossPercent > maxLoss) {
+                    passed = false;
+                }
+                System.out.println(node.name + " <- " + name + ": received "
+                    + flow.unique + ", lost " + lost + " ("
+                    + format(lossPercent) + "%), reordered "
+                    + flow.reordered + ", duplicates " + flow.duplicates
+                    + ", " + format(flow.bytes / (double) duration
+                                    / (1024 * 1024)) + " MB/s");
+                if (!roundTrip) {
+                    System.out.println("    one way us: " + flow.latency);
+                }
+            }
+        }
+
+        if (maxLoss >= 0.0) {
+            System.out.println();
+            System.out.println(passed ? "PASSED: no receiver lost more than "
+                + maxLoss + "%." : "FAILED: a receiver lost more than "
+                + maxLoss + "%.");
+        }
+        return passed;
+
+    }
+
+
+    private static String format(double value) {
+
+        return String.valueOf(Math.round(value * 100.0) / 100.0);
+
+    }
+
+
+    /**
+     * One node in the group, with the statistics of what it sent and
+     * received.
+     */
+    private class VirtualNode implements NioMulticastNode.Handler {
+
+        final int id;
+        final String name;
+        NioMulticastNode receiver;
+        NioMulticastNode.Membership membership;
+
+        // Written by the sending thread.
+        volatile long sent = 0L;
+        volatile long unsent = 0L;
+
+        // Written by the receiving thread.
+        final Map<Integer, Flow> flows = new HashMap<Integer, Flow>();
+        private Flow lastFlow = null;
+        final Histogram roundTrips = new Histogram();
+        private final ByteBuffer echo = ByteBuffer.allocateDirect(
+            HEADER_LENGTH);
+
+
+        VirtualNode(int id, String name) {
+
+            this.id = id;
+            this.name = name;
+
+        }
+
+
+        void start(InetAddress address, NetworkInterface networkInterface)
+            throws IOException {
+
+            receiver = new NioMulticastNode();
+            receiver.setReceiveBufferSize(receiveBufferSize);
+            membership = receiver.join(address, port, networkInterface,
+                                       this);
+            receiver.start(name);
+
+        }
+
+
+        /**
+         * Send numbered packets at the rate until the end time.
+         */
+        void send(long end) {
+
+            ByteBuffer packet = ByteBuffer.allocateDirect(size);
+            long interval = 1000000000L / rate;
+            long next = System.nanoTime();
+            long seq = 0L;
+            while (true) {
+                long now = System.nanoTime();
+                if (now >= end) {
+                    break;
+                }
+                if (now < next) {
+                    LockSupport.parkNanos(next - now);
+                    continue;
+                }
+                // Catch up in a burst if the thread fell behind, since
+                // the timer can't wake it up as often as the rate needs.
+                while (next <= now) {
+                    packet.clear();
+                    packet.putInt(MAGIC).put(DATA).putInt(id).putInt(id)
+                          .putLong(seq).putLong(System.nanoTime());
+                    packet.position(0).limit(size);
+                    try {
+                        if (membership.send(packet)) {
+                            seq++;
+                            sent = seq;
+                        } else {
+                            unsent++;
+                        }
+                    } catch (IOException e) {
+                        unsent++;
+                    }
+                    next += interval;
+                }
+            }
+
+        }
+
+
+        public void received(NioMulticastNode.Membership from,
+                             SocketAddress source, ByteBuffer payload) {
+
+            long now = System.nanoTime();
+            if (payload.remaining() < HEADER_LENGTH
+                || payload.getInt() != MAGIC) {
+                return;
+            }
+            byte type = payload.get();
+            int sender = payload.getInt();
+            int origin = payload.getInt();
+            long seq = payload.getLong();
+            long timestamp = payload.getLong();
+            if (sender == id) {
+                return;
+            }
+
+            if (type == ECHO) {
+                if (origin == id) {
+                    roundTrips.record(now - timestamp);
+                }
+                return;
+            }
+
+            Flow flow = lastFlow;
+            if (flow == null || flow.sender != sender) {
+                flow = flows.get(Integer.valueOf(sender));
+                if (flow == null) {
+                    flow = new Flow(sender);
+                    flows.put(Integer.valueOf(sender), flow);
+                }
+                lastFlow = flow;
+            }
+            flow.record(seq, payload.limit());
+            if (roundTrip) {
+                echo.clear();
+                echo.putInt(MAGIC).put(ECHO).putInt(id).putInt(sender)
+                    .putLong(seq).putLong(timestamp).flip();
+                try {
+                    membership.send(echo);
+                } catch (IOException e) {
+                    // The sender counts it as a lost round trip.
+                }
+            } else {
+                flow.latency.record(now - timestamp);
+            }
+
+        }
+    }
+
+
+    /**
+     * What one node received from one sender.
+     */
+    private static final class Flow {
+
+        /**
+         * The number of sequence numbers remembered to detect duplicates.
+         */
+        private static final int WINDOW = 1 << 16;
+
+        final int sender;
+        long highest = -1L;
+        long unique = 0L;
+        long bytes = 0L;
+        long reordered = 0L;
+        long duplicates = 0L;
+        final Histogram latency = new Histogram();
+
+        /**
+         * One bit per sequence number from highest - WINDOW + 1 to
+         * highest, set if it was received.
+         */
+        private final long[] seen = new long[WINDOW / 64];
+
+
+        Flow(int sender) {
+
+            this.sender = sender;
+
+        }
+
+
+        void record(long seq, int length) {
+
+            if (seq > highest) {
+                // Forget the sequence numbers that slide out of the window.
+                long from = Math.max(highest + 1, seq - WINDOW + 1);
+                for (long s = from; s < seq; s++) {
+                    clear(s);
+                }
+                highest = seq;
+            } else if (seq <= highest - WINDOW) {
+                // Too old to tell a duplicate from a late packet.
+                reordered++;
+                return;
+            } else if (isSet(seq)) {
+                duplicates++;
+                return;
+            } else {
+                reordered++;
+            }
+            set(seq);
+            unique++;
+            bytes += length;
+
+        }
+
+
+        private boolean isSet(long seq) {
+
+            int bit = (int) (seq & (WINDOW - 1));
+            return (seen[bit >>> 6] & (1L << bit)) != 0L;
+
+        }
+
+
+        private void set(long seq) {
+
+            int bit = (int) (seq & (WINDOW - 1));
+            seen[bit >>> 6] |= 1L << bit;
+
+        }
+
+
+        private void clear(long seq) {
+
+            int bit = (int) (seq & (WINDOW - 1));
+            seen[bit >>> 6] &= ~(1L << bit);
+
+        }
+    }
+
+
+    /**
+     * A histogram of nanosecond latencies, in buckets an eighth of a
+     * power of two wide, so it is accurate to about 12% at any scale,
+     * with a fixed size.
+     */
+    private static final class Histogram {
+
+        private static final int SUB_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+        private final long[] counts = new long[SUB_BUCKETS * 64];
+        private long count = 0L;
+        private long sum = 0L;
+        private long max = 0L;
+
+
+        void record(long nanos) {
+
+            if (nanos < 0L) {
+                nanos = 0L;
+            }
+            counts[index(nanos)]++;
+            count++;
+            sum += nanos;
+            if (nanos > max) {
+                max = nanos;
+            }
+
+        }
+
+
+        /**
+         * Return the latency that a given fraction of the samples are at
+         * or under, in nanoseconds.
+         */
+        long percentile(double fraction) {
+
+            long rank = (long) Math.ceil(fraction * count);
+            long seen = 0L;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0) {
+                    return Math.min(max, upperBound(i));
+                }
+            }
+            return max;
+
+        }
+
+
+        private static int index(long value) {
+
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int shift = exponent - SUB_BITS;
+            int mantissa = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+            return SUB_BUCKETS + shift * SUB_BUCKETS + mantissa;
+
+        }
+
+
+        private static long upperBound(int index) {
+
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+            int mantissa = (index - SUB_BUCKETS) % SUB_BUCKETS;
+            return ((long) (SUB_BUCKETS + mantissa + 1) << shift) - 1;
+
+        }
+
+
+        private static String micros(long nanos) {
+
+            return format(nanos / 1000.0);
+
+        }
+
+
+        public String toString() {
+
+            if (count == 0L) {
+                return "no samples";
+            }
+            return "n=" + count + " mean=" + micros(sum / count)
+                + " p50=" + micros(percentile(0.5))
+                + " p90=" + micros(percentile(0.9))
+                + " p99=" + micros(percentile(0.99))
+                + " p99.9=" + micros(percentile(0.999))
+                + " max=" + micros(max);
+
+        }
+    }
+}
@@ -0,0 +1,647 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * MulticastFragmenter sends messages too big for one datagram, such as
+ * state snapshots, to a multicast group as a series of fragments, and
+ * puts them back together on the receiving side.  Every fragment
+ * carries the sender's id, a message id, the message's total length and
+ * the fragment's offset in it, so fragments can arrive in any order.
+ *
+ * <br><br>
+ *
+ * Each fragment is copied once, straight from the receive buffer to its
+ * offset in a buffer for the whole message, taken from a pool of direct
+ * buffers in power of two sizes, so reassembly allocates nothing per
+ * fragment.  A message that fits in one fragment is handed over as a
+ * view of the received datagram, without being copied at all.  Messages
+ * still incomplete after the timeout are dropped, as are the oldest
+ * ones when the incomplete messages would take more than the memory
+ * cap, and messages over the maximum size are ignored.  The ids of the
+ * last messages put back together are remembered, so that a duplicated
+ * fragment of one of them is dropped instead of starting a new message
+ * that could never complete.
+ *
+ * <br><br>
+ *
+ * The receiving side, as a NioMulticastNode.Handler, is used by the
+ * receiving thread only.  send() may be called by any thread.
+ */
+public class MulticastFragmenter implements NioMulticastNode.Handler {
+
+    /**
+     * "MFR1".
+     */
+    private static final int MAGIC = 0x4d465231;
+
+    /**
+     * Magic, sender id, message id, message length and offset.
+     */
+    private static final int HEADER_LENGTH = 4 + 8 + 4 + 4 + 4;
+
+    /**
+     * The largest fragment payload, so that a fragment fits in an
+     * Ethernet frame.
+     */
+    public static final int FRAGMENT_SIZE = 1472 - HEADER_LENGTH;
+
+    /**
+     * The smallest pooled buffer.
+     */
+    private static final int MIN_BUFFER_SIZE = 2048;
+
+    /**
+     * How many completed messages are remembered, to drop late duplicates
+     * of their fragments.
+     */
+    private static final int COMPLETED_SIZE = 256;
+
+    private final long id = new Random().nextLong();
+    private final AtomicInteger nextMessageId = new AtomicInteger();
+    private final MessageHandler handler;
+
+    private int maxMessageSize = 1024 * 1024;
+    private long maxPendingBytes = 8L * 1024 * 1024;
+    private long timeout = 2000000000L;
+
+    private final Assembly[] assemblies;
+    private Assembly last = null;
+    private long pendingBytes = 0L;
+
+    /**
+     * The senders and ids of the last messages completed, in a ring
+     * where the next one is written at completedNext.
+     */
+    private final long[] completedSenders = new long[COMPLETED_SIZE];
+    private final int[] completedIds = new int[COMPLETED_SIZE];
+    private int completedNext = 0;
+    private int completedSize = 0;
+
+    /**
+     * Free buffers, by the base 2 logarithm of their size.
+     */
+    private final List<ArrayDeque<ByteBuffer>> pool;
+    private long pooledBytes = 0L;
+
+    private NioMulticastNode.Membership membership = null;
+    private final ByteBuffer sendBuffer =
+        ByteBuffer.allocateDirect(HEADER_LENGTH + FRAGMENT_SIZE);
+
+    // Written by the receiving thread only.
+    private volatile long deliveredCount = 0L;
+    private volatile long expiredCount = 0L;
+    private volatile long evictedCount = 0L;
+    private volatile long rejectedCount = 0L;
+    private volatile long duplicateCount = 0L;
+    private volatile long allocatedCount = 0L;
+    private volatile long reusedCount = 0L;
+
+
+    /**
+     * Receives reassembled messages.
+     */
+    public interface MessageHandler {
+
+        /**
+         * Called on the receiving thread for each complete message.  The
+         * message is a pooled buffer, or a view of the received datagram,
+         * from its position to its limit, and is only valid until this
+         * method returns.
+         *
+         * @param sender The id of the sender
+         * @param source The address of the sender
+         * @param message The message
+         */
+        public void received(long sender, SocketAddress source,
+                             ByteBuffer message);
+
+    }
+
+
+    /**
+     * Send messages of several sizes, up to a megabyte, to a receiver in
+     * this JVM on the loopback interface, and check that each arrives
+     * whole.
+     *
+     * <br><br>
+     *
+     * Usage: <code>MulticastFragmenter [messages [port]]</code>
+     */
+    public static void main(String[] args) throws Exception {
+
+        int messages = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+        int port = (args.length > 1) ? Integer.parseInt(args[1])
+                                     : NioMulticastNode.DEFAULT_PORT;
+        InetAddress group =
+            InetAddress.getByName(NioMulticastNode.DEFAULT_GROUP);
+        NetworkInterface loopback = NetworkInterface.getByName("lo");
+
+        final int[] sizes = { 100, 1500, 10000, 64 * 1024, 1024 * 1024 };
+        final long[] checksums = new long[sizes.length];
+        final int[] good = new int[1];
+        final int[] bad = new int[1];
+        final CRC32 crc = new CRC32();
+        MulticastFragmenter receiver = new MulticastFragmenter(
+            new MessageHandler() {
+                public void received(long sender, SocketAddress source,
+                                     ByteBuffer message) {
+                    int kind = message.get(message.position());
+                    byte[] bytes = new byte[message.remaining()];
+                    message.get(bytes);
+                    crc.reset();
+                    crc.update(bytes);
+                    if (kind >= 0 && kind < sizes.length
+                        && bytes.length == sizes[kind]
+                        && crc.getValue() == checksums[kind]) {
+                        good[0]++;
+                    } else {
+                        bad[0]++;
+                    }
+                }
+            });
+        NioMulticastNode receiverNode = new NioMulticastNode();
+        receiverNode.setReceiveBufferSize(4 * 1024 * 1024);
+        receiverNode.join(group, port, loopback, receiver);
+        receiverNode.start("receiver");
+
+        NioMulticastNode senderNode = new NioMulticastNode();
+        MulticastFragmenter sender = new MulticastFragmenter(null);
+        sender.setMembership(senderNode.join(group, port, loopback, null));
+
+        ByteBuffer[] payloads = new ByteBuffer[sizes.length];
+        Random random = new Random(42);
+        for (int k = 0; k < sizes.length; k++) {
+            byte[] bytes = new byte[sizes[k]];
+            random.nextBytes(bytes);
+            bytes[0] = (byte) k;
+            crc.reset();
+            crc.update(bytes);
+            checksums[k] = crc.getValue();
+            payloads[k] = ByteBuffer.wrap(bytes);
+        }
+
+        long start = System.nanoTime();
+        long bytes = 0L;
+        for (int i = 0; i < messages; i++) {
+            ByteBuffer payload = payloads[i % sizes.length];
+            payload.clear();
+            bytes += payload.remaining();
+            sender.send(payload);
+            if (i % sizes.length == sizes.length - 1) {
+                // Let the receiver keep up with the megabyte messages.
+                Thread.sleep(5L);
+            }
+        }
+        Thread.sleep(500L);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        receiverNode.stop();
+
+        System.out.println("Sent " + messages + " messages, "
+            + (bytes / 1024) + " KB in " + Math.round(seconds * 1000.0)
+            + " ms");
+        System.out.println("Received " + good[0] + " whole, " + bad[0]
+            + " corrupt; " + receiver);
+        System.exit((good[0] == messages && bad[0] == 0) ? 0 : 1);
+
+    }
+
+
+    /**
+     * Construct a fragmenter.
+     *
+     * @param handler The handler of reassembled messages, or null to only
+     *  send
+     */
+    public MulticastFragmenter(MessageHandler handler) {
+
+        this.handler = handler;
+        this.assemblies = new Assembly[64];
+        this.pool = new ArrayList<ArrayDeque<ByteBuffer>>(32);
+        for (int i = 0; i < 32; i++) {
+            pool.add(new ArrayDeque<ByteBuffer>());
+        }
+
+    }
+
+
+    /**
+     * Set the membership fragments are sent through.
+     */
+    public void setMembership(NioMulticastNode.Membership membership) {
+
+        this.membership = membership;
+
+    }
+
+
+    /**
+     * Set the largest message accepted, in bytes.
+     */
+    public void setMaxMessageSize(int maxMessageSize) {
+
+        this.maxMessageSize = maxMessageSize;
+
+    }
+
+
+    /**
+     * Set the most memory incomplete messages may take, in bytes.
+     */
+    public void setMaxPendingBytes(long maxPendingBytes) {
+
+        this.maxPendingBytes = maxPendingBytes;
+
+    }
+
+
+    /**
+     * Set how long a message may stay incomplete, in milliseconds.
+     */
+    public void setTimeout(long millis) {
+
+        this.timeout = millis * 1000000L;
+
+    }
+
+
+    public long getDeliveredCount() {
+
+        return deliveredCount;
+
+    }
+
+
+    /**
+     * Return the number of messages dropped because they stayed
+     * incomplete for longer than the timeout.
+     */
+    public long getExpiredCount() {
+
+        return expiredCount;
+
+    }
+
+
+    /**
+     * Return the number of incomplete messages dropped to make room for
+     * newer ones.
+     */
+    public long getEvictedCount() {
+
+        return evictedCount;
+
+    }
+
+
+    /**
+     * Return the number of fragments ignored because their message was
+     * over the maximum size.
+     */
+    public long getRejectedCount() {
+
+        return rejectedCount;
+
+    }
+
+
+    /**
+     * Return the number of fragments dropped because their message had
+     * already been put back together.
+     */
+    public long getDuplicateCount() {
+
+        return duplicateCount;
+
+    }
+
+
+    public String toString() {
+
+        return "delivered " + deliveredCount + ", expired " + expiredCount
+            + ", evicted " + evictedCount + ", rejected " + rejectedCount
+            + ", duplicate " + duplicateCount + ", buffers allocated "
+            + allocatedCount + ", reused " + reusedCount;
+
+    }
+
+
+    /**
+     * Send a message as fragments.  If the socket's send buffer fills
+     * up, waits briefly for room rather than losing a fragment, since
+     * that would lose the whole message.
+     *
+     * @param message The message, from its position to its limit, which
+     *  is consumed, or left as it was if a fragment can't be sent
+     *
+     * @exception IOException if a fragment can't be sent
+     */
+    public void send(ByteBuffer message) throws IOException {
+
+        int length = message.remaining();
+        int messageId = nextMessageId.incrementAndGet();
+        int base = message.position();
+        int limit = message.limit();
+        boolean sent = false;
+        try {
+            synchronized (sendBuffer) {
+                for (int offset = 0; offset < length || offset == 0;
+                     offset += FRAGMENT_SIZE) {
+                    int size = Math.min(FRAGMENT_SIZE, length - offset);
+                    sendBuffer.clear();
+                    sendBuffer.putInt(MAGIC).putLong(id).putInt(messageId)
+                              .putInt(length).putInt(offset);
+                    message.limit(base + offset + size)
+                           .position(base + offset);
+                    sendBuffer.put(message);
+                    sendBuffer.flip();
+                    long deadline = System.nanoTime() + 100000000L;
+                    while (!membership.send(sendBuffer)) {
+                        if (System.nanoTime() > deadline) {
+                            throw new IOException("Send buffer full");
+                        }
+                        LockSupport.parkNanos(50000L);
+                    }
+                    if (length == 0) {
+                        break;
+                    }
+                }
+            }
+            sent = true;
+        } finally {
+            message.limit(limit).position(sent ? limit : base);
+        }
+
+    }
+
+
+    /**
+     * Add a fragment to its message, and hand the message over if it is
+     * complete.
+     */
+    public void received(NioMulticastNode.Membership from,
+                         SocketAddress source, ByteBuffer payload) {
+
+        if (handler == null || payload.remaining() < HEADER_LENGTH
+            || payload.getInt() != MAGIC) {
+            return;
+        }
+        long sender = payload.getLong();
+        int messageId = payload.getInt();
+        int length = payload.getInt();
+        int offset = payload.getInt();
+        int size = payload.remaining();
+        if (sender == id) {
+            return;
+        }
+        if (length < 0 || offset < 0 || offset % FRAGMENT_SIZE != 0
+            || (offset >= length && length > 0)
+            || size != Math.min(FRAGMENT_SIZE, length - offset)) {
+            return;
+        }
+
+        if (length <= FRAGMENT_SIZE) {
+            // A single fragment is the whole message.
+            deliveredCount++;
+            handler.received(sender, source, payload);
+            return;
+        }
+        if (length > maxMessageSize || capacity(length) > maxPendingBytes) {
+            rejectedCount++;
+            return;
+        }
+
+        long now = System.nanoTime();
+        Assembly assembly = find(sender, messageId);
+        if (assembly == null) {
+            if (completed(sender, messageId)) {
+                duplicateCount++;
+                return;
+            }
+            assembly = begin(sender, messageId, length, now);
+        }
+        if (assembly.length != length) {
+            return;
+        }
+        int fragment = offset / FRAGMENT_SIZE;
+        long bit = 1L << (fragment & 63);
+        if ((assembly.received[fragment >>> 6] & bit) != 0L) {
+            return;
+        }
+        assembly.received[fragment >>> 6] |= bit;
+        assembly.buffer.limit(offset + size).position(offset);
+        assembly.buffer.put(payload);
+
+        if (--assembly.missing == 0) {
+            remove(assembly);
+            complete(sender, messageId);
+            assembly.buffer.limit(length).position(0);
+            deliveredCount++;
+            try {
+                handler.received(sender, source, assembly.buffer);
+            } finally {
+                release(assembly.buffer);
+            }
+        }
+
+    }
+
+
+    /**
+     * Drop the incomplete messages that have been so for longer than the
+     * timeout.  Called whenever a message starts arriving, and may be
+     * called by the receiving thread at any other time.
+     */
+    public void expire() {
+
+        long now = System.nanoTime();
+        for (int i = 0; i < assemblies.length; i++) {
+            Assembly assembly = assemblies[i];
+            if (assembly != null && now - assembly.started > timeout) {
+                remove(assembly);
+                release(assembly.buffer);
+                expiredCount++;
+            }
+        }
+
+    }
+
+
+    private Assembly find(long sender, int messageId) {
+
+        Assembly assembly = last;
+        if (assembly != null && assembly.sender == sender
+            && assembly.messageId == messageId) {
+            return assembly;
+        }
+        for (int i = 0; i < assemblies.length; i++) {
+            assembly = assemblies[i];
+            if (assembly != null && assembly.sender == sender
+                && assembly.messageId == messageId) {
+                last = assembly;
+                return assembly;
+            }
+        }
+        return null;
+
+    }
+
+
+    private boolean completed(long sender, int messageId) {
+
+        for (int i = 0; i < completedSize; i++) {
+            if (completedIds[i] == messageId
+                && completedSenders[i] == sender) {
+                return true;
+            }
+        }
+        return false;
+
+    }
+
+
+    /**
+     * Remember a completed message, forgetting the oldest one if
+     * necessary.
+     */
+    private void complete(long sender, int messageId) {
+
+        completedSenders[completedNext] = sender;
+        completedIds[completedNext] = messageId;
+        completedNext = (completedNext + 1) % COMPLETED_SIZE;
+        if (completedSize < COMPLETED_SIZE) {
+            completedSize++;
+        }
+
+    }
+
+
+    /**
+     * Start reassembling a message, making room for it if necessary.
+     */
+    private Assembly begin(long sender, int messageId, int length,
+                           long now) {
+
+        expire();
+        int capacity = capacity(length);
+        int free = -1;
+        while (true) {
+            Assembly oldest = null;
+            free = -1;
+            for (int i = 0; i < assemblies.length; i++) {
+                Assembly a = assemblies[i];
+                if (a == null) {
+                    free = (free < 0) ? i : free;
+                } else if (oldest == null || a.started < oldest.started) {
+                    oldest = a;
+                }
+            }
+            if (free >= 0 && pendingBytes + capacity <= maxPendingBytes
+                || oldest == null) {
+                break;
+            }
+            remove(oldest);
+            release(oldest.buffer);
+            evictedCount++;
+        }
+
+        Assembly assembly = new Assembly(sender, messageId, length,
+                                         acquire(capacity), now);
+        assembly.slot = free;
+        assemblies[free] = assembly;
+        pendingBytes += capacity;
+        last = assembly;
+        return assembly;
+
+    }
+
+
+    private void remove(Assembly assembly) {
+
+        assemblies[assembly.slot] = null;
+        pendingBytes -= assembly.buffer.capacity();
+        if (last == assembly) {
+            last = null;
+        }
+
+    }
+
+
+    private static int capacity(int length) {
+
+        int capacity = MIN_BUFFER_SIZE;
+        while (capacity < length) {
+            capacity <<= 1;
+        }
+        return capacity;
+
+    }
+
+
+    private ByteBuffer acquire(int capacity) {
+
+        ByteBuffer buffer =
+            pool.get(Integer.numberOfTrailingZeros(capacity)).poll();
+        if (buffer == null) {
+            allocatedCount++;
+            return ByteBuffer.allocateDirect(capacity);
+        }
+        pooledBytes -= capacity;
+        reusedCount++;
+        buffer.clear();
+        return buffer;
+
+    }
+
+
+    /**
+     * Return a buffer to the pool, unless the pool already holds as much
+     * as incomplete messages may take.
+     */
+    private void release(ByteBuffer buffer) {
+
+        if (pooledBytes + buffer.capacity() > maxPendingBytes) {
+            return;
+        }
+        pooledBytes += buffer.capacity();
+        pool.get(Integer.numberOfTrailingZeros(buffer.capacity()))
+            .push(buffer);
+
+    }
+
+
+    /**
+     * A message being put back together.
+     */
+    private static final class Assembly {
+
+        final long sender;
+        final int messageId;
+        final int length;
+        final ByteBuffer buffer;
+        final long started;
+        final long[] received;
+        int missing;
+        int slot;
+
+        Assembly(long sender, int messageId, int length, ByteBuffer buffer,
+                 long started) {
+            this.sender = sender;
+            this.messageId = messageId;
+            this.length = length;
+            this.buffer = buffer;
+            this.started = started;
+            this.missing = (length + FRAGMENT_SIZE - 1) / FRAGMENT_SIZE;
+            this.received = new long[(missing + 63) / 64];
+        }
+    }
+}
@@ -0,0 +1,807 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * MulticastMembership keeps track of the nodes of a cluster from the
+ * heartbeats they send to a multicast group, as Tomcat's cluster does on
+ * 228.0.0.4:45564, but decides when a node has failed with a phi accrual
+ * failure detector rather than a fixed drop time.  Every node sends a
+ * heartbeat carrying its identity and load every heartbeat interval.  A
+ * node whose heartbeats are late enough to reach the suspect threshold
+ * is marked suspect, and one that reaches the failure threshold is
+ * removed from the view; a node that stops cleanly says so, and is
+ * removed at once.
+ *
+ * <br><br>
+ *
+ * Heartbeats carry a sequence number that counts up from the node's
+ * start, so a heartbeat that arrives after a later one, or after the
+ * node has left, is told apart without trusting anyone's clock.
+ *
+ * <br><br>
+ *
+ * The view is an immutable array of immutable Members, replaced as a
+ * whole, so getMembers() never waits.  The view and the failure
+ * detectors are changed together under one lock, by the receiving
+ * thread and the thread that checks for failures.  Listeners are called
+ * with the lock held, in the order of the changes, and must not block.
+ */
+public class MulticastMembership implements NioMulticastNode.Handler {
+
+    /**
+     * "MBR1".
+     */
+    private static final int MAGIC = 0x4d425231;
+
+    private static final byte HEARTBEAT = 1;
+    private static final byte LEAVE = 2;
+
+    /**
+     * How often the members' suspicion levels are checked, in
+     * milliseconds.
+     */
+    private static final long CHECK_INTERVAL = 100L;
+
+    /**
+     * How long a node that left is remembered, in milliseconds, so that
+     * its heartbeats still on the way don't add it back.
+     */
+    private static final long TOMBSTONE_TIME = 10000L;
+
+    private static final Member[] NO_MEMBERS = new Member[0];
+
+    private final long id = new Random().nextLong();
+
+    /**
+     * The sequence number of this node's last heartbeat or leave.
+     */
+    private final AtomicLong seq = new AtomicLong();
+
+    private final String name;
+    private final int port;
+
+    private long heartbeatInterval = 500L;
+    private double acceptablePause = 1000.0;
+    private double minStdDeviation = 100.0;
+    private double suspectThreshold = 3.0;
+    private double failureThreshold = 8.0;
+
+    private final AtomicReference<Member[]> view =
+        new AtomicReference<Member[]>(NO_MEMBERS);
+
+    /**
+     * Held while the view, trackers and departed are changed.
+     */
+    private final Object lock = new Object();
+
+    /**
+     * The detectors of the members in the view, by member id.
+     */
+    private final ConcurrentMap<Long, Tracker> trackers =
+        new ConcurrentHashMap<Long, Tracker>();
+
+    /**
+     * The nodes that left lately, by member id.
+     */
+    private final Map<Long, Tombstone> departed =
+        new HashMap<Long, Tombstone>();
+
+    private final List<Listener> listeners =
+        new CopyOnWriteArrayList<Listener>();
+
+    private NioMulticastNode node = null;
+    private NioMulticastNode.Membership membership = null;
+    private volatile Thread heartbeater = null;
+    private volatile long skipUntil = 0L;
+
+
+    /**
+     * Told about changes to the membership view.
+     */
+    public interface Listener {
+
+        /**
+         * A node was heard from for the first time, or again after it was
+         * removed.
+         */
+        public void memberAdded(Member member);
+
+        /**
+         * A node's heartbeats are late enough to reach the suspect
+         * threshold.
+         */
+        public void memberSuspected(Member member);
+
+        /**
+         * A suspected node's heartbeats arrive again.
+         */
+        public void memberRecovered(Member member);
+
+        /**
+         * A node left, or its heartbeats are late enough to reach the
+         * failure threshold.
+         *
+         * @param member The member as it last was
+         * @param failed True if it failed, false if it left
+         */
+        public void memberRemoved(Member member, boolean failed);
+
+    }
+
+
+    /**
+     * Run several nodes in this JVM, and print how the membership of one
+     * of them changes when another pauses for longer than the acceptable
+     * pause, as in a long garbage collection, and when another crashes.
+     *
+     * <br><br>
+     *
+     * Usage: <code>MulticastMembership [nodes [interface [port]]]</code>
+     */
+    public static void main(String[] args) throws Exception {
+
+        int nodes = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+        NetworkInterface networkInterface = NetworkInterface.getByName(
+            (args.length > 1) ? args[1] : "lo");
+        int port = (args.length > 2) ? Integer.parseInt(args[2])
+                                     : NioMulticastNode.DEFAULT_PORT;
+        InetAddress group =
+            InetAddress.getByName(NioMulticastNode.DEFAULT_GROUP);
+
+        final long start = System.currentTimeMillis();
+        MulticastMembership[] members = new MulticastMembership[nodes];
+        for (int i = 0; i < nodes; i++) {
+            members[i] = new MulticastMembership("node-" + i, 4000 + i);
+        }
+        members[0].addListener(new Listener() {
+            public void memberAdded(Member member) {
+                print(member, "added");
+            }
+            public void memberSuspected(Member member) {
+                print(member, "suspected");
+            }
+            public void memberRecovered(Member member) {
+                print(member, "recovered");
+            }
+            public void memberRemoved(Member member, boolean failed) {
+                print(member, failed ? "failed" : "left");
+            }
+            private void print(Member member, String event) {
+                System.out.println((System.currentTimeMillis() - start)
+                    + " ms: node-0 sees " + member.getName() + " " + event);
+            }
+        });
+        for (int i = 0; i < nodes; i++) {
+            members[i].start(group, port, networkInterface);
+        }
+        Thread.sleep(2000L);
+
+        System.out.println((System.currentTimeMillis() - start)
+            + " ms: node-1 pauses for 1.5 s");
+        members[1].skipHeartbeats(1500L);
+        Thread.sleep(3000L);
+
+        if (nodes > 2) {
+            System.out.println((System.currentTimeMillis() - start)
+                + " ms: node-2 crashes");
+            members[2].skipHeartbeats(Long.MAX_VALUE / 2);
+            Thread.sleep(4000L);
+        }
+        if (nodes > 3) {
+            System.out.println((System.currentTimeMillis() - start)
+                + " ms: node-3 stops");
+            members[3].stop();
+            Thread.sleep(500L);
+        }
+
+        Member[] view = members[0].getMembers();
+        System.out.println("node-0's view:");
+        for (int i = 0; i < view.length; i++) {
+            System.out.println("  " + view[i]);
+        }
+        for (int i = 0; i < nodes; i++) {
+            members[i].stop();
+        }
+
+    }
+
+
+    /**
+     * Construct a membership that hasn't joined the group yet.
+     *
+     * @param name The name this node is known by
+     * @param port The port this node serves the cluster on, such as its
+     *  replication receiver's
+     */
+    public MulticastMembership(String name, int port) {
+
+        if (name.getBytes(StandardCharsets.UTF_8).length > 255) {
+            throw new IllegalArgumentException("Name too long: " + name);
+        }
+        this.name = name;
+        this.port = port;
+
+    }
+
+
+    /**
+     * Set the time between two heartbeats, in milliseconds.
+     */
+    public void setHeartbeatInterval(long heartbeatInterval) {
+
+        this.heartbeatInterval = heartbeatInterval;
+
+    }
+
+
+    /**
+     * Set the pause in a node's heartbeats that costs little suspicion,
+     * in milliseconds; it should exceed the longest expected garbage
+     * collection pause.
+     */
+    public void setAcceptablePause(double acceptablePause) {
+
+        this.acceptablePause = acceptablePause;
+
+    }
+
+
+    /**
+     * Set the least standard deviation of the heartbeat intervals
+     * assumed, in milliseconds.
+     */
+    public void setMinStdDeviation(double minStdDeviation) {
+
+        this.minStdDeviation = minStdDeviation;
+
+    }
+
+
+    /**
+     * Set the phi at which a node is suspected.
+     */
+    public void setSuspectThreshold(double suspectThreshold) {
+
+        this.suspectThreshold = suspectThreshold;
+
+    }
+
+
+    /**
+     * Set the phi at which a node is considered failed, and removed.
+     */
+    public void setFailureThreshold(double failureThreshold) {
+
+        this.failureThreshold = failureThreshold;
+
+    }
+
+
+    public void addListener(Listener listener) {
+
+        listeners.add(listener);
+
+    }
+
+
+    public void removeListener(Listener listener) {
+
+        listeners.remove(listener);
+
+    }
+
+
+    /**
+     * Return the other nodes, alive or suspected, ordered by id.  The
+     * array is a snapshot that must not be changed.
+     */
+    public Member[] getMembers() {
+
+        return view.get();
+
+    }
+
+
+    /**
+     * Return the current suspicion level of a member, or NaN if it isn't
+     * in the view.
+     */
+    public double getPhi(Member member) {
+
+        Tracker tracker = trackers.get(Long.valueOf(member.getId()));
+        return (tracker == null) ? Double.NaN
+                                 : tracker.detector.phi(System.nanoTime());
+
+    }
+
+
+    /**
+     * Join the group and start sending heartbeats.
+     *
+     * @param group The group address
+     * @param port The port
+     * @param networkInterface The interface to join on, or null for the
+     *  default
+     *
+     * @exception IOException if the group can't be joined
+     */
+    public synchronized void start(InetAddress group, int port,
+                                   NetworkInterface networkInterface)
+        throws IOException {
+
+        if (node != null) {
+            return;
+        }
+        node = new NioMulticastNode();
+        membership = node.join(group, port, networkInterface, this);
+        node.start("MulticastMembership-" + name);
+        heartbeater = new Thread(new Runnable() {
+            public void run() {
+                heartbeat();
+            }
+        }, "MulticastMembership-" + name + "-heartbeat");
+        heartbeater.setDaemon(true);
+        heartbeater.start();
+
+    }
+
+
+    /**
+     * Tell the other nodes that this one is leaving, and leave the group.
+     */
+    public synchronized void stop() {
+
+        if (node == null) {
+            return;
+        }
+        Thread t = heartbeater;
+        heartbeater = null;
+        t.interrupt();
+        try {
+            t.join(1000L);
+            membership.send(packet(LEAVE));
+        } catch (IOException e) {
+            // The others will notice it failed instead.
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        node.stop();
+        node = null;
+        membership = null;
+        synchronized (lock) {
+            view.set(NO_MEMBERS);
+            trackers.clear();
+            departed.clear();
+        }
+
+    }
+
+
+    /**
+     * Stop sending heartbeats for a while, as a long garbage collection
+     * or a crash would, for tests and demonstrations.
+     *
+     * @param millis How long to stop for
+     */
+    public void skipHeartbeats(long millis) {
+
+        skipUntil = System.currentTimeMillis() + millis;
+
+    }
+
+
+    /**
+     * Handle a heartbeat or a leave from another node.
+     */
+    public void received(NioMulticastNode.Membership from,
+                         SocketAddress source, ByteBuffer payload) {
+
+        long now = System.nanoTime();
+        if (payload.remaining() < 4 + 1 + 8 + 8 + 4 + 8 + 8 + 1
+            || payload.getInt() != MAGIC) {
+            return;
+        }
+        byte type = payload.get();
+        long memberId = payload.getLong();
+        long seq = payload.getLong();
+        int memberPort = payload.getInt();
+        double load = payload.getDouble();
+        double heapUsage = payload.getDouble();
+        int nameLength = payload.get() & 0xff;
+        if (memberId == id || payload.remaining() < nameLength) {
+            return;
+        }
+        Long key = Long.valueOf(memberId);
+
+        if (type == LEAVE) {
+            synchronized (lock) {
+                departed.put(key, new Tombstone(seq, now));
+                trackers.remove(key);
+                Member left = update(memberId, null);
+                if (left != null) {
+                    for (Listener listener : listeners) {
+                        listener.memberRemoved(left, false);
+                    }
+                }
+            }
+            return;
+        }
+        if (type != HEARTBEAT) {
+            return;
+        }
+
+        byte[] nameBytes = new byte[nameLength];
+        payload.get(nameBytes);
+        InetAddress address = ((InetSocketAddress) source).getAddress();
+        Member member = new Member(memberId,
+            new String(nameBytes, StandardCharsets.UTF_8), address,
+            memberPort, load, heapUsage, false);
+
+        synchronized (lock) {
+            Tombstone tombstone = departed.get(key);
+            if (tombstone != null) {
+                if (seq <= tombstone.seq) {
+                    // Sent before the node left.
+                    return;
+                }
+                // Restarted since.
+                departed.remove(key);
+            }
+            Tracker tracker = trackers.get(key);
+            if (tracker == null) {
+                tracker = new Tracker(new PhiAccrualDetector(100,
+                    minStdDeviation, acceptablePause, heartbeatInterval));
+                trackers.put(key, tracker);
+            } else if (seq <= tracker.lastSeq) {
+                // A late duplicate says nothing about the node now.
+                return;
+            }
+            tracker.lastSeq = seq;
+            tracker.detector.heartbeat(now);
+
+            Member old = update(memberId, member);
+            for (Listener listener : listeners) {
+                if (old == null) {
+                    listener.memberAdded(member);
+                } else if (old.isSuspect()) {
+                    listener.memberRecovered(member);
+                }
+            }
+        }
+
+    }
+
+
+    /**
+     * Send heartbeats, and check the others' suspicion levels, until
+     * stopped.
+     */
+    private void heartbeat() {
+
+        long nextHeartbeat = 0L;
+        while (heartbeater == Thread.currentThread()) {
+            long now = System.currentTimeMillis();
+            if (now >= nextHeartbeat) {
+                nextHeartbeat = now + heartbeatInterval;
+                if (now >= skipUntil) {
+                    try {
+                        membership.send(packet(HEARTBEAT));
+                    } catch (IOException e) {
+                        // Like a lost datagram; the next one may get out.
+                    }
+                }
+            }
+            check();
+            try {
+                Thread.sleep(CHECK_INTERVAL);
+            } catch (InterruptedException e) {
+                // Stopped; check the thread again.
+            }
+        }
+
+    }
+
+
+    /**
+     * Suspect or remove the members whose heartbeats are late, and forget
+     * the nodes that left long enough ago.
+     */
+    private void check() {
+
+        long now = System.nanoTime();
+        synchronized (lock) {
+            Member[] members = view.get();
+            for (int i = 0; i < members.length; i++) {
+                Member member = members[i];
+                Long key = Long.valueOf(member.getId());
+                double phi = trackers.get(key).detector.phi(now);
+                if (phi >= failureThreshold) {
+                    trackers.remove(key);
+                    update(member.getId(), null);
+                    for (Listener listener : listeners) {
+                        listener.memberRemoved(member, true);
+                    }
+                } else if (phi >= suspectThreshold && !member.isSuspect()) {
+                    Member suspect = member.suspect();
+                    update(member.getId(), suspect);
+                    for (Listener listener : listeners) {
+                        listener.memberSuspected(suspect);
+                    }
+                }
+            }
+
+            Iterator<Tombstone> tombstones = departed.values().iterator();
+            while (tombstones.hasNext()) {
+                if (now - tombstones.next().time
+                    >= TOMBSTONE_TIME * 1000000L) {
+                    tombstones.remove();
+                }
+            }
+        }
+
+    }
+
+
+    /**
+     * Build a heartbeat or leave packet.
+     */
+    private ByteBuffer packet(byte type) {
+
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer packet = ByteBuffer.allocate(4 + 1 + 8 + 8 + 4 + 8 + 8
+                                                + 1 + nameBytes.length);
+        MemoryUsage heap =
+            ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        double heapUsage = (heap.getMax() > 0)
+            ? heap.getUsed() / (double) heap.getMax() : -1.0;
+        packet.putInt(MAGIC).put(type).putLong(id)
+              .putLong(seq.incrementAndGet()).putInt(port)
+              .putDouble(ManagementFactory.getOperatingSystemMXBean()
+                             .getSystemLoadAverage())
+              .putDouble(heapUsage)
+              .put((byte) nameBytes.length).put(nameBytes);
+        packet.flip();
+        return packet;
+
+    }
+
+
+    /**
+     * Put a member into the view, replacing any with the same id, or
+     * remove it if member is null, and return the one it replaced.  Must
+     * be called with the lock held.
+     */
+    private Member update(long memberId, Member member) {
+
+        Member[] members = view.get();
+        int i = indexOf(members, memberId);
+        Member[] updated;
+        if (i >= 0) {
+            updated = (member == null) ? without(members, i)
+                                       : replace(members, i, member);
+        } else if (member != null) {
+            updated = with(members, -(i + 1), member);
+        } else {
+            return null;
+        }
+        view.set(updated);
+        return (i >= 0) ? members[i] : null;
+
+    }
+
+
+    /**
+     * Return the index of a member id in a view, or -(insertion point +
+     * 1) if it isn't there.
+     */
+    private static int indexOf(Member[] members, long memberId) {
+
+        int low = 0;
+        int high = members.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midId = members[mid].getId();
+            if (midId < memberId) {
+                low = mid + 1;
+            } else if (midId > memberId) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+
+    }
+
+
+    private static Member[] replace(Member[] members, int i, Member m) {
+
+        Member[] updated = members.clone();
+        updated[i] = m;
+        return updated;
+
+    }
+
+
+    private static Member[] with(Member[] members, int i, Member m) {
+
+        Member[] updated = new Member[members.length + 1];
+        System.arraycopy(members, 0, updated, 0, i);
+        updated[i] = m;
+        System.arraycopy(members, i, updated, i + 1, members.length - i);
+        return updated;
+
+    }
+
+
+    private static Member[] without(Member[] members, int i) {
+
+        Member[] updated = new Member[members.length - 1];
+        System.arraycopy(members, 0, updated, 0, i);
+        System.arraycopy(members, i + 1, updated, i, updated.length - i);
+        return updated;
+
+    }
+
+
+    /**
+     * A node as its last heartbeat described it.
+     */
+    public static final class Member {
+
+        private final long id;
+        private final String name;
+        private final InetAddress address;
+        private final int port;
+        private final double load;
+        private final double heapUsage;
+        private final boolean suspect;
+
+
+        Member(long id, String name, InetAddress address, int port,
+               double load, double heapUsage, boolean suspect) {
+
+            this.id = id;
+            this.name = name;
+            this.address = address;
+            this.port = port;
+            this.load = load;
+            this.heapUsage = heapUsage;
+            this.suspect = suspect;
+
+        }
+
+
+        Member suspect() {
+
+            return new Member(id, name, address, port, load, heapUsage,
+                              true);
+
+        }
+
+
+        /**
+         * Return the random id the node picked when it started.
+         */
+        public long getId() {
+
+            return id;
+
+        }
+
+
+        public String getName() {
+
+            return name;
+
+        }
+
+
+        /**
+         * Return the address the node's heartbeats come from.
+         */
+        public InetAddress getAddress() {
+
+            return address;
+
+        }
+
+
+        /**
+         * Return the port the node serves the cluster on.
+         */
+        public int getPort() {
+
+            return port;
+
+        }
+
+
+        /**
+         * Return the node's system load average, or a negative number if
+         * it can't tell.
+         */
+        public double getLoad() {
+
+            return load;
+
+        }
+
+
+        /**
+         * Return the fraction of the node's maximum heap in use, or a
+         * negative number if it can't tell.
+         */
+        public double getHeapUsage() {
+
+            return heapUsage;
+
+        }
+
+
+        public boolean isSuspect() {
+
+            return suspect;
+
+        }
+
+
+        public String toString() {
+
+            return name + " (" + address.getHostAddress() + ":" + port
+                + ", load " + (Math.round(load * 100.0) / 100.0)
+                + ", heap " + Math.round(heapUsage * 100.0) + "%"
+                + (suspect ? ", suspect)" : ")");
+
+        }
+    }
+
+
+    /**
+     * A node that left, and when.
+     */
+    private static final class Tombstone {
+
+        /**
+         * The sequence number of its leave.
+         */
+        final long seq;
+        final long time;
+
+        Tombstone(long seq, long time) {
+            this.seq = seq;
+            this.time = time;
+        }
+    }
+
+
+    /**
+     * A member's failure detector, and the last heartbeat it was fed.
+     */
+    private static final class Tracker {
+
+        final PhiAccrualDetector detector;
+        long lastSeq = Long.MIN_VALUE;
+
+        Tracker(PhiAccrualDetector detector) {
+            this.detector = detector;
+        }
+    }
+}
@@ -1,6 +1,18 @@
+import java.lang.reflect.Method;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * MulticastNode is a very simple program to test multicast.  It starts
@@ -10,12 +22,90 @@ import java.net.MulticastSocket;
  * multicast group, and then spends the remainder of its time listening
  * for messages from other nodes and printing those messages to standard
  * output.
+ *
+ * <br><br>
+ *
+ * MulticastNode can also be embedded in another program: register a
+ * Listener, with the Decoder that turns a packet into its message type,
+ * and start() the node.  Packets are decoded on the receiving thread,
+ * and the listeners are called on virtual threads where the JVM has
+ * them (Java 21 and later), or else on a bounded pool of threads.  At
+ * most maxPending messages wait for or run in listeners at a time;
+ * messages beyond that are dropped and counted, so a slow listener never
+ * keeps the receiving thread from draining the socket, and the kernel
+ * from dropping packets unseen.
  */
 public class MulticastNode {
 
     InetAddress group = null;
+    int port = 45564;
     MulticastSocket s = null;
-    
+
+    /**
+     * The listeners, each with its decoder.
+     */
+    private final List<Registration<?>> registrations =
+        new CopyOnWriteArrayList<Registration<?>>();
+
+    private int maxPending = 1024;
+    private int poolSize = 16;
+    private Semaphore pending = null;
+    private ExecutorService executor = null;
+    private volatile Thread receiver = null;
+
+    private final AtomicLong receivedCount = new AtomicLong();
+    private final AtomicLong dispatchedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+
+    /**
+     * Turns the bytes of a packet into a message.
+     */
+    public interface Decoder<T> {
+
+        /**
+         * Called on the receiving thread.  The bytes are reused for the
+         * next packet, so the message must not refer to them.
+         *
+         * @param buf The packet's buffer
+         * @param offset The offset of the packet's data
+         * @param length The length of the packet's data
+         *
+         * @return The message, or null to ignore the packet
+         */
+        public T decode(byte[] buf, int offset, int length)
+            throws Exception;
+
+    }
+
+
+    /**
+     * Receives the messages of the multicast group.
+     */
+    public interface Listener<T> {
+
+        /**
+         * Called on a dispatch thread for each message.
+         *
+         * @param message The decoded message
+         * @param sender The address of the node that sent it
+         */
+        public void messageReceived(T message, InetAddress sender);
+
+    }
+
+
+    /**
+     * Decodes a packet as UTF-8 text.
+     */
+    public static final Decoder<String> TEXT = new Decoder<String>() {
+        public String decode(byte[] buf, int offset, int length)
+            throws Exception {
+            return new String(buf, offset, length, "UTF-8");
+        }
+    };
+
 
     /**
      * Pass this program a string argument that it should send to the
@@ -51,11 +141,27 @@ public class MulticastNode {
      */
     public MulticastNode() {
 
+        this("228.0.0.4", 45564);
+
+    }
+
+
+    /**
+     * Construct a MulticastNode on another group and port, such as one
+     * apart from a running cluster's.
+     *
+     * @param address The multicast group's address
+     * @param port The port of the group
+     */
+    public MulticastNode(String address, int port) {
+
+        this.port = port;
         try {
 
-            group = InetAddress.getByName("228.0.0.4");
-            s = new MulticastSocket(45564);
-            s.joinGroup(group);
+            group = InetAddress.getByName(address);
+            s = new MulticastSocket(port);
+            // Join on the default interface for multicast.
+            s.joinGroup(new InetSocketAddress(group, port), null);
 
         } catch (Exception e) {
 
@@ -65,6 +171,162 @@ public class MulticastNode {
     }
 
 
+    /**
+     * Set the most messages that may wait for or run in listeners at a
+     * time.  Takes effect when the node is started.
+     */
+    public void setMaxPending(int maxPending) {
+
+        this.maxPending = maxPending;
+
+    }
+
+
+    /**
+     * Set the number of threads listeners run on, if the JVM has no
+     * virtual threads.  Takes effect when the node is started.
+     */
+    public void setPoolSize(int poolSize) {
+
+        this.poolSize = poolSize;
+
+    }
+
+
+    /**
+     * Add a listener, and the decoder of the messages it receives.
+     */
+    public <T> void addListener(Decoder<? extends T> decoder,
+                                Listener<? super T> listener) {
+
+        registrations.add(new Registration<T>(decoder, listener));
+
+    }
+
+
+    /**
+     * Remove a listener.
+     */
+    public void removeListener(Listener<?> listener) {
+
+        for (Registration<?> registration : registrations) {
+            if (registration.listener == listener) {
+                registrations.remove(registration);
+            }
+        }
+
+    }
+
+
+    /**
+     * Return the number of packets received.
+     */
+    public long getReceivedCount() {
+
+        return receivedCount.get();
+
+    }
+
+
+    /**
+     * Return the number of messages handed to listeners.
+     */
+    public long getDispatchedCount() {
+
+        return dispatchedCount.get();
+
+    }
+
+
+    /**
+     * Return the number of messages dropped because maxPending messages
+     * were already waiting for or running in listeners.
+     */
+    public long getDroppedCount() {
+
+        return droppedCount.get();
+
+    }
+
+
+    /**
+     * Return the number of packets that failed to decode, and messages
+     * whose listener threw an exception.  The first exception of each
+     * listener is printed to standard error.
+     */
+    public long getFailedCount() {
+
+        return failedCount.get();
+
+    }
+
+
+    /**
+     * Return the number of messages waiting for or running in listeners.
+     */
+    public int getPendingCount() {
+
+        Semaphore p = pending;
+        return (p == null) ? 0 : maxPending - p.availablePermits();
+
+    }
+
+
+    /**
+     * Start receiving on a thread of its own, and dispatching to the
+     * listeners.
+     */
+    public synchronized void start() {
+
+        if (receiver != null) {
+            return;
+        }
+        pending = new Semaphore(maxPending);
+        executor = createExecutor();
+        receiver = new Thread(new Runnable() {
+            public void run() {
+                receive();
+            }
+        }, "MulticastNode-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+
+    }
+
+
+    /**
+     * Stop receiving, leave the group, and let the listeners finish
+     * the messages already dispatched.
+     */
+    public synchronized void stop() {
+
+        Thread t = receiver;
+        receiver = null;
+        try {
+
+            s.leaveGroup(new InetSocketAddress(group, port), null);
+
+        } catch (Exception e) {
+
+            // Closing the socket leaves the group anyway.
+
+        }
+        s.close();
+        if (t != null) {
+            try {
+                t.join(1000L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+
+    }
+
+
     /**
      * Send a string message to the multicast group for all to see.
      *
@@ -72,10 +334,34 @@ public class MulticastNode {
      */
     public void send(String msg) {
 
+        try {
+
+            // Send all of the message's bytes; a message with multibyte
+            // characters has more bytes than characters.
+            byte[] bytes = msg.getBytes("UTF-8");
+            send(bytes, 0, bytes.length);
+
+        } catch (Exception e) {
+
+            e.printStackTrace();
+
+        }
+    }
+
+
+    /**
+     * Send a binary message to the multicast group for all to see.
+     *
+     * @param buf the buffer holding the message.
+     * @param offset the offset of the message in the buffer.
+     * @param length the length of the message.
+     */
+    public void send(byte[] buf, int offset, int length) {
+
         try {
 
             DatagramPacket hi = new DatagramPacket(
-                msg.getBytes(), msg.length(), group, 45564);
+                buf, offset, length, group, port);
             s.send(hi);
 
         } catch (Exception e) {
@@ -87,29 +373,149 @@ public class MulticastNode {
 
 
     /**
-     * Loop forever, listening to the multicast group for messages sent
-     * from other nodes as DatagramPackets.  When one comes in, print it
-     * to standard output, then go back to listening again.
+     * Loop until stopped, listening to the multicast group for messages
+     * sent from other nodes as DatagramPackets.  When one comes in, hand
+     * it to the listeners, or, if there are none, print it to standard
+     * output, then go back to listening again.
      */
     public void receive() {
 
-        byte[] buf;
+        // The largest UDP payload, so that no message is cut short.
+        byte[] buf = new byte[65507];
+        DatagramPacket recv = new DatagramPacket(buf, buf.length);
+        boolean embedded = (receiver == Thread.currentThread());
 
-        // Loop forever
-        while (true) {
+        // Loop until stopped
+        while (!embedded || receiver == Thread.currentThread()) {
 
             try {
 
-                buf = new byte[1000];
-                DatagramPacket recv = new DatagramPacket(buf, buf.length);
+                // Reuse the same buffer for every message, and decode only
+                // the bytes that this message filled in.
+                recv.setLength(buf.length);
                 s.receive(recv);
-                System.out.println("Received: " + new String(buf));
+                receivedCount.incrementAndGet();
+                if (registrations.isEmpty()) {
+                    System.out.println("Received: " + new String(
+                        buf, 0, recv.getLength(), "UTF-8"));
+                } else {
+                    for (Registration<?> registration : registrations) {
+                        registration.dispatch(buf, recv.getLength(),
+                                              recv.getAddress());
+                    }
+                }
 
             } catch (Exception e) {
 
+                if (s.isClosed()) {
+                    return;
+                }
                 e.printStackTrace();
 
             }
         }
     }
-}
\ No newline at end of file
+
+
+    /**
+     * Return an executor that runs each task on a new virtual thread, if
+     * the JVM has them, or else a pool of poolSize threads.  Virtual
+     * threads are looked up by reflection, so that this class still
+     * compiles and runs on older JVMs.
+     */
+    private ExecutorService createExecutor() {
+
+        try {
+            Method method = java.util.concurrent.Executors.class.getMethod(
+                "newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (Exception e) {
+            // Older than Java 21.
+        }
+        // The queue is bounded by the pending permits.
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(poolSize, poolSize,
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+
+    }
+
+
+    /**
+     * A listener with its decoder.
+     */
+    private final class Registration<T> {
+
+        final Decoder<? extends T> decoder;
+        final Listener<? super T> listener;
+        final AtomicBoolean failed = new AtomicBoolean();
+
+        Registration(Decoder<? extends T> decoder,
+                     Listener<? super T> listener) {
+            this.decoder = decoder;
+            this.listener = listener;
+        }
+
+        /**
+         * Decode a packet, and hand the message to the listener on the
+         * executor, unless too many messages are pending already.
+         */
+        void dispatch(byte[] buf, int length, final InetAddress sender) {
+
+            final T message;
+            try {
+                message = decoder.decode(buf, 0, length);
+            } catch (Exception e) {
+                failedCount.incrementAndGet();
+                return;
+            }
+            if (message == null) {
+                return;
+            }
+            final Semaphore permits = pending;
+            ExecutorService dispatcher = executor;
+            if (permits == null || dispatcher == null) {
+                // Not started; receive() was called directly.
+                deliver(message, sender);
+                return;
+            }
+            if (!permits.tryAcquire()) {
+                droppedCount.incrementAndGet();
+                return;
+            }
+            try {
+                dispatcher.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            deliver(message, sender);
+                        } finally {
+                            permits.release();
+                        }
+                    }
+                });
+                dispatchedCount.incrementAndGet();
+            } catch (RejectedExecutionException e) {
+                permits.release();
+                droppedCount.incrementAndGet();
+            }
+
+        }
+
+        private void deliver(T message, InetAddress sender) {
+
+            try {
+                listener.messageReceived(message, sender);
+            } catch (RuntimeException e) {
+                // Report the first failure of each listener, and count
+                // them all.
+                failedCount.incrementAndGet();
+                if (failed.compareAndSet(false, true)) {
+                    System.err.println("Listener " + listener
+                        + " failed:");
+                    e.printStackTrace();
+                }
+            }
+
+        }
+    }
+}
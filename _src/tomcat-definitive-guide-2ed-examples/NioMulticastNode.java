@@ -0,0 +1,654 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * NioMulticastNode is the non-blocking counterpart of MulticastNode.  One
+ * thread serves any number of multicast groups, on any number of ports
+ * and network interfaces, by waiting on a Selector for whichever channel
+ * has datagrams to read.  Every datagram is received into the same
+ * direct buffer, and its payload is handed to the membership's Handler
+ * without being copied, so receiving allocates nothing per datagram.
+ *
+ * <br><br>
+ *
+ * Run on its own, it joins the groups given on the command line (by
+ * default the Tomcat 6 cluster group, 228.0.0.4 on port 45564), sends an
+ * optional message into each of them, and prints what it hears, or just
+ * per-group traffic statistics, which makes it a simple monitoring agent
+ * for the cluster's multicast traffic.
+ */
+public class NioMulticastNode implements Runnable {
+
+    /**
+     * The default group address, that of Tomcat 6's Cluster.
+     */
+    public static final String DEFAULT_GROUP = "228.0.0.4";
+
+    /**
+     * The default port, that of Tomcat 6's Cluster.
+     */
+    public static final int DEFAULT_PORT = 45564;
+
+    /**
+     * The largest payload a UDP datagram can carry over IPv4.
+     */
+    public static final int MAX_DATAGRAM = 65507;
+
+    /**
+     * The most datagrams read from one channel before the others get a
+     * turn.
+     */
+    private static final int MAX_READS_PER_SELECT = 64;
+
+    private final Selector selector;
+
+    /**
+     * The buffer every datagram is received into.
+     */
+    private final ByteBuffer receiveBuffer =
+        ByteBuffer.allocateDirect(MAX_DATAGRAM);
+
+    /**
+     * The view of receiveBuffer that is handed to handlers, limited to
+     * each datagram's payload in turn.
+     */
+    private final ByteBuffer payload = receiveBuffer.duplicate();
+
+    /**
+     * Memberships joined by other threads, waiting to be registered with
+     * the selector by the receiving thread.
+     */
+    private final ConcurrentLinkedQueue<Membership> pending =
+        new ConcurrentLinkedQueue<Membership>();
+
+    private final List<Membership> memberships = new ArrayList<Membership>();
+
+    private volatile Thread thread = null;
+
+    /**
+     * Whether the node was stopped, after which it can't be started again
+     * or join groups, since its selector is closed.
+     */
+    private boolean stopped = false;
+
+    /**
+     * The size of the socket receive buffer of channels joined from now
+     * on, or 0 for the system's default.
+     */
+    private volatile int receiveBufferSize = 0;
+
+
+    /**
+     * Receives the datagrams of a membership.
+     */
+    public interface Handler {
+
+        /**
+         * Called on the receiving thread for each datagram.  The payload
+         * is a view of a buffer that is reused for the next datagram, so
+         * it is only valid until this method returns; copy whatever must
+         * be kept.  This method must not block, since every group waits
+         * for it.  A RuntimeException it throws is counted in the
+         * membership's failed packets, and the next datagram is read.
+         *
+         * @param membership The membership the datagram arrived on
+         * @param source The address of the sender
+         * @param payload The datagram's payload, from position 0 to the
+         *  limit
+         */
+        public void received(Membership membership, SocketAddress source,
+                             ByteBuffer payload);
+
+    }
+
+
+    /**
+     * Start a node that joins the groups given as arguments, of the form
+     * <code>group[:port][@interface]</code>, and prints what it hears.
+     * <code>-send message</code> sends a message into each group, and
+     * <code>-stats seconds</code> prints statistics instead of messages.
+     */
+    public static void main(String[] args) throws IOException {
+
+        String message = null;
+        int statsInterval = 0;
+        List<String> groups = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-send") && i + 1 < args.length) {
+                message = args[++i];
+            } else if (args[i].equals("-stats") && i + 1 < args.length) {
+                statsInterval = Integer.parseInt(args[++i]);
+            } else if (args[i].startsWith("-")) {
+                System.out.println("Usage: NioMulticastNode [-send message]"
+                    + " [-stats seconds] [group[:port][@interface] ...]");
+                System.exit(1);
+            } else {
+                groups.add(args[i]);
+            }
+        }
+        if (groups.isEmpty()) {
+            groups.add(DEFAULT_GROUP);
+        }
+
+        Handler printer = null;
+        if (statsInterval <= 0) {
+            printer = new Handler() {
+                public void received(Membership membership,
+                                     SocketAddress source,
+                                     ByteBuffer payload) {
+                    System.out.println("Received on " + membership.getName()
+                        + " from " + source + ": "
+                        + StandardCharsets.UTF_8.decode(payload));
+                }
+            };
+        }
+
+        NioMulticastNode node = new NioMulticastNode();
+        List<Membership> joined = new ArrayList<Membership>();
+        for (String spec : groups) {
+            joined.add(node.join(spec, printer));
+        }
+        node.start("NioMulticastNode");
+
+        if (message != null) {
+            System.out.println("Sending message: " + message);
+            for (Membership membership : joined) {
+                membership.send(ByteBuffer.wrap(
+                    message.getBytes(StandardCharsets.UTF_8)));
+            }
+        }
+
+        // Listen until killed, like MulticastNode.
+        long interval = (statsInterval > 0) ? statsInterval * 1000L
+                                            : Long.MAX_VALUE;
+        while (true) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                break;
+            }
+            for (Membership membership : joined) {
+                System.out.println(membership);
+            }
+        }
+        node.stop();
+
+    }
+
+
+    /**
+     * Construct a NioMulticastNode that has not joined any group yet.
+     *
+     * @exception IOException if the selector can't be opened
+     */
+    public NioMulticastNode() throws IOException {
+
+        selector = Selector.open();
+
+    }
+
+
+    /**
+     * Set the size of the socket receive buffer of the channels joined
+     * from now on.  A bigger buffer rides out longer bursts, and longer
+     * pauses of the receiving thread, without dropping datagrams; the
+     * system may cap it (net.core.rmem_max on Linux).
+     *
+     * @param receiveBufferSize The size in bytes, or 0 for the system's
+     *  default
+     */
+    public void setReceiveBufferSize(int receiveBufferSize) {
+
+        this.receiveBufferSize = receiveBufferSize;
+
+    }
+
+
+    /**
+     * Join a group given as <code>group[:port][@interface]</code>, where
+     * the interface is a name such as <code>eth0</code>.
+     *
+     * @param spec The group to join
+     * @param handler The handler of the group's datagrams, or null to
+     *  only count them
+     *
+     * @exception IOException if the group can't be joined
+     */
+    public Membership join(String spec, Handler handler) throws IOException {
+
+        NetworkInterface networkInterface = null;
+        int at = spec.indexOf('@');
+        if (at >= 0) {
+            networkInterface = NetworkInterface.getByName(
+                spec.substring(at + 1));
+            if (networkInterface == null) {
+                throw new IOException("No network interface named "
+                                      + spec.substring(at + 1));
+            }
+            spec = spec.substring(0, at);
+        }
+        int port = DEFAULT_PORT;
+        int colon = spec.lastIndexOf(':');
+        if (colon >= 0 && spec.indexOf(':') == colon) {
+            port = Integer.parseInt(spec.substring(colon + 1));
+            spec = spec.substring(0, colon);
+        }
+        return join(InetAddress.getByName(spec), port, networkInterface,
+                    handler);
+
+    }
+
+
+    /**
+     * Join a multicast group.  May be called from any thread, before or
+     * after the node is started, but not after it is stopped.
+     *
+     * @param group The group address
+     * @param port The port
+     * @param networkInterface The interface to join on, or null for the
+     *  one that routes to the group
+     * @param handler The handler of the group's datagrams, or null to
+     *  only count them
+     *
+     * @exception IOException if the group can't be joined, or the node
+     *  was stopped
+     */
+    public Membership join(InetAddress group, int port,
+                           NetworkInterface networkInterface,
+                           Handler handler) throws IOException {
+
+        if (networkInterface == null) {
+            networkInterface = defaultInterface(group);
+        }
+        DatagramChannel channel = DatagramChannel.open(
+            (group.getAddress().length == 4) ? StandardProtocolFamily.INET
+                                             : StandardProtocolFamily.INET6);
+        try {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            if (receiveBufferSize > 0) {
+                channel.setOption(StandardSocketOptions.SO_RCVBUF,
+                                  receiveBufferSize);
+            }
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_IF,
+                              networkInterface);
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+            MembershipKey key = channel.join(group, networkInterface);
+            Membership membership = new Membership(key, port, handler);
+            synchronized (this) {
+                // Checked with the lock held, so that stop() closes every
+                // membership that made it into the queue.
+                if (stopped) {
+                    throw new IOException("The node is stopped");
+                }
+                pending.add(membership);
+            }
+            selector.wakeup();
+            return membership;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+    }
+
+
+    /**
+     * Start the thread that receives for this node.
+     *
+     * @param name The name of the thread
+     *
+     * @exception IllegalStateException if the node was stopped
+     */
+    public synchronized void start(String name) {
+
+        if (stopped) {
+            throw new IllegalStateException("The node is stopped");
+        }
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+
+    }
+
+
+    /**
+     * Stop receiving, leave every group and close the selector, for good.
+     */
+    public void stop() {
+
+        Thread t;
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            stopped = true;
+            t = thread;
+            thread = null;
+        }
+        if (t == null) {
+            // Never started, so nothing else will close the groups joined.
+            close();
+            return;
+        }
+        selector.wakeup();
+        try {
+            t.join(1000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+    }
+
+
+    /**
+     * Receive datagrams until stopped.
+     */
+    public void run() {
+
+        try {
+            while (thread == Thread.currentThread()) {
+                Membership joined;
+                while ((joined = pending.poll()) != null) {
+                    if (joined.key.isValid()) {
+                        try {
+                            ((DatagramChannel) joined.key.channel())
+                                .register(selector, SelectionKey.OP_READ,
+                                          joined);
+                            memberships.add(joined);
+                        } catch (ClosedChannelException e) {
+                            // Left before it could be registered.
+                        }
+                    }
+                }
+
+                selector.select();
+                Iterator<SelectionKey> keys =
+                    selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isReadable()) {
+                        read(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            close();
+        }
+
+    }
+
+
+    /**
+     * Leave every group, registered or still waiting to be, and close the
+     * selector.
+     */
+    private void close() {
+
+        for (Membership membership : memberships) {
+            membership.leave();
+        }
+        memberships.clear();
+        Membership joined;
+        while ((joined = pending.poll()) != null) {
+            joined.leave();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // Nothing more to release.
+        }
+
+    }
+
+
+    /**
+     * Read the datagrams waiting on a channel, and hand them to its
+     * membership's handler.
+     */
+    private void read(SelectionKey key) throws IOException {
+
+        DatagramChannel channel = (DatagramChannel) key.channel();
+        Membership membership = (Membership) key.attachment();
+        for (int i = 0; i < MAX_READS_PER_SELECT; i++) {
+            receiveBuffer.clear();
+            SocketAddress source;
+            try {
+                source = channel.receive(receiveBuffer);
+            } catch (IOException e) {
+                // The membership was left while it was being read.
+                key.cancel();
+                return;
+            }
+            if (source == null) {
+                return;
+            }
+            int length = receiveBuffer.position();
+            membership.receivedPackets++;
+            membership.receivedBytes += length;
+            if (membership.handler != null) {
+                payload.limit(length).position(0);
+                try {
+                    membership.handler.received(membership, source,
+                                                payload);
+                } catch (RuntimeException e) {
+                    // One bad datagram or handler mustn't stop every
+                    // group; report the first failure, and count them.
+                    if (membership.failedPackets++ == 0L) {
+                        System.err.println("Handler of "
+                            + membership.getName() + " failed:");
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+
+    }
+
+
+    /**
+     * Return the first multicast capable interface that is up, for a
+     * group joined without naming one.
+     */
+    private static NetworkInterface defaultInterface(InetAddress group)
+        throws IOException {
+
+        NetworkInterface loopback = null;
+        for (NetworkInterface ni
+                 : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (!ni.isUp() || !ni.supportsMulticast()) {
+                continue;
+            }
+            if (!ni.isLoopback()) {
+                return ni;
+            }
+            loopback = ni;
+        }
+        if (loopback == null) {
+            throw new IOException("No multicast capable interface to join "
+                                  + group + " on");
+        }
+        return loopback;
+
+    }
+
+
+    /**
+     * One group joined on one port and interface.
+     */
+    public static class Membership {
+
+        private final MembershipKey key;
+        private final InetSocketAddress target;
+        private final Handler handler;
+
+        // Written only by the receiving thread.
+        private volatile long receivedPackets = 0L;
+        private volatile long receivedBytes = 0L;
+        private volatile long failedPackets = 0L;
+
+        private final AtomicLong sentPackets = new AtomicLong();
+        private final AtomicLong unsentPackets = new AtomicLong();
+
+
+        Membership(MembershipKey key, int port, Handler handler) {
+
+            this.key = key;
+            this.target = new InetSocketAddress(key.group(), port);
+            this.handler = handler;
+
+        }
+
+
+        /**
+         * Return the membership's key, with its group, interface and
+         * channel.
+         */
+        public MembershipKey getKey() {
+
+            return key;
+
+        }
+
+
+        /**
+         * Return the group address and port datagrams are sent to.
+         */
+        public InetSocketAddress getTarget() {
+
+            return target;
+
+        }
+
+
+        /**
+         * Return the group, port and interface, such as
+         * <code>228.0.0.4:45564@eth0</code>.
+         */
+        public String getName() {
+
+            return key.group().getHostAddress() + ":" + target.getPort()
+                + "@" + key.networkInterface().getName();
+
+        }
+
+
+        public long getReceivedPackets() {
+
+            return receivedPackets;
+
+        }
+
+
+        public long getReceivedBytes() {
+
+            return receivedBytes;
+
+        }
+
+
+        /**
+         * Return the number of datagrams whose handler threw an
+         * exception.
+         */
+        public long getFailedPackets() {
+
+            return failedPackets;
+
+        }
+
+
+        public long getSentPackets() {
+
+            return sentPackets.get();
+
+        }
+
+
+        /**
+         * Return the number of datagrams that weren't sent because the
+         * socket's send buffer was full.
+         */
+        public long getUnsentPackets() {
+
+            return unsentPackets.get();
+
+        }
+
+
+        /**
+         * Send a datagram to the group, without blocking.  May be called
+         * from any thread.
+         *
+         * @param src The payload, from its position to its limit
+         *
+         * @return true if it was sent, or false if the socket's send
+         *  buffer was full, as it would be lost on a busy network anyway
+         *
+         * @exception IOException if the datagram can't be sent
+         */
+        public boolean send(ByteBuffer src) throws IOException {
+
+            DatagramChannel channel = (DatagramChannel) key.channel();
+            boolean empty = !src.hasRemaining();
+            if (channel.send(src, target) == 0 && !empty) {
+                unsentPackets.incrementAndGet();
+                return false;
+            }
+            sentPackets.incrementAndGet();
+            return true;
+
+        }
+
+
+        /**
+         * Leave the group, and close the channel.  May be called from any
+         * thread.
+         */
+        public void leave() {
+
+            key.drop();
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                // The channel is unusable either way.
+            }
+
+        }
+
+
+        public String toString() {
+
+            return getName() + " received " + receivedPackets
+                + " packets, " + receivedBytes + " bytes, " + failedPackets
+                + " failed; sent "
+                + sentPackets.get() + " packets, " + unsentPackets.get()
+                + " unsent";
+
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/**
+ * PhiAccrualDetector judges whether a node is still alive from the
+ * arrival times of its heartbeats.  Instead of declaring the node dead
+ * after a fixed timeout, it learns the mean and the deviation of the
+ * intervals between heartbeats, and gives the suspicion level phi: the
+ * odds that a heartbeat this late would still arrive are one in 10 to
+ * the power of phi.  A caller picks the phi at which it acts, and the
+ * time that takes adapts to how regular the heartbeats have been, so a
+ * node on a jittery network is given more slack, and a node on a quiet
+ * one is caught sooner.
+ *
+ * <br><br>
+ *
+ * The acceptable pause is added to the mean interval, so that pauses of
+ * up to that long, such as garbage collections, cost little suspicion.
+ *
+ * <br><br>
+ *
+ * heartbeat() must be called by one thread at a time, and phi() may be
+ * called by any thread at any time, without locking.
+ */
+public class PhiAccrualDetector {
+
+    private final double[] intervals;
+    private int count = 0;
+    private int next = 0;
+    private double sum = 0.0;
+    private double sumOfSquares = 0.0;
+
+    private final double minStdDeviation;
+    private final double acceptablePause;
+
+    /**
+     * The time of the last heartbeat, in nanoseconds, or -1 if none has
+     * arrived.  Written only by the thread calling heartbeat().
+     */
+    private long lastHeartbeat = -1L;
+
+    /**
+     * What phi() needs, published as one immutable object.
+     */
+    private volatile Estimate estimate = null;
+
+
+    /**
+     * Construct a detector that hasn't seen a heartbeat yet.
+     *
+     * @param windowSize The number of intervals the estimate is based on
+     * @param minStdDeviation The least standard deviation assumed, in
+     *  milliseconds, so that perfectly regular heartbeats don't make the
+     *  slightest delay look fatal
+     * @param acceptablePause The pause that costs little suspicion, in
+     *  milliseconds
+     * @param firstInterval The interval expected before any has been
+     *  measured, in milliseconds
+     */
+    public PhiAccrualDetector(int windowSize, double minStdDeviation,
+                              double acceptablePause, double firstInterval) {
+
+        if (windowSize < 2 || minStdDeviation <= 0.0
+            || acceptablePause < 0.0 || firstInterval <= 0.0) {
+            throw new IllegalArgumentException("Invalid detector settings");
+        }
+        this.intervals = new double[windowSize];
+        this.minStdDeviation = minStdDeviation;
+        this.acceptablePause = acceptablePause;
+
+        // Start from two intervals around the expected one, so the first
+        // estimate has a mean and a deviation.
+        add(firstInterval - firstInterval / 4.0);
+        add(firstInterval + firstInterval / 4.0);
+
+    }
+
+
+    /**
+     * Record the arrival of a heartbeat.
+     *
+     * @param nanos The arrival time, from System.nanoTime()
+     */
+    public void heartbeat(long nanos) {
+
+        if (lastHeartbeat >= 0L) {
+            double interval = (nanos - lastHeartbeat) / 1000000.0;
+            if (interval > 0.0) {
+                add(interval);
+            }
+        }
+        lastHeartbeat = nanos;
+
+        double mean = sum / count;
+        double variance = sumOfSquares / count - mean * mean;
+        double stdDeviation = Math.max(Math.sqrt(Math.max(variance, 0.0)),
+                                       minStdDeviation);
+        estimate = new Estimate(nanos, mean + acceptablePause,
+                                stdDeviation);
+
+    }
+
+
+    /**
+     * Return the suspicion level at a given time: 0 right after a
+     * heartbeat, 1 when there is a 10% chance that the next heartbeat is
+     * still coming, 2 at 1%, 3 at 0.1%, and so on.  Before the first
+     * heartbeat, it is 0.
+     *
+     * @param nanos The time, from System.nanoTime()
+     */
+    public double phi(long nanos) {
+
+        Estimate e = estimate;
+        if (e == null) {
+            return 0.0;
+        }
+        double elapsed = (nanos - e.lastHeartbeat) / 1000000.0;
+
+        // The logistic approximation of the normal distribution's tail,
+        // which, unlike 1 - CDF computed directly, doesn't round to 0
+        // and give an infinite phi for a merely very late heartbeat.
+        double y = (elapsed - e.mean) / e.stdDeviation;
+        double exp = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (elapsed > e.mean) {
+            return -Math.log10(exp / (1.0 + exp));
+        }
+        return -Math.log10(1.0 - 1.0 / (1.0 + exp));
+
+    }
+
+
+    /**
+     * Return the mean interval between heartbeats, plus the acceptable
+     * pause, in milliseconds.
+     */
+    public double getMean() {
+
+        Estimate e = estimate;
+        return (e == null) ? Double.NaN : e.mean;
+
+    }
+
+
+    /**
+     * Return the standard deviation of the intervals between heartbeats,
+     * in milliseconds.
+     */
+    public double getStdDeviation() {
+
+        Estimate e = estimate;
+        return (e == null) ? Double.NaN : e.stdDeviation;
+
+    }
+
+
+    private void add(double interval) {
+
+        if (count == intervals.length) {
+            double old = intervals[next];
+            sum -= old;
+            sumOfSquares -= old * old;
+        } else {
+            count++;
+        }
+        intervals[next] = interval;
+        next = (next + 1) % intervals.length;
+        sum += interval;
+        sumOfSquares += interval * interval;
+
+    }
+
+
+    private static final class Estimate {
+
+        final long lastHeartbeat;
+        final double mean;
+        final double stdDeviation;
+
+        Estimate(long lastHeartbeat, double mean, double stdDeviation) {
+            this.lastHeartbeat = lastHeartbeat;
+            this.mean = mean;
+            this.stdDeviation = stdDeviation;
+        }
+    }
+}
@@ -0,0 +1,909 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ReliableMulticast delivers every message sent to a multicast group to
+ * every node in the group, in the order each sender sent them, over
+ * plain UDP: every message carries its sender's sequence number, and a
+ * receiver that sees a gap multicasts a negative acknowledgement (NACK)
+ * for the missing numbers, which the sender answers by sending them
+ * again from a bounded history.  Nothing is acknowledged when it
+ * arrives, so a sender's traffic doesn't grow with the number of
+ * receivers, as it would with a TCP connection to each.
+ *
+ * <br><br>
+ *
+ * A NACK lists the runs of missing messages, in as many packets as it
+ * takes, up to MAX_NACK_PACKETS.
+ * NACKs are multicast too, after a random delay, so that when many
+ * receivers lose the same packet, the first NACK to go out stands for
+ * all of them, and the others hold theirs back; the sender also sends a
+ * message again at most once per hold-off time, however many NACKs ask
+ * for it.  Idle senders send heartbeats with their highest sequence
+ * number, so the loss of a burst's last messages is noticed too, and
+ * with their oldest one still held, so receivers stop asking for
+ * messages that have fallen out of the history, and report them lost.
+ *
+ * <br><br>
+ *
+ * The Listener is called on the receiving thread.
+ */
+public class ReliableMulticast implements NioMulticastNode.Handler {
+
+    /**
+     * "RMC1".
+     */
+    private static final int MAGIC = 0x524d4331;
+
+    private static final byte DATA = 1;
+    private static final byte NACK = 2;
+    private static final byte HEARTBEAT = 3;
+
+    /**
+     * Magic, type, node id and sequence number.
+     */
+    private static final int HEADER_LENGTH = 4 + 1 + 8 + 8;
+
+    /**
+     * The largest message, so that a message fits in an Ethernet frame.
+     */
+    public static final int MAX_MESSAGE_SIZE = 1472 - HEADER_LENGTH;
+
+    /**
+     * The most runs of missing messages one NACK packet asks for, so
+     * that it fits in an Ethernet frame.
+     */
+    private static final int MAX_RANGES = 90;
+
+    /**
+     * The most NACK packets sent to one sender at a time.
+     */
+    private static final int MAX_NACK_PACKETS = 8;
+
+    /**
+     * How often the timer thread runs, in nanoseconds.
+     */
+    private static final long TICK = 2000000L;
+
+    private final long id = new Random().nextLong();
+    private final Random random = new Random();
+    private final Listener listener;
+
+    private long nackDelay = 10000000L;
+    private long nackRetry = 20000000L;
+    private long retransmitHoldoff = 10000000L;
+    private long heartbeatInterval = 100000000L;
+    private int maxBuffered = 4096;
+    private double dropRate = 0.0;
+
+    // The history of sent messages, guarded by itself.
+    private final byte[][] history;
+    private final int[] historyLengths;
+    private final long[] historySeqs;
+    private final long[] historyResent;
+    private long nextSeq = 1L;
+    private long lastSent = 0L;
+
+    private final Map<Long, Peer> peers = new ConcurrentHashMap<Long, Peer>();
+
+    private NioMulticastNode node = null;
+    private NioMulticastNode.Membership membership = null;
+    private volatile Thread timer = null;
+
+    private final ByteBuffer sendBuffer =
+        ByteBuffer.allocateDirect(HEADER_LENGTH + MAX_MESSAGE_SIZE);
+    private final ByteBuffer controlBuffer =
+        ByteBuffer.allocateDirect(HEADER_LENGTH + 2 + MAX_RANGES * 16);
+
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong deliveredCount = new AtomicLong();
+    private final AtomicLong lostCount = new AtomicLong();
+    private final AtomicLong nackCount = new AtomicLong();
+    private final AtomicLong suppressedNackCount = new AtomicLong();
+    private final AtomicLong retransmitCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+
+    /**
+     * Receives the messages of every sender in the group, in order.
+     */
+    public interface Listener {
+
+        /**
+         * Called for each message, in the order its sender sent them.
+         * The message is a view of a buffer that is reused, and is only
+         * valid until this method returns.
+         *
+         * @param sender The id of the sender
+         * @param seq The message's sequence number
+         * @param message The message, from its position to its limit
+         */
+        public void delivered(long sender, long seq, ByteBuffer message);
+
+        /**
+         * Called when messages can't be delivered, because they are no
+         * longer in their sender's history.
+         *
+         * @param sender The id of the sender
+         * @param fromSeq The first lost sequence number
+         * @param toSeq The last lost sequence number
+         */
+        public void lost(long sender, long fromSeq, long toSeq);
+
+    }
+
+
+    /**
+     * Run one sender and several receivers in this JVM on the loopback
+     * interface, with every receiver dropping a share of the packets it
+     * gets, and check that every receiver delivers every message in
+     * order.
+     *
+     * <br><br>
+     *
+     * Usage: <code>ReliableMulticast [receivers [messages [dropRate
+     * [port]]]]</code>
+     */
+    public static void main(String[] args) throws Exception {
+
+        int receivers = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+        int messages = (args.length > 1) ? Integer.parseInt(args[1])
+                                         : 20000;
+        double dropRate = (args.length > 2) ? Double.parseDouble(args[2])
+                                            : 0.05;
+        int port = (args.length > 3) ? Integer.parseInt(args[3])
+                                     : NioMulticastNode.DEFAULT_PORT;
+        InetAddress group =
+            InetAddress.getByName(NioMulticastNode.DEFAULT_GROUP);
+        NetworkInterface loopback = NetworkInterface.getByName("lo");
+
+        final long[] expected = new long[receivers];
+        final long[] outOfOrder = new long[receivers];
+        ReliableMulticast[] nodes = new ReliableMulticast[receivers];
+        for (int i = 0; i < receivers; i++) {
+            final int n = i;
+            nodes[i] = new ReliableMulticast(new Listener() {
+                public void delivered(long sender, long seq,
+                                      ByteBuffer message) {
+                    long value = message.getLong();
+                    if (value != expected[n]) {
+                        outOfOrder[n]++;
+                    }
+                    expected[n] = value + 1;
+                }
+                public void lost(long sender, long fromSeq, long toSeq) {
+                }
+            });
+            nodes[i].setDropRate(dropRate);
+            nodes[i].start(group, port, loopback);
+        }
+        ReliableMulticast sender = new ReliableMulticast(null);
+        sender.start(group, port, loopback);
+        Thread.sleep(100L);
+
+        ByteBuffer message = ByteBuffer.allocate(256);
+        long start = System.nanoTime();
+        for (long i = 0; i < messages; i++) {
+            message.clear();
+            message.putLong(i).position(0);
+            sender.send(message);
+            if (i % 100 == 99) {
+                // Pace the sender, as a real application would be.
+                Thread.sleep(1L);
+            }
+        }
+        long deadline = System.currentTimeMillis() + 10000L;
+        boolean done = false;
+        while (!done && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50L);
+            done = true;
+            for (int i = 0; i < receivers; i++) {
+                done &= nodes[i].getDeliveredCount() == messages;
+            }
+        }
+        long millis = (System.nanoTime() - start) / 1000000L;
+
+        System.out.println("Sent " + messages + " messages to " + receivers
+            + " receivers dropping " + (dropRate * 100.0) + "% of "
+            + "packets: " + sender.getRetransmitCount()
+            + " retransmissions, " + millis + " ms");
+        boolean passed = true;
+        for (int i = 0; i < receivers; i++) {
+            ReliableMulticast node = nodes[i];
+            System.out.println("receiver " + i + ": delivered "
+                + node.getDeliveredCount() + " (" + outOfOrder[i]
+                + " out of order), lost " + node.getLostCount()
+                + ", dropped " + node.getDroppedCount() + ", NACKs sent "
+                + node.getNackCount() + ", held back "
+                + node.getSuppressedNackCount());
+            passed &= node.getDeliveredCount() == messages
+                && outOfOrder[i] == 0;
+            node.stop();
+        }
+        sender.stop();
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+
+    }
+
+
+    /**
+     * Construct a node that hasn't joined a group yet.
+     *
+     * @param listener The listener of the other nodes' messages, or null
+     *  to only send
+     */
+    public ReliableMulticast(Listener listener) {
+
+        this(listener, 4096);
+
+    }
+
+
+    /**
+     * Construct a node that hasn't joined a group yet.
+     *
+     * @param listener The listener of the other nodes' messages, or null
+     *  to only send
+     * @param historySize The number of sent messages kept to be sent
+     *  again
+     */
+    public ReliableMulticast(Listener listener, int historySize) {
+
+        this.listener = listener;
+        history = new byte[historySize][];
+        historyLengths = new int[historySize];
+        historySeqs = new long[historySize];
+        historyResent = new long[historySize];
+        for (int i = 0; i < historySize; i++) {
+            history[i] = new byte[MAX_MESSAGE_SIZE];
+        }
+
+    }
+
+
+    /**
+     * Set the longest a receiver waits before asking for a missing
+     * message, in milliseconds; each waits a random time up to this, so
+     * that one receiver's NACK can stand for the others'.
+     */
+    public void setNackDelay(long millis) {
+
+        this.nackDelay = millis * 1000000L;
+
+    }
+
+
+    /**
+     * Set how long a receiver waits for a missing message it asked for
+     * before asking again, in milliseconds.
+     */
+    public void setNackRetry(long millis) {
+
+        this.nackRetry = millis * 1000000L;
+
+    }
+
+
+    /**
+     * Set the time during which a message is sent again only once,
+     * however many NACKs ask for it, in milliseconds.
+     */
+    public void setRetransmitHoldoff(long millis) {
+
+        this.retransmitHoldoff = millis * 1000000L;
+
+    }
+
+
+    /**
+     * Set how long an idle sender waits between heartbeats, in
+     * milliseconds.
+     */
+    public void setHeartbeatInterval(long millis) {
+
+        this.heartbeatInterval = millis * 1000000L;
+
+    }
+
+
+    /**
+     * Set the most messages held per sender while waiting for an earlier
+     * one; messages beyond it are dropped, and asked for again later.
+     */
+    public void setMaxBuffered(int maxBuffered) {
+
+        this.maxBuffered = maxBuffered;
+
+    }
+
+
+    /**
+     * Set the share of the messages received that is dropped on
+     * purpose, to test recovery.
+     */
+    public void setDropRate(double dropRate) {
+
+        this.dropRate = dropRate;
+
+    }
+
+
+    public long getId() {
+
+        return id;
+
+    }
+
+
+    public long getSentCount() {
+
+        return sentCount.get();
+
+    }
+
+
+    public long getDeliveredCount() {
+
+        return deliveredCount.get();
+
+    }
+
+
+    /**
+     * Return the number of messages reported lost.
+     */
+    public long getLostCount() {
+
+        return lostCount.get();
+
+    }
+
+
+    public long getNackCount() {
+
+        return nackCount.get();
+
+    }
+
+
+    /**
+     * Return the number of NACKs not sent because another receiver's
+     * NACK asked for the same messages first.
+     */
+    public long getSuppressedNackCount() {
+
+        return suppressedNackCount.get();
+
+    }
+
+
+    public long getRetransmitCount() {
+
+        return retransmitCount.get();
+
+    }
+
+
+    /**
+     * Return the number of packets dropped on purpose.
+     */
+    public long getDroppedCount() {
+
+        return droppedCount.get();
+
+    }
+
+
+    /**
+     * Join the group, and start the thread that sends NACKs and
+     * heartbeats.  A receiver delivers a sender's messages from the
+     * first one it hears of: the sender's first message if it was in the
+     * group when the sender started, or else whichever arrives first.
+     *
+     * @param group The group address
+     * @param port The port
+     * @param networkInterface The interface to join on, or null for the
+     *  default
+     *
+     * @exception IOException if the group can't be joined
+     */
+    public synchronized void start(InetAddress group, int port,
+                                   NetworkInterface networkInterface)
+        throws IOException {
+
+        if (node != null) {
+            return;
+        }
+        node = new NioMulticastNode();
+        node.setReceiveBufferSize(4 * 1024 * 1024);
+        membership = node.join(group, port, networkInterface, this);
+        node.start("ReliableMulticast-" + Long.toHexString(id));
+        timer = new Thread(new Runnable() {
+            public void run() {
+                tick();
+            }
+        }, "ReliableMulticast-" + Long.toHexString(id) + "-timer");
+        timer.setDaemon(true);
+        timer.start();
+
+        // Announce this node, so that the nodes already in the group
+        // expect its messages from the first.
+        sendHeartbeat();
+
+    }
+
+
+    /**
+     * Leave the group.
+     */
+    public synchronized void stop() {
+
+        if (node == null) {
+            return;
+        }
+        Thread t = timer;
+        timer = null;
+        t.interrupt();
+        try {
+            t.join(1000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        node.stop();
+        node = null;
+        membership = null;
+        peers.clear();
+
+    }
+
+
+    /**
+     * Send a message to the group, keeping it in the history to be sent
+     * again if a receiver misses it.  May be called by any thread.
+     *
+     * @param message The message, from its position to its limit, which
+     *  is consumed
+     *
+     * @return The message's sequence number
+     *
+     * @exception IOException if the message can't be sent
+     */
+    public long send(ByteBuffer message) throws IOException {
+
+        int length = message.remaining();
+        if (length > MAX_MESSAGE_SIZE) {
+            throw new IllegalArgumentException("A message of " + length
+                + " bytes is over the maximum of " + MAX_MESSAGE_SIZE);
+        }
+        synchronized (history) {
+            long seq = nextSeq++;
+            int slot = (int) (seq % history.length);
+            message.get(history[slot], 0, length);
+            historyLengths[slot] = length;
+            historySeqs[slot] = seq;
+            historyResent[slot] = 0L;
+            transmit(slot);
+            lastSent = System.nanoTime();
+            sentCount.incrementAndGet();
+            return seq;
+        }
+
+    }
+
+
+    /**
+     * Handle a packet from another node.
+     */
+    public void received(NioMulticastNode.Membership from,
+                         SocketAddress source, ByteBuffer payload) {
+
+        if (payload.remaining() < HEADER_LENGTH
+            || payload.getInt() != MAGIC) {
+            return;
+        }
+        byte type = payload.get();
+        long sender = payload.getLong();
+        long seq = payload.getLong();
+        if (sender == id) {
+            return;
+        }
+
+        if (type == NACK && payload.remaining() >= 2) {
+            // The sequence number field holds the id of the sender asked.
+            int ranges = payload.getShort();
+            if (ranges < 0 || payload.remaining() < ranges * 16) {
+                return;
+            }
+            Peer peer = (seq == id) ? null : peers.get(Long.valueOf(seq));
+            boolean suppressed = false;
+            for (int i = 0; i < ranges; i++) {
+                long fromSeq = payload.getLong();
+                long toSeq = payload.getLong();
+                if (seq == id) {
+                    retransmit(fromSeq, toSeq);
+                } else if (peer != null && !suppressed) {
+                    suppressed = peer.suppress(fromSeq, toSeq);
+                }
+            }
+            if (suppressed) {
+                suppressedNackCount.incrementAndGet();
+            }
+        } else if (type == DATA && listener != null) {
+            if (dropRate > 0.0 && random.nextDouble() < dropRate) {
+                droppedCount.incrementAndGet();
+                return;
+            }
+            peer(sender, seq).received(seq, payload);
+        } else if (type == HEARTBEAT && listener != null
+                   && payload.remaining() >= 8) {
+            long oldest = payload.getLong();
+            peer(sender, seq + 1).heartbeat(seq, oldest);
+        }
+
+    }
+
+
+    /**
+     * Send a message from the history.  Called holding the history lock.
+     */
+    private void transmit(int slot) throws IOException {
+
+        sendBuffer.clear();
+        sendBuffer.putInt(MAGIC).put(DATA).putLong(id)
+                  .putLong(historySeqs[slot])
+                  .put(history[slot], 0, historyLengths[slot]);
+        sendBuffer.flip();
+        membership.send(sendBuffer);
+
+    }
+
+
+    /**
+     * Send again the messages a NACK asked for, unless they were just
+     * sent again, and send a heartbeat if some of them are no longer
+     * held.  The range comes off the network, so it is cut down to the
+     * messages the history can hold, and ignored if it can't be one this
+     * node sent.
+     */
+    private void retransmit(long fromSeq, long toSeq) {
+
+        long now = System.nanoTime();
+        boolean forgotten = false;
+        synchronized (history) {
+            if (fromSeq < 1L || fromSeq > toSeq) {
+                return;
+            }
+            long oldest = Math.max(1L, nextSeq - history.length);
+            if (fromSeq < oldest) {
+                forgotten = true;
+                fromSeq = oldest;
+            }
+            toSeq = Math.min(toSeq, nextSeq - 1);
+            for (long seq = fromSeq; seq <= toSeq; seq++) {
+                int slot = (int) (seq % history.length);
+                if (historySeqs[slot] != seq) {
+                    forgotten = true;
+                    continue;
+                }
+                if (now - historyResent[slot] < retransmitHoldoff) {
+                    continue;
+                }
+                historyResent[slot] = now;
+                try {
+                    transmit(slot);
+                    retransmitCount.incrementAndGet();
+                } catch (IOException e) {
+                    // Asked for again after the next NACK delay.
+                }
+            }
+        }
+        if (forgotten) {
+            sendHeartbeat();
+        }
+
+    }
+
+
+    private Peer peer(long sender, long firstSeq) {
+
+        Long key = Long.valueOf(sender);
+        Peer peer = peers.get(key);
+        if (peer == null) {
+            peer = new Peer(sender, firstSeq);
+            peers.put(key, peer);
+        }
+        return peer;
+
+    }
+
+
+    /**
+     * Send heartbeats while idle, and NACKs for missing messages, until
+     * stopped.
+     */
+    private void tick() {
+
+        while (timer == Thread.currentThread()) {
+            long now = System.nanoTime();
+            boolean idle;
+            synchronized (history) {
+                idle = nextSeq > 1L && now - lastSent >= heartbeatInterval;
+            }
+            if (idle) {
+                sendHeartbeat();
+            }
+            Iterator<Peer> it = peers.values().iterator();
+            while (it.hasNext()) {
+                it.next().nack(now);
+            }
+            try {
+                Thread.sleep(TICK / 1000000L);
+            } catch (InterruptedException e) {
+                // Stopped; check the thread again.
+            }
+        }
+
+    }
+
+
+    /**
+     * Send the highest sequence number sent, and the oldest still held.
+     */
+    private void sendHeartbeat() {
+
+        synchronized (history) {
+            long highest = nextSeq - 1;
+            long oldest = Math.max(1L, nextSeq - history.length);
+            synchronized (controlBuffer) {
+                controlBuffer.clear();
+                controlBuffer.putInt(MAGIC).put(HEARTBEAT).putLong(id)
+                             .putLong(highest).putLong(oldest);
+                controlBuffer.flip();
+                try {
+                    membership.send(controlBuffer);
+                } catch (IOException e) {
+                    // The next heartbeat may get out.
+                }
+            }
+            lastSent = System.nanoTime();
+        }
+
+    }
+
+
+    /**
+     * Ask a sender for runs of missing messages.
+     *
+     * @param target The id of the sender
+     * @param ranges The first and last sequence numbers of each run
+     * @param first The first run to ask for
+     * @param count The number of runs to ask for
+     */
+    private void sendNack(long target, long[] ranges, int first,
+                          int count) {
+
+        synchronized (controlBuffer) {
+            controlBuffer.clear();
+            controlBuffer.putInt(MAGIC).put(NACK).putLong(id)
+                         .putLong(target).putShort((short) count);
+            for (int i = first * 2; i < (first + count) * 2; i++) {
+                controlBuffer.putLong(ranges[i]);
+            }
+            controlBuffer.flip();
+            try {
+                membership.send(controlBuffer);
+                nackCount.incrementAndGet();
+            } catch (IOException e) {
+                // Asked for again after the retry time.
+            }
+        }
+
+    }
+
+
+    /**
+     * What this node has received from one sender.  Changed by the
+     * receiving thread, and read by the timer thread, holding its lock.
+     */
+    private final class Peer {
+
+        final long sender;
+
+        /**
+         * The next sequence number to deliver.
+         */
+        long next;
+
+        /**
+         * The highest sequence number known to have been sent.
+         */
+        long highest;
+
+        /**
+         * Messages received ahead of a missing one, by sequence number.
+         */
+        final TreeMap<Long, byte[]> early = new TreeMap<Long, byte[]>();
+
+        /**
+         * When to ask for the missing messages, or 0 if none are missing.
+         */
+        long nackDue = 0L;
+
+        final ByteBuffer view = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+
+        /**
+         * The runs a NACK asks for; used by the timer thread only.
+         */
+        final long[] ranges = new long[MAX_NACK_PACKETS * MAX_RANGES * 2];
+
+
+        Peer(long sender, long firstSeq) {
+
+            this.sender = sender;
+            this.next = firstSeq;
+            this.highest = firstSeq - 1;
+
+        }
+
+
+        synchronized void received(long seq, ByteBuffer message) {
+
+            if (seq < next) {
+                return;
+            }
+            if (seq > highest) {
+                highest = seq;
+            }
+            if (seq > next) {
+                Long key = Long.valueOf(seq);
+                if (!early.containsKey(key) && early.size() < maxBuffered) {
+                    byte[] copy = new byte[message.remaining()];
+                    message.get(copy);
+                    early.put(key, copy);
+                }
+                scheduleNack();
+                return;
+            }
+
+            deliver(seq, message);
+            drain();
+
+        }
+
+
+        synchronized void heartbeat(long sent, long oldest) {
+
+            if (sent > highest) {
+                highest = sent;
+            }
+            if (next < oldest) {
+                // Messages that can no longer be sent again: deliver the
+                // ones held, and report the runs between them lost.
+                while (next < oldest) {
+                    long held = early.isEmpty() ? oldest
+                        : Math.min(early.firstKey().longValue(), oldest);
+                    if (held > next) {
+                        lostCount.addAndGet(held - next);
+                        listener.lost(sender, next, held - 1);
+                        next = held;
+                    } else {
+                        byte[] message = early.remove(early.firstKey());
+                        view.clear();
+                        view.put(message).flip();
+                        deliver(next, view);
+                    }
+                }
+                drain();
+            }
+            if (next <= highest) {
+                scheduleNack();
+            }
+
+        }
+
+
+        /**
+         * Postpone asking for messages another node just asked for.
+         */
+        synchronized boolean suppress(long fromSeq, long toSeq) {
+
+            if (nackDue == 0L || fromSeq > next || toSeq < next) {
+                return false;
+            }
+            nackDue = System.nanoTime() + nackRetry;
+            return true;
+
+        }
+
+
+        /**
+         * Ask for the missing messages, if it is time to.
+         */
+        void nack(long now) {
+
+            int count = 0;
+            synchronized (this) {
+                if (nackDue == 0L || now < nackDue) {
+                    return;
+                }
+                if (next > highest) {
+                    nackDue = 0L;
+                    return;
+                }
+                // The runs between the messages held, and after them.
+                long cursor = next;
+                Iterator<Long> it = early.keySet().iterator();
+                int max = MAX_NACK_PACKETS * MAX_RANGES;
+                while (it.hasNext() && count < max) {
+                    long seq = it.next().longValue();
+                    if (seq > cursor) {
+                        ranges[count * 2] = cursor;
+                        ranges[count * 2 + 1] = seq - 1;
+                        count++;
+                    }
+                    cursor = seq + 1;
+                }
+                if (cursor <= highest && count < max) {
+                    ranges[count * 2] = cursor;
+                    ranges[count * 2 + 1] = highest;
+                    count++;
+                }
+                nackDue = now + nackRetry;
+            }
+            for (int i = 0; i < count; i += MAX_RANGES) {
+                sendNack(sender, ranges, i, Math.min(MAX_RANGES, count - i));
+            }
+
+        }
+
+
+        private void scheduleNack() {
+
+            if (nackDue == 0L) {
+                nackDue = System.nanoTime()
+                    + (long) (random.nextDouble() * nackDelay);
+            }
+
+        }
+
+
+        /**
+         * Deliver the held messages that are next in order.
+         */
+        private void drain() {
+
+            while (!early.isEmpty()
+                   && early.firstKey().longValue() == next) {
+                byte[] message = early.remove(early.firstKey());
+                view.clear();
+                view.put(message).flip();
+                deliver(next, view);
+            }
+            if (next > highest) {
+                nackDue = 0L;
+            } else {
+                scheduleNack();
+            }
+
+        }
+
+
+        private void deliver(long seq, ByteBuffer message) {
+
+            next = seq + 1;
+            deliveredCount.incrementAndGet();
+            listener.delivered(sender, seq, message);
+
+        }
+    }
+}
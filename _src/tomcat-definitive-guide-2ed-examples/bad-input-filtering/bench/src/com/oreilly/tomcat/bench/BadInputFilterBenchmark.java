@@ -0,0 +1,258 @@
+/*
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (c) 2007 O'Reilly Media.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.oreilly.tomcat.bench;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.oreilly.tomcat.filter.BadInputFilter;
+
+
+/**
+ * Measures BadInputFilter against mock requests.
+ *
+ * <br><br>
+ *
+ * Every combination of the following is measured, which takes about
+ * twelve minutes:
+ * <ul>
+ *   <li><code>workload</code>: a small GET form (<code>smallGet</code>),
+ *       a POST of 200 parameters (<code>largePost</code>), or a single
+ *       2 MB value (<code>hugeValue</code>)</li>
+ *   <li><code>input</code>: ordinary text (<code>clean</code>), cross
+ *       site scripting payloads that get escaped (<code>hostile</code>),
+ *       or a control character in the last value that a deny rule
+ *       refuses (<code>denied</code>)</li>
+ *   <li><code>escapes</code>: all of the <code>escape*</code> flags,
+ *       the most work the escapes can do; processAllowsAndDenies()
+ *       measures the filter without them</li>
+ *   <li><code>verdictCacheSize</code>: without and with a verdict
+ *       cache</li>
+ * </ul>
+ *
+ * Other values can be measured with JMH's <code>-p</code> option, for
+ * instance <code>-p escapes=none,quotes,angleBrackets,javaScript</code>
+ * to see what each escape flag costs on its own.
+ *
+ * Run through the Ant build file next to the sources, which adds the GC
+ * profiler so that allocation rates are reported along with throughput.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BadInputFilterBenchmark {
+
+    // --------------------------------------------- Static Variables
+
+    /**
+     * The deny rules from the book's example configuration: NUL, EOT,
+     * backspace, line feed and carriage return.
+     */
+    private static final String DENY = "\\x00,\\x04,\\x08,\\x0a,\\x0d";
+
+    /**
+     * Hostile values, in the order they are used.
+     */
+    private static final String[] PAYLOADS = {
+        "<script>alert('xss')</script>",
+        "\"><img src=x onerror=alert(1)>",
+        "javascript:document.cookie",
+        "x' OR '1'='1",
+        "eval (atob(\"YWxlcnQoMSk=\"))",
+        "<a href=\"javascript:void(0)\">`click`</a>"
+    };
+
+    // ------------------------------------------------------ Params
+
+    @Param({ "smallGet", "largePost", "hugeValue" })
+    public String workload;
+
+    @Param({ "clean", "hostile", "denied" })
+    public String input;
+
+    @Param({ "quotes+angleBrackets+javaScript" })
+    public String escapes;
+
+    @Param({ "0", "1024" })
+    public int verdictCacheSize;
+
+    // ------------------------------------------- Instance Variables
+
+    private BadInputFilter filter;
+    private Mocks.Request request;
+    private HttpServletResponse response;
+    private FilterChain chain;
+
+    // ------------------------------------------------ Setup Methods
+
+    @Setup
+    public void setUp() throws ServletException {
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("deny", DENY);
+        params.put("escapeQuotes",
+                   String.valueOf(escapes.indexOf("quotes") >= 0));
+        params.put("escapeAngleBrackets",
+                   String.valueOf(escapes.indexOf("angleBrackets") >= 0));
+        params.put("escapeJavaScript",
+                   String.valueOf(escapes.indexOf("javaScript") >= 0));
+        params.put("verdictCacheSize", String.valueOf(verdictCacheSize));
+        filter = new BadInputFilter();
+        filter.init(Mocks.filterConfig(Mocks.servletContext(), params));
+
+        request = new Mocks.Request(buildParameters(workload, input));
+        response = Mocks.response();
+        chain = Mocks.chain();
+
+    }
+
+    /**
+     * Stop the filter's audit log thread.
+     */
+    @TearDown
+    public void tearDown() {
+
+        filter.destroy();
+
+    }
+
+    // ---------------------------------------------------- Benchmarks
+
+    /**
+     * The whole filter: the allow and deny rules, then the escapes.
+     */
+    @Benchmark
+    public Object doFilter() throws IOException, ServletException {
+
+        request.resetParameters();
+        filter.doFilter(request.proxy, response, chain);
+        return request.proxy.getParameterMap();
+
+    }
+
+    /**
+     * The allow and deny rules alone.  The parameters are only read, so
+     * they don't need to be reset.
+     */
+    @Benchmark
+    public boolean processAllowsAndDenies()
+        throws IOException, ServletException {
+
+        return filter.processAllowsAndDenies(request.proxy, response);
+
+    }
+
+    /**
+     * The escapes alone, including the cost of resetting the parameters,
+     * which resetParameters() measures on its own.
+     */
+    @Benchmark
+    public Object filterParameters() {
+
+        request.resetParameters();
+        filter.filterParameters(request.proxy);
+        return request.proxy.getParameterMap();
+
+    }
+
+    /**
+     * The cost of copying the parameters, to subtract from doFilter()
+     * and filterParameters().
+     */
+    @Benchmark
+    public Object resetParameters() {
+
+        request.resetParameters();
+        return request.proxy.getParameterMap();
+
+    }
+
+    // ---------------------------------------------- Private Methods
+
+    /**
+     * Build the parameters of a workload.
+     */
+    static Map<String, String[]> buildParameters(String workload,
+                                                 String input) {
+
+        Map<String, String[]> parameters =
+            new LinkedHashMap<String, String[]>();
+        int count;
+        int length;
+        if (workload.equals("smallGet")) {
+            count = 5;
+            length = 16;
+        } else if (workload.equals("largePost")) {
+            count = 200;
+            length = 40;
+        } else if (workload.equals("hugeValue")) {
+            count = 1;
+            length = 2 * 1024 * 1024;
+        } else {
+            throw new IllegalArgumentException("Unknown workload "
+                                               + workload);
+        }
+
+        boolean hostile = input.equals("hostile");
+        for (int i = 0; i < count; i++) {
+            StringBuffer value = new StringBuffer(length + 64);
+            int payload = i;
+            int next = 0;
+            while (value.length() < length) {
+                // Hostile values get a payload about every 4 KB.
+                if (hostile && value.length() >= next) {
+                    value.append(PAYLOADS[payload++ % PAYLOADS.length]);
+                    next = value.length() + 4096;
+                }
+                value.append("lorem ipsum dolor sit amet ");
+            }
+            value.setLength(length);
+            if (input.equals("denied") && i == count - 1) {
+                value.setCharAt(length - 1, '\r');
+            }
+            parameters.put("field" + i, new String[] { value.toString() });
+        }
+        return parameters;
+
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (c) 2007 O'Reilly Media.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.oreilly.tomcat.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Compares two JMH result files in CSV format, and reports every score
+ * that got worse by more than a threshold.  Throughput scores
+ * (<code>ops/s</code> and the like) are better when higher, and costs
+ * per operation, such as the GC profiler's <code>B/op</code>, are better
+ * when lower.  Other scores are listed but never count as regressions.
+ *
+ * <br><br>
+ *
+ * Usage: <code>CompareResults baseline.csv results.csv [percent]</code>
+ * <br>
+ * Exits with status 1 if any score regressed, and 0 otherwise,
+ * including when there is no baseline yet.
+ */
+public class CompareResults {
+
+    public static void main(String[] args) throws IOException {
+
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: CompareResults baseline.csv "
+                               + "results.csv [percent]");
+            System.exit(2);
+        }
+        File baselineFile = new File(args[0]);
+        File resultsFile = new File(args[1]);
+        double threshold = 10.0;
+        if (args.length == 3) {
+            threshold = Double.parseDouble(args[2]);
+        }
+
+        if (!baselineFile.exists()) {
+            System.out.println("No baseline in " + baselineFile
+                + "; run the baseline target to record one.");
+            return;
+        }
+        Map<String, Score> baseline = read(baselineFile);
+        Map<String, Score> results = read(resultsFile);
+
+        int regressions = 0;
+        Iterator<Map.Entry<String, Score>> entries =
+            results.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, Score> entry = entries.next();
+            Score before = baseline.get(entry.getKey());
+            Score after = entry.getValue();
+            if (before == null || !before.unit.equals(after.unit)
+                || before.value == 0.0) {
+                System.out.println("  new    " + entry.getKey() + " "
+                                   + after);
+                continue;
+            }
+            // Allocation rates and the like rise and fall with the
+            // throughput, so they are reported but not judged.
+            if (!after.isRate() && !after.isCost()) {
+                System.out.println("         " + entry.getKey() + " "
+                                   + before + " -> " + after);
+                continue;
+            }
+            // A positive change is always an improvement.
+            double change = (after.value - before.value) / before.value
+                * 100.0;
+            if (!after.isRate()) {
+                change = -change;
+            }
+            String status = "  ok     ";
+            if (change < -threshold) {
+                status = "  WORSE  ";
+                regressions++;
+            }
+            System.out.println(status + entry.getKey() + " " + before
+                + " -> " + after + " (" + format(change) + "%)");
+        }
+
+        if (regressions > 0) {
+            System.out.println(regressions + " score(s) regressed by more "
+                               + "than " + threshold + "%.");
+            System.exit(1);
+        }
+        System.out.println("No regressions beyond " + threshold + "%.");
+
+    }
+
+    // ---------------------------------------------- Private Methods
+
+    /**
+     * Read a JMH CSV result file, keyed by benchmark name and parameter
+     * values.
+     */
+    private static Map<String, Score> read(File file) throws IOException {
+
+        Map<String, Score> scores = new LinkedHashMap<String, Score>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line = reader.readLine();
+            if (line == null) {
+                return scores;
+            }
+            List<String> header = split(line);
+            int benchmark = header.indexOf("Benchmark");
+            int score = header.indexOf("Score");
+            int unit = header.indexOf("Unit");
+            if (benchmark < 0 || score < 0 || unit < 0) {
+                throw new IOException(file + " is not a JMH CSV file");
+            }
+
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().length() == 0) {
+                    continue;
+                }
+                List<String> fields = split(line);
+                StringBuffer key = new StringBuffer(fields.get(benchmark));
+                for (int i = 0; i < header.size(); i++) {
+                    String name = header.get(i);
+                    if (name.startsWith("Param: ") && i < fields.size()) {
+                        key.append(' ').append(name.substring(7))
+                           .append('=').append(fields.get(i));
+                    }
+                }
+                // Some locales write the decimal separator as a comma.
+                String value = fields.get(score).replace(',', '.');
+                scores.put(key.toString(),
+                           new Score(Double.parseDouble(value),
+                                     fields.get(unit)));
+            }
+        } finally {
+            reader.close();
+        }
+        return scores;
+
+    }
+
+    /**
+     * Split a CSV line into its fields, removing any quotes.
+     */
+    private static List<String> split(String line) {
+
+        List<String> fields = new ArrayList<String>();
+        StringBuffer field = new StringBuffer();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                if (quoted && i + 1 < line.length()
+                    && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+
+    }
+
+    private static String format(double percent) {
+
+        String sign = (percent >= 0.0) ? "+" : "";
+        return sign + (Math.round(percent * 10.0) / 10.0);
+
+    }
+
+    // ------------------------------------------------ Inner Classes
+
+    /**
+     * One score from a result file.
+     */
+    private static final class Score {
+
+        final double value;
+        final String unit;
+
+        Score(double value, String unit) {
+            this.value = value;
+            this.unit = unit;
+        }
+
+        /**
+         * Return true if the unit is operations per unit of time, where
+         * higher is better.
+         */
+        boolean isRate() {
+            return unit.startsWith("ops/");
+        }
+
+        /**
+         * Return true if the unit is a cost per operation, where lower
+         * is better.
+         */
+        boolean isCost() {
+            return unit.endsWith("/op");
+        }
+
+        public String toString() {
+            return value + " " + unit;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (c) 2007 O'Reilly Media.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.oreilly.tomcat.bench;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+
+/**
+ * A parameter map with the <code>setLocked</code> method that
+ * BadInputFilter looks for by reflection, like Tomcat's own ParameterMap,
+ * so that the filter takes the same path it takes on Tomcat.
+ */
+public class MockParameterMap extends HashMap<String, String[]> {
+
+    private static final long serialVersionUID = 1L;
+
+    private boolean locked = false;
+
+    /**
+     * Construct a deep copy of the specified parameters, since the
+     * filter escapes the values in place.
+     *
+     * @param parameters The parameters to copy
+     */
+    public MockParameterMap(Map<String, String[]> parameters) {
+
+        super(parameters.size() * 2);
+        Iterator<Map.Entry<String, String[]>> entries =
+            parameters.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, String[]> entry = entries.next();
+            super.put(entry.getKey(), entry.getValue().clone());
+        }
+
+    }
+
+    public boolean isLocked() {
+
+        return locked;
+
+    }
+
+    public void setLocked(boolean locked) {
+
+        this.locked = locked;
+
+    }
+
+    @Override
+    public String[] put(String name, String[] values) {
+
+        if (locked) {
+            throw new IllegalStateException("Parameter map is locked");
+        }
+        return super.put(name, values);
+
+    }
+
+    @Override
+    public String[] remove(Object name) {
+
+        if (locked) {
+            throw new IllegalStateException("Parameter map is locked");
+        }
+        return super.remove(name);
+
+    }
+}
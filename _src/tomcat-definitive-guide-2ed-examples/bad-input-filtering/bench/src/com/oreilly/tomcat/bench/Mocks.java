@@ -0,0 +1,217 @@
+/*
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (c) 2007 O'Reilly Media.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.oreilly.tomcat.bench;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+
+/**
+ * Minimal stand-ins for the servlet container objects BadInputFilter
+ * talks to.  Each is a dynamic proxy that answers the handful of methods
+ * the filter calls, and returns null, zero or false for everything else,
+ * so the benchmarks don't depend on a servlet container.
+ */
+final class Mocks {
+
+    private Mocks() {
+    }
+
+    // ----------------------------------------------- Public Methods
+
+    /**
+     * Return a ServletContext that discards log messages.
+     */
+    static ServletContext servletContext() {
+
+        return (ServletContext) proxy(ServletContext.class,
+                                      new Handler() {
+            Object handle(String method, Object[] args) {
+                if (method.equals("getContextPath")) {
+                    return "/bench";
+                }
+                return UNHANDLED;
+            }
+        });
+
+    }
+
+    /**
+     * Return a FilterConfig with the specified init parameters.
+     *
+     * @param context The ServletContext to return
+     * @param params The init parameters
+     */
+    static FilterConfig filterConfig(final ServletContext context,
+                                     final Map<String, String> params) {
+
+        return (FilterConfig) proxy(FilterConfig.class, new Handler() {
+            Object handle(String method, Object[] args) {
+                if (method.equals("getServletContext")) {
+                    return context;
+                } else if (method.equals("getFilterName")) {
+                    return "BadInputFilter";
+                } else if (method.equals("getInitParameter")) {
+                    return params.get(args[0]);
+                } else if (method.equals("getInitParameterNames")) {
+                    return Collections.enumeration(params.keySet());
+                }
+                return UNHANDLED;
+            }
+        });
+
+    }
+
+    /**
+     * Return a response that ignores errors, and is never committed.
+     */
+    static HttpServletResponse response() {
+
+        return (HttpServletResponse) proxy(HttpServletResponse.class,
+                                           new Handler() {
+            Object handle(String method, Object[] args) {
+                return UNHANDLED;
+            }
+        });
+
+    }
+
+    /**
+     * Return a FilterChain that does nothing.
+     */
+    static FilterChain chain() {
+
+        return new FilterChain() {
+            public void doFilter(ServletRequest request,
+                                 ServletResponse response) {
+            }
+        };
+
+    }
+
+    // ---------------------------------------------- Private Methods
+
+    private static Object proxy(Class<?> type, Handler handler) {
+
+        return Proxy.newProxyInstance(Mocks.class.getClassLoader(),
+                                      new Class[] { type }, handler);
+
+    }
+
+    // ------------------------------------------------ Inner Classes
+
+    /**
+     * An InvocationHandler that returns a default value for the methods
+     * its subclass doesn't handle.
+     */
+    abstract static class Handler implements InvocationHandler {
+
+        static final Object UNHANDLED = new Object();
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+
+            Object result = handle(method.getName(), args);
+            if (result != UNHANDLED) {
+                return result;
+            }
+            if (method.getName().equals("hashCode")) {
+                return Integer.valueOf(System.identityHashCode(proxy));
+            } else if (method.getName().equals("equals")) {
+                return Boolean.valueOf(proxy == args[0]);
+            } else if (method.getName().equals("toString")) {
+                return method.getDeclaringClass().getName() + "Proxy";
+            }
+            Class<?> type = method.getReturnType();
+            if (type == Boolean.TYPE) {
+                return Boolean.FALSE;
+            } else if (type == Integer.TYPE) {
+                return Integer.valueOf(0);
+            } else if (type == Long.TYPE) {
+                return Long.valueOf(0L);
+            }
+            return null;
+
+        }
+
+        abstract Object handle(String method, Object[] args);
+    }
+
+    /**
+     * A request whose parameters are reset from a template before each
+     * benchmark invocation, because BadInputFilter escapes them in place.
+     */
+    static final class Request extends Handler {
+
+        private final Map<String, String[]> template;
+        private MockParameterMap parameters;
+        final HttpServletRequest proxy;
+
+        Request(Map<String, String[]> template) {
+
+            this.template = template;
+            this.proxy = (HttpServletRequest) proxy(HttpServletRequest.class,
+                                                    this);
+            resetParameters();
+
+        }
+
+        /**
+         * Replace the parameters with a fresh copy of the template.
+         */
+        void resetParameters() {
+
+            parameters = new MockParameterMap(template);
+
+        }
+
+        Object handle(String method, Object[] args) {
+
+            if (method.equals("getParameterMap")) {
+                return parameters;
+            } else if (method.equals("getParameterValues")) {
+                return parameters.get(args[0]);
+            } else if (method.equals("getParameter")) {
+                String[] values = parameters.get(args[0]);
+                return (values == null) ? null : values[0];
+            } else if (method.equals("getParameterNames")) {
+                return Collections.enumeration(parameters.keySet());
+            } else if (method.equals("getRemoteAddr")) {
+                return "192.0.2.1";
+            } else if (method.equals("getMethod")) {
+                return "POST";
+            } else if (method.equals("getContentType")) {
+                return "application/x-www-form-urlencoded";
+            }
+            return UNHANDLED;
+
+        }
+    }
+}
@@ -19,16 +19,18 @@
 
 package com.oreilly.tomcat.filter;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.regex.Matcher;
+import java.util.Properties;
 import java.util.regex.Pattern;
-import java.util.regex.PatternSyntaxException;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -39,6 +41,16 @@ import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.oreilly.tomcat.util.AuditLog;
+import com.oreilly.tomcat.util.BadInputMetrics;
+import com.oreilly.tomcat.util.EscapeTable;
+import com.oreilly.tomcat.util.MatchTimeoutException;
+import com.oreilly.tomcat.util.PatternSetMatcher;
+import com.oreilly.tomcat.util.RuleFileWatcher;
+import com.oreilly.tomcat.util.RuleSet;
+import com.oreilly.tomcat.util.StreamInspector;
+import com.oreilly.tomcat.util.VerdictCache;
+
 
 /**
  * Filters out bad user input from HTTP requests to avoid malicious
@@ -47,7 +59,7 @@ import javax.servlet.http.HttpServletResponse;
  *
  * @author Jason Brittain
  */
-public class BadInputFilter implements Filter {
+public class BadInputFilter implements Filter, RuleFileWatcher.Listener {
 
     // --------------------------------------------- Static Variables
 
@@ -57,11 +69,6 @@ public class BadInputFilter implements Filter {
     protected static String info =
         "com.oreilly.tomcat.filter.BadInputFilter/2.0";
 
-    /**
-     * An empty String array to re-use as a type indicator for toArray().
-     */
-    private static final String[] STRING_ARRAY = new String[0];
-
     // ------------------------------------------- Instance Variables
 
     /**
@@ -108,19 +115,70 @@ public class BadInputFilter implements Filter {
         new HashMap<String, String>();
 
     /**
-     * The comma-delimited set of <code>allow</code> expressions.
+     * The flag that determines whether the request is wrapped so that
+     * its parameters are escaped lazily as the web application reads
+     * them, rather than rewriting the container's parameter map up front.
      */
-    protected String allow = null;
+    protected boolean wrapRequest = false;
+
+    /**
+     * The flag that determines whether or not request bodies are run
+     * through the deny patterns while the web application reads them.
+     */
+    protected boolean inspectBody = false;
+
+    /**
+     * The comma-delimited set of <code>contentType=mode</code> pairs that
+     * determines which request bodies are inspected, and how they are
+     * unescaped (text, form, json or xml) before the deny patterns are
+     * applied.  Bodies of any other content type are not inspected.
+     * Text mode runs the deny patterns over the body as it is, line
+     * breaks and binary data included, so multipart/form-data and
+     * text/plain are left out: with control characters such as
+     * <code>\x0a,\x0d</code> denied, every multipart upload and every
+     * body of more than one line would be rejected.
+     */
+    protected String bodyContentTypes =
+        "application/json=json, text/json=json, application/xml=xml, "
+        + "text/xml=xml";
+
+    /**
+     * The inspection modes of <code>bodyContentTypes</code>, by lower
+     * case content type.
+     */
+    protected HashMap<String, Integer> bodyModes =
+        parseBodyContentTypes(bodyContentTypes);
+
+    /**
+     * The number of characters of a request body that are kept in memory
+     * while it is inspected.
+     */
+    protected int bodyWindowSize = 8192;
+
+    /**
+     * The length of the longest deny pattern match that is guaranteed to
+     * be found in a request body, even if it spans two reads.  Must be
+     * at most half of <code>bodyWindowSize</code>.
+     */
+    protected int bodyMaxMatchLength = 1024;
+
+    /**
+     * The maximum time, in milliseconds, that matching the patterns
+     * against a single request property may take, or zero for no limit.
+     */
+    protected long matchTimeout = 0L;
 
     /**
-     * The set of <code>allow</code> regular expressions we will evaluate.
+     * The flag that determines whether a request property that runs out
+     * of match time is treated as bad input (true), or let through
+     * (false).
      */
-    protected Pattern allows[] = new Pattern[0];
+    protected boolean denyOnMatchTimeout = true;
 
     /**
-     * The set of <code>deny</code> regular expressions we will evaluate.
+     * The comma-delimited set of <code>allow</code> expressions.
      */
-    protected Pattern denies[] = new Pattern[0];
+    protected String allow = null;
 
     /**
      * The comma-delimited set of <code>deny</code> expressions.
@@ -136,6 +194,85 @@ public class BadInputFilter implements Filter {
     protected HashMap<String, String> parameterEscapes =
         new HashMap<String, String>();
 
+    /**
+     * The compiled allow, deny and escape rules that requests are checked
+     * against.  Request threads only ever read this reference; whenever
+     * the configuration or the rules file changes, a new RuleSet is
+     * compiled and the reference is replaced, so no regular expression
+     * is compiled, and no lock is taken, while a request is being
+     * filtered.  Request bodies are checked against its deny rules only,
+     * since a body is only ever seen in parts.
+     */
+    protected volatile RuleSet ruleSet = RuleSet.EMPTY;
+
+    /**
+     * The path of the rules file, if any.  Relative paths are resolved
+     * against the web application's root directory.
+     */
+    protected String rulesFile = null;
+
+    /**
+     * The number of seconds between two checks of the rules file.
+     */
+    protected int rulesCheckInterval = 10;
+
+    /**
+     * The watcher of the rules file, or null if there is none.
+     */
+    protected RuleFileWatcher rulesWatcher = null;
+
+    /**
+     * The rules last read from the rules file, which override the rules
+     * configured for this Filter.
+     */
+    protected Properties fileRules = new Properties();
+
+    /**
+     * The statistics of this Filter, or null if collecting them is
+     * switched off.
+     */
+    protected volatile BadInputMetrics metrics = null;
+
+    /**
+     * The length of an audit log window, in seconds, or 0 to log every
+     * parameter that matches a substitution rule as soon as it's found.
+     */
+    protected int auditWindow = 10;
+
+    /**
+     * The number of matches the audit log can hold before they are
+     * written.
+     */
+    protected int auditBufferSize = 4096;
+
+    /**
+     * The largest number of audit records written per window.
+     */
+    protected int auditMaxRecords = 1000;
+
+    /**
+     * The audit log of this Filter once it is initialized, or null if
+     * matches are logged as soon as they're found.
+     */
+    protected volatile AuditLog auditLog = null;
+
+    /**
+     * The number of parameter values whose verdicts and escaped results
+     * are cached, or 0 for no caching.
+     */
+    protected int verdictCacheSize = 0;
+
+    /**
+     * The longest parameter value that is cached.
+     */
+    protected int verdictCacheMaxLength = 128;
+
+    /**
+     * The cache of the current RuleSet's results, or null if there is
+     * none.
+     */
+    protected volatile VerdictCache verdictCache = null;
+
     /**
      * The ServletContext under which this Filter runs.  Used for logging.
      */
@@ -193,12 +330,13 @@ public class BadInputFilter implements Filter {
      *
      * @param escapeQuotes
      */
-    public void setEscapeQuotes(boolean escapeQuotes) {
+    public synchronized void setEscapeQuotes(boolean escapeQuotes) {
 
         this.escapeQuotes = escapeQuotes;
         if (escapeQuotes) {
             // Escape all quotes.
             parameterEscapes.putAll(quotesHashMap);
+            rebuildRuleSet();
         }
 
     }
@@ -221,12 +359,14 @@ public class BadInputFilter implements Filter {
      *
      * @param escapeAngleBrackets
      */
-    public void setEscapeAngleBrackets(boolean escapeAngleBrackets) {
+    public synchronized void setEscapeAngleBrackets(
+        boolean escapeAngleBrackets) {
 
         this.escapeAngleBrackets = escapeAngleBrackets;
         if (escapeAngleBrackets) {
             // Escape all angle brackets.
             parameterEscapes.putAll(angleBracketsHashMap);
+            rebuildRuleSet();
         }
 
     }
@@ -251,354 +391,1354 @@ public class BadInputFilter implements Filter {
      *
      * @param escapeJavaScript
      */
-    public void setEscapeJavaScript(boolean escapeJavaScript) {
+    public synchronized void setEscapeJavaScript(boolean escapeJavaScript) {
 
         this.escapeJavaScript = escapeJavaScript;
         if (escapeJavaScript) {
             // Escape potentially dangerous JavaScript method calls.
             parameterEscapes.putAll(javaScriptHashMap);
+            rebuildRuleSet();
         }
 
     }
     
     /**
-     * Return a comma-delimited set of the <code>allow</code> expressions
-     * configured for this Filter, if any; otherwise, return <code>null</code>.
+     * Gets the flag which determines whether this Filter wraps the
+     * request and escapes each parameter when it is first read, instead
+     * of escaping all of the parameters before the request is performed.
      */
-    public String getAllow() {
+    public boolean getWrapRequest() {
 
-        return (this.allow);
+        return wrapRequest;
 
     }
 
     /**
-     * Set the comma-delimited set of the <code>allow</code> expressions
-     * configured for this Filter, if any.
+     * Sets the flag which determines whether this Filter wraps the
+     * request and escapes each parameter when it is first read, instead
+     * of escaping all of the parameters before the request is performed.
+     * Wrapping doesn't need to unlock Tomcat's parameter map, so it also
+     * works on other containers.
      *
-     * @param allow The new set of allow expressions
+     * @param wrapRequest
      */
-    public void setAllow(String allow) {
+    public void setWrapRequest(boolean wrapRequest) {
 
-        this.allow = allow;
-        allows = precalculate(allow);
-        servletContext.log("BadInputFilter: allow = " + deny);
+        this.wrapRequest = wrapRequest;
 
     }
 
     /**
-     * Return a comma-delimited set of the <code>deny</code> expressions
-     * configured for this Filter, if any; otherwise, return
-     * <code>null</code>.
+     * Gets the flag which determines whether this Filter runs request
+     * bodies through the deny patterns while the web application reads
+     * them.
      */
-    public String getDeny() {
+    public boolean getInspectBody() {
 
-        return (this.deny);
+        return inspectBody;
 
     }
 
     /**
-     * Set the comma-delimited set of the <code>deny</code> expressions
-     * configured for this Filter, if any.
+     * Sets the flag which determines whether this Filter runs request
+     * bodies through the deny patterns while the web application reads
+     * them.
      *
-     * @param deny The new set of deny expressions
+     * @param inspectBody
      */
-    public void setDeny(String deny) {
+    public void setInspectBody(boolean inspectBody) {
 
-        this.deny = deny;
-        denies = precalculate(deny);
-        servletContext.log("BadInputFilter: deny = " + deny);
+        this.inspectBody = inspectBody;
 
     }
 
-    // ----------------------------------------------- Public Methods
-
     /**
-     * {@inheritDoc}
+     * Return the comma-delimited set of <code>contentType=mode</code>
+     * pairs that determines which request bodies are inspected, and how.
      */
-    public void init(FilterConfig filterConfig) throws ServletException {
-
-        servletContext = filterConfig.getServletContext();
-        
-        // Parse the Filter's init parameters.
-        setAllow(filterConfig.getInitParameter("allow"));
-        setDeny(filterConfig.getInitParameter("deny"));
-        String initParam = filterConfig.getInitParameter("escapeQuotes");
-        if (initParam != null) {
-            boolean flag = Boolean.parseBoolean(initParam);
-            setEscapeQuotes(flag);
-        }
-        initParam = filterConfig.getInitParameter("escapeAngleBrackets");
-        if (initParam != null) {
-            boolean flag = Boolean.parseBoolean(initParam);
-            setEscapeAngleBrackets(flag);
-        }
-        initParam = filterConfig.getInitParameter("escapeJavaScript");
-        if (initParam != null) {
-            boolean flag = Boolean.parseBoolean(initParam);
-            setEscapeJavaScript(flag);
-        }
+    public String getBodyContentTypes() {
 
-        servletContext.log(toString() + " initialized.");
+        return bodyContentTypes;
 
     }
-    
+
     /**
-     * Sanitizes request parameters before bad user input gets into the
-     * web application.
-     *
-     * @param request The servlet request to be processed
-     * @param response The servlet response to be created
+     * Set the comma-delimited set of <code>contentType=mode</code> pairs
+     * that determines which request bodies are inspected, and how.  The
+     * mode is one of <code>text</code>, <code>form</code>,
+     * <code>json</code> or <code>xml</code>.  A content type may be a
+     * wildcard such as <code>text/*</code>.  Form bodies
+     * (<code>application/x-www-form-urlencoded</code>) are never
+     * inspected here: the container has parsed them into parameters,
+     * which the allow and deny rules have already checked, by the time
+     * the body could be wrapped.
      *
-     * @exception IOException if an input/output error occurs
-     * @exception ServletException if a servlet error occurs
+     * @param bodyContentTypes The new set of content types
      */
-    public void doFilter(ServletRequest request, ServletResponse response,
-                             FilterChain filterChain)
-        throws IOException, ServletException {
+    public void setBodyContentTypes(String bodyContentTypes) {
 
-        // Skip filtering for non-HTTP requests and responses.
-        if (!(request instanceof HttpServletRequest) ||
-            !(response instanceof HttpServletResponse)) {
-            filterChain.doFilter(request, response);
-            return;
-        }
+        bodyModes = parseBodyContentTypes(bodyContentTypes);
+        this.bodyContentTypes = bodyContentTypes;
 
-        // Only let requests through based on the allows and denies.
-        if (processAllowsAndDenies(request, response)) {
+    }
 
-            // Filter the input for potentially dangerous JavaScript
-            // code so that bad user input is cleaned out of the request
-            // by the time Tomcat begins to perform the request.
-            filterParameters(request);
+    /**
+     * Return the number of characters of a request body that are kept in
+     * memory while it is inspected.
+     */
+    public int getBodyWindowSize() {
+
+        return bodyWindowSize;
 
-            // Perform the request.
-            filterChain.doFilter(request, response);
-        }
-        
     }
 
     /**
-     * Stops requests that contain forbidden string patterns in parameter
-     * names and parameter values.
-     *
-     * @param request The servlet request to be processed
-     * @param response The servlet response to be created
-     *
-     * @exception IOException if an input/output error occurs
-     * @exception ServletException if a servlet error occurs
+     * Set the number of characters of a request body that are kept in
+     * memory while it is inspected.
      *
-     * @return false if the request is forbidden, true otherwise.
+     * @param bodyWindowSize The new window size
      */
-    public boolean processAllowsAndDenies(ServletRequest request,
-                                          ServletResponse response)
-        throws IOException, ServletException {
+    public void setBodyWindowSize(int bodyWindowSize) {
 
-        Map paramMap = request.getParameterMap();
-        // Loop through the list of parameters.
-        Iterator y = paramMap.keySet().iterator();
-        while (y.hasNext()) {
-            String name = (String) y.next();
-            String[] values = request.getParameterValues(name);
+        this.bodyWindowSize = bodyWindowSize;
 
-            // See if the name contains a forbidden pattern.
-            if (!checkAllowsAndDenies(name, response)) {
-                return false;
-            }
+    }
 
-            // Check the parameter's values for the pattern.
-            if (values != null) {
-                for (int i = 0; i < values.length; i++) {
-                    String value = values[i];
-                    if (!checkAllowsAndDenies(value, response)) {
-                        return false;
-                    }
-                }
-            }
-        }
+    /**
+     * Return the length of the longest deny pattern match that is
+     * guaranteed to be found in a request body.
+     */
+    public int getBodyMaxMatchLength() {
+
+        return bodyMaxMatchLength;
 
-        // No parameter caused a deny.  The request should continue.
-        return true;
-        
     }
 
     /**
-     * Perform the filtering that has been configured for this Filter,
-     * matching against the specified request property. If the request
-     * is allowed to proceed, this method returns true.  Otherwise,
-     * this method sends a Forbidden error response page, and returns
-     * false.
-     *
-     * <br><br>
-     *
-     * This method borrows heavily from RequestFilterValve.process().
-     *
-     * @param property The request property on which to filter
-     * @param response The servlet response to be processed
+     * Set the length of the longest deny pattern match that is
+     * guaranteed to be found in a request body.
      *
-     * @exception IOException if an input/output error occurs
-     * @exception ServletException if a servlet error occurs
-     *
-     * @return true if the request is still allowed to proceed.
+     * @param bodyMaxMatchLength The new maximum match length
      */
-    public boolean checkAllowsAndDenies(String property,
-                                        ServletResponse response)
-        throws IOException, ServletException {
+    public void setBodyMaxMatchLength(int bodyMaxMatchLength) {
 
-        // If there were no denies and no allows, process the request.
-        if (denies.length == 0 && allows.length == 0) {
-            return true;
-        }
-        
-        // Check the deny patterns, if any
-        for (int i = 0; i < denies.length; i++) {
-            Matcher m = denies[i].matcher(property);
-            if (m.find()) {
-                if (response instanceof HttpServletResponse) {
-                    HttpServletResponse hres =
-                        (HttpServletResponse) response;
-                    hres.sendError(HttpServletResponse.SC_FORBIDDEN);
-                    return false;
-                }
-            }
-        }
+        this.bodyMaxMatchLength = bodyMaxMatchLength;
 
-        // Check the allow patterns, if any
-        for (int i = 0; i < allows.length; i++) {
-            Matcher m = allows[i].matcher(property);
-            if (m.find()) {
-                return true;
-            }
-        }
+    }
+
+    /**
+     * Return the maximum time, in milliseconds, that matching the
+     * patterns against a single request property may take.
+     */
+    public long getMatchTimeout() {
+
+        return matchTimeout;
 
-        // Allow if denies specified but not allows
-        if (denies.length > 0 && allows.length == 0) {
-            return true;
-        }
-        
-        // Otherwise, deny the request.
-        if (response instanceof HttpServletResponse) {
-            HttpServletResponse hres = (HttpServletResponse) response;
-            hres.sendError(HttpServletResponse.SC_FORBIDDEN);
-        }
-        return false;
-        
     }
 
     /**
-     * Filters all existing parameters for potentially dangerous content,
-     * and escapes any if they are found.
+     * Set the maximum time, in milliseconds, that matching the patterns
+     * against a single request property may take.  This bounds the
+     * damage a pattern that backtracks catastrophically can do to the
+     * request threads.  Zero, the default, means no limit.
      *
-     * @param request The ServletRequest that contains the parameters.
+     * @param matchTimeout The new match timeout
      */
-    @SuppressWarnings("unchecked")
-    public void filterParameters(ServletRequest request) {
+    public void setMatchTimeout(long matchTimeout) {
 
-        Map paramMap = ((HttpServletRequest) request).getParameterMap();
-        // Try to unlock the parameters map so we can modify the parameters.
-        try {
-            if (setLockedMethod == null) {
-                setLockedMethod = paramMap.getClass().getMethod(
-                    "setLocked", new Class[] { Boolean.TYPE });
-            }
-            setLockedMethod.invoke(paramMap, new Object[] { Boolean.FALSE });
-        } catch (Exception e) {
-            // Unable to unlock the parameters, and if this occurs while
-            // running on Tomcat, we cannot filter the parameters.
-            servletContext.log("BadInputFilter: Cannot filter parameters!");
-        }
-        
-        // Loop through each of the substitution patterns.
-        Iterator escapesIterator = parameterEscapes.keySet().iterator();
-        while (escapesIterator.hasNext()) {
-            String patternString = (String) escapesIterator.next();
-            Pattern pattern = Pattern.compile(patternString);
-
-            // Loop through the list of parameters.
-            @SuppressWarnings("unchecked")
-            String[] paramNames =
-                (String[]) paramMap.keySet().toArray(STRING_ARRAY);
-            for (int i = 0; i < paramNames.length; i++) {
-                String name = paramNames[i];
-                String[] values = ((HttpServletRequest)
-                    request).getParameterValues(name);
-                // See if the name contains the pattern.
-                boolean nameMatch;
-                Matcher matcher = pattern.matcher(name);
-                nameMatch = matcher.matches();
-                if (nameMatch) {
-                    // The parameter's name matched a pattern, so we
-                    // fix it by modifying the name, adding the parameter
-                    // back as the new name, and removing the old one.
-                    String newName = matcher.replaceAll(
-                        (String) parameterEscapes.get(patternString));
-                    paramMap.remove(name);
-                    paramMap.put(newName, values);
-                    servletContext.log("Parameter name " + name +
-                        " matched pattern \"" + patternString +
-                        "\".  Remote addr: " +
-                        ((HttpServletRequest) request).getRemoteAddr());
-                }
-                // Check the parameter's values for the pattern.
-                if (values != null) {
-                    for (int j = 0; j < values.length; j++) {
-                        String value = values[j];
-                        boolean valueMatch;
-                        matcher = pattern.matcher(value);
-                        valueMatch = matcher.find();
-                        if (valueMatch) {
-                            // The value matched, so we modify the value
-                            // and then set it back into the array.
-                            String newValue;
-                            newValue = matcher.replaceAll((String)
-                                parameterEscapes.get(patternString));
-                            values[j] = newValue;
-                            servletContext.log("Parameter \"" + name +
-                                "\"'s value \"" + value +
-                                "\" matched pattern \"" +
-                                patternString + "\".  Remote addr: " +
-                                ((HttpServletRequest)
-                                request).getRemoteAddr());
-                        }
-                    }
-                }
-            }
-        }
+        this.matchTimeout = matchTimeout;
+        rebuildRuleSet();
 
-        // Try to lock the parameters map again when we're done.
-        try {
-            if (setLockedMethod == null) {
-                setLockedMethod = paramMap.getClass().getMethod(
-                    "setLocked", new Class[] { Boolean.TYPE });
-            }
-            setLockedMethod.invoke(paramMap, new Object[] { Boolean.TRUE });
-        } catch (Exception e) {
-            // We already logged about this, so do nothing here.
-        }
-        
     }
 
     /**
-     * Return a text representation of this object.
+     * Gets the flag which determines whether this Filter refuses a
+     * request whose property runs out of match time.
      */
-    @Override
-    public String toString() {
+    public boolean getDenyOnMatchTimeout() {
 
-        return "BadInputFilter";
+        return denyOnMatchTimeout;
 
     }
 
     /**
-     * {@inheritDoc}
+     * Sets the flag which determines whether this Filter refuses a
+     * request whose property runs out of match time (true, the default),
+     * or lets the property through unescaped (false).
+     *
+     * @param denyOnMatchTimeout
      */
-    public void destroy() {
-                
+    public void setDenyOnMatchTimeout(boolean denyOnMatchTimeout) {
+
+        this.denyOnMatchTimeout = denyOnMatchTimeout;
+        rebuildRuleSet();
+
     }
-        
-    // -------------------------------------------- Protected Methods
 
     /**
-     * Return an array of regular expression objects initialized from the
-     * specified argument, which must be <code>null</code> or a
+     * Return a comma-delimited set of the <code>allow</code> expressions
+     * configured for this Filter, if any; otherwise, return <code>null</code>.
+     */
+    public String getAllow() {
+
+        return (this.allow);
+
+    }
+
+    /**
+     * Set the comma-delimited set of the <code>allow</code> expressions
+     * configured for this Filter, if any.
+     *
+     * @param allow The new set of allow expressions
+     */
+    public void setAllow(String allow) {
+
+        this.allow = allow;
+        rebuildRuleSet();
+        servletContext.log("BadInputFilter: allow = " + allow);
+
+    }
+
+    /**
+     * Return a comma-delimited set of the <code>deny</code> expressions
+     * configured for this Filter, if any; otherwise, return
+     * <code>null</code>.
+     */
+    public String getDeny() {
+
+        return (this.deny);
+
+    }
+
+    /**
+     * Set the comma-delimited set of the <code>deny</code> expressions
+     * configured for this Filter, if any.
+     *
+     * @param deny The new set of deny expressions
+     */
+    public void setDeny(String deny) {
+
+        this.deny = deny;
+        rebuildRuleSet();
+        servletContext.log("BadInputFilter: deny = " + deny);
+        PatternSetMatcher matcher = ruleSet.getRuleMatcher();
+        servletContext.log("BadInputFilter: "
+            + matcher.getFilteredRuleCount() + " of "
+            + matcher.getRuleCount()
+            + " rules use the combined matcher.");
+
+    }
+
+    /**
+     * Return the path of the rules file, if any; otherwise, return
+     * <code>null</code>.
+     */
+    public String getRulesFile() {
+
+        return rulesFile;
+
+    }
+
+    /**
+     * Set the path of a rules file in <code>java.util.Properties</code>
+     * format, whose <code>allow</code>, <code>deny</code>,
+     * <code>escapeQuotes</code>, <code>escapeAngleBrackets</code>,
+     * <code>escapeJavaScript</code>, <code>matchTimeout</code> and
+     * <code>denyOnMatchTimeout</code> entries override the init
+     * parameters of the same names.  The file is read when the Filter is
+     * initialized, and then checked for changes every
+     * <code>rulesCheckInterval</code> seconds, so that the rules can be
+     * changed without restarting.  Relative paths are resolved against
+     * the web application's root directory.
+     *
+     * @param rulesFile The new rules file path
+     */
+    public void setRulesFile(String rulesFile) {
+
+        this.rulesFile = rulesFile;
+
+    }
+
+    /**
+     * Gets the flag which determines whether this Filter collects
+     * statistics and exposes them as a JMX MBean.
+     */
+    public boolean getMetricsEnabled() {
+
+        return (metrics != null);
+
+    }
+
+    /**
+     * Sets the flag which determines whether this Filter collects
+     * statistics about the requests it inspects, denies and escapes, and
+     * the time it spends on them, and exposes them as a JMX MBean named
+     * <code>com.oreilly.tomcat:type=BadInputFilter,context=...,name=...</code>
+     * once the Filter is initialized.
+     *
+     * @param metricsEnabled
+     */
+    public void setMetricsEnabled(boolean metricsEnabled) {
+
+        if (metricsEnabled == (metrics != null)) {
+            return;
+        }
+        metrics = metricsEnabled ? new BadInputMetrics() : null;
+
+    }
+
+    /**
+     * Return the statistics of this Filter, or null if collecting them is
+     * switched off.
+     */
+    public BadInputMetrics getMetrics() {
+
+        return metrics;
+
+    }
+
+    /**
+     * Return the number of seconds between two checks of the rules file.
+     */
+    public int getRulesCheckInterval() {
+
+        return rulesCheckInterval;
+
+    }
+
+    /**
+     * Set the number of seconds between two checks of the rules file.
+     *
+     * @param rulesCheckInterval The new check interval
+     */
+    public void setRulesCheckInterval(int rulesCheckInterval) {
+
+        this.rulesCheckInterval = rulesCheckInterval;
+
+    }
+
+    /**
+     * Gets the length of an audit log window, in seconds.
+     */
+    public int getAuditWindow() {
+
+        return auditWindow;
+
+    }
+
+    /**
+     * Sets the length of an audit log window, in seconds.  Parameters
+     * that match a substitution rule are counted by rule, parameter name
+     * and remote address, off the request threads, and one line per
+     * combination is logged at the end of each window.  Set to 0 to log
+     * each match on the request thread as soon as it's found.
+     *
+     * @param auditWindow The new window length
+     */
+    public void setAuditWindow(int auditWindow) {
+
+        this.auditWindow = auditWindow;
+
+    }
+
+    /**
+     * Gets the number of matches the audit log can hold before they are
+     * written.
+     */
+    public int getAuditBufferSize() {
+
+        return auditBufferSize;
+
+    }
+
+    /**
+     * Sets the number of matches the audit log can hold before they are
+     * written.  Matches that don't fit are counted, and dropped.
+     *
+     * @param auditBufferSize The new buffer size
+     */
+    public void setAuditBufferSize(int auditBufferSize) {
+
+        this.auditBufferSize = auditBufferSize;
+
+    }
+
+    /**
+     * Gets the largest number of audit records logged per window.
+     */
+    public int getAuditMaxRecords() {
+
+        return auditMaxRecords;
+
+    }
+
+    /**
+     * Sets the largest number of audit records logged per window.  The
+     * matches beyond it are logged as a single count.
+     *
+     * @param auditMaxRecords The new maximum
+     */
+    public void setAuditMaxRecords(int auditMaxRecords) {
+
+        this.auditMaxRecords = auditMaxRecords;
+
+    }
+
+    /**
+     * Return the audit log of this Filter, or null if it isn't
+     * initialized, or matches are logged as soon as they're found.
+     */
+    public AuditLog getAuditLog() {
+
+        return auditLog;
+
+    }
+
+    /**
+     * Gets the number of parameter values whose verdicts and escaped
+     * results are cached.
+     */
+    public int getVerdictCacheSize() {
+
+        return verdictCacheSize;
+
+    }
+
+    /**
+     * Sets the number of parameter values whose verdicts and escaped
+     * results are cached, so that values that repeat from request to
+     * request aren't matched against the rules again.  The cache is
+     * emptied whenever the rules change.  Set to 0 to switch caching off.
+     *
+     * @param verdictCacheSize The new cache size
+     */
+    public synchronized void setVerdictCacheSize(int verdictCacheSize) {
+
+        this.verdictCacheSize = verdictCacheSize;
+        resetVerdictCache();
+
+    }
+
+    /**
+     * Gets the longest parameter value that is cached.
+     */
+    public int getVerdictCacheMaxLength() {
+
+        return verdictCacheMaxLength;
+
+    }
+
+    /**
+     * Sets the longest parameter value that is cached.  Longer values are
+     * always matched against the rules.
+     *
+     * @param verdictCacheMaxLength The new maximum length
+     */
+    public synchronized void setVerdictCacheMaxLength(
+        int verdictCacheMaxLength) {
+
+        this.verdictCacheMaxLength = verdictCacheMaxLength;
+        resetVerdictCache();
+
+    }
+
+    /**
+     * Return the cache of the current rules' results, or null if caching
+     * is switched off.
+     */
+    public VerdictCache getVerdictCache() {
+
+        return verdictCache;
+
+    }
+
+    // ----------------------------------------------- Public Methods
+
+    /**
+     * {@inheritDoc}
+     */
+    public void init(FilterConfig filterConfig) throws ServletException {
+
+        servletContext = filterConfig.getServletContext();
+        
+        // Parse the Filter's init parameters.
+        setAllow(filterConfig.getInitParameter("allow"));
+        setDeny(filterConfig.getInitParameter("deny"));
+        String initParam = filterConfig.getInitParameter("matchTimeout");
+        if (initParam != null) {
+            setMatchTimeout(Long.parseLong(initParam.trim()));
+        }
+        initParam = filterConfig.getInitParameter("denyOnMatchTimeout");
+        if (initParam != null) {
+            boolean flag = Boolean.parseBoolean(initParam);
+            setDenyOnMatchTimeout(flag);
+        }
+        initParam = filterConfig.getInitParameter("escapeQuotes");
+        if (initParam != null) {
+            boolean flag = Boolean.parseBoolean(initParam);
+            setEscapeQuotes(flag);
+        }
+        initParam = filterConfig.getInitParameter("escapeAngleBrackets");
+        if (initParam != null) {
+            boolean flag = Boolean.parseBoolean(initParam);
+            setEscapeAngleBrackets(flag);
+        }
+        initParam = filterConfig.getInitParameter("escapeJavaScript");
+        if (initParam != null) {
+            boolean flag = Boolean.parseBoolean(initParam);
+            setEscapeJavaScript(flag);
+        }
+        initParam = filterConfig.getInitParameter("wrapRequest");
+        if (initParam != null) {
+            boolean flag = Boolean.parseBoolean(initParam);
+            setWrapRequest(flag);
+        }
+        initParam = filterConfig.getInitParameter("inspectBody");
+        if (initParam != null) {
+            boolean flag = Boolean.parseBoolean(initParam);
+            setInspectBody(flag);
+        }
+        initParam = filterConfig.getInitParameter("bodyContentTypes");
+        if (initParam != null) {
+            setBodyContentTypes(initParam);
+        }
+        initParam = filterConfig.getInitParameter("bodyWindowSize");
+        if (initParam != null) {
+            setBodyWindowSize(Integer.parseInt(initParam.trim()));
+        }
+        initParam = filterConfig.getInitParameter("bodyMaxMatchLength");
+        if (initParam != null) {
+            setBodyMaxMatchLength(Integer.parseInt(initParam.trim()));
+        }
+        if (bodyMaxMatchLength < 0
+            || bodyMaxMatchLength * 2 > bodyWindowSize) {
+            throw new ServletException("BadInputFilter: bodyMaxMatchLength"
+                + " must be at most half of bodyWindowSize.");
+        }
+        initParam = filterConfig.getInitParameter("verdictCacheSize");
+        if (initParam != null) {
+            setVerdictCacheSize(Integer.parseInt(initParam.trim()));
+        }
+        initParam = filterConfig.getInitParameter("verdictCacheMaxLength");
+        if (initParam != null) {
+            setVerdictCacheMaxLength(Integer.parseInt(initParam.trim()));
+        }
+        initParam = filterConfig.getInitParameter("rulesCheckInterval");
+        if (initParam != null) {
+            setRulesCheckInterval(Integer.parseInt(initParam.trim()));
+        }
+        initParam = filterConfig.getInitParameter("rulesFile");
+        if (initParam != null) {
+            setRulesFile(initParam);
+        }
+        startRulesWatcher();
+        initParam = filterConfig.getInitParameter("metricsEnabled");
+        if (initParam != null) {
+            boolean flag = Boolean.parseBoolean(initParam);
+            setMetricsEnabled(flag);
+        }
+        registerMetrics(filterConfig.getFilterName());
+        initParam = filterConfig.getInitParameter("auditWindow");
+        if (initParam != null) {
+            setAuditWindow(Integer.parseInt(initParam.trim()));
+        }
+        initParam = filterConfig.getInitParameter("auditBufferSize");
+        if (initParam != null) {
+            setAuditBufferSize(Integer.parseInt(initParam.trim()));
+        }
+        initParam = filterConfig.getInitParameter("auditMaxRecords");
+        if (initParam != null) {
+            setAuditMaxRecords(Integer.parseInt(initParam.trim()));
+        }
+        startAuditLog(filterConfig.getFilterName());
+
+        servletContext.log(toString() + " initialized.");
+
+    }
+    
+    /**
+     * Sanitizes request parameters before bad user input gets into the
+     * web application.
+     *
+     * @param request The servlet request to be processed
+     * @param response The servlet response to be created
+     *
+     * @exception IOException if an input/output error occurs
+     * @exception ServletException if a servlet error occurs
+     */
+    public void doFilter(ServletRequest request, ServletResponse response,
+                             FilterChain filterChain)
+        throws IOException, ServletException {
+
+        // Skip filtering for non-HTTP requests and responses.
+        if (!(request instanceof HttpServletRequest) ||
+            !(response instanceof HttpServletResponse)) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+
+        BadInputMetrics stats = metrics;
+        if (stats != null) {
+            stats.requestInspected();
+        }
+
+        // Only let requests through based on the allows and denies.
+        long start = (stats != null) ? System.nanoTime() : 0L;
+        boolean allowed = processAllowsAndDenies(request, response);
+        if (stats != null) {
+            stats.allowsAndDeniesTime(System.nanoTime() - start);
+        }
+        if (allowed) {
+
+            // Either escape the parameters as the web application reads
+            // them, or filter them all right now.
+            ServletRequest filteredRequest = request;
+            RuleSet rules = ruleSet;
+            EscapeTable table = rules.getEscapeTable();
+            if (wrapRequest && !table.isEmpty()) {
+                filteredRequest = new BadInputRequestWrapper(
+                    (HttpServletRequest) request, this, table);
+            } else {
+                // Filter the input for potentially dangerous JavaScript
+                // code so that bad user input is cleaned out of the
+                // request by the time Tomcat begins to perform the
+                // request.
+                try {
+                    if (stats != null) {
+                        start = System.nanoTime();
+                    }
+                    filterParameters(request);
+                    if (stats != null) {
+                        stats.filterParametersTime(
+                            System.nanoTime() - start);
+                    }
+                } catch (MatchTimeoutException e) {
+                    denyMatchTimeout(e, request, response);
+                    return;
+                }
+            }
+
+            // Run the body through the deny patterns as it is read.  This
+            // comes after the parameter checks on purpose: those have
+            // parsed and checked any form body already, and every other
+            // body is left unread by them.
+            BodyInspectingRequestWrapper bodyRequest = null;
+            int mode = getBodyMode((HttpServletRequest) request);
+            if (mode >= 0) {
+                bodyRequest = new BodyInspectingRequestWrapper(
+                    (HttpServletRequest) filteredRequest,
+                    rules.getDenyMatcher(), mode, bodyWindowSize,
+                    bodyMaxMatchLength);
+                filteredRequest = bodyRequest;
+            }
+
+            // Perform the request.
+            try {
+                filterChain.doFilter(filteredRequest, response);
+            } catch (IOException e) {
+                if (!denyBody(bodyRequest, request, response)) {
+                    throw e;
+                }
+                return;
+            } catch (ServletException e) {
+                if (!denyBody(bodyRequest, request, response)) {
+                    throw e;
+                }
+                return;
+            } catch (MatchTimeoutException e) {
+                // A lazily escaped parameter ran out of match time.
+                denyMatchTimeout(e, request, response);
+                return;
+            }
+            denyBody(bodyRequest, request, response);
+        }
+        
+    }
+
+    /**
+     * Return the body inspection mode for the specified request, or -1 if
+     * its body should not be inspected.  A form body is never inspected,
+     * since its parameters have been checked instead.
+     *
+     * @param request The servlet request to be processed
+     */
+    protected int getBodyMode(HttpServletRequest request) {
+
+        if (!inspectBody || ruleSet.getDenyMatcher().isEmpty()) {
+            return -1;
+        }
+        String contentType = request.getContentType();
+        if (contentType == null) {
+            return -1;
+        }
+        int semicolon = contentType.indexOf(';');
+        if (semicolon >= 0) {
+            contentType = contentType.substring(0, semicolon);
+        }
+        contentType = contentType.trim().toLowerCase();
+        if (contentType.equals("application/x-www-form-urlencoded")) {
+            // Read by getParameterMap() in processAllowsAndDenies().
+            return -1;
+        }
+        HashMap<String, Integer> modes = bodyModes;
+        Integer mode = modes.get(contentType);
+        if (mode == null) {
+            int slash = contentType.indexOf('/');
+            if (slash >= 0) {
+                mode = modes.get(contentType.substring(0, slash) + "/*");
+            }
+        }
+        return (mode == null) ? -1 : mode.intValue();
+
+    }
+
+    /**
+     * Sends a Forbidden error response if a deny pattern matched the
+     * request's body, and the response hasn't been committed yet.
+     *
+     * @param bodyRequest The body inspecting wrapper, or null if the body
+     *  wasn't inspected
+     * @param request The servlet request that was processed
+     * @param response The servlet response that was created
+     *
+     * @exception IOException if an input/output error occurs
+     *
+     * @return true if a deny pattern matched the body.
+     */
+    protected boolean denyBody(BodyInspectingRequestWrapper bodyRequest,
+                               ServletRequest request,
+                               ServletResponse response)
+        throws IOException {
+
+        if (bodyRequest == null || bodyRequest.getDenied() == null) {
+            return false;
+        }
+        servletContext.log("BadInputFilter: request body matched "
+            + bodyRequest.getDenied() + ".  Remote addr: "
+            + request.getRemoteAddr());
+        BadInputMetrics stats = metrics;
+        if (stats != null) {
+            stats.requestDenied(bodyRequest.getDenied());
+        }
+        if (!response.isCommitted()) {
+            response.resetBuffer();
+            ((HttpServletResponse) response).sendError(
+                HttpServletResponse.SC_FORBIDDEN);
+        }
+        return true;
+
+    }
+
+    /**
+     * Logs that a substitution rule ran out of match time, and sends a
+     * Forbidden error response if the response hasn't been committed yet.
+     *
+     * @param e The exception thrown by the substitution rule
+     * @param request The servlet request that was processed
+     * @param response The servlet response that was created
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    protected void denyMatchTimeout(MatchTimeoutException e,
+                                    ServletRequest request,
+                                    ServletResponse response)
+        throws IOException {
+
+        servletContext.log("BadInputFilter: parameter " + e.getMessage()
+            + ".  Remote addr: " + request.getRemoteAddr());
+        BadInputMetrics stats = metrics;
+        if (stats != null) {
+            stats.requestDenied(null);
+        }
+        if (!response.isCommitted()) {
+            response.resetBuffer();
+            ((HttpServletResponse) response).sendError(
+                HttpServletResponse.SC_FORBIDDEN);
+        }
+
+    }
+
+    /**
+     * Stops requests that contain forbidden string patterns in parameter
+     * names and parameter values.
+     *
+     * @param request The servlet request to be processed
+     * @param response The servlet response to be created
+     *
+     * @exception IOException if an input/output error occurs
+     * @exception ServletException if a servlet error occurs
+     *
+     * @return false if the request is forbidden, true otherwise.
+     */
+    @SuppressWarnings("unchecked")
+    public boolean processAllowsAndDenies(ServletRequest request,
+                                          ServletResponse response)
+        throws IOException, ServletException {
+
+        Map<String, String[]> paramMap = request.getParameterMap();
+        // Loop through the list of parameters.
+        Iterator<String> y = paramMap.keySet().iterator();
+        while (y.hasNext()) {
+            String name = y.next();
+            String[] values = request.getParameterValues(name);
+
+            // See if the name contains a forbidden pattern.
+            if (!checkAllowsAndDenies(name, response)) {
+                return false;
+            }
+
+            // Check the parameter's values for the pattern.
+            if (values != null) {
+                for (int i = 0; i < values.length; i++) {
+                    String value = values[i];
+                    if (!checkAllowsAndDenies(value, response)) {
+                        return false;
+                    }
+                }
+            }
+        }
+
+        // No parameter caused a deny.  The request should continue.
+        return true;
+        
+    }
+
+    /**
+     * Perform the filtering that has been configured for this Filter,
+     * matching against the specified request property. If the request
+     * is allowed to proceed, this method returns true.  Otherwise,
+     * this method sends a Forbidden error response page, and returns
+     * false.
+     *
+     * <br><br>
+     *
+     * This method follows the semantics of RequestFilterValve.process().
+     * All of the patterns are evaluated together by a PatternSetMatcher.
+     *
+     * @param property The request property on which to filter
+     * @param response The servlet response to be processed
+     *
+     * @exception IOException if an input/output error occurs
+     * @exception ServletException if a servlet error occurs
+     *
+     * @return true if the request is still allowed to proceed.
+     */
+    public boolean checkAllowsAndDenies(String property,
+                                        ServletResponse response)
+        throws IOException, ServletException {
+
+        // Evaluate all of the deny and allow patterns in one pass.
+        PatternSetMatcher.Verdict verdict = evaluate(property);
+        if (verdict.isAllowed()) {
+            return true;
+        }
+
+        // Otherwise, deny the request.
+        if (verdict.getRule() != null) {
+            servletContext.log("BadInputFilter: request property matched "
+                + verdict + ".");
+        }
+        BadInputMetrics stats = metrics;
+        if (stats != null) {
+            stats.requestDenied(verdict);
+        }
+        if (response instanceof HttpServletResponse) {
+            HttpServletResponse hres = (HttpServletResponse) response;
+            hres.sendError(HttpServletResponse.SC_FORBIDDEN);
+        }
+        return false;
+        
+    }
+
+    /**
+     * Filters all existing parameters for potentially dangerous content,
+     * and escapes any if they are found.
+     *
+     * @param request The ServletRequest that contains the parameters.
+     */
+    @SuppressWarnings("unchecked")
+    public void filterParameters(ServletRequest request) {
+
+        EscapeTable table = ruleSet.getEscapeTable();
+        if (table.isEmpty()) {
+            return;
+        }
+
+        Map<String, String[]> paramMap =
+            ((HttpServletRequest) request).getParameterMap();
+        // Try to unlock the parameters map so we can modify the parameters.
+        try {
+            if (setLockedMethod == null) {
+                setLockedMethod = paramMap.getClass().getMethod(
+                    "setLocked", new Class<?>[] { Boolean.TYPE });
+            }
+            setLockedMethod.invoke(paramMap, new Object[] { Boolean.FALSE });
+        } catch (Exception e) {
+            // Unable to unlock the parameters, and if this occurs while
+            // running on Tomcat, we cannot filter the parameters.
+            servletContext.log("BadInputFilter: Cannot filter parameters!");
+        }
+
+        try {
+            escapeParameters(table, request, paramMap);
+        } finally {
+            // Try to lock the parameters map again when we're done, even
+            // if a pattern ran out of match time.
+            try {
+                if (setLockedMethod == null) {
+                    setLockedMethod = paramMap.getClass().getMethod(
+                        "setLocked", new Class<?>[] { Boolean.TYPE });
+                }
+                setLockedMethod.invoke(paramMap,
+                                       new Object[] { Boolean.TRUE });
+            } catch (Exception e) {
+                // We already logged about this, so do nothing here.
+            }
+        }
+
+    }
+
+    /**
+     * Applies all of the substitution rules to the names and values of
+     * the unlocked parameters map.
+     *
+     * @param table The substitution rules to apply
+     * @param request The ServletRequest that contains the parameters.
+     * @param paramMap The request's parameters map
+     */
+    protected void escapeParameters(EscapeTable table,
+                                    ServletRequest request,
+                                    Map<String, String[]> paramMap) {
+
+        // Loop through the list of parameters once, applying all of the
+        // substitution rules to each name and value.  Renamed parameters
+        // are collected as (old name, new name) pairs and moved afterwards
+        // so that the map isn't modified while we iterate over it.
+        ArrayList<String> renames = null;
+        Iterator<Map.Entry<String, String[]>> entries =
+            paramMap.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, String[]> entry = entries.next();
+            String name = entry.getKey();
+            String[] values = entry.getValue();
+
+            // See if the name matches any of the patterns.
+            String newName = escapeName(table, request, name);
+            if (newName != name) {
+                if (renames == null) {
+                    renames = new ArrayList<String>();
+                }
+                renames.add(name);
+                renames.add(newName);
+            }
+
+            // Check the parameter's values for the patterns.
+            if (values != null) {
+                for (int j = 0; j < values.length; j++) {
+                    values[j] = escapeValue(table, request, name, values[j]);
+                }
+            }
+        }
+
+        // The parameters whose names matched a pattern are fixed by
+        // adding the parameter back as the new name, and removing the
+        // old one.
+        if (renames != null) {
+            for (int i = 0; i < renames.size(); i += 2) {
+                String[] values = paramMap.remove(renames.get(i));
+                paramMap.put(renames.get(i + 1), values);
+            }
+        }
+
+    }
+
+    /**
+     * Applies all of the substitution rules to a parameter name.  A rule
+     * only changes a name that it matches entirely.
+     *
+     * @param table The substitution rules to apply
+     * @param request The ServletRequest that contains the parameter.
+     * @param name The name of the parameter
+     *
+     * @return the escaped name, or the same String instance if no rule
+     *  matched it.
+     */
+    protected String escapeName(EscapeTable table, ServletRequest request,
+                                String name) {
+
+        if (!table.mayMatch(name)) {
+            return name;
+        }
+        String newName = name;
+        for (int r = 0; r < table.getRuleCount(); r++) {
+            EscapeTable.Rule rule = table.getRule(r);
+            if (rule.matches(newName)) {
+                newName = rule.apply(newName);
+                audit(AuditLog.NAME, rule, name, name,
+                      request.getRemoteAddr());
+            }
+        }
+        if (newName != name) {
+            countEscape();
+        }
+        return newName;
+
+    }
+
+    /**
+     * Applies all of the substitution rules to a single parameter value.
+     * Values without any of the rules' trigger characters are returned
+     * as they are, without being copied.
+     *
+     * @param table The substitution rules to apply
+     * @param request The ServletRequest that contains the parameter.
+     * @param name The name of the parameter
+     * @param value The value to filter
+     *
+     * @return the escaped value, or the same String instance if no rule
+     *  matched it.
+     */
+    protected String escapeValue(EscapeTable table, ServletRequest request,
+                                 String name, String value) {
+
+        if (value == null || !table.mayMatch(value)) {
+            return value;
+        }
+        VerdictCache cache = verdictCache;
+        VerdictCache.Escape escape =
+            (cache != null && cache.getRuleSet().getEscapeTable() == table)
+            ? cache.escape(value) : VerdictCache.escape(table, value);
+        if (!escape.isChanged()) {
+            return value;
+        }
+        String remoteAddr = request.getRemoteAddr();
+        for (int r = 0; r < escape.getMatchedRuleCount(); r++) {
+            audit(AuditLog.VALUE, escape.getMatchedRule(r), name, value,
+                  remoteAddr);
+        }
+        countEscape();
+        return escape.getValue();
+
+    }
+
+    /**
+     * Return a text representation of this object.
+     */
+    @Override
+    public String toString() {
+
+        return "BadInputFilter";
+
+    }
+
+    /**
+     * Puts the rules of a changed rules file into effect, by compiling a
+     * new RuleSet and replacing the current one with it.  If the new
+     * rules are invalid, the current ones stay in effect.
+     *
+     * @param rules The contents of the rules file
+     *
+     * @exception IllegalArgumentException if the rules are invalid
+     */
+    public void rulesChanged(Properties rules) {
+
+        synchronized (this) {
+            Properties previous = fileRules;
+            fileRules = rules;
+            try {
+                rebuildRuleSet();
+            } catch (IllegalArgumentException e) {
+                fileRules = previous;
+                throw e;
+            }
+        }
+        servletContext.log("BadInputFilter: loaded " + ruleSet + " from "
+            + rulesFile + ".");
+
+    }
+
+    /**
+     * Logs that the rules file could not be read or was invalid.
+     *
+     * @param e The exception
+     */
+    public void rulesFailed(Exception e) {
+
+        servletContext.log("BadInputFilter: cannot load rules file "
+            + rulesFile + ", keeping the current rules.", e);
+
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void destroy() {
+
+        if (rulesWatcher != null) {
+            rulesWatcher.stop();
+            rulesWatcher = null;
+        }
+        BadInputMetrics stats = metrics;
+        if (stats != null) {
+            try {
+                stats.unregister();
+            } catch (JMException e) {
+                servletContext.log(
+                    "BadInputFilter: cannot unregister metrics MBean.", e);
+            }
+        }
+        AuditLog audit = auditLog;
+        auditLog = null;
+        if (audit != null) {
+            audit.stop();
+        }
+
+    }
+        
+    // -------------------------------------------- Protected Methods
+
+    /**
+     * Compiles a new RuleSet from this Filter's configuration, overridden
+     * by the rules file's entries, and puts it into effect.  Requests
+     * that are being filtered keep using the RuleSet they started with.
+     *
+     * @exception IllegalArgumentException if one of the expressions has
+     *  invalid syntax
+     */
+    protected synchronized void rebuildRuleSet() {
+
+        Properties rules = fileRules;
+        HashMap<String, String> escapes =
+            new HashMap<String, String>(parameterEscapes);
+        overrideEscapes(escapes, rules.getProperty("escapeQuotes"),
+                        quotesHashMap);
+        overrideEscapes(escapes, rules.getProperty("escapeAngleBrackets"),
+                        angleBracketsHashMap);
+        overrideEscapes(escapes, rules.getProperty("escapeJavaScript"),
+                        javaScriptHashMap);
+        String timeout = rules.getProperty("matchTimeout");
+        String denyOnTimeout = rules.getProperty("denyOnMatchTimeout");
+
+        ruleSet = new RuleSet(rules.getProperty("allow", allow),
+            rules.getProperty("deny", deny), escapes,
+            (timeout == null) ? matchTimeout : Long.parseLong(timeout.trim()),
+            (denyOnTimeout == null) ? denyOnMatchTimeout
+                : Boolean.parseBoolean(denyOnTimeout.trim()));
+
+        resetVerdictCache();
+
+    }
+
+    /**
+     * Replaces the verdict cache with an empty one for the current
+     * RuleSet, or removes it if caching is switched off.
+     */
+    protected synchronized void resetVerdictCache() {
+
+        verdictCache = (verdictCacheSize > 0)
+            ? new VerdictCache(ruleSet, verdictCacheSize,
+                               verdictCacheMaxLength)
+            : null;
+
+    }
+
+    /**
+     * Returns the verdict of the allow and deny rules on a request
+     * property, from the verdict cache if it holds one.
+     *
+     * @param property The request property to evaluate
+     */
+    protected PatternSetMatcher.Verdict evaluate(String property) {
+
+        RuleSet rules = ruleSet;
+        VerdictCache cache = verdictCache;
+        if (cache != null && cache.getRuleSet() == rules) {
+            return cache.evaluate(property);
+        }
+        return rules.getRuleMatcher().evaluate(property);
+
+    }
+
+    /**
+     * Counts one escaped parameter name or value, if statistics are being
+     * collected.
+     */
+    protected void countEscape() {
+
+        BadInputMetrics stats = metrics;
+        if (stats != null) {
+            stats.parameterEscaped();
+        }
+
+    }
+
+    /**
+     * Registers the statistics MBean under a name made of the web
+     * application's context path and this Filter's name, if statistics
+     * are being collected.  Problems are logged, and don't stop the
+     * Filter from working.
+     *
+     * @param filterName The name of this Filter
+     */
+    protected void registerMetrics(String filterName) {
+
+        BadInputMetrics stats = metrics;
+        if (stats == null) {
+            return;
+        }
+        try {
+            stats.register(new ObjectName(
+                "com.oreilly.tomcat:type=BadInputFilter,context="
+                + ObjectName.quote(servletContext.getContextPath())
+                + ",name=" + ObjectName.quote(filterName)));
+        } catch (JMException e) {
+            servletContext.log(
+                "BadInputFilter: cannot register metrics MBean.", e);
+        }
+
+    }
+
+    /**
+     * Starts the audit log, unless matches are to be logged as soon as
+     * they're found.
+     *
+     * @param filterName The name of this Filter
+     */
+    protected void startAuditLog(String filterName) {
+
+        if (auditWindow <= 0) {
+            return;
+        }
+        AuditLog audit = new AuditLog(new AuditLog.Sink() {
+            public void write(String record) {
+                servletContext.log("BadInputFilter: " + record);
+            }
+        }, auditWindow * 1000L, auditBufferSize, auditMaxRecords);
+        audit.start(servletContext.getContextPath() + "/" + filterName);
+        auditLog = audit;
+
+    }
+
+    /**
+     * Records that a parameter name or value matched a substitution
+     * rule, in the audit log if it is running, or else directly in the
+     * ServletContext's log.
+     *
+     * @param kind AuditLog.NAME or AuditLog.VALUE
+     * @param rule The rule that matched
+     * @param name The name of the parameter
+     * @param value The name or value that matched
+     * @param remoteAddr The address of the client
+     */
+    protected void audit(int kind, EscapeTable.Rule rule, String name,
+                         String value, String remoteAddr) {
+
+        AuditLog audit = auditLog;
+        if (audit != null) {
+            audit.publish(kind, rule.getPattern(), name, value, remoteAddr);
+        } else if (kind == AuditLog.NAME) {
+            servletContext.log("Parameter name " + name
+                + " matched pattern \"" + rule.getPattern()
+                + "\".  Remote addr: " + remoteAddr);
+        } else {
+            servletContext.log("Parameter \"" + name + "\"'s value \""
+                + value + "\" matched pattern \"" + rule.getPattern()
+                + "\".  Remote addr: " + remoteAddr);
+        }
+
+    }
+
+    /**
+     * Reads the rules file, if one is configured, and starts a daemon
+     * thread that checks it for changes.
+     */
+    protected void startRulesWatcher() {
+
+        if (rulesFile == null) {
+            return;
+        }
+        File file = new File(rulesFile);
+        if (!file.isAbsolute()) {
+            String path = servletContext.getRealPath(
+                rulesFile.startsWith("/") ? rulesFile : "/" + rulesFile);
+            if (path != null) {
+                file = new File(path);
+            }
+        }
+        rulesWatcher = new RuleFileWatcher(file, this);
+        try {
+            rulesWatcher.check();
+        } catch (Exception e) {
+            rulesFailed(e);
+        }
+        if (rulesCheckInterval > 0) {
+            rulesWatcher.start(rulesCheckInterval * 1000L);
+        }
+
+    }
+
+    /**
+     * Adds the specified escapes to, or removes them from, the map of
+     * escapes according to a flag from the rules file.
+     *
+     * @param escapes The escapes to modify
+     * @param flag The flag's value, or null if the file doesn't set it
+     * @param flagEscapes The escapes that the flag controls
+     */
+    protected static void overrideEscapes(
+        HashMap<String, String> escapes, String flag,
+        HashMap<String, String> flagEscapes) {
+
+        if (flag == null) {
+            return;
+        }
+        if (Boolean.parseBoolean(flag.trim())) {
+            escapes.putAll(flagEscapes);
+        } else {
+            escapes.keySet().removeAll(flagEscapes.keySet());
+        }
+
+    }
+
+    /**
+     * Return the body inspection modes, by lower case content type,
+     * parsed from the specified comma-delimited list of
+     * <code>contentType=mode</code> pairs.
+     *
+     * @param list The comma-separated list of pairs
+     *
+     * @exception IllegalArgumentException if a pair is malformed or names
+     *  an unknown mode
+     */
+    protected static HashMap<String, Integer> parseBodyContentTypes(
+        String list) {
+
+        HashMap<String, Integer> modes = new HashMap<String, Integer>();
+        if (list == null) {
+            return modes;
+        }
+        String[] pairs = list.split(",");
+        for (int i = 0; i < pairs.length; i++) {
+            String pair = pairs[i].trim();
+            if (pair.length() == 0) {
+                continue;
+            }
+            int equals = pair.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException(
+                    "Body content type without a mode: " + pair);
+            }
+            modes.put(pair.substring(0, equals).trim().toLowerCase(),
+                Integer.valueOf(StreamInspector.parseMode(
+                    pair.substring(equals + 1))));
+        }
+        return modes;
+
+    }
+
+    /**
+     * Return an array of regular expression objects initialized from the
+     * specified argument, which must be <code>null</code> or a
      * comma-delimited list of regular expression patterns.
      *
      * @param list The comma-separated list of patterns
@@ -608,32 +1748,7 @@ public class BadInputFilter implements Filter {
      */
     protected Pattern[] precalculate(String list) {
 
-        if (list == null)
-            return (new Pattern[0]);
-        list = list.trim();
-        if (list.length() < 1)
-            return (new Pattern[0]);
-        list += ",";
-
-        ArrayList<Pattern> reList = new ArrayList<Pattern>();
-        while (list.length() > 0) {
-            int comma = list.indexOf(',');
-            if (comma < 0)
-                break;
-            String pattern = list.substring(0, comma).trim();
-            try {
-                reList.add(Pattern.compile(pattern));
-            } catch (PatternSyntaxException e) {
-                IllegalArgumentException iae = new IllegalArgumentException(
-                    "Syntax error in request filter pattern" + pattern);
-                iae.initCause(e);
-                throw iae;
-            }
-            list = list.substring(comma + 1);
-        }
-
-        Pattern reArray[] = new Pattern[reList.size()];
-        return ((Pattern[]) reList.toArray(reArray));
+        return RuleSet.compile(list);
 
     }
 }
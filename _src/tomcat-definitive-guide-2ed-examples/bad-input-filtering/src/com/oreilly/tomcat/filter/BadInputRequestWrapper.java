@@ -0,0 +1,235 @@
+/*
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (c) 2007 O'Reilly Media.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.oreilly.tomcat.filter;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+import com.oreilly.tomcat.util.EscapeTable;
+
+
+/**
+ * Wraps a request so that its parameters are escaped by a BadInputFilter
+ * lazily, when the web application reads them, instead of rewriting the
+ * container's parameter map before the request is performed.  Nothing
+ * is done for parameters the web application never reads, and no
+ * container specific method (such as Tomcat's ParameterMap.setLocked())
+ * is needed.
+ *
+ * <br><br>
+ *
+ * Each parameter is escaped at most once per request; the result is
+ * remembered for later calls.  The wrapped request is never modified.
+ */
+public class BadInputRequestWrapper extends HttpServletRequestWrapper {
+
+    // ------------------------------------------- Instance Variables
+
+    /**
+     * The Filter that does the escaping and logging.
+     */
+    protected BadInputFilter filter;
+
+    /**
+     * The escape rules in effect when this request arrived.
+     */
+    protected EscapeTable table;
+
+    /**
+     * The escaped values of the parameters that have been read so far,
+     * by name.  Created on first use.
+     */
+    protected HashMap<String, String[]> escapedValues;
+
+    /**
+     * The fully escaped parameter map, once something has asked for it.
+     */
+    protected Map<String, String[]> escapedMap;
+
+    /**
+     * Whether none of the parameter names needs escaping.  Null until
+     * the names have been checked.
+     */
+    protected Boolean namesClean;
+
+    // ------------------------------------------------- Constructors
+
+    /**
+     * Construct a new wrapper around the specified request.
+     *
+     * @param request The request to wrap
+     * @param filter The BadInputFilter that escapes the parameters
+     * @param table The escape rules to apply
+     */
+    public BadInputRequestWrapper(HttpServletRequest request,
+                                  BadInputFilter filter, EscapeTable table) {
+
+        super(request);
+        this.filter = filter;
+        this.table = table;
+
+    }
+
+    // ----------------------------------------------- Public Methods
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getParameter(String name) {
+
+        String[] values = getParameterValues(name);
+        if (values == null || values.length == 0) {
+            return null;
+        }
+        return values[0];
+
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String[] getParameterValues(String name) {
+
+        if (escapedMap == null && !namesClean()) {
+            // Some name is renamed by escaping, so only the whole map
+            // can tell which parameter this name refers to now.
+            getParameterMap();
+        }
+        if (escapedMap != null) {
+            return escapedMap.get(name);
+        }
+
+        if (escapedValues == null) {
+            escapedValues = new HashMap<String, String[]>();
+        } else if (escapedValues.containsKey(name)) {
+            return escapedValues.get(name);
+        }
+        String[] values = escapeValues(name, super.getParameterValues(name));
+        escapedValues.put(name, values);
+        return values;
+
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public Enumeration<String> getParameterNames() {
+
+        if (escapedMap == null && namesClean()) {
+            return (Enumeration<String>) super.getParameterNames();
+        }
+        getParameterMap();
+        return Collections.enumeration(escapedMap.keySet());
+
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public Map<String, String[]> getParameterMap() {
+
+        if (escapedMap != null) {
+            return escapedMap;
+        }
+
+        Map<String, String[]> original =
+            (Map<String, String[]>) super.getParameterMap();
+        HashMap<String, String[]> map =
+            new HashMap<String, String[]>(original.size() * 2);
+        Iterator<Map.Entry<String, String[]>> entries =
+            original.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, String[]> entry = entries.next();
+            String name = entry.getKey();
+            String[] values;
+            if (escapedValues != null && escapedValues.containsKey(name)) {
+                values = escapedValues.get(name);
+            } else {
+                values = escapeValues(name, entry.getValue());
+            }
+            map.put(filter.escapeName(table, this, name), values);
+        }
+        escapedMap = Collections.unmodifiableMap(map);
+        escapedValues = null;
+        return escapedMap;
+
+    }
+
+    // -------------------------------------------- Protected Methods
+
+    /**
+     * Return the escaped form of the specified values, which is the same
+     * array if none of the values needed escaping, or a copy otherwise.
+     * The wrapped request's array is never modified.
+     *
+     * @param name The name of the parameter
+     * @param values The values of the parameter, may be null
+     */
+    protected String[] escapeValues(String name, String[] values) {
+
+        if (values == null) {
+            return null;
+        }
+        String[] escaped = values;
+        for (int i = 0; i < values.length; i++) {
+            String value = filter.escapeValue(table, this, name, values[i]);
+            if (value != values[i]) {
+                if (escaped == values) {
+                    escaped = values.clone();
+                }
+                escaped[i] = value;
+            }
+        }
+        return escaped;
+
+    }
+
+    /**
+     * Return true if no parameter name can be changed by escaping, in
+     * which case parameters may be looked up and escaped one by one.
+     */
+    @SuppressWarnings("unchecked")
+    protected boolean namesClean() {
+
+        if (namesClean == null) {
+            boolean clean = true;
+            Enumeration<String> names =
+                (Enumeration<String>) super.getParameterNames();
+            while (clean && names.hasMoreElements()) {
+                clean = !table.mayMatch(names.nextElement());
+            }
+            namesClean = Boolean.valueOf(clean);
+        }
+        return namesClean.booleanValue();
+
+    }
+}
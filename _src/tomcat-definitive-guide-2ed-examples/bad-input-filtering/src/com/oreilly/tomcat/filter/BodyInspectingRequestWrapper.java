@@ -0,0 +1,234 @@
+/*
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (c) 2007 O'Reilly Media.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.oreilly.tomcat.filter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+import com.oreilly.tomcat.util.BadInputException;
+import com.oreilly.tomcat.util.PatternSetMatcher;
+import com.oreilly.tomcat.util.StreamInspector;
+
+
+/**
+ * Wraps a request so that its body is run through the deny rules of a
+ * BadInputFilter as the web application reads it, through either
+ * getInputStream() or getReader().  The body is never buffered as a
+ * whole: a StreamInspector looks at it through a fixed size window.
+ *
+ * <br><br>
+ *
+ * As soon as a deny rule matches, the read that brought in the matching
+ * data throws a BadInputException, and so does every read after it.
+ */
+public class BodyInspectingRequestWrapper extends HttpServletRequestWrapper {
+
+    // ------------------------------------------- Instance Variables
+
+    /**
+     * The inspector for this request's body.
+     */
+    protected StreamInspector inspector;
+
+    /**
+     * The inspecting stream, once the web application has asked for it.
+     */
+    protected ServletInputStream inputStream;
+
+    /**
+     * The reader on top of the inspecting stream, once the web
+     * application has asked for it.
+     */
+    protected BufferedReader reader;
+
+    // ------------------------------------------------- Constructors
+
+    /**
+     * Construct a new wrapper around the specified request.
+     *
+     * @param request The request to wrap
+     * @param matcher The deny rules to run over the body
+     * @param mode How to unescape the body, one of the StreamInspector
+     *  modes
+     * @param windowSize The size of the inspection window, in characters
+     * @param maxMatchLength The length of the longest match that must be
+     *  found, in characters
+     */
+    public BodyInspectingRequestWrapper(HttpServletRequest request,
+                                        PatternSetMatcher matcher, int mode,
+                                        int windowSize, int maxMatchLength) {
+
+        super(request);
+        inspector = new StreamInspector(matcher, mode,
+            getBodyCharset(request, mode), windowSize, maxMatchLength);
+
+    }
+
+    // --------------------------------------------------- Properties
+
+    /**
+     * Return the verdict of the deny rule that matched the body, or null
+     * if none has matched in what has been read so far.
+     */
+    public PatternSetMatcher.Verdict getDenied() {
+
+        return inspector.getDenied();
+
+    }
+
+    // ----------------------------------------------- Public Methods
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ServletInputStream getInputStream() throws IOException {
+
+        if (inputStream == null) {
+            inputStream = new InspectingInputStream(
+                super.getInputStream(), inspector);
+        }
+        return inputStream;
+
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public BufferedReader getReader() throws IOException {
+
+        if (reader == null) {
+            String encoding = getCharacterEncoding();
+            if (encoding == null) {
+                encoding = "ISO-8859-1";
+            }
+            reader = new BufferedReader(
+                new InputStreamReader(getInputStream(), encoding));
+        }
+        return reader;
+
+    }
+
+    // -------------------------------------------- Protected Methods
+
+    /**
+     * Return the character encoding of the specified request's body,
+     * falling back to the default for the inspection mode.
+     */
+    protected static Charset getBodyCharset(HttpServletRequest request,
+                                            int mode) {
+
+        String encoding = request.getCharacterEncoding();
+        if (encoding == null) {
+            encoding = (mode == StreamInspector.JSON)
+                ? "UTF-8" : "ISO-8859-1";
+        }
+        try {
+            return Charset.forName(encoding);
+        } catch (IllegalArgumentException e) {
+            return Charset.forName("ISO-8859-1");
+        }
+
+    }
+
+    // ------------------------------------------------ Inner Classes
+
+    /**
+     * A ServletInputStream that feeds everything read through it to a
+     * StreamInspector.
+     */
+    protected static class InspectingInputStream extends ServletInputStream {
+
+        private final ServletInputStream stream;
+        private final StreamInspector inspector;
+
+        public InspectingInputStream(ServletInputStream stream,
+                                     StreamInspector inspector) {
+
+            this.stream = stream;
+            this.inspector = inspector;
+
+        }
+
+        @Override
+        public int read() throws IOException {
+
+            check();
+            int b = stream.read();
+            if (b < 0) {
+                check(inspector.finish());
+            } else {
+                check(inspector.update(b));
+            }
+            return b;
+
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+
+            check();
+            int n = stream.read(b, off, len);
+            if (n < 0) {
+                check(inspector.finish());
+            } else {
+                check(inspector.update(b, off, n));
+            }
+            return n;
+
+        }
+
+        @Override
+        public int available() throws IOException {
+
+            return stream.available();
+
+        }
+
+        @Override
+        public void close() throws IOException {
+
+            stream.close();
+
+        }
+
+        private void check() throws BadInputException {
+
+            check(inspector.getDenied());
+
+        }
+
+        private void check(PatternSetMatcher.Verdict denied)
+            throws BadInputException {
+
+            if (denied != null) {
+                throw new BadInputException(denied);
+            }
+
+        }
+    }
+}
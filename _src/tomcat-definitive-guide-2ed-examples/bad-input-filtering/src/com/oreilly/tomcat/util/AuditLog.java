@@ -0,0 +1,597 @@
+/*
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (c) 2007 O'Reilly Media.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.oreilly.tomcat.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * An asynchronous security audit log.  Request threads publish the rule
+ * matches they find into a preallocated ring buffer without blocking or
+ * allocating, and a daemon thread of the AuditLog's own drains the
+ * buffer, counts the matches by (kind, rule, parameter name, remote
+ * address), and writes one summary record per key at the end of each
+ * time window.  An attack that matches the same rule thousands of times
+ * a second then costs one line per window instead of one per match.
+ *
+ * <br><br>
+ *
+ * When the buffer is full, the match is dropped and counted instead of
+ * making the request thread wait.  Each record carries the first value
+ * that matched in its window as a sample, and at most maxKeys records
+ * are written per window; matches beyond that are counted together.
+ * The drop and overflow counts are written along with the records.
+ *
+ * <br><br>
+ *
+ * A record looks like:
+ * <pre>
+ * audit window=10s kind=value rule="&lt;" param="q" addr=192.0.2.1
+ *     hits=4711 sample="&lt;script&gt;alert(1)..."
+ * </pre>
+ * (on a single line).
+ */
+public class AuditLog implements Runnable {
+
+    // --------------------------------------------- Static Variables
+
+    /**
+     * A parameter name matched a substitution rule.
+     */
+    public static final int NAME = 0;
+
+    /**
+     * A parameter value matched a substitution rule.
+     */
+    public static final int VALUE = 1;
+
+    /**
+     * The names of the kinds of matches, as they appear in the records.
+     */
+    private static final String[] KINDS = { "name", "value" };
+
+    /**
+     * The longest sample written, in characters.
+     */
+    private static final int SAMPLE_LENGTH = 64;
+
+    /**
+     * The longest time the own thread sleeps between two drains of the
+     * buffer, in milliseconds.
+     */
+    private static final long DRAIN_INTERVAL = 50L;
+
+    // ------------------------------------------- Instance Variables
+
+    /**
+     * Where the records are written.
+     */
+    private final Sink sink;
+
+    /**
+     * The length of a window, in milliseconds.
+     */
+    private final long window;
+
+    /**
+     * The largest number of records written per window.
+     */
+    private final int maxKeys;
+
+    /**
+     * The preallocated slots of the ring buffer.
+     */
+    private final Event[] slots;
+
+    /**
+     * The sequence number of each slot.  A slot whose sequence equals the
+     * next claim position is free; one whose sequence is one higher holds
+     * a published event.
+     */
+    private final AtomicLongArray sequences;
+
+    /**
+     * slots.length - 1.
+     */
+    private final int mask;
+
+    /**
+     * The next position the request threads claim.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * The next position the own thread reads.  Only used by the own
+     * thread.
+     */
+    private long head = 0L;
+
+    /**
+     * The number of matches published.  Striped, like the dropped count,
+     * because every request thread that finds a match updates it.
+     */
+    private final StripedCounter publishedCount = new StripedCounter();
+
+    /**
+     * The number of matches dropped because the buffer was full.
+     */
+    private final StripedCounter droppedCount = new StripedCounter();
+
+    /**
+     * The number of matches that didn't fit into maxKeys records.
+     */
+    private final AtomicLong overflowCount = new AtomicLong();
+
+    /**
+     * The number of records written.
+     */
+    private final AtomicLong recordCount = new AtomicLong();
+
+    /**
+     * The counts of the current window, by key.  Only used by the own
+     * thread.
+     */
+    private final HashMap<Key, Aggregate> aggregates =
+        new HashMap<Key, Aggregate>();
+
+    /**
+     * The matches of the current window beyond maxKeys.
+     */
+    private long windowOverflow = 0L;
+
+    /**
+     * The dropped count when the last window was written.
+     */
+    private long lastDropped = 0L;
+
+    /**
+     * The own thread, while it is running.
+     */
+    private volatile Thread thread = null;
+
+    // ------------------------------------------------- Constructors
+
+    /**
+     * Construct a new AuditLog.
+     *
+     * @param sink Where the records are written
+     * @param window The length of a window, in milliseconds
+     * @param bufferSize The number of matches the buffer holds, rounded
+     *  up to a power of two
+     * @param maxKeys The largest number of records written per window
+     */
+    public AuditLog(Sink sink, long window, int bufferSize, int maxKeys) {
+
+        if (window <= 0L || bufferSize <= 0 || maxKeys <= 0) {
+            throw new IllegalArgumentException("window, bufferSize and "
+                + "maxKeys must be positive");
+        }
+        this.sink = sink;
+        this.window = window;
+        this.maxKeys = maxKeys;
+
+        int size = 1;
+        while (size < bufferSize) {
+            size <<= 1;
+        }
+        slots = new Event[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Event();
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+
+    }
+
+    // --------------------------------------------------- Properties
+
+    /**
+     * Return the length of a window, in milliseconds.
+     */
+    public long getWindow() {
+
+        return window;
+
+    }
+
+    /**
+     * Return the number of matches the buffer holds.
+     */
+    public int getBufferSize() {
+
+        return slots.length;
+
+    }
+
+    /**
+     * Return the number of matches published.
+     */
+    public long getPublishedCount() {
+
+        return publishedCount.get();
+
+    }
+
+    /**
+     * Return the number of matches dropped because the buffer was full.
+     */
+    public long getDroppedCount() {
+
+        return droppedCount.get();
+
+    }
+
+    /**
+     * Return the number of matches that didn't fit into the records of
+     * their window.
+     */
+    public long getOverflowCount() {
+
+        return overflowCount.get();
+
+    }
+
+    /**
+     * Return the number of records written.
+     */
+    public long getRecordCount() {
+
+        return recordCount.get();
+
+    }
+
+    /**
+     * Return true if the own thread is running.
+     */
+    public boolean isRunning() {
+
+        return thread != null;
+
+    }
+
+    // ----------------------------------------------- Public Methods
+
+    /**
+     * Publish a rule match.  Never blocks: if the buffer is full, the
+     * match is counted as dropped.
+     *
+     * @param kind NAME or VALUE
+     * @param rule The pattern of the rule that matched
+     * @param name The name of the parameter
+     * @param value The name or value that matched
+     * @param remoteAddr The address of the client
+     *
+     * @return false if the match was dropped.
+     */
+    public boolean publish(int kind, String rule, String name,
+                           String value, String remoteAddr) {
+
+        while (true) {
+            long position = tail.get();
+            int index = (int) position & mask;
+            long gap = sequences.get(index) - position;
+            if (gap == 0L) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    Event event = slots[index];
+                    event.kind = kind;
+                    event.rule = rule;
+                    event.name = name;
+                    event.value = value;
+                    event.remoteAddr = remoteAddr;
+                    sequences.set(index, position + 1);
+                    publishedCount.increment();
+
+                    // Wake the own thread whenever another half of the
+                    // buffer has filled up, rather than let it sleep
+                    // until the buffer overflows.
+                    if ((position & (mask >> 1)) == 0L) {
+                        Thread t = thread;
+                        if (t != null) {
+                            LockSupport.unpark(t);
+                        }
+                    }
+                    return true;
+                }
+            } else if (gap < 0L) {
+                // The own thread hasn't freed this slot yet.
+                droppedCount.increment();
+                return false;
+            }
+            // Another thread claimed this position first; try the next.
+        }
+
+    }
+
+    /**
+     * Start the daemon thread that aggregates and writes the matches.
+     *
+     * @param name A name for the thread
+     */
+    public synchronized void start(String name) {
+
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(this, "AuditLog[" + name + "]");
+        thread.setDaemon(true);
+        thread.start();
+
+    }
+
+    /**
+     * Stop the daemon thread, after it has written the matches published
+     * so far.
+     */
+    public void stop() {
+
+        Thread t;
+        synchronized (this) {
+            t = thread;
+            thread = null;
+        }
+        if (t == null) {
+            return;
+        }
+        LockSupport.unpark(t);
+        try {
+            t.join(1000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+    }
+
+    /**
+     * Drain the buffer, and write a window's records whenever it ends,
+     * until stopped.
+     */
+    public void run() {
+
+        long windowEnd = System.currentTimeMillis() + window;
+        while (thread == Thread.currentThread()) {
+            drain();
+            long now = System.currentTimeMillis();
+            if (now >= windowEnd) {
+                flush();
+                windowEnd = now + window;
+            }
+            LockSupport.parkNanos(
+                Math.min(DRAIN_INTERVAL, windowEnd - now) * 1000000L);
+        }
+        drain();
+        flush();
+
+    }
+
+    // ---------------------------------------------- Private Methods
+
+    /**
+     * Move every published match out of the buffer and into the counts
+     * of the current window.
+     */
+    private void drain() {
+
+        while (true) {
+            int index = (int) head & mask;
+            if (sequences.get(index) != head + 1) {
+                return;
+            }
+            Event event = slots[index];
+            Key key = new Key(event.kind, event.rule, event.name,
+                              event.remoteAddr);
+            Aggregate aggregate = aggregates.get(key);
+            if (aggregate != null) {
+                aggregate.hits++;
+            } else if (aggregates.size() < maxKeys) {
+                aggregates.put(key, new Aggregate(event.value));
+            } else {
+                windowOverflow++;
+            }
+
+            // Let go of the request's Strings, and free the slot.
+            event.rule = null;
+            event.name = null;
+            event.value = null;
+            event.remoteAddr = null;
+            sequences.set(index, head + slots.length);
+            head++;
+        }
+
+    }
+
+    /**
+     * Write the records of the current window, and start a new one.
+     */
+    private void flush() {
+
+        String prefix = "audit window="
+            + ((window % 1000L == 0L) ? (window / 1000L) + "s "
+                                      : window + "ms ");
+        List<String> records = new ArrayList<String>(aggregates.size());
+        Iterator<Map.Entry<Key, Aggregate>> entries =
+            aggregates.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Key, Aggregate> entry = entries.next();
+            Key key = entry.getKey();
+            Aggregate aggregate = entry.getValue();
+            StringBuffer sb = new StringBuffer(prefix);
+            sb.append("kind=").append(KINDS[key.kind]);
+            sb.append(" rule=");
+            quote(sb, key.rule);
+            sb.append(" param=");
+            quote(sb, key.name);
+            sb.append(" addr=").append(key.remoteAddr);
+            sb.append(" hits=").append(aggregate.hits);
+            sb.append(" sample=");
+            quote(sb, aggregate.sample);
+            records.add(sb.toString());
+        }
+        aggregates.clear();
+
+        long dropped = droppedCount.get();
+        if (windowOverflow > 0L || dropped > lastDropped) {
+            records.add(prefix + "overflow=" + windowOverflow
+                        + " dropped=" + (dropped - lastDropped));
+        }
+        overflowCount.addAndGet(windowOverflow);
+        windowOverflow = 0L;
+        lastDropped = dropped;
+
+        for (int i = 0; i < records.size(); i++) {
+            sink.write(records.get(i));
+            recordCount.incrementAndGet();
+        }
+
+    }
+
+    /**
+     * Append a String in double quotes, escaping quotes, backslashes and
+     * control characters, and shortening it to SAMPLE_LENGTH characters.
+     */
+    private static void quote(StringBuffer sb, String s) {
+
+        if (s == null) {
+            sb.append('-');
+            return;
+        }
+        sb.append('"');
+        int length = Math.min(s.length(), SAMPLE_LENGTH);
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20 || c == 0x7f) {
+                sb.append("\\x").append(Character.forDigit(c >> 4, 16))
+                  .append(Character.forDigit(c & 0xf, 16));
+            } else {
+                sb.append(c);
+            }
+        }
+        if (s.length() > length) {
+            sb.append("...");
+        }
+        sb.append('"');
+
+    }
+
+    // ------------------------------------------------ Inner Classes
+
+    /**
+     * Where an AuditLog writes its records.
+     */
+    public interface Sink {
+
+        /**
+         * Write a record.
+         *
+         * @param record The record, a single line
+         */
+        public void write(String record);
+    }
+
+    /**
+     * A slot of the ring buffer.
+     */
+    private static final class Event {
+
+        int kind;
+        String rule;
+        String name;
+        String value;
+        String remoteAddr;
+    }
+
+    /**
+     * What the matches of a window are counted by.
+     */
+    private static final class Key {
+
+        final int kind;
+        final String rule;
+        final String name;
+        final String remoteAddr;
+        final int hash;
+
+        Key(int kind, String rule, String name, String remoteAddr) {
+
+            this.kind = kind;
+            this.rule = rule;
+            this.name = name;
+            this.remoteAddr = remoteAddr;
+            int h = kind;
+            h = 31 * h + hashCode(rule);
+            h = 31 * h + hashCode(name);
+            h = 31 * h + hashCode(remoteAddr);
+            this.hash = h;
+
+        }
+
+        public int hashCode() {
+
+            return hash;
+
+        }
+
+        public boolean equals(Object o) {
+
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return kind == k.kind && hash == k.hash
+                && equal(rule, k.rule) && equal(name, k.name)
+                && equal(remoteAddr, k.remoteAddr);
+
+        }
+
+        private static int hashCode(String s) {
+
+            return (s == null) ? 0 : s.hashCode();
+
+        }
+
+        private static boolean equal(String a, String b) {
+
+            return (a == null) ? b == null : a.equals(b);
+
+        }
+    }
+
+    /**
+     * The count of one key's matches in a window.
+     */
+    private static final class Aggregate {
+
+        long hits = 1L;
+        final String sample;
+
+        Aggregate(String sample) {
+            this.sample = sample;
+        }
+    }
+}
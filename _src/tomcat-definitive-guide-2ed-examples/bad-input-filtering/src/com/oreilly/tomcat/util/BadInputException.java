@@ -0,0 +1,59 @@
+/*
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (c) 2007 O'Reilly Media.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.oreilly.tomcat.util;
+
+import java.io.IOException;
+
+
+/**
+ * Thrown from a read of an inspected request body as soon as a deny rule
+ * matches the data read so far, so that the web application stops
+ * reading and the request can be refused.
+ */
+public class BadInputException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The verdict that caused the exception.
+     */
+    private transient PatternSetMatcher.Verdict verdict;
+
+    /**
+     * Construct a new BadInputException for the specified verdict.
+     *
+     * @param verdict The verdict of the deny rule that matched
+     */
+    public BadInputException(PatternSetMatcher.Verdict verdict) {
+
+        super("Request body matched " + verdict);
+        this.verdict = verdict;
+
+    }
+
+    /**
+     * Return the verdict of the deny rule that matched.
+     */
+    public PatternSetMatcher.Verdict getVerdict() {
+
+        return verdict;
+
+    }
+}
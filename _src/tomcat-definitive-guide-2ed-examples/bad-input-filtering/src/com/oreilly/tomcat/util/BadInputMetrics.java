@@ -0,0 +1,360 @@
+/*
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (c) 2007 O'Reilly Media.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.oreilly.tomcat.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+
+/**
+ * The statistics of a BadInputValve or BadInputFilter, exposed as a
+ * standard MBean.
+ *
+ * <br><br>
+ *
+ * Every request thread updates these, so all of the counts are kept in
+ * StripedCounters and LatencyHistograms, and recording a request never
+ * makes two threads contend for the same memory location, no matter how
+ * many connector threads there are.
+ */
+public class BadInputMetrics implements BadInputMetricsMBean {
+
+    // --------------------------------------------- Static Variables
+
+    /**
+     * The rule hits key of a request refused because no allow rule
+     * matched it.
+     */
+    private static final String NO_ALLOW_RULE = "(no allow rule matched)";
+
+    // ------------------------------------------- Instance Variables
+
+    private final StripedCounter inspected = new StripedCounter();
+    private final StripedCounter denied = new StripedCounter();
+    private final StripedCounter escaped = new StripedCounter();
+    private final StripedCounter matchTimeouts = new StripedCounter();
+
+    /**
+     * The hit counts of the rules, by pattern.
+     */
+    private final ConcurrentHashMap<String, StripedCounter> ruleHits =
+        new ConcurrentHashMap<String, StripedCounter>();
+
+    private final LatencyHistogram allowsAndDenies = new LatencyHistogram();
+    private final LatencyHistogram filterParameters = new LatencyHistogram();
+
+    /**
+     * The name this object is registered under, or null if it isn't.
+     */
+    private ObjectName objectName = null;
+
+    /**
+     * The table of clients that are turned away, or null if there is
+     * none.
+     */
+    private volatile OffenderTable offenders = null;
+
+    // ----------------------------------------------- Public Methods
+
+    /**
+     * Record that a request is being inspected.
+     */
+    public void requestInspected() {
+
+        inspected.increment();
+
+    }
+
+    /**
+     * Set the table of clients that are turned away, whose size and hit
+     * rate are reported along with the other statistics.
+     *
+     * @param offenders The table, or null if there is none
+     */
+    public void setOffenderTable(OffenderTable offenders) {
+
+        this.offenders = offenders;
+
+    }
+
+    /**
+     * Record that a request was refused.
+     *
+     * @param verdict The verdict that refused the request, or null if it
+     *  was refused for running out of match time while being escaped
+     */
+    public void requestDenied(PatternSetMatcher.Verdict verdict) {
+
+        denied.increment();
+        if (verdict == null || verdict.isTimedOut()) {
+            matchTimeouts.increment();
+        }
+        if (verdict == null) {
+            return;
+        }
+        String key = (verdict.getRule() == null)
+            ? NO_ALLOW_RULE : verdict.getRule().pattern();
+        StripedCounter hits = ruleHits.get(key);
+        if (hits == null) {
+            StripedCounter newHits = new StripedCounter();
+            hits = ruleHits.putIfAbsent(key, newHits);
+            if (hits == null) {
+                hits = newHits;
+            }
+        }
+        hits.increment();
+
+    }
+
+    /**
+     * Record that a request was refused because its client is blocked.
+     * No rule refused it, so no rule hit is counted; the offender table
+     * counts these requests on its own.
+     */
+    public void requestBlocked() {
+
+        denied.increment();
+
+    }
+
+    /**
+     * Record that a parameter name or value was escaped.
+     */
+    public void parameterEscaped() {
+
+        escaped.increment();
+
+    }
+
+    /**
+     * Record the time spent checking a request's parameters against the
+     * allow and deny rules.
+     *
+     * @param nanos The elapsed time in nanoseconds
+     */
+    public void allowsAndDeniesTime(long nanos) {
+
+        allowsAndDenies.record(nanos);
+
+    }
+
+    /**
+     * Record the time spent escaping a request's parameters.
+     *
+     * @param nanos The elapsed time in nanoseconds
+     */
+    public void filterParametersTime(long nanos) {
+
+        filterParameters.record(nanos);
+
+    }
+
+    /**
+     * Register this object with the platform MBeanServer.
+     *
+     * @param name The name to register under
+     *
+     * @exception JMException if registration fails
+     */
+    public synchronized void register(ObjectName name) throws JMException {
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(this, name);
+        objectName = name;
+
+    }
+
+    /**
+     * Unregister this object from the platform MBeanServer, if it is
+     * registered.
+     *
+     * @exception JMException if unregistration fails
+     */
+    public synchronized void unregister() throws JMException {
+
+        if (objectName != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            objectName = null;
+        }
+
+    }
+
+    // ------------------------------------------ BadInputMetricsMBean
+
+    public long getInspectedCount() {
+
+        return inspected.get();
+
+    }
+
+    public long getDeniedCount() {
+
+        return denied.get();
+
+    }
+
+    public long getEscapedCount() {
+
+        return escaped.get();
+
+    }
+
+    public long getMatchTimeoutCount() {
+
+        return matchTimeouts.get();
+
+    }
+
+    public int getOffenderCount() {
+
+        OffenderTable table = offenders;
+        return (table == null) ? 0 : table.getSize();
+
+    }
+
+    public long getOffenderRejectedCount() {
+
+        OffenderTable table = offenders;
+        return (table == null) ? 0L : table.getHitCount();
+
+    }
+
+    public double getOffenderHitRate() {
+
+        OffenderTable table = offenders;
+        return (table == null) ? 0.0 : table.getHitRate();
+
+    }
+
+    public String[] getRuleHits() {
+
+        ArrayList<Hit> hits = new ArrayList<Hit>();
+        Iterator<Map.Entry<String, StripedCounter>> entries =
+            ruleHits.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, StripedCounter> entry = entries.next();
+            hits.add(new Hit(entry.getKey(), entry.getValue().get()));
+        }
+        Collections.sort(hits);
+        String[] lines = new String[hits.size()];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = hits.get(i).count + " " + hits.get(i).pattern;
+        }
+        return lines;
+
+    }
+
+    public long[] getLatencyBucketBounds() {
+
+        return LatencyHistogram.getBucketBounds();
+
+    }
+
+    public long[] getAllowsAndDeniesLatency() {
+
+        return allowsAndDenies.getCounts();
+
+    }
+
+    public double getAllowsAndDeniesMeanTime() {
+
+        return meanMicros(allowsAndDenies);
+
+    }
+
+    public long[] getFilterParametersLatency() {
+
+        return filterParameters.getCounts();
+
+    }
+
+    public double getFilterParametersMeanTime() {
+
+        return meanMicros(filterParameters);
+
+    }
+
+    public void reset() {
+
+        inspected.reset();
+        denied.reset();
+        escaped.reset();
+        matchTimeouts.reset();
+        ruleHits.clear();
+        allowsAndDenies.reset();
+        filterParameters.reset();
+
+    }
+
+    // ---------------------------------------------- Private Methods
+
+    /**
+     * Return the mean of the times in a histogram, in microseconds.
+     */
+    private static double meanMicros(LatencyHistogram histogram) {
+
+        long count = histogram.getCount();
+        if (count == 0L) {
+            return 0.0;
+        }
+        return histogram.getTotalTime() / 1000.0 / count;
+
+    }
+
+    // ------------------------------------------------ Inner Classes
+
+    /**
+     * A snapshot of the hit count of one rule, ordered by descending
+     * count.
+     */
+    private static final class Hit implements Comparable<Hit> {
+
+        final String pattern;
+        final long count;
+
+        Hit(String pattern, long count) {
+
+            this.pattern = pattern;
+            this.count = count;
+
+        }
+
+        public int compareTo(Hit other) {
+
+            return (count > other.count) ? -1
+                : ((count < other.count) ? 1 : 0);
+
+        }
+    }
+}
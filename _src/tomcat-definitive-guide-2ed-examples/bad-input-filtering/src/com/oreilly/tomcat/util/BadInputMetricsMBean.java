@@ -0,0 +1,106 @@
+/*
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (c) 2007 O'Reilly Media.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.oreilly.tomcat.util;
+
+
+/**
+ * The JMX management interface of BadInputMetrics.  Times are reported
+ * in microseconds.
+ */
+public interface BadInputMetricsMBean {
+
+    /**
+     * Return the number of requests that were inspected.
+     */
+    public long getInspectedCount();
+
+    /**
+     * Return the number of requests that were refused, including those
+     * of blocked clients.
+     */
+    public long getDeniedCount();
+
+    /**
+     * Return the number of parameter names and values that were escaped.
+     */
+    public long getEscapedCount();
+
+    /**
+     * Return the number of requests that were refused because one of
+     * their values ran out of match time.
+     */
+    public long getMatchTimeoutCount();
+
+    /**
+     * Return the number of clients in the offender table.
+     */
+    public int getOffenderCount();
+
+    /**
+     * Return the number of requests that were turned away because their
+     * client was in the offender table.
+     */
+    public long getOffenderRejectedCount();
+
+    /**
+     * Return the share of requests that were turned away because their
+     * client was in the offender table, between 0 and 1.
+     */
+    public double getOffenderHitRate();
+
+    /**
+     * Return the number of times each rule caused a request to be
+     * refused, as <code>count pattern</code> lines, most hits first.
+     */
+    public String[] getRuleHits();
+
+    /**
+     * Return the exclusive upper bound of each latency histogram bucket,
+     * in microseconds.
+     */
+    public long[] getLatencyBucketBounds();
+
+    /**
+     * Return the latency histogram of checking the parameters against
+     * the allow and deny rules.
+     */
+    public long[] getAllowsAndDeniesLatency();
+
+    /**
+     * Return the mean time spent checking the parameters of a request
+     * against the allow and deny rules.
+     */
+    public double getAllowsAndDeniesMeanTime();
+
+    /**
+     * Return the latency histogram of escaping the parameters.
+     */
+    public long[] getFilterParametersLatency();
+
+    /**
+     * Return the mean time spent escaping the parameters of a request.
+     */
+    public double getFilterParametersMeanTime();
+
+    /**
+     * Set all of the counts back to zero.
+     */
+    public void reset();
+}
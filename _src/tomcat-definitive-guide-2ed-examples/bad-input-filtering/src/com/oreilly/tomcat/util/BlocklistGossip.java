@@ -0,0 +1,656 @@
+/*
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (c) 2007 O'Reilly Media.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.oreilly.tomcat.util;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+
+/**
+ * Shares an OffenderTable's blocked clients with the other nodes of a
+ * cluster over IP multicast, the same way MulticastNode talks to the
+ * group, so that a client blocked on one node is blocked on all of them.
+ *
+ * <br><br>
+ *
+ * When a client offends often enough to be blocked here, its key is
+ * queued, and the queued keys are announced to the group in one packet
+ * every batch interval.  Every node merges the keys it hears into its
+ * own table, blocking those clients on the announcing node's behalf.
+ * Each node also sends a digest of all of the clients it blocked itself
+ * every digest interval, which keeps the other nodes' blocks alive for
+ * as long as its own last, and brings nodes that missed an announcement
+ * up to date.  A node asks for digests when it joins, so it doesn't have
+ * to wait for the next round.
+ *
+ * <br><br>
+ *
+ * A packet is a header of a magic number, a type, the sender's node id
+ * and a key count, followed by the 8 byte keys; at most MAX_KEYS keys
+ * fit in a packet.  Packets from other programs on the group, and this
+ * node's own packets, are ignored.
+ *
+ * <br><br>
+ *
+ * Any host that can send to the group can block any client on every
+ * node, so unless the group is confined to a trusted network, give all
+ * of the nodes the same secret.  Each packet then ends with a
+ * truncated HMAC-SHA256 of the rest of it, keyed with the secret, and
+ * packets without a valid one are dropped and counted as bad.  The
+ * HMAC doesn't stop a host on the network from sending a genuine
+ * packet again later, which can keep a client that was blocked blocked
+ * for longer, but it can't block any other client that way.
+ */
+public class BlocklistGossip implements OffenderTable.Listener {
+
+    // --------------------------------------------- Static Variables
+
+    /**
+     * The default group address, the one Tomcat's cluster uses.
+     */
+    public static final String DEFAULT_ADDRESS = "228.0.0.4";
+
+    /**
+     * The default port, next to the one Tomcat's cluster uses, so that
+     * the two don't see each other's packets.
+     */
+    public static final int DEFAULT_PORT = 45565;
+
+    /**
+     * "BLK1".
+     */
+    private static final int MAGIC = 0x424c4b31;
+
+    private static final byte ANNOUNCE = 1;
+    private static final byte DIGEST = 2;
+    private static final byte DIGEST_REQUEST = 3;
+
+    /**
+     * The length of a packet's header: magic, type, node id and count.
+     */
+    private static final int HEADER_LENGTH = 4 + 1 + 8 + 2;
+
+    /**
+     * The length of the HMAC at the end of a packet, if there is a
+     * secret.
+     */
+    private static final int MAC_LENGTH = 16;
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    /**
+     * The largest packet sent, small enough not to be fragmented on an
+     * Ethernet segment.
+     */
+    private static final int MAX_PACKET_LENGTH = 1400;
+
+    /**
+     * The largest number of keys in one packet.
+     */
+    public static final int MAX_KEYS =
+        (MAX_PACKET_LENGTH - HEADER_LENGTH - MAC_LENGTH) / 8;
+
+    /**
+     * The shortest time between two digests, in milliseconds, however
+     * often they are asked for.
+     */
+    private static final long MIN_DIGEST_INTERVAL = 250L;
+
+    // ------------------------------------------- Instance Variables
+
+    private final OffenderTable table;
+    private final InetAddress group;
+    private final int port;
+    private final NetworkInterface networkInterface;
+
+    /**
+     * The key of the packets' HMACs, or null if packets aren't
+     * authenticated.
+     */
+    private SecretKeySpec secret = null;
+
+    /**
+     * The time between two announcements, in milliseconds.
+     */
+    private long batchInterval = 100L;
+
+    /**
+     * The time between two digests, in milliseconds.
+     */
+    private long digestInterval = 2000L;
+
+    /**
+     * A random id that tells this node's packets from the others'.
+     */
+    private final long nodeId = new Random().nextLong();
+
+    /**
+     * The keys waiting to be announced.
+     */
+    private final ConcurrentLinkedQueue<Long> pending =
+        new ConcurrentLinkedQueue<Long>();
+
+    /**
+     * Whether another node asked for a digest.
+     */
+    private volatile boolean digestRequested = false;
+
+    private final StripedCounter announcedCount = new StripedCounter();
+    private final StripedCounter mergedCount = new StripedCounter();
+    private final StripedCounter sentPacketCount = new StripedCounter();
+    private final StripedCounter receivedPacketCount = new StripedCounter();
+    private final StripedCounter badPacketCount = new StripedCounter();
+
+    private MulticastSocket socket = null;
+    private volatile Thread sender = null;
+    private volatile Thread receiver = null;
+
+    // ------------------------------------------------- Constructors
+
+    /**
+     * Construct a new BlocklistGossip.
+     *
+     * @param table The table whose blocked clients are shared
+     * @param group The multicast group address
+     * @param port The port
+     * @param networkInterface The interface to use, or null for the
+     *  interface the system picks
+     */
+    public BlocklistGossip(OffenderTable table, InetAddress group, int port,
+                           NetworkInterface networkInterface) {
+
+        if (!group.isMulticastAddress()) {
+            throw new IllegalArgumentException(group
+                + " is not a multicast address");
+        }
+        this.table = table;
+        this.group = group;
+        this.port = port;
+        this.networkInterface = networkInterface;
+
+    }
+
+    // --------------------------------------------------- Properties
+
+    /**
+     * Set the time between two announcements of newly blocked clients.
+     *
+     * @param batchInterval The interval, in milliseconds
+     */
+    public void setBatchInterval(long batchInterval) {
+
+        this.batchInterval = batchInterval;
+
+    }
+
+    /**
+     * Set the time between two digests of the clients blocked here.
+     *
+     * @param digestInterval The interval, in milliseconds
+     */
+    public void setDigestInterval(long digestInterval) {
+
+        this.digestInterval = digestInterval;
+
+    }
+
+    /**
+     * Set the secret that every node of the cluster shares, to
+     * authenticate their packets with.  Takes effect when started.
+     *
+     * @param secret The secret, or null not to authenticate packets
+     */
+    public void setSecret(String secret) {
+
+        if (secret == null || secret.length() == 0) {
+            this.secret = null;
+            return;
+        }
+        try {
+            this.secret = new SecretKeySpec(secret.getBytes("UTF-8"),
+                                            MAC_ALGORITHM);
+        } catch (UnsupportedEncodingException e) {
+            // Every JVM supports UTF-8.
+            throw new IllegalStateException(e);
+        }
+
+    }
+
+    /**
+     * Return the number of clients announced to the other nodes.
+     */
+    public long getAnnouncedCount() {
+
+        return announcedCount.get();
+
+    }
+
+    /**
+     * Return the number of clients blocked on behalf of other nodes that
+     * weren't blocked here already.
+     */
+    public long getMergedCount() {
+
+        return mergedCount.get();
+
+    }
+
+    /**
+     * Return the number of packets sent.
+     */
+    public long getSentPacketCount() {
+
+        return sentPacketCount.get();
+
+    }
+
+    /**
+     * Return the number of packets received from other nodes.
+     */
+    public long getReceivedPacketCount() {
+
+        return receivedPacketCount.get();
+
+    }
+
+    /**
+     * Return the number of packets received that weren't understood, or
+     * didn't carry a valid HMAC.
+     */
+    public long getBadPacketCount() {
+
+        return badPacketCount.get();
+
+    }
+
+    // ----------------------------------------------- Public Methods
+
+    /**
+     * Join the group, ask the other nodes for their digests, and start
+     * the threads that send and receive.
+     *
+     * @exception IOException if the group can't be joined
+     */
+    public synchronized void start() throws IOException {
+
+        if (socket != null) {
+            return;
+        }
+        socket = new MulticastSocket(port);
+        socket.setSoTimeout(500);
+        if (networkInterface != null) {
+            socket.setNetworkInterface(networkInterface);
+        }
+        socket.joinGroup(new InetSocketAddress(group, port),
+                         networkInterface);
+        table.setListener(this);
+
+        String name = group.getHostAddress() + ":" + port;
+        receiver = new Thread(new Runnable() {
+            public void run() {
+                receive();
+            }
+        }, "BlocklistGossip-receiver[" + name + "]");
+        receiver.setDaemon(true);
+        receiver.start();
+        sender = new Thread(new Runnable() {
+            public void run() {
+                send();
+            }
+        }, "BlocklistGossip-sender[" + name + "]");
+        sender.setDaemon(true);
+        sender.start();
+
+    }
+
+    /**
+     * Stop the threads, and leave the group.
+     */
+    public synchronized void stop() {
+
+        if (socket == null) {
+            return;
+        }
+        table.setListener(null);
+        Thread t = sender;
+        sender = null;
+        receiver = null;
+        if (t != null) {
+            t.interrupt();
+        }
+        try {
+            socket.leaveGroup(new InetSocketAddress(group, port),
+                              networkInterface);
+        } catch (IOException e) {
+            // The socket is closed anyway.
+        }
+        socket.close();
+        socket = null;
+
+    }
+
+    /**
+     * Queue a client that was just blocked here to be announced to the
+     * other nodes.
+     *
+     * @param key The key of the client
+     */
+    public void blocked(long key) {
+
+        pending.offer(Long.valueOf(key));
+
+    }
+
+    /**
+     * Return a text representation of this object.
+     */
+    public String toString() {
+
+        return "BlocklistGossip[" + group.getHostAddress() + ":" + port
+            + ", announced=" + announcedCount.get() + ", merged="
+            + mergedCount.get() + "]";
+
+    }
+
+    // ---------------------------------------------- Private Methods
+
+    /**
+     * Announce the queued keys every batch interval, and send a digest
+     * every digest interval or when asked to, until stopped.
+     */
+    private void send() {
+
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_PACKET_LENGTH);
+        DatagramPacket packet =
+            new DatagramPacket(buffer.array(), 0, group, port);
+        long[] keys = new long[MAX_KEYS];
+        Mac mac = createMac();
+        long nextDigest = System.currentTimeMillis();
+        long lastDigest = 0L;
+        boolean joined = true;
+
+        while (sender == Thread.currentThread()) {
+            try {
+                if (joined) {
+                    // Ask the others for what this node has missed.
+                    sendPacket(packet, buffer, mac, DIGEST_REQUEST,
+                               null, 0, 0);
+                    joined = false;
+                }
+
+                // Announce the newly blocked keys, in as few packets as
+                // they fit in.
+                int count = 0;
+                Long key;
+                while ((key = pending.poll()) != null) {
+                    keys[count++] = key.longValue();
+                    if (count == MAX_KEYS) {
+                        sendPacket(packet, buffer, mac, ANNOUNCE, keys, 0,
+                                   count);
+                        count = 0;
+                    }
+                }
+                if (count > 0) {
+                    sendPacket(packet, buffer, mac, ANNOUNCE, keys, 0,
+                               count);
+                }
+
+                long now = System.currentTimeMillis();
+                if (now >= nextDigest || (digestRequested
+                    && now - lastDigest >= MIN_DIGEST_INTERVAL)) {
+                    digestRequested = false;
+                    lastDigest = now;
+                    nextDigest = now + digestInterval;
+                    long[] blocked = table.getBlockedKeys();
+                    for (int i = 0; i < blocked.length; i += MAX_KEYS) {
+                        sendPacket(packet, buffer, mac, DIGEST, blocked, i,
+                            Math.min(MAX_KEYS, blocked.length - i));
+                    }
+                }
+            } catch (IOException e) {
+                // The socket was closed, or the packet couldn't be sent;
+                // the next digest will make up for it.
+            }
+            try {
+                Thread.sleep(batchInterval);
+            } catch (InterruptedException e) {
+                // Stopped; check the thread again.
+            }
+        }
+
+    }
+
+    /**
+     * Send one packet, with its HMAC if there is a secret.
+     */
+    private void sendPacket(DatagramPacket packet, ByteBuffer buffer,
+                            Mac mac, byte type, long[] keys, int offset,
+                            int count)
+        throws IOException {
+
+        buffer.clear();
+        buffer.putInt(MAGIC);
+        buffer.put(type);
+        buffer.putLong(nodeId);
+        buffer.putShort((short) count);
+        for (int i = 0; i < count; i++) {
+            buffer.putLong(keys[offset + i]);
+        }
+        if (mac != null) {
+            mac.update(buffer.array(), 0, buffer.position());
+            buffer.put(mac.doFinal(), 0, MAC_LENGTH);
+        }
+        packet.setLength(buffer.position());
+        MulticastSocket s = socket;
+        if (s != null) {
+            s.send(packet);
+            sentPacketCount.increment();
+            if (type == ANNOUNCE) {
+                announcedCount.add(count);
+            }
+        }
+
+    }
+
+    /**
+     * Merge the keys of the other nodes' packets into the table, until
+     * stopped.
+     */
+    private void receive() {
+
+        byte[] buf = new byte[MAX_PACKET_LENGTH];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        MulticastSocket s = socket;
+        Mac mac = createMac();
+        int macLength = (mac == null) ? 0 : MAC_LENGTH;
+        byte[] expected = new byte[MAC_LENGTH];
+        byte[] actual = new byte[MAC_LENGTH];
+
+        while (receiver == Thread.currentThread()) {
+            try {
+                packet.setLength(buf.length);
+                s.receive(packet);
+            } catch (SocketTimeoutException e) {
+                continue;
+            } catch (IOException e) {
+                // Closed by stop().
+                return;
+            }
+
+            ByteBuffer in =
+                ByteBuffer.wrap(buf, packet.getOffset(), packet.getLength());
+            if (in.remaining() < HEADER_LENGTH || in.getInt() != MAGIC) {
+                badPacketCount.increment();
+                continue;
+            }
+            byte type = in.get();
+            long sender = in.getLong();
+            int count = in.getShort() & 0xffff;
+            if (sender == nodeId) {
+                continue;
+            }
+            if (in.remaining() != count * 8 + macLength
+                || type < ANNOUNCE || type > DIGEST_REQUEST) {
+                badPacketCount.increment();
+                continue;
+            }
+            if (mac != null) {
+                int end = packet.getOffset() + packet.getLength() - macLength;
+                mac.update(buf, packet.getOffset(),
+                           end - packet.getOffset());
+                System.arraycopy(mac.doFinal(), 0, expected, 0, MAC_LENGTH);
+                System.arraycopy(buf, end, actual, 0, MAC_LENGTH);
+                if (!MessageDigest.isEqual(expected, actual)) {
+                    badPacketCount.increment();
+                    continue;
+                }
+            }
+            receivedPacketCount.increment();
+
+            if (type == DIGEST_REQUEST) {
+                digestRequested = true;
+                continue;
+            }
+            for (int i = 0; i < count; i++) {
+                if (table.block(in.getLong())) {
+                    mergedCount.increment();
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Return a new HMAC keyed with the secret, or null if there is none.
+     * Each thread gets its own, since a Mac isn't thread safe.
+     */
+    private Mac createMac() {
+
+        SecretKeySpec key = secret;
+        if (key == null) {
+            return null;
+        }
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            // Every JVM supports HmacSHA256.
+            throw new IllegalStateException(e);
+        }
+
+    }
+
+    // --------------------------------------------------- Test Driver
+
+    /**
+     * Run several nodes in this JVM on the loopback interface, block a
+     * client on one of them, and report how long the others take to
+     * block it too, and how long a node that joins afterwards takes.
+     *
+     * <br><br>
+     *
+     * Usage: <code>BlocklistGossip [nodes [address [port [secret]]]]
+     * </code>
+     */
+    public static void main(String[] args) throws Exception {
+
+        int nodes = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+        InetAddress group = InetAddress.getByName(
+            (args.length > 1) ? args[1] : DEFAULT_ADDRESS);
+        int port = (args.length > 2) ? Integer.parseInt(args[2])
+                                     : DEFAULT_PORT;
+        NetworkInterface loopback = NetworkInterface.getByInetAddress(
+            InetAddress.getByName("127.0.0.1"));
+
+        OffenderTable[] tables = new OffenderTable[nodes + 1];
+        BlocklistGossip[] gossips = new BlocklistGossip[nodes + 1];
+        for (int i = 0; i <= nodes; i++) {
+            tables[i] = new OffenderTable(1024, 3, 60000L, 600000L);
+            gossips[i] = new BlocklistGossip(tables[i], group, port,
+                                             loopback);
+            gossips[i].setSecret((args.length > 3) ? args[3] : null);
+        }
+        for (int i = 0; i < nodes; i++) {
+            gossips[i].start();
+        }
+
+        // Offend twice as often as the threshold, so that the client
+        // stays blocked for a half-life rather than decaying right back
+        // under it.
+        String client = "192.0.2.66";
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 6; i++) {
+            tables[0].offend(client);
+        }
+        System.out.println("Blocked " + client + " on node 0: "
+                           + tables[0].isBlocked(client));
+        System.out.println("Converged on " + nodes + " nodes in "
+            + awaitBlocked(tables, 1, nodes, client, start) + " ms");
+
+        start = System.currentTimeMillis();
+        gossips[nodes].start();
+        System.out.println("Late joiner converged in "
+            + awaitBlocked(tables, nodes, nodes + 1, client, start)
+            + " ms");
+
+        for (int i = 0; i <= nodes; i++) {
+            System.out.println("Node " + i + ": " + gossips[i]);
+            gossips[i].stop();
+        }
+
+    }
+
+    /**
+     * Wait for a client to be blocked in a range of tables, and return
+     * how long it took, or -1 if it took over 10 seconds.
+     */
+    private static long awaitBlocked(OffenderTable[] tables, int from,
+                                     int to, String client, long start)
+        throws InterruptedException {
+
+        while (System.currentTimeMillis() - start < 10000L) {
+            boolean all = true;
+            for (int i = from; i < to && all; i++) {
+                all = tables[i].isBlocked(client);
+            }
+            if (all) {
+                return System.currentTimeMillis() - start;
+            }
+            Thread.sleep(5L);
+        }
+        return -1L;
+
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (c) 2007 O'Reilly Media.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.oreilly.tomcat.util;
+
+
+/**
+ * A CharSequence that throws a MatchTimeoutException from charAt() once
+ * a deadline has passed.  java.util.regex reads its input only through
+ * charAt(), so matching a Pattern against one of these is bounded in
+ * time even if the Pattern backtracks catastrophically.
+ *
+ * <br><br>
+ *
+ * The clock is only read every <code>CHECK_INTERVAL</code> characters,
+ * which keeps the overhead small.
+ */
+public final class DeadlineCharSequence implements CharSequence {
+
+    /**
+     * The number of charAt() calls between two reads of the clock.
+     */
+    private static final int CHECK_INTERVAL = 1024;
+
+    private final CharSequence text;
+    private final long deadline;
+    private int countdown = CHECK_INTERVAL;
+
+    /**
+     * Construct a new DeadlineCharSequence.
+     *
+     * @param text The text to wrap
+     * @param deadline The System.nanoTime() after which reading fails
+     */
+    public DeadlineCharSequence(CharSequence text, long deadline) {
+
+        this.text = text;
+        this.deadline = deadline;
+
+    }
+
+    public char charAt(int index) {
+
+        if (--countdown == 0) {
+            countdown = CHECK_INTERVAL;
+            if (System.nanoTime() - deadline > 0) {
+                throw new MatchTimeoutException(null);
+            }
+        }
+        return text.charAt(index);
+
+    }
+
+    public int length() {
+
+        return text.length();
+
+    }
+
+    public CharSequence subSequence(int start, int end) {
+
+        return new DeadlineCharSequence(text.subSequence(start, end),
+                                        deadline);
+
+    }
+
+    @Override
+    public String toString() {
+
+        return text.toString();
+
+    }
+}
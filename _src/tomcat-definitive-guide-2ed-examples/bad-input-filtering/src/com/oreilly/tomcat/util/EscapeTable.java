@@ -0,0 +1,491 @@
+/*
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (c) 2007 O'Reilly Media.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.oreilly.tomcat.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * An immutable, precompiled form of a parameter escape mapping (regular
+ * expression to match, replacement).  It is built once, when the escape
+ * settings change, rather than once per request.
+ *
+ * <br><br>
+ *
+ * Every mapping whose expression matches exactly one US-ASCII character
+ * and whose replacement is plain text (such as the quote and angle
+ * bracket escapes) is folded into a single character lookup table rule,
+ * which escapes a value in one pass without using regular expressions.
+ * All other mappings (such as the JavaScript escapes) become precompiled
+ * regular expression rules.
+ */
+public final class EscapeTable {
+
+    // --------------------------------------------- Static Variables
+
+    /**
+     * An EscapeTable with no rules.
+     */
+    public static final EscapeTable EMPTY =
+        new EscapeTable(new HashMap<String, String>());
+
+    /**
+     * The characters that have a special meaning in a regular expression
+     * when they appear unescaped.
+     */
+    private static final String REGEX_META = "\\^$.|?*+()[]{}";
+
+    /**
+     * The number of characters covered by a character lookup table.
+     */
+    private static final int TABLE_CHARS = 128;
+
+    // ------------------------------------------- Instance Variables
+
+    /**
+     * The rules, applied in this order.  The character table rule, if
+     * any, comes first.
+     */
+    private final Rule[] rules;
+
+    /**
+     * The trigger bits for characters below <code>TABLE_CHARS</code>: bit
+     * <code>c</code> is set if a value containing <code>c</code> might
+     * need escaping.
+     */
+    private final long[] triggers = new long[TABLE_CHARS / 64];
+
+    /**
+     * The folded trigger characters at or above <code>TABLE_CHARS</code>,
+     * sorted.
+     */
+    private final char[] otherTriggers;
+
+    /**
+     * True if some rule has no trigger character, so that every value
+     * has to be run through the rules.
+     */
+    private final boolean untriggered;
+
+    // ------------------------------------------------- Constructors
+
+    /**
+     * Construct a new EscapeTable from the specified mapping.
+     *
+     * @param escapes The mapping of regular expression to match to the
+     *  replacement String that is used if the expression is found.
+     *
+     * @exception IllegalArgumentException if one of the expressions has
+     *  invalid syntax
+     */
+    public EscapeTable(Map<String, String> escapes) {
+
+        this(escapes, 0L, true);
+
+    }
+
+    /**
+     * Construct a new EscapeTable from the specified mapping, whose
+     * regular expression rules give up on a value once matching it has
+     * taken longer than the specified time.
+     *
+     * @param escapes The mapping of regular expression to match to the
+     *  replacement String that is used if the expression is found.
+     * @param matchTimeout The maximum time in milliseconds one regular
+     *  expression rule may spend on one value, or zero for no limit
+     * @param denyOnTimeout Whether a rule that runs out of time throws a
+     *  MatchTimeoutException (true), or leaves the value as it is (false)
+     *
+     * @exception IllegalArgumentException if one of the expressions has
+     *  invalid syntax
+     */
+    public EscapeTable(Map<String, String> escapes, long matchTimeout,
+                       boolean denyOnTimeout) {
+
+        String[] table = null;
+        StringBuilder chars = new StringBuilder();
+        ArrayList<Rule> regexRules = new ArrayList<Rule>();
+
+        Iterator<Map.Entry<String, String>> entries =
+            escapes.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, String> entry = entries.next();
+            String replacement = entry.getValue();
+            int c = singleChar(entry.getKey());
+            if (c >= 0 && replacement.indexOf('$') < 0
+                && replacement.indexOf('\\') < 0) {
+                if (table == null) {
+                    table = new String[TABLE_CHARS];
+                }
+                table[c] = replacement;
+                chars.append(entry.getKey());
+                triggers[c >> 6] |= 1L << c;
+            } else {
+                regexRules.add(new RegexRule(
+                    Pattern.compile(entry.getKey()), replacement,
+                    matchTimeout * 1000000L, denyOnTimeout));
+            }
+        }
+
+        if (table != null) {
+            regexRules.add(0, new CharRule(table, "[" + chars + "]"));
+        }
+        rules = regexRules.toArray(new Rule[regexRules.size()]);
+
+        // Every match of a regular expression rule contains its required
+        // literal, so a value without the literal's first character (in
+        // any case) can be skipped.
+        boolean untriggered = false;
+        StringBuilder others = new StringBuilder();
+        for (int i = 0; i < rules.length; i++) {
+            if (!(rules[i] instanceof RegexRule)) {
+                continue;
+            }
+            String literal = PatternSetMatcher.requiredLiteral(
+                ((RegexRule) rules[i]).pattern);
+            if (literal == null) {
+                untriggered = true;
+                continue;
+            }
+            char folded = literal.charAt(0);
+            if (folded >= TABLE_CHARS) {
+                others.append(folded);
+                continue;
+            }
+            for (int c = 0; c < TABLE_CHARS; c++) {
+                if (Character.toLowerCase((char) c) == folded) {
+                    triggers[c >> 6] |= 1L << c;
+                }
+            }
+        }
+        this.untriggered = untriggered;
+        otherTriggers = others.toString().toCharArray();
+        Arrays.sort(otherTriggers);
+
+    }
+
+    // --------------------------------------------------- Properties
+
+    /**
+     * Return true if this table has no rules.
+     */
+    public boolean isEmpty() {
+
+        return rules.length == 0;
+
+    }
+
+    /**
+     * Return the rules, in the order in which they are applied.
+     */
+    public Rule[] getRules() {
+
+        return rules.clone();
+
+    }
+
+    /**
+     * Return the number of rules.
+     */
+    public int getRuleCount() {
+
+        return rules.length;
+
+    }
+
+    /**
+     * Return the rule at the specified position in the order in which
+     * the rules are applied.
+     *
+     * @param index The position of the rule
+     */
+    public Rule getRule(int index) {
+
+        return rules[index];
+
+    }
+
+    // ----------------------------------------------- Public Methods
+
+    /**
+     * Apply every rule to the specified value.
+     *
+     * @param value The value to escape
+     *
+     * @return the escaped value, or the same String instance if no rule
+     *  changed it.
+     */
+    public String escape(String value) {
+
+        if (!mayMatch(value)) {
+            return value;
+        }
+        for (int i = 0; i < rules.length; i++) {
+            value = rules[i].apply(value);
+        }
+        return value;
+
+    }
+
+    /**
+     * Return false if no rule can possibly match the specified value,
+     * which is decided by looking for trigger characters without
+     * allocating anything.  A return value of true means the rules have
+     * to be applied to find out.
+     *
+     * @param value The value to test
+     */
+    public boolean mayMatch(String value) {
+
+        if (untriggered) {
+            return true;
+        }
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < TABLE_CHARS) {
+                if ((triggers[c >> 6] & (1L << c)) != 0L) {
+                    return true;
+                }
+            } else {
+                char folded = Character.toLowerCase(c);
+                if (folded < TABLE_CHARS) {
+                    if ((triggers[folded >> 6] & (1L << folded)) != 0L) {
+                        return true;
+                    }
+                } else if (otherTriggers.length > 0
+                    && Arrays.binarySearch(otherTriggers, folded) >= 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+
+    }
+
+    /**
+     * Return a text representation of this object.
+     */
+    @Override
+    public String toString() {
+
+        StringBuilder sb = new StringBuilder("EscapeTable[");
+        for (int i = 0; i < rules.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(rules[i].getPattern());
+        }
+        return sb.append(']').toString();
+
+    }
+
+    // ---------------------------------------------- Private Methods
+
+    /**
+     * Return the one US-ASCII character that the specified regular
+     * expression matches, or -1 if it is not that simple.
+     */
+    private static int singleChar(String regex) {
+
+        char c;
+        if (regex.length() == 1 && REGEX_META.indexOf(regex.charAt(0)) < 0) {
+            c = regex.charAt(0);
+        } else if (regex.length() == 2 && regex.charAt(0) == '\\'
+                   && !Character.isLetterOrDigit(regex.charAt(1))) {
+            c = regex.charAt(1);
+        } else {
+            return -1;
+        }
+        return (c < TABLE_CHARS) ? c : -1;
+
+    }
+
+    // ------------------------------------------------ Inner Classes
+
+    /**
+     * One compiled escape rule.
+     */
+    public abstract static class Rule {
+
+        /**
+         * Return the regular expression this rule searches for.
+         */
+        public abstract String getPattern();
+
+        /**
+         * Return the specified value with every match of this rule
+         * replaced, or the same String instance if nothing matched.
+         *
+         * @param value The value to escape
+         */
+        public abstract String apply(String value);
+
+        /**
+         * Return true if the entire specified value matches this rule.
+         *
+         * @param value The value to test
+         */
+        public abstract boolean matches(String value);
+    }
+
+    /**
+     * A rule that replaces single characters through a lookup table.
+     */
+    private static final class CharRule extends Rule {
+
+        private final String[] table;
+        private final String pattern;
+
+        CharRule(String[] table, String pattern) {
+
+            this.table = table;
+            this.pattern = pattern;
+
+        }
+
+        @Override
+        public String getPattern() {
+
+            return pattern;
+
+        }
+
+        @Override
+        public String apply(String value) {
+
+            int length = value.length();
+            int i = 0;
+            while (i < length) {
+                char c = value.charAt(i);
+                if (c < TABLE_CHARS && table[c] != null) {
+                    break;
+                }
+                i++;
+            }
+            if (i == length) {
+                return value;
+            }
+            StringBuilder sb = new StringBuilder(length + 16);
+            sb.append(value, 0, i);
+            for (; i < length; i++) {
+                char c = value.charAt(i);
+                if (c < TABLE_CHARS && table[c] != null) {
+                    sb.append(table[c]);
+                } else {
+                    sb.append(c);
+                }
+            }
+            return sb.toString();
+
+        }
+
+        @Override
+        public boolean matches(String value) {
+
+            if (value.length() != 1) {
+                return false;
+            }
+            char c = value.charAt(0);
+            return c < TABLE_CHARS && table[c] != null;
+
+        }
+    }
+
+    /**
+     * A rule that replaces matches of a precompiled regular expression.
+     */
+    private static final class RegexRule extends Rule {
+
+        private final Pattern pattern;
+        private final String replacement;
+        private final long matchTimeout;
+        private final boolean denyOnTimeout;
+
+        RegexRule(Pattern pattern, String replacement, long matchTimeout,
+                  boolean denyOnTimeout) {
+
+            this.pattern = pattern;
+            this.replacement = replacement;
+            this.matchTimeout = matchTimeout;
+            this.denyOnTimeout = denyOnTimeout;
+
+        }
+
+        /**
+         * Return the text to match against: the value itself, or the
+         * value with a deadline if there is a match timeout.
+         */
+        private CharSequence text(String value) {
+
+            if (matchTimeout <= 0L) {
+                return value;
+            }
+            return new DeadlineCharSequence(value,
+                System.nanoTime() + matchTimeout);
+
+        }
+
+        @Override
+        public String getPattern() {
+
+            return pattern.pattern();
+
+        }
+
+        @Override
+        public String apply(String value) {
+
+            try {
+                Matcher matcher = pattern.matcher(text(value));
+                if (!matcher.find()) {
+                    return value;
+                }
+                return matcher.replaceAll(replacement);
+            } catch (MatchTimeoutException e) {
+                if (denyOnTimeout) {
+                    throw new MatchTimeoutException(pattern);
+                }
+                return value;
+            }
+
+        }
+
+        @Override
+        public boolean matches(String value) {
+
+            try {
+                return pattern.matcher(text(value)).matches();
+            } catch (MatchTimeoutException e) {
+                if (denyOnTimeout) {
+                    throw new MatchTimeoutException(pattern);
+                }
+                return false;
+            }
+
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (c) 2007 O'Reilly Media.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.oreilly.tomcat.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A histogram of elapsed times that many threads can record into at the
+ * same time without contending for one memory location.
+ *
+ * <br><br>
+ *
+ * Bucket 0 counts times under one microsecond, and bucket <i>n</i> counts
+ * times under 2<sup><i>n</i></sup> microseconds that didn't fit in bucket
+ * <i>n</i> - 1.  The last bucket counts everything longer.  Like a
+ * StripedCounter, every thread records into a stripe of its own, and the
+ * stripes are added up when the histogram is read.
+ */
+public final class LatencyHistogram {
+
+    // --------------------------------------------- Static Variables
+
+    /**
+     * The number of buckets.  The last bounded bucket ends at about 8.4
+     * seconds.
+     */
+    public static final int BUCKETS = 25;
+
+    /**
+     * The number of longs in each stripe: the buckets, the total time,
+     * and padding up to a whole number of cache lines.
+     */
+    private static final int STRIPE_LENGTH =
+        ((BUCKETS + 1 + StripedCounter.PADDING - 1) / StripedCounter.PADDING
+         + 1) * StripedCounter.PADDING;
+
+    // ------------------------------------------- Instance Variables
+
+    /**
+     * The stripes, each holding <code>BUCKETS</code> counts followed by
+     * the total recorded time in nanoseconds.
+     */
+    private final AtomicLongArray cells =
+        new AtomicLongArray(StripedCounter.STRIPES * STRIPE_LENGTH);
+
+    // ----------------------------------------------- Public Methods
+
+    /**
+     * Record one elapsed time.
+     *
+     * @param nanos The elapsed time in nanoseconds
+     */
+    public void record(long nanos) {
+
+        if (nanos < 0L) {
+            nanos = 0L;
+        }
+        long micros = nanos / 1000L;
+        int bucket = (micros == 0L)
+            ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+        if (bucket >= BUCKETS) {
+            bucket = BUCKETS - 1;
+        }
+        int base = StripedCounter.stripe() * STRIPE_LENGTH;
+        cells.getAndIncrement(base + bucket);
+        cells.getAndAdd(base + BUCKETS, nanos);
+
+    }
+
+    /**
+     * Return the count of each bucket.
+     */
+    public long[] getCounts() {
+
+        long[] counts = new long[BUCKETS];
+        for (int s = 0; s < StripedCounter.STRIPES; s++) {
+            int base = s * STRIPE_LENGTH;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += cells.get(base + i);
+            }
+        }
+        return counts;
+
+    }
+
+    /**
+     * Return the number of times recorded.
+     */
+    public long getCount() {
+
+        long[] counts = getCounts();
+        long count = 0L;
+        for (int i = 0; i < counts.length; i++) {
+            count += counts[i];
+        }
+        return count;
+
+    }
+
+    /**
+     * Return the sum of the times recorded, in nanoseconds.
+     */
+    public long getTotalTime() {
+
+        long total = 0L;
+        for (int s = 0; s < StripedCounter.STRIPES; s++) {
+            total += cells.get(s * STRIPE_LENGTH + BUCKETS);
+        }
+        return total;
+
+    }
+
+    /**
+     * Return the exclusive upper bound of each bucket in microseconds.
+     * The last bucket has no upper bound, and is reported as
+     * Long.MAX_VALUE.
+     */
+    public static long[] getBucketBounds() {
+
+        long[] bounds = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            bounds[i] = 1L << i;
+        }
+        bounds[BUCKETS - 1] = Long.MAX_VALUE;
+        return bounds;
+
+    }
+
+    /**
+     * Set all of the counts back to zero.
+     */
+    public void reset() {
+
+        for (int i = 0; i < cells.length(); i++) {
+            cells.set(i, 0L);
+        }
+
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (c) 2007 O'Reilly Media.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.oreilly.tomcat.util;
+
+import java.util.regex.Pattern;
+
+
+/**
+ * Thrown when matching a regular expression against a value takes longer
+ * than the configured match timeout, which usually means the expression
+ * is backtracking catastrophically on a crafted value.
+ */
+public class MatchTimeoutException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The expression that was being matched.
+     */
+    private transient Pattern pattern;
+
+    /**
+     * Construct a new MatchTimeoutException.
+     *
+     * @param pattern The expression that was being matched, may be null
+     *  if it isn't known yet
+     */
+    public MatchTimeoutException(Pattern pattern) {
+
+        super("Match timed out"
+              + ((pattern == null) ? "" : ": \"" + pattern.pattern() + "\""));
+        this.pattern = pattern;
+
+    }
+
+    /**
+     * Return the expression that was being matched, or null if unknown.
+     */
+    public Pattern getPattern() {
+
+        return pattern;
+
+    }
+}
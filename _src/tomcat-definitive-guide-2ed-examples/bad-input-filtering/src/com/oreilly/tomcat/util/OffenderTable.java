@@ -0,0 +1,722 @@
+/*
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (c) 2007 O'Reilly Media.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.oreilly.tomcat.util;
+
+
+/**
+ * Remembers the clients whose requests were refused, so that repeat
+ * offenders can be turned away before their requests are parsed and
+ * matched against the rules again.
+ *
+ * <br><br>
+ *
+ * Each refused request adds one to its client's score, and the score
+ * halves every half-life after that, so a client that stops offending is
+ * forgiven over time.  A client is blocked while its score is at or
+ * above the threshold, and is forgotten altogether once it hasn't
+ * offended for the time to live.
+ *
+ * <br><br>
+ *
+ * Clients are keyed by a single long: an IPv6 address by its /64
+ * prefix, since a single IPv6 host can use any address in its /64, and
+ * an IPv4 address by its 32 bits under a family prefix of all ones, the
+ * start of the IPv6 multicast range, which no client's address is in.
+ * IPv4-mapped IPv6 addresses count as the IPv4 address.  The table is
+ * a fixed number of slots in parallel primitive arrays, split into
+ * independently locked segments, so that looking a client up creates no
+ * garbage.  A client can only occupy one of a small window of slots,
+ * and when they are all taken, the client with the lowest score is
+ * replaced.  A scan from many addresses
+ * therefore can't make the table grow, or push the worst offenders out
+ * of it.
+ *
+ * <br><br>
+ *
+ * Clients can also be blocked on behalf of other nodes of a cluster.
+ * They stay blocked for one half-life after the last time they were
+ * blocked this way, and are told apart from the clients that offended
+ * here, so that nodes don't keep each other's blocks alive forever.
+ * A client that offended here too counts as blocked on behalf of another
+ * node while that block holds it.
+ */
+public final class OffenderTable {
+
+    // --------------------------------------------- Static Variables
+
+    /**
+     * The key of an address that can't be parsed.
+     */
+    public static final long NO_KEY = Long.MIN_VALUE;
+
+    /**
+     * The upper 32 bits of the key of every IPv4 address, which are a
+     * multicast prefix in IPv6, so that no IPv6 key can be the same.
+     */
+    private static final long IPV4_FAMILY = 0xffffffff00000000L;
+
+    /**
+     * The number of segments.
+     */
+    private static final int SEGMENTS = 16;
+
+    /**
+     * The number of slots a client may occupy.
+     */
+    private static final int PROBES = 8;
+
+    /**
+     * How far below the threshold a score may be and still block, so
+     * that N offenses in quick succession reach a threshold of N despite
+     * the little decay between them.
+     */
+    private static final double TOLERANCE = 0.01;
+
+    // ------------------------------------------- Instance Variables
+
+    /**
+     * The segments, selected by the upper bits of a key's hash.
+     */
+    private final Segment[] segments;
+
+    /**
+     * The score at which a client is blocked.
+     */
+    private final double threshold;
+
+    /**
+     * The time it takes a score to halve, in milliseconds.
+     */
+    private final long halfLife;
+
+    /**
+     * The time after the last offense at which a client is forgotten, in
+     * milliseconds.
+     */
+    private final long ttl;
+
+    /**
+     * The number of times a client was looked up.
+     */
+    private final StripedCounter lookupCount = new StripedCounter();
+
+    /**
+     * The number of lookups that found the client blocked.
+     */
+    private final StripedCounter hitCount = new StripedCounter();
+
+    /**
+     * Told about the clients that offended here often enough to be
+     * blocked, or null.
+     */
+    private volatile Listener listener = null;
+
+    // ------------------------------------------------- Constructors
+
+    /**
+     * Construct a new, empty OffenderTable.
+     *
+     * @param size The number of clients the table holds, rounded up to a
+     *  multiple of a power of two
+     * @param threshold The score at which a client is blocked
+     * @param halfLife The time it takes a score to halve, in milliseconds
+     * @param ttl The time after the last offense at which a client is
+     *  forgotten, in milliseconds
+     */
+    public OffenderTable(int size, double threshold, long halfLife,
+                         long ttl) {
+
+        if (size <= 0 || threshold <= 0.0 || halfLife <= 0L || ttl <= 0L) {
+            throw new IllegalArgumentException("size, threshold, halfLife "
+                + "and ttl must be positive");
+        }
+        this.threshold = threshold;
+        this.halfLife = halfLife;
+        this.ttl = ttl;
+
+        int capacity = PROBES;
+        while (capacity * SEGMENTS < size) {
+            capacity <<= 1;
+        }
+        segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(capacity);
+        }
+
+    }
+
+    // --------------------------------------------------- Properties
+
+    /**
+     * Return the number of clients the table can hold.
+     */
+    public int getCapacity() {
+
+        return segments.length * segments[0].keys.length;
+
+    }
+
+    /**
+     * Return the number of clients in the table, including those that
+     * are no longer blocked but not yet forgotten.
+     */
+    public int getSize() {
+
+        int size = 0;
+        for (int i = 0; i < segments.length; i++) {
+            Segment segment = segments[i];
+            synchronized (segment) {
+                size += segment.count;
+            }
+        }
+        return size;
+
+    }
+
+    /**
+     * Return the score at which a client is blocked.
+     */
+    public double getThreshold() {
+
+        return threshold;
+
+    }
+
+    /**
+     * Return the number of times a client was looked up.
+     */
+    public long getLookupCount() {
+
+        return lookupCount.get();
+
+    }
+
+    /**
+     * Return the number of lookups that found the client blocked.
+     */
+    public long getHitCount() {
+
+        return hitCount.get();
+
+    }
+
+    /**
+     * Return the share of lookups that found the client blocked, between
+     * 0 and 1.
+     */
+    public double getHitRate() {
+
+        long lookups = lookupCount.get();
+        return (lookups == 0L) ? 0.0 : (double) hitCount.get() / lookups;
+
+    }
+
+    /**
+     * Set the Listener to tell about the clients that offend here often
+     * enough to be blocked.
+     *
+     * @param listener The Listener, or null
+     */
+    public void setListener(Listener listener) {
+
+        this.listener = listener;
+
+    }
+
+    // ----------------------------------------------- Public Methods
+
+    /**
+     * Return true if a client's score is at or above the threshold.
+     *
+     * @param remoteAddr The address of the client
+     */
+    public boolean isBlocked(String remoteAddr) {
+
+        lookupCount.increment();
+        long key = key(remoteAddr);
+        if (key == NO_KEY) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        boolean blocked;
+        Segment segment = segment(key);
+        synchronized (segment) {
+            int slot = segment.find(key, hash(key), now);
+            blocked = slot >= 0
+                && segment.score(slot, now) + TOLERANCE >= threshold;
+        }
+        if (blocked) {
+            hitCount.increment();
+        }
+        return blocked;
+
+    }
+
+    /**
+     * Add one to a client's score.
+     *
+     * @param remoteAddr The address of the client
+     *
+     * @return the client's new score, or 0 if the address can't be
+     *  parsed.
+     */
+    public double offend(String remoteAddr) {
+
+        long key = key(remoteAddr);
+        if (key == NO_KEY) {
+            return 0.0;
+        }
+        long now = System.currentTimeMillis();
+        double score;
+        boolean blocked;
+        Segment segment = segment(key);
+        synchronized (segment) {
+            int slot = segment.slot(key, hash(key), now);
+            double old = segment.score(slot, now);
+            score = old + 1.0;
+            blocked = old + TOLERANCE < threshold
+                && score + TOLERANCE >= threshold;
+            segment.scores[slot] = score;
+            segment.stamps[slot] = now;
+            // A client still blocked on behalf of another node stays so,
+            // rather than being passed back to it as blocked here.
+            segment.remote[slot] &= old + TOLERANCE >= threshold;
+        }
+        Listener l = listener;
+        if (blocked && l != null) {
+            l.blocked(key);
+        }
+        return score;
+
+    }
+
+    /**
+     * Block a client on behalf of another node, for one half-life.
+     *
+     * @param key The key of the client
+     *
+     * @return true if the client wasn't blocked before.
+     */
+    public boolean block(long key) {
+
+        if (key == NO_KEY) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        Segment segment = segment(key);
+        synchronized (segment) {
+            int slot = segment.slot(key, hash(key), now);
+            double score = segment.score(slot, now);
+            if (score < 2.0 * threshold) {
+                segment.scores[slot] = 2.0 * threshold;
+                segment.stamps[slot] = now;
+                segment.remote[slot] = true;
+            }
+            return score + TOLERANCE < threshold;
+        }
+
+    }
+
+    /**
+     * Return the keys of the clients that are blocked because they
+     * offended here, as opposed to on other nodes.
+     */
+    public long[] getBlockedKeys() {
+
+        long now = System.currentTimeMillis();
+        long[] keys = new long[16];
+        int count = 0;
+        for (int i = 0; i < segments.length; i++) {
+            Segment segment = segments[i];
+            synchronized (segment) {
+                for (int slot = 0; slot < segment.keys.length; slot++) {
+                    if (segment.stamps[slot] == 0L || segment.remote[slot]
+                        || now - segment.stamps[slot] >= ttl
+                        || segment.score(slot, now) + TOLERANCE
+                           < threshold) {
+                        continue;
+                    }
+                    if (count == keys.length) {
+                        long[] more = new long[count * 2];
+                        System.arraycopy(keys, 0, more, 0, count);
+                        keys = more;
+                    }
+                    keys[count++] = segment.keys[slot];
+                }
+            }
+        }
+        long[] result = new long[count];
+        System.arraycopy(keys, 0, result, 0, count);
+        return result;
+
+    }
+
+    /**
+     * Forget the clients that haven't offended for the time to live.
+     * Meant to be called periodically, so that the size doesn't count
+     * clients that are long gone.
+     */
+    public void purge() {
+
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < segments.length; i++) {
+            Segment segment = segments[i];
+            synchronized (segment) {
+                for (int slot = 0; slot < segment.keys.length; slot++) {
+                    if (segment.stamps[slot] != 0L
+                        && now - segment.stamps[slot] >= ttl) {
+                        segment.remove(slot);
+                    }
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Return the key of an IPv4 or IPv6 address, or NO_KEY if it can't
+     * be parsed.  Host names aren't resolved.
+     *
+     * @param addr The address, such as <code>192.0.2.1</code> or
+     *  <code>2001:db8::1</code>
+     */
+    public static long key(String addr) {
+
+        if (addr == null) {
+            return NO_KEY;
+        }
+        int end = addr.length();
+        int start = 0;
+        if (end > 1 && addr.charAt(0) == '[' && addr.charAt(end - 1) == ']') {
+            start = 1;
+            end--;
+        }
+        int zone = addr.indexOf('%', start);
+        if (zone >= 0 && zone < end) {
+            end = zone;
+        }
+        if (addr.indexOf(':', start) < 0) {
+            long ipv4 = parseIPv4(addr, start, end);
+            return (ipv4 < 0L) ? NO_KEY : IPV4_FAMILY | ipv4;
+        }
+        return parseIPv6(addr, start, end);
+
+    }
+
+    /**
+     * Return a text representation of this object.
+     */
+    public String toString() {
+
+        return "OffenderTable[size=" + getSize() + ", capacity="
+            + getCapacity() + ", hitRate=" + getHitRate() + "]";
+
+    }
+
+    // ---------------------------------------------- Private Methods
+
+    private Segment segment(long key) {
+
+        return segments[hash(key) >>> 28];
+
+    }
+
+    /**
+     * Return a well mixed hash of a key.
+     */
+    private static int hash(long key) {
+
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+
+    }
+
+    /**
+     * Return the 32 bits of a dotted quad IPv4 address, or -1 if the
+     * characters from start to end aren't one.
+     */
+    private static long parseIPv4(String addr, int start, int end) {
+
+        long result = 0L;
+        int octets = 0;
+        int i = start;
+        while (octets < 4) {
+            int value = 0;
+            int digits = 0;
+            while (i < end && digits < 3) {
+                char c = addr.charAt(i);
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                value = value * 10 + (c - '0');
+                digits++;
+                i++;
+            }
+            if (digits == 0 || value > 255) {
+                return -1L;
+            }
+            result = (result << 8) | value;
+            octets++;
+            if (octets < 4) {
+                if (i >= end || addr.charAt(i) != '.') {
+                    return -1L;
+                }
+                i++;
+            }
+        }
+        return (i == end) ? result : -1L;
+
+    }
+
+    /**
+     * Return the key of the IPv6 address from start to end: its upper 64
+     * bits, or the key of the IPv4 address it maps.
+     */
+    private static long parseIPv6(String addr, int start, int end) {
+
+        // The groups before and after "::" are collected separately, as
+        // 128 bit numbers in two longs each.
+        long headHigh = 0L;
+        long headLow = 0L;
+        int headGroups = 0;
+        long tailHigh = 0L;
+        long tailLow = 0L;
+        int tailGroups = 0;
+        boolean compressed = false;
+
+        int i = start;
+        if (end - start >= 2 && addr.startsWith("::", start)) {
+            compressed = true;
+            i += 2;
+        }
+        while (i < end) {
+            int groupEnd = i;
+            int value = 0;
+            while (groupEnd < end && groupEnd - i < 4) {
+                int digit = Character.digit(addr.charAt(groupEnd), 16);
+                if (digit < 0) {
+                    break;
+                }
+                value = (value << 4) | digit;
+                groupEnd++;
+            }
+
+            int groups = 1;
+            if (groupEnd < end && addr.charAt(groupEnd) == '.') {
+                // An IPv4 address in the last two groups.
+                long ipv4 = parseIPv4(addr, i, end);
+                if (ipv4 < 0L) {
+                    return NO_KEY;
+                }
+                value = (int) ipv4;
+                groups = 2;
+                groupEnd = end;
+            } else if (groupEnd == i) {
+                return NO_KEY;
+            }
+
+            for (int g = groups - 1; g >= 0; g--) {
+                int group = (value >>> (16 * g)) & 0xffff;
+                if (compressed) {
+                    tailHigh = (tailHigh << 16) | (tailLow >>> 48);
+                    tailLow = (tailLow << 16) | group;
+                    tailGroups++;
+                } else {
+                    headHigh = (headHigh << 16) | (headLow >>> 48);
+                    headLow = (headLow << 16) | group;
+                    headGroups++;
+                }
+            }
+            if (headGroups + tailGroups > 8) {
+                return NO_KEY;
+            }
+
+            i = groupEnd;
+            if (i == end) {
+                break;
+            }
+            if (addr.charAt(i) != ':' || groups == 2) {
+                return NO_KEY;
+            }
+            i++;
+            if (i < end && addr.charAt(i) == ':') {
+                if (compressed) {
+                    return NO_KEY;
+                }
+                compressed = true;
+                i++;
+            } else if (i == end) {
+                return NO_KEY;
+            }
+        }
+        if (compressed ? headGroups + tailGroups == 8
+                       : headGroups != 8) {
+            return NO_KEY;
+        }
+
+        // Shift the head groups into place, and add the tail groups.
+        int shift = 16 * (8 - headGroups);
+        long high;
+        long low;
+        if (shift >= 128) {
+            high = 0L;
+            low = 0L;
+        } else if (shift >= 64) {
+            high = headLow << (shift - 64);
+            low = 0L;
+        } else if (shift > 0) {
+            high = (headHigh << shift) | (headLow >>> (64 - shift));
+            low = headLow << shift;
+        } else {
+            high = headHigh;
+            low = headLow;
+        }
+        high |= tailHigh;
+        low |= tailLow;
+
+        if (high == 0L && (low >>> 32) == 0xffffL) {
+            return IPV4_FAMILY | (low & 0xffffffffL);
+        }
+        if ((high >>> 56) == 0xffL) {
+            // A multicast address never sends a request, and its prefix
+            // is what tells IPv4 keys apart.
+            return NO_KEY;
+        }
+        return high;
+
+    }
+
+    // ------------------------------------------------ Inner Classes
+
+    /**
+     * Told by an OffenderTable about the clients that offended often
+     * enough to be blocked.
+     */
+    public interface Listener {
+
+        /**
+         * A client's score reached the threshold.  Called on the thread
+         * that recorded the offense, so it must not block.
+         *
+         * @param key The key of the client
+         */
+        public void blocked(long key);
+    }
+
+    /**
+     * A part of the table with a lock of its own.  A slot whose stamp is
+     * zero is free.
+     */
+    private final class Segment {
+
+        final long[] keys;
+        final double[] scores;
+        final long[] stamps;
+        final boolean[] remote;
+        final int mask;
+        int count = 0;
+
+        Segment(int capacity) {
+            keys = new long[capacity];
+            scores = new double[capacity];
+            stamps = new long[capacity];
+            remote = new boolean[capacity];
+            mask = capacity - 1;
+        }
+
+        /**
+         * Return the slot that holds a key, or -1.  A client that hasn't
+         * offended for the time to live is removed on the way.
+         */
+        int find(long key, int hash, long now) {
+            int start = hash & mask;
+            for (int p = 0; p < PROBES; p++) {
+                int slot = (start + p) & mask;
+                if (stamps[slot] != 0L && keys[slot] == key) {
+                    if (now - stamps[slot] >= ttl) {
+                        remove(slot);
+                        return -1;
+                    }
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Return the score of the client in a slot, decayed until now.
+         */
+        double score(int slot, long now) {
+            long age = now - stamps[slot];
+            if (age <= 0L) {
+                return scores[slot];
+            }
+            return scores[slot] * Math.pow(0.5, (double) age / halfLife);
+        }
+
+        /**
+         * Return the slot that holds a key, after putting the key into a
+         * free slot, or in place of the lowest score, if it isn't there
+         * yet.  A new key starts out with a score of zero, blocked on
+         * behalf of another node.
+         */
+        int slot(long key, int hash, long now) {
+            int slot = find(key, hash, now);
+            if (slot >= 0) {
+                return slot;
+            }
+
+            // Take a free slot, or else replace the lowest score.
+            int start = hash & mask;
+            int victim = -1;
+            double lowest = Double.MAX_VALUE;
+            for (int p = 0; p < PROBES; p++) {
+                int s = (start + p) & mask;
+                if (stamps[s] == 0L) {
+                    victim = s;
+                    break;
+                }
+                double score = (now - stamps[s] >= ttl) ? 0.0 : score(s, now);
+                if (score < lowest) {
+                    lowest = score;
+                    victim = s;
+                }
+            }
+            if (stamps[victim] == 0L) {
+                count++;
+            }
+            keys[victim] = key;
+            scores[victim] = 0.0;
+            stamps[victim] = now;
+            remote[victim] = true;
+            return victim;
+        }
+
+        void remove(int slot) {
+            stamps[slot] = 0L;
+            scores[slot] = 0.0;
+            count--;
+        }
+    }
+}
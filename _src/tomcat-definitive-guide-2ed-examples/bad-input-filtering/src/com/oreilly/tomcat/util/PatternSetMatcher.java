@@ -0,0 +1,955 @@
+/*
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (c) 2007 O'Reilly Media.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.oreilly.tomcat.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+
+/**
+ * Evaluates a whole set of <code>deny</code> and <code>allow</code>
+ * regular expressions against a String in a single pass.
+ *
+ * <br><br>
+ *
+ * A required literal substring is extracted from every rule that has
+ * one, and all of those literals are compiled into one Aho-Corasick
+ * automaton.  Each value is scanned by the automaton exactly once, which
+ * yields the set of rules that could possibly match it.  Only those
+ * candidate rules (plus any rule that has no extractable literal) are
+ * then verified with their <code>Pattern</code>, in configuration order,
+ * so the verdict is identical to running every <code>Pattern</code> in
+ * turn the way RequestFilterValve.process() does.
+ *
+ * <br><br>
+ *
+ * Instances are immutable and safe for use by concurrent request threads.
+ */
+public final class PatternSetMatcher {
+
+    // --------------------------------------------- Static Variables
+
+    /**
+     * The verdict for a value when no rules are configured at all.
+     */
+    public static final Verdict NO_RULES =
+        new Verdict(true, false, -1, null, false);
+
+    /**
+     * The verdict for a value that matched no deny rule, when no allow
+     * rules are configured.
+     */
+    public static final Verdict DEFAULT_ALLOW =
+        new Verdict(true, false, -1, null, false);
+
+    /**
+     * The verdict for a value that matched no deny and no allow rule,
+     * when allow rules are configured.
+     */
+    public static final Verdict DEFAULT_DENY =
+        new Verdict(false, false, -1, null, false);
+
+    /**
+     * The number of characters that get a fully expanded transition table
+     * in the automaton.  Everything above this falls back to following
+     * failure links.
+     */
+    private static final int TABLE_CHARS = 128;
+
+    /**
+     * The US-ASCII lower case table used to fold characters.
+     */
+    private static final char[] ASCII_LOWER = new char[TABLE_CHARS];
+
+    static {
+        for (int c = 0; c < TABLE_CHARS; c++) {
+            ASCII_LOWER[c] = Character.toLowerCase((char) c);
+        }
+    }
+
+    // ------------------------------------------- Instance Variables
+
+    /**
+     * All of the rules: the deny rules first, followed by the allow rules.
+     */
+    private final Pattern[] rules;
+
+    /**
+     * The number of deny rules at the front of <code>rules</code>.
+     */
+    private final int denyCount;
+
+    /**
+     * The verdict to return when the rule at the same index fires.
+     */
+    private final Verdict[] verdicts;
+
+    /**
+     * The verdict to return when verifying the rule at the same index
+     * takes longer than the match timeout.
+     */
+    private final Verdict[] timeoutVerdicts;
+
+    /**
+     * The maximum time, in nanoseconds, that verifying all of the rules
+     * against one value may take, or zero for no limit.
+     */
+    private final long matchTimeout;
+
+    /**
+     * Whether the rule at the same index only needs to be verified when
+     * the automaton reported its literal.  Rules without a literal are
+     * verified for every value.
+     */
+    private final boolean[] filtered;
+
+    /**
+     * The number of rules whose literal is part of the automaton.
+     */
+    private final int filteredCount;
+
+    /**
+     * The fully expanded transitions of the automaton for characters below
+     * <code>TABLE_CHARS</code>, indexed by
+     * <code>state * TABLE_CHARS + c</code>.
+     */
+    private final int[] table;
+
+    /**
+     * The trie edge labels of each state, sorted, for characters at or
+     * above <code>TABLE_CHARS</code>.
+     */
+    private final char[][] labels;
+
+    /**
+     * The trie edge targets matching <code>labels</code>.
+     */
+    private final int[][] targets;
+
+    /**
+     * The failure link of each state.
+     */
+    private final int[] failure;
+
+    /**
+     * The rules whose literal ends at each state, or null for none.
+     */
+    private final int[][] outputs;
+
+    // ------------------------------------------------- Constructors
+
+    /**
+     * Construct a new matcher for the given deny and allow rules.
+     *
+     * @param denies The deny rules, in the order they should be checked
+     * @param allows The allow rules, in the order they should be checked
+     */
+    public PatternSetMatcher(Pattern[] denies, Pattern[] allows) {
+
+        this(denies, allows, 0L, true);
+
+    }
+
+    /**
+     * Construct a new matcher for the given deny and allow rules, which
+     * gives up on a value once verifying the rules against it has taken
+     * longer than the specified time.  This protects the request threads
+     * from rules that backtrack catastrophically on crafted values.
+     *
+     * @param denies The deny rules, in the order they should be checked
+     * @param allows The allow rules, in the order they should be checked
+     * @param matchTimeout The maximum time in milliseconds to spend on
+     *  one value, or zero for no limit
+     * @param denyOnTimeout Whether a value is denied (true) or allowed
+     *  (false) when the time runs out
+     */
+    public PatternSetMatcher(Pattern[] denies, Pattern[] allows,
+                             long matchTimeout, boolean denyOnTimeout) {
+
+        this.matchTimeout = matchTimeout * 1000000L;
+        if (denies == null) {
+            denies = new Pattern[0];
+        }
+        if (allows == null) {
+            allows = new Pattern[0];
+        }
+        denyCount = denies.length;
+        rules = new Pattern[denies.length + allows.length];
+        System.arraycopy(denies, 0, rules, 0, denies.length);
+        System.arraycopy(allows, 0, rules, denies.length, allows.length);
+
+        verdicts = new Verdict[rules.length];
+        timeoutVerdicts = new Verdict[rules.length];
+        filtered = new boolean[rules.length];
+        String[] literals = new String[rules.length];
+        int count = 0;
+        for (int i = 0; i < rules.length; i++) {
+            boolean deny = i < denyCount;
+            verdicts[i] = new Verdict(!deny, deny,
+                deny ? i : i - denyCount, rules[i], false);
+            timeoutVerdicts[i] = new Verdict(!denyOnTimeout, deny,
+                deny ? i : i - denyCount, rules[i], true);
+            literals[i] = requiredLiteral(rules[i]);
+            if (literals[i] != null) {
+                filtered[i] = true;
+                count++;
+            }
+        }
+        filteredCount = count;
+
+        // Build the trie of literals.
+        ArrayList<TreeMap<Character, Integer>> edges =
+            new ArrayList<TreeMap<Character, Integer>>();
+        ArrayList<int[]> ends = new ArrayList<int[]>();
+        edges.add(new TreeMap<Character, Integer>());
+        ends.add(null);
+        for (int i = 0; i < literals.length; i++) {
+            if (literals[i] == null) {
+                continue;
+            }
+            int state = 0;
+            for (int j = 0; j < literals[i].length(); j++) {
+                Character c = Character.valueOf(literals[i].charAt(j));
+                Integer next = edges.get(state).get(c);
+                if (next == null) {
+                    next = Integer.valueOf(edges.size());
+                    edges.get(state).put(c, next);
+                    edges.add(new TreeMap<Character, Integer>());
+                    ends.add(null);
+                }
+                state = next.intValue();
+            }
+            ends.set(state, append(ends.get(state), i));
+        }
+
+        int states = edges.size();
+        labels = new char[states][];
+        targets = new int[states][];
+        for (int s = 0; s < states; s++) {
+            TreeMap<Character, Integer> map = edges.get(s);
+            labels[s] = new char[map.size()];
+            targets[s] = new int[map.size()];
+            int k = 0;
+            for (Character c : map.keySet()) {
+                labels[s][k] = c.charValue();
+                targets[s][k] = map.get(c).intValue();
+                k++;
+            }
+        }
+
+        // Compute failure links and merged outputs breadth first, and
+        // expand the table transitions as we go.
+        failure = new int[states];
+        outputs = new int[states][];
+        table = new int[states * TABLE_CHARS];
+        outputs[0] = ends.get(0);
+        LinkedList<Integer> queue = new LinkedList<Integer>();
+        for (int k = 0; k < labels[0].length; k++) {
+            queue.add(Integer.valueOf(targets[0][k]));
+            if (labels[0][k] < TABLE_CHARS) {
+                table[labels[0][k]] = targets[0][k];
+            }
+        }
+        while (!queue.isEmpty()) {
+            int s = queue.removeFirst().intValue();
+            int[] out = ends.get(s);
+            int[] inherited = outputs[failure[s]];
+            if (inherited != null) {
+                for (int k = 0; k < inherited.length; k++) {
+                    out = append(out, inherited[k]);
+                }
+            }
+            outputs[s] = out;
+            System.arraycopy(table, failure[s] * TABLE_CHARS,
+                             table, s * TABLE_CHARS, TABLE_CHARS);
+            for (int k = 0; k < labels[s].length; k++) {
+                int t = targets[s][k];
+                failure[t] = next(failure[s], labels[s][k]);
+                if (labels[s][k] < TABLE_CHARS) {
+                    table[s * TABLE_CHARS + labels[s][k]] = t;
+                }
+                queue.add(Integer.valueOf(t));
+            }
+        }
+
+    }
+
+    // --------------------------------------------------- Properties
+
+    /**
+     * Return true if this matcher has no deny and no allow rules.
+     */
+    public boolean isEmpty() {
+
+        return rules.length == 0;
+
+    }
+
+    /**
+     * Return the match timeout in milliseconds, or zero for no limit.
+     */
+    public long getMatchTimeout() {
+
+        return matchTimeout / 1000000L;
+
+    }
+
+    /**
+     * Return the total number of rules in this matcher.
+     */
+    public int getRuleCount() {
+
+        return rules.length;
+
+    }
+
+    /**
+     * Return the number of rules that are only verified when the
+     * automaton finds their required literal.  The remaining rules have
+     * no extractable literal and are verified against every value.
+     */
+    public int getFilteredRuleCount() {
+
+        return filteredCount;
+
+    }
+
+    // ----------------------------------------------- Public Methods
+
+    /**
+     * Evaluate the rules against the specified value, using the same
+     * semantics as RequestFilterValve.process(): the first matching deny
+     * rule forbids the value, otherwise the first matching allow rule
+     * permits it, otherwise the value is permitted only if there are no
+     * allow rules.
+     *
+     * @param value The value to evaluate
+     *
+     * @return the Verdict, which tells which rule fired, if any.
+     */
+    public Verdict evaluate(CharSequence value) {
+
+        if (rules.length == 0) {
+            return NO_RULES;
+        }
+
+        // Scan the value once, collecting the candidate rules.
+        long candidates = 0L;
+        long[] moreCandidates = null;
+        if (filteredCount > 0) {
+            if (rules.length > 64) {
+                moreCandidates = new long[(rules.length + 63) >> 6];
+            }
+            int state = 0;
+            int length = value.length();
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                if (c < TABLE_CHARS) {
+                    state = table[state * TABLE_CHARS + ASCII_LOWER[c]];
+                } else {
+                    state = next(state, Character.toLowerCase(c));
+                }
+                int[] out = outputs[state];
+                if (out != null) {
+                    for (int k = 0; k < out.length; k++) {
+                        int rule = out[k];
+                        if (moreCandidates == null) {
+                            candidates |= 1L << rule;
+                        } else {
+                            moreCandidates[rule >> 6] |= 1L << rule;
+                        }
+                    }
+                }
+            }
+        }
+
+        // Verify the candidates in configuration order.
+        CharSequence text = value;
+        if (matchTimeout > 0L) {
+            text = new DeadlineCharSequence(value,
+                System.nanoTime() + matchTimeout);
+        }
+        for (int i = 0; i < rules.length; i++) {
+            if (filtered[i]) {
+                long word = (moreCandidates == null)
+                    ? candidates : moreCandidates[i >> 6];
+                if ((word & (1L << i)) == 0L) {
+                    continue;
+                }
+            }
+            try {
+                if (rules[i].matcher(text).find()) {
+                    return verdicts[i];
+                }
+            } catch (MatchTimeoutException e) {
+                return timeoutVerdicts[i];
+            }
+        }
+
+        // Allow if denies specified but not allows
+        if (rules.length == denyCount) {
+            return DEFAULT_ALLOW;
+        }
+        return DEFAULT_DENY;
+
+    }
+
+    /**
+     * Return a text representation of this object.
+     */
+    @Override
+    public String toString() {
+
+        return "PatternSetMatcher[rules=" + rules.length + ", filtered="
+            + filteredCount + ", states=" + failure.length + "]";
+
+    }
+
+    // -------------------------------------------- Protected Methods
+
+    /**
+     * Return the longest substring that every match of the specified
+     * pattern must contain, lower cased, or null if none can be safely
+     * determined.  Only a conservative subset of the regular expression
+     * syntax is understood: anything that is not understood makes the
+     * pattern ineligible, which is always safe.
+     *
+     * @param pattern The pattern to inspect
+     */
+    static String requiredLiteral(Pattern pattern) {
+
+        int flags = pattern.flags();
+        String regex = pattern.pattern();
+        if ((flags & Pattern.LITERAL) != 0) {
+            return (regex.length() > 0) ? fold(regex) : null;
+        }
+        if ((flags & (Pattern.COMMENTS | Pattern.CANON_EQ)) != 0) {
+            return null;
+        }
+        LiteralScanner scanner = new LiteralScanner(regex);
+        String literal = scanner.scan();
+        if (literal == null || scanner.commentsFlag) {
+            return null;
+        }
+        boolean caseInsensitive = scanner.caseInsensitiveFlag
+            || (flags & Pattern.CASE_INSENSITIVE) != 0;
+        boolean unicodeCase = scanner.unicodeCaseFlag
+            || (flags & Pattern.UNICODE_CASE) != 0;
+        if (caseInsensitive && unicodeCase) {
+            // Unicode case folding is not a simple per-char lower case.
+            return null;
+        }
+        return fold(literal);
+
+    }
+
+    // ---------------------------------------------- Private Methods
+
+    /**
+     * Return the state the automaton moves to from the specified state on
+     * the specified (already folded) character.
+     */
+    private int next(int state, char c) {
+
+        while (true) {
+            int k = Arrays.binarySearch(labels[state], c);
+            if (k >= 0) {
+                return targets[state][k];
+            }
+            if (state == 0) {
+                return 0;
+            }
+            state = failure[state];
+        }
+
+    }
+
+    /**
+     * Return the specified String, folded the same way values are folded
+     * while they are scanned.
+     */
+    private static String fold(String s) {
+
+        char[] chars = s.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (chars[i] < TABLE_CHARS)
+                ? ASCII_LOWER[chars[i]] : Character.toLowerCase(chars[i]);
+        }
+        return new String(chars);
+
+    }
+
+    /**
+     * Return a copy of the specified array with the value appended, unless
+     * the array already contains it.
+     */
+    private static int[] append(int[] array, int value) {
+
+        if (array == null) {
+            return new int[] { value };
+        }
+        for (int i = 0; i < array.length; i++) {
+            if (array[i] == value) {
+                return array;
+            }
+        }
+        int[] copy = new int[array.length + 1];
+        System.arraycopy(array, 0, copy, 0, array.length);
+        copy[array.length] = value;
+        return copy;
+
+    }
+
+    // ------------------------------------------------ Inner Classes
+
+    /**
+     * The outcome of evaluating a value against the rules.  One instance
+     * exists per rule, so evaluating a value never allocates a Verdict.
+     */
+    public static final class Verdict {
+
+        private final boolean allowed;
+        private final boolean deny;
+        private final int ruleIndex;
+        private final Pattern rule;
+        private final boolean timedOut;
+
+        private Verdict(boolean allowed, boolean deny, int ruleIndex,
+                        Pattern rule, boolean timedOut) {
+
+            this.allowed = allowed;
+            this.deny = deny;
+            this.ruleIndex = ruleIndex;
+            this.rule = rule;
+            this.timedOut = timedOut;
+
+        }
+
+        /**
+         * Return true if the value is allowed to proceed.
+         */
+        public boolean isAllowed() {
+
+            return allowed;
+
+        }
+
+        /**
+         * Return true if a deny rule fired.
+         */
+        public boolean isDenyRule() {
+
+            return deny;
+
+        }
+
+        /**
+         * Return the index of the rule that fired within its deny or allow
+         * list, or -1 if the verdict was reached without a rule firing.
+         */
+        public int getRuleIndex() {
+
+            return ruleIndex;
+
+        }
+
+        /**
+         * Return true if the verdict was reached because verifying the
+         * rule took longer than the match timeout, rather than because
+         * the rule matched.
+         */
+        public boolean isTimedOut() {
+
+            return timedOut;
+
+        }
+
+        /**
+         * Return the rule that fired, or null if the verdict was reached
+         * without a rule firing.
+         */
+        public Pattern getRule() {
+
+            return rule;
+
+        }
+
+        /**
+         * Return a text representation of this object.
+         */
+        @Override
+        public String toString() {
+
+            if (rule == null) {
+                return allowed ? "allow" : "deny";
+            }
+            return (deny ? "deny[" : "allow[") + ruleIndex + "] \""
+                + rule.pattern() + (timedOut ? "\" (timed out)" : "\"");
+
+        }
+    }
+
+    /**
+     * A minimal regular expression scanner that collects runs of
+     * characters that every match must contain at the top level of the
+     * expression.  It gives up (returns null) on any syntax it does not
+     * fully understand.
+     */
+    private static final class LiteralScanner {
+
+        private final String regex;
+        private int pos = 0;
+        private StringBuilder run = new StringBuilder();
+        private String best = "";
+        boolean caseInsensitiveFlag = false;
+        boolean unicodeCaseFlag = false;
+        boolean commentsFlag = false;
+
+        LiteralScanner(String regex) {
+
+            this.regex = regex;
+
+        }
+
+        /**
+         * Return the longest required literal, or null.
+         */
+        String scan() {
+
+            try {
+                while (pos < regex.length()) {
+                    char c = regex.charAt(pos);
+                    switch (c) {
+                    case '|':
+                        // Top level alternation: no single literal.
+                        return null;
+                    case '(':
+                        skipGroup();
+                        skipQuantifier();
+                        endRun();
+                        break;
+                    case '[':
+                        skipClass();
+                        skipQuantifier();
+                        endRun();
+                        break;
+                    case '.':
+                    case '^':
+                    case '$':
+                        pos++;
+                        skipQuantifier();
+                        endRun();
+                        break;
+                    case '\\':
+                        int literal = escape();
+                        if (literal < 0) {
+                            skipQuantifier();
+                            endRun();
+                        } else {
+                            literal((char) literal);
+                        }
+                        break;
+                    case ')':
+                    case '?':
+                    case '*':
+                    case '+':
+                    case '{':
+                        return null;
+                    default:
+                        pos++;
+                        literal(c);
+                    }
+                }
+            } catch (IllegalStateException e) {
+                return null;
+            } catch (StringIndexOutOfBoundsException e) {
+                return null;
+            }
+            endRun();
+            return (best.length() > 0) ? best : null;
+
+        }
+
+        /**
+         * Add a literal character to the current run, taking any
+         * quantifier that follows it into account.
+         */
+        private void literal(char c) {
+
+            int min = skipQuantifier();
+            if (min == 0) {
+                endRun();
+            } else if (min < 0) {
+                run.append(c);
+            } else {
+                run.append(c);
+                endRun();
+            }
+
+        }
+
+        private void endRun() {
+
+            if (run.length() > best.length()) {
+                best = run.toString();
+            }
+            run.setLength(0);
+
+        }
+
+        /**
+         * Skip an optional quantifier at the current position, and return
+         * its minimum repetition count, or -1 if there is no quantifier.
+         */
+        private int skipQuantifier() {
+
+            if (pos >= regex.length()) {
+                return -1;
+            }
+            int min;
+            char c = regex.charAt(pos);
+            if (c == '?' || c == '*') {
+                min = 0;
+                pos++;
+            } else if (c == '+') {
+                min = 1;
+                pos++;
+            } else if (c == '{') {
+                int close = regex.indexOf('}', pos);
+                if (close < 0) {
+                    throw new IllegalStateException();
+                }
+                String bounds = regex.substring(pos + 1, close);
+                int comma = bounds.indexOf(',');
+                String low = (comma < 0) ? bounds : bounds.substring(0, comma);
+                try {
+                    min = Integer.parseInt(low.trim());
+                } catch (NumberFormatException e) {
+                    throw new IllegalStateException();
+                }
+                pos = close + 1;
+            } else {
+                return -1;
+            }
+            if (pos < regex.length()
+                && (regex.charAt(pos) == '?' || regex.charAt(pos) == '+')) {
+                pos++;
+            }
+            return min;
+
+        }
+
+        /**
+         * Skip a group, including any nested groups and classes, while
+         * recording any embedded flags it sets.
+         */
+        private void skipGroup() {
+
+            pos++;
+            if (regex.charAt(pos) == '?') {
+                int j = pos + 1;
+                while (j < regex.length()
+                       && (Character.isLetter(regex.charAt(j))
+                           || regex.charAt(j) == '-')) {
+                    j++;
+                }
+                if (j > pos + 1 && j < regex.length()
+                    && (regex.charAt(j) == ')' || regex.charAt(j) == ':')) {
+                    String flags = regex.substring(pos + 1, j);
+                    if (flags.indexOf('i') >= 0) {
+                        caseInsensitiveFlag = true;
+                    }
+                    if (flags.indexOf('u') >= 0) {
+                        unicodeCaseFlag = true;
+                    }
+                    if (flags.indexOf('x') >= 0) {
+                        commentsFlag = true;
+                    }
+                }
+            }
+            while (true) {
+                char c = regex.charAt(pos);
+                if (c == '\\') {
+                    skipEscapeInBrackets();
+                } else if (c == '[') {
+                    skipClass();
+                } else if (c == '(') {
+                    skipGroup();
+                } else if (c == ')') {
+                    pos++;
+                    return;
+                } else {
+                    pos++;
+                }
+            }
+
+        }
+
+        /**
+         * Skip a character class, including any nested classes.
+         */
+        private void skipClass() {
+
+            pos++;
+            if (regex.charAt(pos) == '^') {
+                pos++;
+            }
+            if (regex.charAt(pos) == ']') {
+                pos++;
+            }
+            while (true) {
+                char c = regex.charAt(pos);
+                if (c == '\\') {
+                    skipEscapeInBrackets();
+                } else if (c == '[') {
+                    skipClass();
+                } else if (c == ']') {
+                    pos++;
+                    return;
+                } else {
+                    pos++;
+                }
+            }
+
+        }
+
+        /**
+         * Skip an escape inside a group or class, where only its length
+         * matters.
+         */
+        private void skipEscapeInBrackets() {
+
+            if (regex.charAt(pos + 1) == 'Q') {
+                // Quoted sections could hide brackets.
+                throw new IllegalStateException();
+            }
+            pos += 2;
+
+        }
+
+        /**
+         * Consume an escape sequence at the top level, and return the
+         * literal character it stands for, or -1 if it is a character
+         * class or a zero-width assertion.
+         */
+        private int escape() {
+
+            char e = regex.charAt(pos + 1);
+            pos += 2;
+            if (!Character.isLetterOrDigit(e)) {
+                return e;
+            }
+            switch (e) {
+            case 't':
+                return '\t';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 'f':
+                return '\f';
+            case 'a':
+                return '\u0007';
+            case 'e':
+                return '\u001B';
+            case 'x':
+                if (regex.charAt(pos) == '{') {
+                    int close = regex.indexOf('}', pos);
+                    if (close < 0) {
+                        throw new IllegalStateException();
+                    }
+                    int cp = hex(pos + 1, close);
+                    pos = close + 1;
+                    if (cp > Character.MAX_VALUE) {
+                        throw new IllegalStateException();
+                    }
+                    return cp;
+                }
+                pos += 2;
+                return hex(pos - 2, pos);
+            case 'u':
+                pos += 4;
+                return hex(pos - 4, pos);
+            case '0':
+                int value = 0;
+                int digits = 0;
+                int max = 3;
+                while (digits < max && pos < regex.length()
+                       && regex.charAt(pos) >= '0'
+                       && regex.charAt(pos) <= '7') {
+                    if (digits == 0 && regex.charAt(pos) > '3') {
+                        max = 2;
+                    }
+                    value = value * 8 + (regex.charAt(pos) - '0');
+                    digits++;
+                    pos++;
+                }
+                if (digits == 0) {
+                    throw new IllegalStateException();
+                }
+                return value;
+            case 'c':
+                return regex.charAt(pos++) ^ 64;
+            case 'd':
+            case 'D':
+            case 's':
+            case 'S':
+            case 'w':
+            case 'W':
+            case 'b':
+            case 'B':
+            case 'A':
+            case 'z':
+            case 'Z':
+            case 'G':
+                return -1;
+            case 'p':
+            case 'P':
+                if (regex.charAt(pos) == '{') {
+                    int close = regex.indexOf('}', pos);
+                    if (close < 0) {
+                        throw new IllegalStateException();
+                    }
+                    pos = close + 1;
+                } else {
+                    pos++;
+                }
+                return -1;
+            default:
+                // Back references, quoting, and anything newer.
+                throw new IllegalStateException();
+            }
+
+        }
+
+        private int hex(int start, int end) {
+
+            try {
+                return Integer.parseInt(regex.substring(start, end), 16);
+            } catch (NumberFormatException e) {
+                throw new IllegalStateException();
+            }
+
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (c) 2007 O'Reilly Media.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.oreilly.tomcat.util;
+
+import java.nio.CharBuffer;
+
+
+/**
+ * Runs deny rules over an undecoded query string, such as the one
+ * returned by HttpServletRequest.getQueryString(), without asking the
+ * container to parse it into parameters first.
+ *
+ * <br><br>
+ *
+ * Every parameter name and value is percent-decoded on the fly into a
+ * per-thread character buffer, and the rules are evaluated against that
+ * buffer directly, so no String is created for any parameter.  Each
+ * decoded byte becomes one character (as in ISO-8859-1), which keeps the
+ * US-ASCII characters that deny rules look for exact without having to
+ * know the request's character encoding.
+ *
+ * <br><br>
+ *
+ * Only deny rules make sense here: allow rules still have to be applied
+ * to the parsed parameters afterwards.
+ */
+public final class RawQueryInspector {
+
+    // --------------------------------------------- Static Variables
+
+    /**
+     * The largest buffer that is kept for reuse by a thread.  Longer
+     * query strings get a buffer of their own.
+     */
+    private static final int MAX_CACHED_BUFFER = 16384;
+
+    /**
+     * The reusable decoding buffer of each thread.
+     */
+    private static final ThreadLocal<Slice> slices = new ThreadLocal<Slice>();
+
+    // ------------------------------------------------- Constructors
+
+    private RawQueryInspector() {
+    }
+
+    // ----------------------------------------------- Public Methods
+
+    /**
+     * Evaluate the deny rules against every decoded parameter name and
+     * value in the specified query string.
+     *
+     * @param query The undecoded query string, may be null
+     * @param matcher The deny rules
+     *
+     * @return the verdict of the first deny rule that matched, or null if
+     *  none did.
+     */
+    public static PatternSetMatcher.Verdict inspect(CharSequence query,
+                                                   PatternSetMatcher matcher) {
+
+        if (query == null || query.length() == 0 || matcher.isEmpty()) {
+            return null;
+        }
+        Slice slice = slices.get();
+        if (slice == null || slice.chars.length < query.length()) {
+            slice = new Slice(new char[Math.max(query.length(), 256)]);
+            if (query.length() <= MAX_CACHED_BUFFER) {
+                slices.set(slice);
+            }
+        }
+
+        char[] chars = slice.chars;
+        int length = query.length();
+        int start = 0;
+        boolean inValue = false;
+        for (int i = 0; i <= length; i++) {
+            char c = (i < length) ? query.charAt(i) : '&';
+            if (c == '&' || (c == '=' && !inValue)) {
+                // The end of a name or a value: evaluate it.
+                slice.length = decode(query, start, i, chars);
+                if (slice.length > 0) {
+                    PatternSetMatcher.Verdict verdict =
+                        matcher.evaluate(slice);
+                    if (!verdict.isAllowed()) {
+                        return verdict;
+                    }
+                }
+                start = i + 1;
+                inValue = (c == '=');
+            }
+        }
+        return null;
+
+    }
+
+    // ---------------------------------------------- Private Methods
+
+    /**
+     * Percent-decode the specified part of the query string into the
+     * buffer, and return the number of characters decoded.
+     */
+    private static int decode(CharSequence query, int start, int end,
+                              char[] chars) {
+
+        int n = 0;
+        for (int i = start; i < end; i++) {
+            char c = query.charAt(i);
+            if (c == '+') {
+                c = ' ';
+            } else if (c == '%' && i + 2 < end) {
+                int high = Character.digit(query.charAt(i + 1), 16);
+                int low = Character.digit(query.charAt(i + 2), 16);
+                if (high >= 0 && low >= 0) {
+                    c = (char) (high * 16 + low);
+                    i += 2;
+                }
+            }
+            chars[n++] = c;
+        }
+        return n;
+
+    }
+
+    // ------------------------------------------------ Inner Classes
+
+    /**
+     * A reusable view of the start of a character buffer.
+     */
+    private static final class Slice implements CharSequence {
+
+        final char[] chars;
+        int length;
+
+        Slice(char[] chars) {
+
+            this.chars = chars;
+
+        }
+
+        public char charAt(int index) {
+
+            if (index >= length) {
+                throw new IndexOutOfBoundsException();
+            }
+            return chars[index];
+
+        }
+
+        public int length() {
+
+            return length;
+
+        }
+
+        public CharSequence subSequence(int start, int end) {
+
+            if (end > length) {
+                throw new IndexOutOfBoundsException();
+            }
+            return CharBuffer.wrap(chars, start, end - start).slice();
+
+        }
+
+        @Override
+        public String toString() {
+
+            return new String(chars, 0, length);
+
+        }
+    }
+}
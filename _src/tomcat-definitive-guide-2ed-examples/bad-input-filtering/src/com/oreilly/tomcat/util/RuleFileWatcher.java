@@ -0,0 +1,214 @@
+/*
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (c) 2007 O'Reilly Media.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.oreilly.tomcat.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+
+/**
+ * Watches a rules file in <code>java.util.Properties</code> format, and
+ * hands its contents to a Listener whenever the file changes.
+ *
+ * <br><br>
+ *
+ * The file is checked by calling check(), either from a thread the
+ * caller already has (such as a Valve's backgroundProcess()), or from a
+ * daemon thread of the watcher's own, started with start().  Either way,
+ * the file is read and the Listener compiles its new rules off the
+ * request threads.  A missing file is treated as an empty one.
+ */
+public class RuleFileWatcher implements Runnable {
+
+    // ------------------------------------------- Instance Variables
+
+    /**
+     * The file to watch.
+     */
+    private final File file;
+
+    /**
+     * The Listener to notify of changes.
+     */
+    private final Listener listener;
+
+    /**
+     * The modification time of the file when it was last read, or -1 if
+     * it hasn't been read yet.
+     */
+    private long lastModified = -1L;
+
+    /**
+     * The length of the file when it was last read.
+     */
+    private long lastLength = -1L;
+
+    /**
+     * The time between two checks of the own thread, in milliseconds.
+     */
+    private long interval = 10000L;
+
+    /**
+     * The own thread, while it is running.
+     */
+    private volatile Thread thread = null;
+
+    // ------------------------------------------------- Constructors
+
+    /**
+     * Construct a new RuleFileWatcher.
+     *
+     * @param file The rules file to watch
+     * @param listener The Listener to notify of changes
+     */
+    public RuleFileWatcher(File file, Listener listener) {
+
+        this.file = file;
+        this.listener = listener;
+
+    }
+
+    // --------------------------------------------------- Properties
+
+    /**
+     * Return the rules file.
+     */
+    public File getFile() {
+
+        return file;
+
+    }
+
+    // ----------------------------------------------- Public Methods
+
+    /**
+     * Read the rules file, and pass its contents to the Listener, if the
+     * file has changed since it was last read.
+     *
+     * @exception IOException if the file can't be read
+     * @exception IllegalArgumentException if the Listener rejects the
+     *  new rules, in which case they are offered again after the next
+     *  change of the file
+     *
+     * @return true if the Listener was notified.
+     */
+    public synchronized boolean check() throws IOException {
+
+        long modified = file.lastModified();
+        long length = file.length();
+        if (modified == lastModified && length == lastLength) {
+            return false;
+        }
+        lastModified = modified;
+        lastLength = length;
+
+        Properties rules = new Properties();
+        if (file.exists()) {
+            InputStream in = new FileInputStream(file);
+            try {
+                rules.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        listener.rulesChanged(rules);
+        return true;
+
+    }
+
+    /**
+     * Start a daemon thread that checks the rules file at the specified
+     * interval.
+     *
+     * @param interval The time between two checks, in milliseconds
+     */
+    public synchronized void start(long interval) {
+
+        if (thread != null) {
+            return;
+        }
+        this.interval = interval;
+        thread = new Thread(this, "RuleFileWatcher[" + file.getName() + "]");
+        thread.setDaemon(true);
+        thread.start();
+
+    }
+
+    /**
+     * Stop the daemon thread, if it is running.
+     */
+    public synchronized void stop() {
+
+        Thread t = thread;
+        thread = null;
+        if (t != null) {
+            t.interrupt();
+        }
+
+    }
+
+    /**
+     * Check the rules file at the configured interval until stopped.
+     */
+    public void run() {
+
+        while (thread == Thread.currentThread()) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            try {
+                check();
+            } catch (Exception e) {
+                listener.rulesFailed(e);
+            }
+        }
+
+    }
+
+    // ------------------------------------------------ Inner Classes
+
+    /**
+     * Notified by a RuleFileWatcher when its rules file changes.
+     */
+    public interface Listener {
+
+        /**
+         * Put the rules of the changed file into effect.
+         *
+         * @param rules The contents of the file, empty if it was removed
+         *
+         * @exception IllegalArgumentException if the rules are invalid
+         */
+        public void rulesChanged(Properties rules);
+
+        /**
+         * Report that the file could not be read, or that its rules were
+         * rejected, when it was checked by the watcher's own thread.
+         *
+         * @param e The exception
+         */
+        public void rulesFailed(Exception e);
+    }
+}
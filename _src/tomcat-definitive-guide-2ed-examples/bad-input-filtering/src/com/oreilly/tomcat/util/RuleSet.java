@@ -0,0 +1,246 @@
+/*
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (c) 2007 O'Reilly Media.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.oreilly.tomcat.util;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+
+/**
+ * A compiled snapshot of all of the rules a BadInputValve or
+ * BadInputFilter applies: the combined deny and allow matcher, the deny
+ * rules alone, and the substitution rules.
+ *
+ * <br><br>
+ *
+ * Instances are immutable.  Request threads read the current snapshot
+ * through a single volatile reference, and a changed configuration is
+ * put into effect by compiling a new snapshot and replacing the
+ * reference, so the rules can be changed while requests are being
+ * processed without any locking on the request path.
+ */
+public final class RuleSet {
+
+    // --------------------------------------------- Static Variables
+
+    /**
+     * A snapshot without any rules.
+     */
+    public static final RuleSet EMPTY =
+        new RuleSet(null, null, null, 0L, true);
+
+    // ------------------------------------------- Instance Variables
+
+    /**
+     * The comma-delimited set of <code>allow</code> expressions.
+     */
+    private final String allow;
+
+    /**
+     * The comma-delimited set of <code>deny</code> expressions.
+     */
+    private final String deny;
+
+    /**
+     * The deny and allow rules combined into a single matcher.
+     */
+    private final PatternSetMatcher ruleMatcher;
+
+    /**
+     * The deny rules alone.
+     */
+    private final PatternSetMatcher denyMatcher;
+
+    /**
+     * The substitution rules.
+     */
+    private final EscapeTable escapeTable;
+
+    /**
+     * The match timeout in milliseconds, or zero for no limit.
+     */
+    private final long matchTimeout;
+
+    /**
+     * Whether a value that runs out of match time is denied.
+     */
+    private final boolean denyOnMatchTimeout;
+
+    // ------------------------------------------------- Constructors
+
+    /**
+     * Compile a new snapshot.
+     *
+     * @param allow The comma-delimited set of allow expressions, may be
+     *  null
+     * @param deny The comma-delimited set of deny expressions, may be null
+     * @param escapes The mapping of regular expression to replacement
+     *  String for the substitution rules, may be null
+     * @param matchTimeout The maximum time in milliseconds to spend
+     *  matching one value, or zero for no limit
+     * @param denyOnMatchTimeout Whether a value that runs out of match
+     *  time is denied (true) or let through (false)
+     *
+     * @exception IllegalArgumentException if one of the expressions has
+     *  invalid syntax
+     */
+    public RuleSet(String allow, String deny, Map<String, String> escapes,
+                   long matchTimeout, boolean denyOnMatchTimeout) {
+
+        Pattern[] allows = compile(allow);
+        Pattern[] denies = compile(deny);
+        this.allow = allow;
+        this.deny = deny;
+        this.matchTimeout = matchTimeout;
+        this.denyOnMatchTimeout = denyOnMatchTimeout;
+        ruleMatcher = new PatternSetMatcher(denies, allows, matchTimeout,
+                                            denyOnMatchTimeout);
+        denyMatcher = new PatternSetMatcher(denies, null, matchTimeout,
+                                            denyOnMatchTimeout);
+        escapeTable = (escapes == null || escapes.isEmpty())
+            ? EscapeTable.EMPTY
+            : new EscapeTable(escapes, matchTimeout, denyOnMatchTimeout);
+
+    }
+
+    // --------------------------------------------------- Properties
+
+    /**
+     * Return the comma-delimited set of allow expressions, or null.
+     */
+    public String getAllow() {
+
+        return allow;
+
+    }
+
+    /**
+     * Return the comma-delimited set of deny expressions, or null.
+     */
+    public String getDeny() {
+
+        return deny;
+
+    }
+
+    /**
+     * Return the matcher for the deny and allow rules together.
+     */
+    public PatternSetMatcher getRuleMatcher() {
+
+        return ruleMatcher;
+
+    }
+
+    /**
+     * Return the matcher for the deny rules alone, for request properties
+     * that allow rules don't apply to.
+     */
+    public PatternSetMatcher getDenyMatcher() {
+
+        return denyMatcher;
+
+    }
+
+    /**
+     * Return the substitution rules.
+     */
+    public EscapeTable getEscapeTable() {
+
+        return escapeTable;
+
+    }
+
+    /**
+     * Return the match timeout in milliseconds, or zero for no limit.
+     */
+    public long getMatchTimeout() {
+
+        return matchTimeout;
+
+    }
+
+    /**
+     * Return whether a value that runs out of match time is denied.
+     */
+    public boolean getDenyOnMatchTimeout() {
+
+        return denyOnMatchTimeout;
+
+    }
+
+    // ----------------------------------------------- Public Methods
+
+    /**
+     * Return an array of regular expression objects initialized from the
+     * specified argument, which must be <code>null</code> or a
+     * comma-delimited list of regular expression patterns.
+     *
+     * @param list The comma-separated list of patterns
+     *
+     * @exception IllegalArgumentException if one of the patterns has
+     *  invalid syntax
+     */
+    public static Pattern[] compile(String list) {
+
+        if (list == null) {
+            return new Pattern[0];
+        }
+        list = list.trim();
+        if (list.length() < 1) {
+            return new Pattern[0];
+        }
+
+        list += ",";
+
+        ArrayList<Pattern> reList = new ArrayList<Pattern>();
+        while (list.length() > 0) {
+            int comma = list.indexOf(',');
+            if (comma < 0) {
+                break;
+            }
+            String pattern = list.substring(0, comma).trim();
+            try {
+                reList.add(Pattern.compile(pattern));
+            } catch (PatternSyntaxException e) {
+                IllegalArgumentException iae = new IllegalArgumentException(
+                    "Syntax error in request filter pattern " + pattern);
+                iae.initCause(e);
+                throw iae;
+            }
+            list = list.substring(comma + 1);
+        }
+        return reList.toArray(new Pattern[reList.size()]);
+
+    }
+
+    /**
+     * Return a text representation of this object.
+     */
+    @Override
+    public String toString() {
+
+        return "RuleSet[" + ruleMatcher.getRuleCount() + " rules, "
+            + escapeTable.getRuleCount() + " escapes]";
+
+    }
+}
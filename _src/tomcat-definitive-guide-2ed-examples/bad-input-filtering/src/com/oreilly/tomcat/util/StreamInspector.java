@@ -0,0 +1,507 @@
+/*
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (c) 2007 O'Reilly Media.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.oreilly.tomcat.util;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+
+/**
+ * Runs deny rules over a request body while it is being read, using a
+ * fixed amount of memory no matter how large the body is.
+ *
+ * <br><br>
+ *
+ * Bytes are decoded into characters with the body's character encoding,
+ * and then unescaped according to the body's format (for instance, the
+ * JSON escape of a less-than sign becomes a plain <code>&lt;</code>), so
+ * that encoded payloads can't slip past the rules.  In JSON and XML,
+ * line breaks and tabs that aren't escaped only lay out the document,
+ * so they are inspected as plain spaces; escaped ones are inspected as
+ * what they stand for.  The characters are collected in a window of
+ * <code>windowSize</code> characters.  Each time new
+ * characters have been added, the rules are evaluated over them plus the
+ * last <code>overlap</code> characters before them, so a match is found
+ * as long as it is no longer than <code>overlap</code> characters.
+ *
+ * <br><br>
+ *
+ * An instance inspects one body, and is not thread safe.
+ */
+public class StreamInspector {
+
+    // --------------------------------------------- Static Variables
+
+    /**
+     * Inspect the body as plain text.
+     */
+    public static final int TEXT = 0;
+
+    /**
+     * Inspect the body as application/x-www-form-urlencoded data,
+     * decoding <code>%XX</code> escapes and plus signs.  For bodies that
+     * are encoded this way but sent under some other content type; the
+     * container parses a real form body into parameters itself.
+     */
+    public static final int FORM = 1;
+
+    /**
+     * Inspect the body as JSON, decoding backslash escapes.
+     */
+    public static final int JSON = 2;
+
+    /**
+     * Inspect the body as XML, decoding character and entity references.
+     */
+    public static final int XML = 3;
+
+    /**
+     * The names of the modes, indexed by mode.
+     */
+    private static final String[] MODE_NAMES =
+        { "text", "form", "json", "xml" };
+
+    /**
+     * The number of new characters that triggers an evaluation of the
+     * rules, even if the current read isn't over yet.
+     */
+    private static final int SCAN_THRESHOLD = 256;
+
+    /**
+     * The number of bytes decoded at a time.
+     */
+    private static final int BYTE_CHUNK = 2048;
+
+    /**
+     * The maximum length of an escape sequence that is being collected.
+     */
+    private static final int MAX_ESCAPE = 12;
+
+    // ------------------------------------------- Instance Variables
+
+    /**
+     * The deny rules to evaluate.
+     */
+    private final PatternSetMatcher matcher;
+
+    /**
+     * How the body is unescaped.
+     */
+    private final int mode;
+
+    /**
+     * The decoder for the body's character encoding.
+     */
+    private final CharsetDecoder decoder;
+
+    /**
+     * Undecoded bytes, including an incomplete character left over from
+     * the previous read.
+     */
+    private final ByteBuffer bytes = ByteBuffer.allocate(BYTE_CHUNK);
+
+    /**
+     * Decoded characters that have not been unescaped yet.
+     */
+    private final CharBuffer chars = CharBuffer.allocate(BYTE_CHUNK);
+
+    /**
+     * The window of unescaped characters.
+     */
+    private final char[] window;
+
+    /**
+     * The number of characters in the window.
+     */
+    private int length = 0;
+
+    /**
+     * The number of characters at the start of the window that have been
+     * evaluated already.
+     */
+    private int scanned = 0;
+
+    /**
+     * The number of already evaluated characters that are evaluated again
+     * along with new ones.
+     */
+    private final int overlap;
+
+    /**
+     * The escape sequence that is being collected.
+     */
+    private final char[] escape = new char[MAX_ESCAPE];
+
+    /**
+     * The length of the escape sequence that is being collected.
+     */
+    private int escapeLength = 0;
+
+    /**
+     * The verdict of the deny rule that matched, once one has.
+     */
+    private PatternSetMatcher.Verdict denied = null;
+
+    /**
+     * Whether the end of the body has been reached.
+     */
+    private boolean finished = false;
+
+    // ------------------------------------------------- Constructors
+
+    /**
+     * Construct a new StreamInspector.
+     *
+     * @param matcher The deny rules to evaluate
+     * @param mode How to unescape the body: TEXT, FORM, JSON or XML
+     * @param charset The character encoding of the body
+     * @param windowSize The size of the window, in characters
+     * @param overlap The length of the longest match that must be found,
+     *  in characters, which must be at most half of the window size
+     */
+    public StreamInspector(PatternSetMatcher matcher, int mode,
+                           Charset charset, int windowSize, int overlap) {
+
+        if (overlap < 0 || overlap * 2 > windowSize) {
+            throw new IllegalArgumentException(
+                "Overlap must be at most half of the window size");
+        }
+        this.matcher = matcher;
+        this.mode = mode;
+        this.window = new char[windowSize];
+        this.overlap = overlap;
+        decoder = charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    }
+
+    // --------------------------------------------------- Properties
+
+    /**
+     * Return the verdict of the deny rule that matched, or null if none
+     * has matched so far.
+     */
+    public PatternSetMatcher.Verdict getDenied() {
+
+        return denied;
+
+    }
+
+    // ----------------------------------------------- Public Methods
+
+    /**
+     * Return the mode with the specified name (<code>text</code>,
+     * <code>form</code>, <code>json</code> or <code>xml</code>).
+     *
+     * @param name The name of the mode
+     *
+     * @exception IllegalArgumentException if the name is unknown
+     */
+    public static int parseMode(String name) {
+
+        for (int i = 0; i < MODE_NAMES.length; i++) {
+            if (MODE_NAMES[i].equalsIgnoreCase(name.trim())) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException(
+            "Unknown body inspection mode " + name);
+
+    }
+
+    /**
+     * Inspect the next bytes of the body.
+     *
+     * @param b The bytes
+     * @param off The offset of the first byte
+     * @param len The number of bytes
+     *
+     * @return the verdict of the deny rule that matched, or null if none
+     *  has matched so far.
+     */
+    public PatternSetMatcher.Verdict update(byte[] b, int off, int len) {
+
+        while (denied == null && len > 0) {
+            int n = Math.min(len, bytes.remaining());
+            bytes.put(b, off, n);
+            off += n;
+            len -= n;
+            bytes.flip();
+            decode(false);
+            bytes.compact();
+        }
+        scan();
+        return denied;
+
+    }
+
+    /**
+     * Inspect the next byte of the body.  The rules are evaluated only
+     * once enough new characters have arrived, so reading a byte at a
+     * time doesn't evaluate them for every byte.
+     *
+     * @param b The byte
+     *
+     * @return the verdict of the deny rule that matched, or null if none
+     *  has matched so far.
+     */
+    public PatternSetMatcher.Verdict update(int b) {
+
+        if (denied == null) {
+            bytes.put((byte) b);
+            bytes.flip();
+            decode(false);
+            bytes.compact();
+            if (length - scanned >= SCAN_THRESHOLD) {
+                scan();
+            }
+        }
+        return denied;
+
+    }
+
+    /**
+     * Inspect whatever is left after the end of the body has been
+     * reached, such as an unterminated escape sequence.
+     *
+     * @return the verdict of the deny rule that matched, or null if none
+     *  has matched.
+     */
+    public PatternSetMatcher.Verdict finish() {
+
+        if (denied == null && !finished) {
+            finished = true;
+            bytes.flip();
+            decode(true);
+            bytes.clear();
+            chars.clear();
+            decoder.flush(chars);
+            chars.flip();
+            while (chars.hasRemaining()) {
+                unescape(chars.get());
+            }
+            chars.clear();
+            flushEscape();
+            scan();
+        }
+        return denied;
+
+    }
+
+    // ---------------------------------------------- Private Methods
+
+    /**
+     * Decode the available bytes, and unescape the resulting characters.
+     */
+    private void decode(boolean endOfInput) {
+
+        while (true) {
+            CoderResult result = decoder.decode(bytes, chars, endOfInput);
+            chars.flip();
+            while (chars.hasRemaining()) {
+                unescape(chars.get());
+            }
+            chars.clear();
+            if (!result.isOverflow()) {
+                return;
+            }
+        }
+
+    }
+
+    /**
+     * Unescape one character according to the mode.
+     */
+    private void unescape(char c) {
+
+        if (escapeLength == 0) {
+            if ((mode == FORM && c == '%') || (mode == JSON && c == '\\')
+                || (mode == XML && c == '&')) {
+                escape[escapeLength++] = c;
+            } else if (mode == FORM && c == '+') {
+                append(' ');
+            } else if ((mode == JSON || mode == XML)
+                       && (c == '\n' || c == '\r' || c == '\t')) {
+                append(' ');
+            } else {
+                append(c);
+            }
+            return;
+        }
+
+        escape[escapeLength++] = c;
+        switch (mode) {
+        case FORM:
+            if (hexValue(c) < 0) {
+                reject(c);
+            } else if (escapeLength == 3) {
+                append((char) (hexValue(escape[1]) * 16 + hexValue(c)));
+                escapeLength = 0;
+            }
+            break;
+        case JSON:
+            if (escape[1] == 'u') {
+                if (escapeLength > 2 && hexValue(c) < 0) {
+                    reject(c);
+                } else if (escapeLength == 6) {
+                    append((char) Integer.parseInt(
+                        new String(escape, 2, 4), 16));
+                    escapeLength = 0;
+                }
+            } else {
+                int i = "nrtbf/\\\"".indexOf(c);
+                if (i < 0) {
+                    reject(c);
+                } else {
+                    append("\n\r\t\b\f/\\\"".charAt(i));
+                    escapeLength = 0;
+                }
+            }
+            break;
+        case XML:
+            if (c == ';') {
+                int decoded = entity(new String(escape, 1, escapeLength - 2));
+                if (decoded < 0) {
+                    flushEscape();
+                } else {
+                    append((char) decoded);
+                    escapeLength = 0;
+                }
+            } else if (!Character.isLetterOrDigit(c) && c != '#') {
+                reject(c);
+            } else if (escapeLength == MAX_ESCAPE) {
+                flushEscape();
+            }
+            break;
+        default:
+            flushEscape();
+        }
+
+    }
+
+    /**
+     * Give up on the escape sequence that is being collected because of
+     * its last character, and process that character on its own, since
+     * it may start another escape sequence.
+     */
+    private void reject(char c) {
+
+        escapeLength--;
+        flushEscape();
+        unescape(c);
+
+    }
+
+    /**
+     * Append the escape sequence that is being collected as it is,
+     * because it turned out not to be a valid escape.
+     */
+    private void flushEscape() {
+
+        int n = escapeLength;
+        escapeLength = 0;
+        for (int i = 0; i < n; i++) {
+            append(escape[i]);
+        }
+
+    }
+
+    /**
+     * Append one unescaped character to the window, sliding the window
+     * if it is full.
+     */
+    private void append(char c) {
+
+        if (length == window.length) {
+            scan();
+            System.arraycopy(window, length - overlap, window, 0, overlap);
+            length = overlap;
+            scanned = overlap;
+        }
+        window[length++] = c;
+
+    }
+
+    /**
+     * Evaluate the rules over the new characters in the window plus the
+     * overlap before them.
+     */
+    private void scan() {
+
+        if (denied != null || length == scanned) {
+            return;
+        }
+        int from = Math.max(0, scanned - overlap);
+        PatternSetMatcher.Verdict verdict =
+            matcher.evaluate(CharBuffer.wrap(window, from, length - from));
+        if (!verdict.isAllowed()) {
+            denied = verdict;
+        }
+        scanned = length;
+
+    }
+
+    /**
+     * Return the value of a named, decimal or hexadecimal XML character
+     * reference, or -1 if it isn't one.
+     */
+    private static int entity(String name) {
+
+        if (name.equals("lt")) {
+            return '<';
+        } else if (name.equals("gt")) {
+            return '>';
+        } else if (name.equals("amp")) {
+            return '&';
+        } else if (name.equals("quot")) {
+            return '"';
+        } else if (name.equals("apos")) {
+            return '\'';
+        }
+        try {
+            int value;
+            if (name.startsWith("#x") || name.startsWith("#X")) {
+                value = Integer.parseInt(name.substring(2), 16);
+            } else if (name.startsWith("#")) {
+                value = Integer.parseInt(name.substring(1));
+            } else {
+                return -1;
+            }
+            return (value <= Character.MAX_VALUE) ? value : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+
+    }
+
+    /**
+     * Return the value of a hexadecimal digit, or -1 if it isn't one.
+     */
+    private static int hexValue(char c) {
+
+        return Character.digit(c, 16);
+
+    }
+}
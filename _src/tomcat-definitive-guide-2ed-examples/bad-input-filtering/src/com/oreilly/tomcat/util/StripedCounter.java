@@ -0,0 +1,138 @@
+/*
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (c) 2007 O'Reilly Media.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.oreilly.tomcat.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A counter that many threads can increment at the same time without
+ * contending for one memory location.
+ *
+ * <br><br>
+ *
+ * The count is split over several stripes, each on its own cache line,
+ * and every thread adds to the stripe its thread ID selects.  Reading the
+ * count adds the stripes up, so reads are slower than increments, which
+ * suits statistics that are updated on every request and read now and
+ * then over JMX.
+ */
+public final class StripedCounter {
+
+    // --------------------------------------------- Static Variables
+
+    /**
+     * The number of longs between two stripes, so that every stripe is
+     * on a cache line of its own.
+     */
+    static final int PADDING = 8;
+
+    /**
+     * The number of stripes: the smallest power of two that is at least
+     * twice the number of processors, but no more than 64.
+     */
+    static final int STRIPES;
+
+    static {
+        int n = 1;
+        int processors = Runtime.getRuntime().availableProcessors();
+        while (n < processors * 2 && n < 64) {
+            n <<= 1;
+        }
+        STRIPES = n;
+    }
+
+    // ------------------------------------------- Instance Variables
+
+    /**
+     * The stripes, <code>PADDING</code> longs apart.
+     */
+    private final AtomicLongArray cells =
+        new AtomicLongArray(STRIPES * PADDING);
+
+    // ----------------------------------------------- Public Methods
+
+    /**
+     * Add one to the count.
+     */
+    public void increment() {
+
+        cells.getAndIncrement(stripe() * PADDING);
+
+    }
+
+    /**
+     * Add the specified amount to the count.
+     *
+     * @param amount The amount to add
+     */
+    public void add(long amount) {
+
+        cells.getAndAdd(stripe() * PADDING, amount);
+
+    }
+
+    /**
+     * Return the count.  Increments that happen while the stripes are
+     * added up may or may not be included.
+     */
+    public long get() {
+
+        long sum = 0L;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+
+    }
+
+    /**
+     * Set the count back to zero.
+     */
+    public void reset() {
+
+        for (int i = 0; i < STRIPES; i++) {
+            cells.set(i * PADDING, 0L);
+        }
+
+    }
+
+    /**
+     * Return a text representation of this object.
+     */
+    @Override
+    public String toString() {
+
+        return Long.toString(get());
+
+    }
+
+    // ---------------------------------------------- Package Methods
+
+    /**
+     * Return the stripe of the current thread.
+     */
+    static int stripe() {
+
+        long id = Thread.currentThread().getId();
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & (STRIPES - 1);
+
+    }
+}
@@ -0,0 +1,421 @@
+/*
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (c) 2007 O'Reilly Media.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.oreilly.tomcat.util;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * A bounded cache of the verdicts and escaped results that one RuleSet
+ * gives parameter values, so that values which repeat from request to
+ * request, such as <code>submit=Search</code>, are matched against the
+ * rules only once.
+ *
+ * <br><br>
+ *
+ * A cache belongs to a single RuleSet snapshot, and is replaced along
+ * with it, so changing the rules invalidates everything cached.  The
+ * entries live in a fixed array where each value can occupy one of two
+ * slots picked by its hash; a new value replaces whichever of the two
+ * hasn't been hit since it was last considered for replacement.  Lookups
+ * compare the hash and length first, and then the whole value, so two
+ * values never share an entry.  Values longer than the maximum length,
+ * and results that may have run out of match time, are never cached.
+ *
+ * <br><br>
+ *
+ * All methods may be called by any number of threads at once, without
+ * locking.
+ */
+public final class VerdictCache {
+
+    // ------------------------------------------- Instance Variables
+
+    /**
+     * The rules whose results are cached.
+     */
+    private final RuleSet rules;
+
+    /**
+     * The cache slots.
+     */
+    private final AtomicReferenceArray<Entry> slots;
+
+    /**
+     * slots.length() - 1.
+     */
+    private final int mask;
+
+    /**
+     * The longest value that is cached.
+     */
+    private final int maxLength;
+
+    /**
+     * Whether escaped results are cached.  Not when a substitution rule
+     * that runs out of match time silently leaves the value as it is,
+     * since that result depends on how busy the machine was.
+     */
+    private final boolean cacheEscapes;
+
+    /**
+     * The number of lookups that were answered from the cache.
+     */
+    private final StripedCounter hitCount = new StripedCounter();
+
+    /**
+     * The number of lookups that had to evaluate the rules.
+     */
+    private final StripedCounter missCount = new StripedCounter();
+
+    // ------------------------------------------------- Constructors
+
+    /**
+     * Construct a new, empty VerdictCache.
+     *
+     * @param rules The rules whose results are cached
+     * @param size The number of values the cache holds, rounded up to a
+     *  power of two
+     * @param maxLength The longest value that is cached
+     */
+    public VerdictCache(RuleSet rules, int size, int maxLength) {
+
+        if (size < 2) {
+            throw new IllegalArgumentException("size must be at least 2");
+        }
+        this.rules = rules;
+        this.maxLength = maxLength;
+        this.cacheEscapes = rules.getMatchTimeout() <= 0L
+            || rules.getDenyOnMatchTimeout();
+        int capacity = 2;
+        while (capacity < size) {
+            capacity <<= 1;
+        }
+        slots = new AtomicReferenceArray<Entry>(capacity);
+        mask = capacity - 1;
+
+    }
+
+    // --------------------------------------------------- Properties
+
+    /**
+     * Return the rules whose results are cached.
+     */
+    public RuleSet getRuleSet() {
+
+        return rules;
+
+    }
+
+    /**
+     * Return the number of values the cache holds.
+     */
+    public int getSize() {
+
+        return slots.length();
+
+    }
+
+    /**
+     * Return the longest value that is cached.
+     */
+    public int getMaxLength() {
+
+        return maxLength;
+
+    }
+
+    /**
+     * Return the number of lookups that were answered from the cache.
+     */
+    public long getHitCount() {
+
+        return hitCount.get();
+
+    }
+
+    /**
+     * Return the number of lookups that had to evaluate the rules,
+     * including those of values too long to cache.
+     */
+    public long getMissCount() {
+
+        return missCount.get();
+
+    }
+
+    // ----------------------------------------------- Public Methods
+
+    /**
+     * Return the verdict of the RuleSet's allow and deny rules on a
+     * value.
+     *
+     * @param value The value to evaluate
+     *
+     * @see PatternSetMatcher#evaluate(CharSequence)
+     */
+    public PatternSetMatcher.Verdict evaluate(String value) {
+
+        if (value == null || value.length() > maxLength) {
+            missCount.increment();
+            return rules.getRuleMatcher().evaluate(value);
+        }
+        int hash = hash(value);
+        int index = find(value, hash);
+        Entry entry = (index < 0) ? null : slots.get(index);
+        if (entry != null && entry.verdict != null) {
+            entry.referenced = true;
+            hitCount.increment();
+            return entry.verdict;
+        }
+
+        missCount.increment();
+        PatternSetMatcher.Verdict verdict =
+            rules.getRuleMatcher().evaluate(value);
+        if (!verdict.isTimedOut()) {
+            store(index, entry, new Entry(value, hash, verdict,
+                (entry == null) ? null : entry.escape));
+        }
+        return verdict;
+
+    }
+
+    /**
+     * Return the result of applying the RuleSet's substitution rules to
+     * a value.
+     *
+     * @param value The value to escape
+     *
+     * @exception MatchTimeoutException if a rule runs out of match time,
+     *  and the rules deny such values
+     */
+    public Escape escape(String value) {
+
+        EscapeTable table = rules.getEscapeTable();
+        if (value == null || value.length() > maxLength || !cacheEscapes) {
+            missCount.increment();
+            return escape(table, value);
+        }
+        int hash = hash(value);
+        int index = find(value, hash);
+        Entry entry = (index < 0) ? null : slots.get(index);
+        if (entry != null && entry.escape != null) {
+            entry.referenced = true;
+            hitCount.increment();
+            return entry.escape;
+        }
+
+        missCount.increment();
+        Escape escape = escape(table, value);
+        store(index, entry, new Entry(value, hash,
+            (entry == null) ? null : entry.verdict, escape));
+        return escape;
+
+    }
+
+    /**
+     * Apply all of the substitution rules of a table to a value, without
+     * caching the result.
+     *
+     * @param table The substitution rules to apply
+     * @param value The value to escape
+     *
+     * @exception MatchTimeoutException if a rule runs out of match time,
+     *  and the table denies such values
+     */
+    public static Escape escape(EscapeTable table, String value) {
+
+        if (value == null || !table.mayMatch(value)) {
+            return new Escape(value, Escape.NO_RULES);
+        }
+        String newValue = value;
+        EscapeTable.Rule[] matched = Escape.NO_RULES;
+        for (int r = 0; r < table.getRuleCount(); r++) {
+            EscapeTable.Rule rule = table.getRule(r);
+            String escaped = rule.apply(newValue);
+            if (escaped != newValue) {
+                newValue = escaped;
+                EscapeTable.Rule[] more =
+                    new EscapeTable.Rule[matched.length + 1];
+                System.arraycopy(matched, 0, more, 0, matched.length);
+                more[matched.length] = rule;
+                matched = more;
+            }
+        }
+        return new Escape(newValue, matched);
+
+    }
+
+    /**
+     * Return a text representation of this object.
+     */
+    public String toString() {
+
+        return "VerdictCache[size=" + slots.length() + ", hits="
+            + hitCount.get() + ", misses=" + missCount.get() + "]";
+
+    }
+
+    // ---------------------------------------------- Private Methods
+
+    /**
+     * Return the spread hash code of a value.
+     */
+    private static int hash(String value) {
+
+        int h = value.hashCode();
+        return h ^ (h >>> 16);
+
+    }
+
+    /**
+     * Return the slot that holds a value, or, if neither of its two
+     * slots does, minus one.
+     */
+    private int find(String value, int hash) {
+
+        int index = hash & mask;
+        if (matches(slots.get(index), value, hash)) {
+            return index;
+        }
+        index ^= 1;
+        if (matches(slots.get(index), value, hash)) {
+            return index;
+        }
+        return -1;
+
+    }
+
+    private static boolean matches(Entry entry, String value, int hash) {
+
+        return entry != null && entry.hash == hash
+            && entry.value.length() == value.length()
+            && entry.value.equals(value);
+
+    }
+
+    /**
+     * Store an entry in the slot of the entry it replaces, or, for a new
+     * value, in one of its two slots.  Losing a race with another thread
+     * storing into the same slot is harmless: one of the two results is
+     * simply not cached.
+     */
+    private void store(int index, Entry old, Entry entry) {
+
+        if (index >= 0) {
+            slots.compareAndSet(index, old, entry);
+            return;
+        }
+        int first = entry.hash & mask;
+        int second = first ^ 1;
+        Entry a = slots.get(first);
+        Entry b = slots.get(second);
+        if (a == null) {
+            slots.compareAndSet(first, null, entry);
+        } else if (b == null) {
+            slots.compareAndSet(second, null, entry);
+        } else if (!a.referenced) {
+            slots.compareAndSet(first, a, entry);
+            b.referenced = false;
+        } else {
+            // Give the first slot's entry a second chance.
+            slots.compareAndSet(second, b, entry);
+            a.referenced = false;
+        }
+
+    }
+
+    // ------------------------------------------------ Inner Classes
+
+    /**
+     * The result of applying the substitution rules to a value.
+     */
+    public static final class Escape {
+
+        static final EscapeTable.Rule[] NO_RULES = new EscapeTable.Rule[0];
+
+        private final String value;
+        private final EscapeTable.Rule[] matched;
+
+        Escape(String value, EscapeTable.Rule[] matched) {
+            this.value = value;
+            this.matched = matched;
+        }
+
+        /**
+         * Return true if any rule changed the value.
+         */
+        public boolean isChanged() {
+            return matched.length > 0;
+        }
+
+        /**
+         * Return the escaped value.  Only meaningful if isChanged().
+         */
+        public String getValue() {
+            return value;
+        }
+
+        /**
+         * Return the number of rules that changed the value.
+         */
+        public int getMatchedRuleCount() {
+            return matched.length;
+        }
+
+        /**
+         * Return a rule that changed the value, in the order they were
+         * applied.
+         *
+         * @param index The index of the rule
+         */
+        public EscapeTable.Rule getMatchedRule(int index) {
+            return matched[index];
+        }
+    }
+
+    /**
+     * A cached value, with whatever results have been computed for it.
+     * The results are never changed once the entry is stored; a new
+     * result is added by replacing the entry.
+     */
+    private static final class Entry {
+
+        final String value;
+        final int hash;
+        final PatternSetMatcher.Verdict verdict;
+        final Escape escape;
+
+        /**
+         * Whether the entry was hit since it was last considered for
+         * replacement.  Updated without synchronization; a lost update
+         * only affects which entry gets replaced.
+         */
+        boolean referenced = false;
+
+        Entry(String value, int hash, PatternSetMatcher.Verdict verdict,
+              Escape escape) {
+            this.value = value;
+            this.hash = hash;
+            this.verdict = verdict;
+            this.escape = escape;
+        }
+    }
+}
@@ -19,24 +19,49 @@
 
 package com.oreilly.tomcat.valve;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.util.ArrayList;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.Properties;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.servlet.ServletException;
 import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.catalina.Container;
+import org.apache.catalina.Lifecycle;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.LifecycleListener;
 import org.apache.catalina.connector.Request;
 import org.apache.catalina.connector.Response;
+import org.apache.catalina.util.LifecycleSupport;
 import org.apache.catalina.util.ParameterMap;
 import org.apache.catalina.valves.RequestFilterValve;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 
+import com.oreilly.tomcat.util.AuditLog;
+import com.oreilly.tomcat.util.BadInputMetrics;
+import com.oreilly.tomcat.util.BlocklistGossip;
+import com.oreilly.tomcat.util.EscapeTable;
+import com.oreilly.tomcat.util.MatchTimeoutException;
+import com.oreilly.tomcat.util.OffenderTable;
+import com.oreilly.tomcat.util.PatternSetMatcher;
+import com.oreilly.tomcat.util.RawQueryInspector;
+import com.oreilly.tomcat.util.RuleFileWatcher;
+import com.oreilly.tomcat.util.RuleSet;
+import com.oreilly.tomcat.util.VerdictCache;
+
 
 /**
  * Filters out bad user input from HTTP requests to avoid malicious
@@ -45,7 +70,8 @@ import org.apache.juli.logging.LogFactory;
  *
  * @author Jason Brittain
  */
-public class BadInputValve extends RequestFilterValve {
+public class BadInputValve extends RequestFilterValve
+    implements Lifecycle, RuleFileWatcher.Listener {
 
     // --------------------------------------------- Static Variables
 
@@ -60,11 +86,6 @@ public class BadInputValve extends RequestFilterValve {
     protected static String info =
         "com.oreilly.tomcat.valve.BadInputValve/2.0";
 
-    /**
-     * An empty String array to re-use as a type indicator for toArray().
-     */
-    private static final String[] STRING_ARRAY = new String[0];
-
     // ------------------------------------------- Instance Variables
 
     /**
@@ -119,6 +140,200 @@ public class BadInputValve extends RequestFilterValve {
     protected HashMap<String, String> parameterEscapes =
         new HashMap<String, String>();
 
+    /**
+     * The compiled allow, deny and escape rules that requests are checked
+     * against.  Request threads only ever read this reference; whenever
+     * the configuration or the rules file changes, a new RuleSet is
+     * compiled and the reference is replaced, so no regular expression
+     * is compiled, and no lock is taken, while a request is being
+     * filtered.
+     */
+    protected volatile RuleSet ruleSet = RuleSet.EMPTY;
+
+    /**
+     * The path of the rules file, if any.  Relative paths are resolved
+     * against <code>catalina.base</code>.
+     */
+    protected String rulesFile = null;
+
+    /**
+     * The watcher of the rules file, or null if there is none.
+     */
+    protected RuleFileWatcher rulesWatcher = null;
+
+    /**
+     * The rules last read from the rules file, which override the rules
+     * configured on this Valve.
+     */
+    protected Properties fileRules = new Properties();
+
+    /**
+     * The statistics of this Valve, or null if collecting them is
+     * switched off.
+     */
+    protected volatile BadInputMetrics metrics = null;
+
+    /**
+     * The length of an audit log window, in seconds, or 0 to log every
+     * parameter that matches a substitution rule as soon as it's found.
+     */
+    protected int auditWindow = 10;
+
+    /**
+     * The number of matches the audit log can hold before they are
+     * written.
+     */
+    protected int auditBufferSize = 4096;
+
+    /**
+     * The largest number of audit records written per window.
+     */
+    protected int auditMaxRecords = 1000;
+
+    /**
+     * The audit log of this Valve while it is started, or null if
+     * matches are logged as soon as they're found.
+     */
+    protected volatile AuditLog auditLog = null;
+
+    /**
+     * The number of parameter values whose verdicts and escaped results
+     * are cached, or 0 for no caching.
+     */
+    protected int verdictCacheSize = 0;
+
+    /**
+     * The longest parameter value that is cached.
+     */
+    protected int verdictCacheMaxLength = 128;
+
+    /**
+     * The cache of the current RuleSet's results, or null if there is
+     * none.
+     */
+    protected volatile VerdictCache verdictCache = null;
+
+    /**
+     * The number of recently refused requests at which a client's
+     * requests are refused without being inspected, or 0 to never do so.
+     */
+    protected int offenderThreshold = 0;
+
+    /**
+     * The number of clients the offender table holds.
+     */
+    protected int offenderTableSize = 16384;
+
+    /**
+     * The time it takes a client's count of refused requests to halve,
+     * in seconds.
+     */
+    protected int offenderHalfLife = 60;
+
+    /**
+     * The time after its last refused request at which a client is
+     * removed from the offender table, in seconds.
+     */
+    protected int offenderTtl = 600;
+
+    /**
+     * The table of clients whose requests were recently refused, or null
+     * if clients are never turned away.
+     */
+    protected volatile OffenderTable offenderTable = null;
+
+    /**
+     * Should clients blocked here be blocked on the other nodes of the
+     * cluster too, and the other way around?
+     */
+    protected boolean clusterBlocklist = false;
+
+    /**
+     * The multicast group address the blocklist is shared on.
+     */
+    protected String clusterAddress = BlocklistGossip.DEFAULT_ADDRESS;
+
+    /**
+     * The port the blocklist is shared on.
+     */
+    protected int clusterPort = BlocklistGossip.DEFAULT_PORT;
+
+    /**
+     * The name of the network interface the blocklist is shared on, or
+     * null for the system's default.
+     */
+    protected String clusterInterface = null;
+
+    /**
+     * The secret the nodes authenticate their blocklist packets with, or
+     * null if the packets aren't authenticated.
+     */
+    protected String clusterSecret = null;
+
+    /**
+     * The time between two digests of the clients blocked here, in
+     * seconds.
+     */
+    protected int clusterDigestInterval = 2;
+
+    /**
+     * The service sharing the blocklist, or null if it isn't shared.
+     */
+    protected BlocklistGossip blocklistGossip = null;
+
+    /**
+     * The lifecycle event support for this Valve.
+     */
+    protected LifecycleSupport lifecycle = new LifecycleSupport(this);
+
+    /**
+     * Has this Valve been started yet?
+     */
+    protected boolean started = false;
+
+    /**
+     * The flag that determines whether or not the undecoded query string
+     * is run through the deny patterns before the request's parameters
+     * are parsed.
+     */
+    protected boolean inspectRawQuery = false;
+
+    /**
+     * The comma-delimited set of request header names whose values are
+     * run through the deny patterns, or null for none.
+     */
+    protected String inspectHeaders = null;
+
+    /**
+     * The header names of <code>inspectHeaders</code>.
+     */
+    protected String[] inspectedHeaderNames = new String[0];
+
+    /**
+     * The flag that determines whether or not cookie names and values are
+     * run through the deny patterns.
+     */
+    protected boolean inspectCookies = false;
+
+    /**
+     * The flag that determines whether or not the decoded request URI is
+     * run through the deny patterns.
+     */
+    protected boolean inspectURI = false;
+
+    /**
+     * The maximum time, in milliseconds, that matching the patterns
+     * against a single request property may take, or zero for no limit.
+     */
+    protected long matchTimeout = 0L;
+
+    /**
+     * The flag that determines whether a request property that runs out
+     * of match time is treated as bad input (true), or let through
+     * (false).
+     */
+    protected boolean denyOnMatchTimeout = true;
+
     // ------------------------------------------------- Constructors
 
     /**
@@ -166,12 +381,13 @@ public class BadInputValve extends RequestFilterValve {
      *
      * @param escapeQuotes
      */
-    public void setEscapeQuotes(boolean escapeQuotes) {
+    public synchronized void setEscapeQuotes(boolean escapeQuotes) {
 
         this.escapeQuotes = escapeQuotes;
         if (escapeQuotes) {
             // Escape all quotes.
             parameterEscapes.putAll(quotesHashMap);
+            rebuildRuleSet();
         }
 
     }
@@ -194,12 +410,14 @@ public class BadInputValve extends RequestFilterValve {
      *
      * @param escapeAngleBrackets
      */
-    public void setEscapeAngleBrackets(boolean escapeAngleBrackets) {
+    public synchronized void setEscapeAngleBrackets(
+        boolean escapeAngleBrackets) {
 
         this.escapeAngleBrackets = escapeAngleBrackets;
         if (escapeAngleBrackets) {
             // Escape all angle brackets.
             parameterEscapes.putAll(angleBracketsHashMap);
+            rebuildRuleSet();
         }
 
     }
@@ -224,244 +442,1563 @@ public class BadInputValve extends RequestFilterValve {
      *
      * @param escapeJavaScript
      */
-    public void setEscapeJavaScript(boolean escapeJavaScript) {
+    public synchronized void setEscapeJavaScript(boolean escapeJavaScript) {
 
         this.escapeJavaScript = escapeJavaScript;
         if (escapeJavaScript) {
             // Escape potentially dangerous JavaScript method calls.
             parameterEscapes.putAll(javaScriptHashMap);
+            rebuildRuleSet();
         }
 
     }
 
     /**
-     * Return descriptive information about this Valve implementation.
+     * Gets the flag which determines whether this Valve runs the
+     * undecoded query string through the deny patterns before the
+     * request's parameters are parsed.
      */
-    public String getInfo() {
+    public boolean getInspectRawQuery() {
 
-        return info;
+        return inspectRawQuery;
 
     }
 
-    // ----------------------------------------------- Public Methods
-
     /**
-     * Sanitizes request parameters before bad user input gets into the
-     * web application.
-     *
-     * @param request The servlet request to be processed
-     * @param response The servlet response to be created
+     * Sets the flag which determines whether this Valve runs the
+     * undecoded query string through the deny patterns before the
+     * request's parameters are parsed, so that obviously bad requests are
+     * refused without paying for parameter parsing.
      *
-     * @exception IOException if an input/output error occurs
-     * @exception ServletException if a servlet error occurs
+     * @param inspectRawQuery
      */
-    @Override
-    public void invoke(Request request, Response response)
-        throws IOException, ServletException {
+    public void setInspectRawQuery(boolean inspectRawQuery) {
 
-        // Skip filtering for non-HTTP requests and responses.
-        if (!(request instanceof HttpServletRequest) ||
-            !(response instanceof HttpServletResponse)) {
-            getNext().invoke(request, response);
-            return;
-        }
+        this.inspectRawQuery = inspectRawQuery;
 
-        // Only let requests through based on the allows and denies.
-        if (processAllowsAndDenies(request, response)) {
+    }
 
-            // Filter the input for potentially dangerous JavaScript
-            // code so that bad user input is cleaned out of the request
-            // by the time Tomcat begins to perform the request.
-            filterParameters(request);
+    /**
+     * Return the comma-delimited set of request header names whose
+     * values this Valve runs through the deny patterns, if any;
+     * otherwise, return <code>null</code>.
+     */
+    public String getInspectHeaders() {
 
-            // Perform the request.
-            getNext().invoke(request, response);
-        }
+        return inspectHeaders;
 
     }
 
     /**
-     * Uses the functionality of the (abstract) RequestFilterValve to
-     * stop requests that contain forbidden string patterns in parameter
-     * names and parameter values.
-     *
-     * @param request The servlet request to be processed
-     * @param response The servlet response to be created
+     * Set the comma-delimited set of request header names (for instance
+     * <code>User-Agent,Referer</code>) whose values this Valve runs
+     * through the deny patterns before the request's parameters are
+     * parsed.
      *
-     * @exception IOException if an input/output error occurs
-     * @exception ServletException if a servlet error occurs
-     *
-     * @return false if the request is forbidden, true otherwise.
+     * @param inspectHeaders The new set of header names
      */
-    public boolean processAllowsAndDenies(Request request, Response response)
-        throws IOException, ServletException {
-
-        ParameterMap paramMap =
-            (ParameterMap) ((HttpServletRequest) request).getParameterMap();
-        // Loop through the list of parameters.
-        Iterator y = paramMap.keySet().iterator();
-        while (y.hasNext()) {
-            String name = (String) y.next();
-            String[] values = ((HttpServletRequest)
-                request).getParameterValues(name);
-
-            // See if the name contains a forbidden pattern.
-            if (!checkAllowsAndDenies(name, response)) {
-                return false;
-            }
-
-            // Check the parameter's values for the pattern.
-            if (values != null) {
-                for (int i = 0; i < values.length; i++) {
-                    String value = values[i];
-                    if (!checkAllowsAndDenies(value, response)) {
-                        return false;
-                    }
+    public void setInspectHeaders(String inspectHeaders) {
+
+        ArrayList<String> names = new ArrayList<String>();
+        if (inspectHeaders != null) {
+            String[] list = inspectHeaders.split(",");
+            for (int i = 0; i < list.length; i++) {
+                if (list[i].trim().length() > 0) {
+                    names.add(list[i].trim());
                 }
             }
         }
+        this.inspectHeaders = inspectHeaders;
+        inspectedHeaderNames = names.toArray(new String[names.size()]);
 
-        // No parameter caused a deny.  The request should continue.
-        return true;
+    }
+
+    /**
+     * Gets the flag which determines whether this Valve runs cookie
+     * names and values through the deny patterns.
+     */
+    public boolean getInspectCookies() {
+
+        return inspectCookies;
 
     }
 
     /**
-     * Perform the filtering that has been configured for this Valve,
-     * matching against the specified request property. If the request
-     * is allowed to proceed, this method returns true.  Otherwise,
-     * this method sends a Forbidden error response page, and returns
-     * false.
-     *
-     * <br><br>
+     * Sets the flag which determines whether this Valve runs cookie
+     * names and values through the deny patterns before the request's
+     * parameters are parsed.
      *
-     * This method borrows heavily from RequestFilterValve.process(),
-     * only this method has a boolean return type and doesn't call
-     * getNext().invoke(request, response).
-     *
-     * @param property The request property on which to filter
-     * @param response The servlet response to be processed
+     * @param inspectCookies
+     */
+    public void setInspectCookies(boolean inspectCookies) {
+
+        this.inspectCookies = inspectCookies;
+
+    }
+
+    /**
+     * Gets the flag which determines whether this Valve runs the decoded
+     * request URI through the deny patterns.
+     */
+    public boolean getInspectURI() {
+
+        return inspectURI;
+
+    }
+
+    /**
+     * Sets the flag which determines whether this Valve runs the decoded
+     * request URI through the deny patterns before the request's
+     * parameters are parsed.
      *
-     * @exception IOException if an input/output error occurs
-     * @exception ServletException if a servlet error occurs
+     * @param inspectURI
+     */
+    public void setInspectURI(boolean inspectURI) {
+
+        this.inspectURI = inspectURI;
+
+    }
+
+    /**
+     * Return the maximum time, in milliseconds, that matching the
+     * patterns against a single request property may take.
+     */
+    public long getMatchTimeout() {
+
+        return matchTimeout;
+
+    }
+
+    /**
+     * Set the maximum time, in milliseconds, that matching the patterns
+     * against a single request property may take.  This bounds the
+     * damage a pattern that backtracks catastrophically can do to the
+     * request threads.  Zero, the default, means no limit.
      *
-     * @return true if the request is still allowed to proceed.
+     * @param matchTimeout The new match timeout
      */
-    public boolean checkAllowsAndDenies(String property, Response response)
-        throws IOException, ServletException {
+    public void setMatchTimeout(long matchTimeout) {
 
-        // If there were no denies and no allows, process the request.
-        if (denies.length == 0 && allows.length == 0) {
-            return true;
-        }
+        this.matchTimeout = matchTimeout;
+        rebuildRuleSet();
 
-        // Check the deny patterns, if any
-        for (int i = 0; i < denies.length; i++) {
-            Matcher m = denies[i].matcher(property);
-            if (m.find()) {
-                ServletResponse sres = response.getResponse();
-                if (sres instanceof HttpServletResponse) {
-                    HttpServletResponse hres = (HttpServletResponse) sres;
-                    hres.sendError(HttpServletResponse.SC_FORBIDDEN);
-                    return false;
-                }
-            }
-        }
+    }
 
-        // Check the allow patterns, if any
-        for (int i = 0; i < allows.length; i++) {
-            Matcher m = allows[i].matcher(property);
-            if (m.find()) {
-                return true;
-            }
-        }
+    /**
+     * Gets the flag which determines whether this Valve refuses a request
+     * whose property runs out of match time.
+     */
+    public boolean getDenyOnMatchTimeout() {
 
-        // Allow if denies specified but not allows
-        if (denies.length > 0 && allows.length == 0) {
-            return true;
-        }
+        return denyOnMatchTimeout;
 
-        // Otherwise, deny the request.
-        ServletResponse sres = response.getResponse();
-        if (sres instanceof HttpServletResponse) {
-            HttpServletResponse hres = (HttpServletResponse) sres;
-            hres.sendError(HttpServletResponse.SC_FORBIDDEN);
-        }
-        return false;
+    }
+
+    /**
+     * Sets the flag which determines whether this Valve refuses a request
+     * whose property runs out of match time (true, the default), or lets
+     * the property through unescaped (false).
+     *
+     * @param denyOnMatchTimeout
+     */
+    public void setDenyOnMatchTimeout(boolean denyOnMatchTimeout) {
+
+        this.denyOnMatchTimeout = denyOnMatchTimeout;
+        rebuildRuleSet();
 
     }
 
     /**
-     * Filters all existing parameters for potentially dangerous content,
-     * and escapes any if they are found.
+     * Set the comma-delimited set of the <code>allow</code> expressions
+     * configured for this Valve, if any.
      *
-     * @param request The Request that contains the parameters.
+     * @param allow The new set of allow expressions
      */
-    public void filterParameters(Request request) {
+    @Override
+    public void setAllow(String allow) {
 
-        ParameterMap paramMap =
-            (ParameterMap) ((HttpServletRequest) request).getParameterMap();
-        // Unlock the parameters map so we can modify the parameters.
-        paramMap.setLocked(false);
+        this.allow = allow;
+        rebuildRuleSet();
 
-        // Loop through each of the substitution patterns.
-        Iterator escapesIterator = parameterEscapes.keySet().iterator();
-        while (escapesIterator.hasNext()) {
-            String patternString = (String) escapesIterator.next();
-            Pattern pattern = Pattern.compile(patternString);
-
-            // Loop through the list of parameters.
-            @SuppressWarnings("unchecked")
-            String[] paramNames =
-                (String[]) paramMap.keySet().toArray(STRING_ARRAY);
-            for (int i = 0; i < paramNames.length; i++) {
-                String name = paramNames[i];
-                String[] values = ((HttpServletRequest)
-                    request).getParameterValues(name);
-                // See if the name contains the pattern.
-                boolean nameMatch;
-                Matcher matcher = pattern.matcher(name);
-                nameMatch = matcher.find();
-                if (nameMatch) {
-                    // The parameter's name matched a pattern, so we
-                    // fix it by modifying the name, adding the parameter
-                    // back as the new name, and removing the old one.
-                    String newName = matcher.replaceAll(
-                        (String) parameterEscapes.get(patternString));
-                    request.addParameter(newName, values);
-                    paramMap.remove(name);
-                    log.warn("Parameter name " + name +
-                        " matched pattern \"" + patternString +
-                        "\".  Remote addr: " +
-                        ((HttpServletRequest) request).getRemoteAddr());
-                }
-                // Check the parameter's values for the pattern.
-                if (values != null) {
-                    for (int j = 0; j < values.length; j++) {
-                        String value = values[j];
-                        boolean valueMatch;
-                        matcher = pattern.matcher(value);
-                        valueMatch = matcher.find();
-                        if (valueMatch) {
-                            // The value matched, so we modify the value
-                            // and then set it back into the array.
-                            String newValue;
-                            newValue = matcher.replaceAll((String)
-                                parameterEscapes.get(patternString));
-                            values[j] = newValue;
-                            log.warn("Parameter \"" + name +
-                                "\"'s value \"" + value +
-                                "\" matched pattern \"" +
-                                patternString + "\".  Remote addr: " +
-                                ((HttpServletRequest)
-                                    request).getRemoteAddr());
-                        }
-                    }
-                }
-            }
+    }
+
+    /**
+     * Set the comma-delimited set of the <code>deny</code> expressions
+     * configured for this Valve, if any.
+     *
+     * @param deny The new set of deny expressions
+     */
+    @Override
+    public void setDeny(String deny) {
+
+        this.deny = deny;
+        rebuildRuleSet();
+        PatternSetMatcher matcher = ruleSet.getRuleMatcher();
+        log.info("BadInputValve: " + matcher.getFilteredRuleCount()
+            + " of " + matcher.getRuleCount()
+            + " rules use the combined matcher.");
+
+    }
+
+    /**
+     * Return the path of the rules file, if any; otherwise, return
+     * <code>null</code>.
+     */
+    public String getRulesFile() {
+
+        return rulesFile;
+
+    }
+
+    /**
+     * Set the path of a rules file in <code>java.util.Properties</code>
+     * format, whose <code>allow</code>, <code>deny</code>,
+     * <code>escapeQuotes</code>, <code>escapeAngleBrackets</code>,
+     * <code>escapeJavaScript</code>, <code>matchTimeout</code> and
+     * <code>denyOnMatchTimeout</code> entries override the attributes of
+     * the same names.  The file is read right away, and then checked for
+     * changes by the container's background thread, so that the rules can
+     * be changed without restarting.  Relative paths are resolved against
+     * <code>catalina.base</code>.
+     *
+     * @param rulesFile The new rules file path
+     */
+    public void setRulesFile(String rulesFile) {
+
+        this.rulesFile = rulesFile;
+        if (rulesFile == null) {
+            rulesWatcher = null;
+            rulesChanged(new Properties());
+            return;
+        }
+        File file = new File(rulesFile);
+        if (!file.isAbsolute()) {
+            file = new File(System.getProperty("catalina.base"), rulesFile);
+        }
+        rulesWatcher = new RuleFileWatcher(file, this);
+        checkRulesFile();
+
+    }
+
+    /**
+     * Gets the flag which determines whether this Valve collects
+     * statistics and exposes them as a JMX MBean.
+     */
+    public boolean getMetricsEnabled() {
+
+        return (metrics != null);
+
+    }
+
+    /**
+     * Sets the flag which determines whether this Valve collects
+     * statistics about the requests it inspects, denies and escapes, and
+     * the time it spends on them, and exposes them as a JMX MBean named
+     * <code>com.oreilly.tomcat:type=BadInputValve,container=...</code>.
+     *
+     * @param metricsEnabled
+     */
+    public synchronized void setMetricsEnabled(boolean metricsEnabled) {
+
+        if (metricsEnabled == (metrics != null)) {
+            return;
+        }
+        if (metricsEnabled) {
+            metrics = new BadInputMetrics();
+            metrics.setOffenderTable(offenderTable);
+            if (started) {
+                registerMetrics();
+            }
+        } else {
+            unregisterMetrics();
+            metrics = null;
+        }
+
+    }
+
+    /**
+     * Return the statistics of this Valve, or null if collecting them is
+     * switched off.
+     */
+    public BadInputMetrics getMetrics() {
+
+        return metrics;
+
+    }
+
+    /**
+     * Gets the length of an audit log window, in seconds.
+     */
+    public int getAuditWindow() {
+
+        return auditWindow;
+
+    }
+
+    /**
+     * Sets the length of an audit log window, in seconds.  Parameters
+     * that match a substitution rule are counted by rule, parameter name
+     * and remote address, off the request threads, and one line per
+     * combination is logged at the end of each window.  Set to 0 to log
+     * each match on the request thread as soon as it's found.  Takes
+     * effect when the Valve is next started.
+     *
+     * @param auditWindow The new window length
+     */
+    public void setAuditWindow(int auditWindow) {
+
+        this.auditWindow = auditWindow;
+
+    }
+
+    /**
+     * Gets the number of matches the audit log can hold before they are
+     * written.
+     */
+    public int getAuditBufferSize() {
+
+        return auditBufferSize;
+
+    }
+
+    /**
+     * Sets the number of matches the audit log can hold before they are
+     * written.  Matches that don't fit are counted, and dropped.  Takes
+     * effect when the Valve is next started.
+     *
+     * @param auditBufferSize The new buffer size
+     */
+    public void setAuditBufferSize(int auditBufferSize) {
+
+        this.auditBufferSize = auditBufferSize;
+
+    }
+
+    /**
+     * Gets the largest number of audit records logged per window.
+     */
+    public int getAuditMaxRecords() {
+
+        return auditMaxRecords;
+
+    }
+
+    /**
+     * Sets the largest number of audit records logged per window.  The
+     * matches beyond it are logged as a single count.  Takes effect when
+     * the Valve is next started.
+     *
+     * @param auditMaxRecords The new maximum
+     */
+    public void setAuditMaxRecords(int auditMaxRecords) {
+
+        this.auditMaxRecords = auditMaxRecords;
+
+    }
+
+    /**
+     * Return the audit log of this Valve, or null if it isn't started,
+     * or matches are logged as soon as they're found.
+     */
+    public AuditLog getAuditLog() {
+
+        return auditLog;
+
+    }
+
+    /**
+     * Gets the number of parameter values whose verdicts and escaped
+     * results are cached.
+     */
+    public int getVerdictCacheSize() {
+
+        return verdictCacheSize;
+
+    }
+
+    /**
+     * Sets the number of parameter values whose verdicts and escaped
+     * results are cached, so that values that repeat from request to
+     * request aren't matched against the rules again.  The cache is
+     * emptied whenever the rules change.  Set to 0 to switch caching off.
+     *
+     * @param verdictCacheSize The new cache size
+     */
+    public synchronized void setVerdictCacheSize(int verdictCacheSize) {
+
+        this.verdictCacheSize = verdictCacheSize;
+        resetVerdictCache();
+
+    }
+
+    /**
+     * Gets the longest parameter value that is cached.
+     */
+    public int getVerdictCacheMaxLength() {
+
+        return verdictCacheMaxLength;
+
+    }
+
+    /**
+     * Sets the longest parameter value that is cached.  Longer values are
+     * always matched against the rules.
+     *
+     * @param verdictCacheMaxLength The new maximum length
+     */
+    public synchronized void setVerdictCacheMaxLength(
+        int verdictCacheMaxLength) {
+
+        this.verdictCacheMaxLength = verdictCacheMaxLength;
+        resetVerdictCache();
+
+    }
+
+    /**
+     * Return the cache of the current rules' results, or null if caching
+     * is switched off.
+     */
+    public VerdictCache getVerdictCache() {
+
+        return verdictCache;
+
+    }
+
+    /**
+     * Gets the number of recently refused requests at which a client's
+     * requests are refused without being inspected.
+     */
+    public int getOffenderThreshold() {
+
+        return offenderThreshold;
+
+    }
+
+    /**
+     * Sets the number of recently refused requests at which a client's
+     * requests are refused without being inspected.  Each refused request
+     * counts against its client's remote address (or, for IPv6, its /64
+     * network), and the count halves every offenderHalfLife seconds.
+     * Set to 0 to never turn clients away.
+     *
+     * @param offenderThreshold The new threshold
+     */
+    public synchronized void setOffenderThreshold(int offenderThreshold) {
+
+        this.offenderThreshold = offenderThreshold;
+        resetOffenderTable();
+
+    }
+
+    /**
+     * Gets the number of clients the offender table holds.
+     */
+    public int getOffenderTableSize() {
+
+        return offenderTableSize;
+
+    }
+
+    /**
+     * Sets the number of clients the offender table holds.  When it is
+     * full, the clients with the fewest refused requests make room for
+     * new ones.
+     *
+     * @param offenderTableSize The new table size
+     */
+    public synchronized void setOffenderTableSize(int offenderTableSize) {
+
+        this.offenderTableSize = offenderTableSize;
+        resetOffenderTable();
+
+    }
+
+    /**
+     * Gets the time it takes a client's count of refused requests to
+     * halve, in seconds.
+     */
+    public int getOffenderHalfLife() {
+
+        return offenderHalfLife;
+
+    }
+
+    /**
+     * Sets the time it takes a client's count of refused requests to
+     * halve, in seconds.
+     *
+     * @param offenderHalfLife The new half-life
+     */
+    public synchronized void setOffenderHalfLife(int offenderHalfLife) {
+
+        this.offenderHalfLife = offenderHalfLife;
+        resetOffenderTable();
+
+    }
+
+    /**
+     * Gets the time after its last refused request at which a client is
+     * removed from the offender table, in seconds.
+     */
+    public int getOffenderTtl() {
+
+        return offenderTtl;
+
+    }
+
+    /**
+     * Sets the time after its last refused request at which a client is
+     * removed from the offender table, in seconds.
+     *
+     * @param offenderTtl The new time to live
+     */
+    public synchronized void setOffenderTtl(int offenderTtl) {
+
+        this.offenderTtl = offenderTtl;
+        resetOffenderTable();
+
+    }
+
+    /**
+     * Return the table of clients whose requests were recently refused,
+     * or null if clients are never turned away.
+     */
+    public OffenderTable getOffenderTable() {
+
+        return offenderTable;
+
+    }
+
+    /**
+     * Gets whether the blocklist is shared with the rest of the cluster.
+     */
+    public boolean getClusterBlocklist() {
+
+        return clusterBlocklist;
+
+    }
+
+    /**
+     * Sets whether the blocklist is shared with the rest of the cluster.
+     * When it is, clients blocked here are announced over IP multicast,
+     * and clients blocked on other nodes are blocked here for
+     * offenderHalfLife seconds after the last node blocking them says
+     * so.  Set clusterSecret too, unless the group is confined to a
+     * trusted network.  Takes effect when the Valve is started, and only
+     * if offenderThreshold is set.
+     *
+     * @param clusterBlocklist
+     */
+    public void setClusterBlocklist(boolean clusterBlocklist) {
+
+        this.clusterBlocklist = clusterBlocklist;
+
+    }
+
+    /**
+     * Gets the multicast group address the blocklist is shared on.
+     */
+    public String getClusterAddress() {
+
+        return clusterAddress;
+
+    }
+
+    /**
+     * Sets the multicast group address the blocklist is shared on.
+     * Takes effect when the Valve is started.
+     *
+     * @param clusterAddress The new group address
+     */
+    public void setClusterAddress(String clusterAddress) {
+
+        this.clusterAddress = clusterAddress;
+
+    }
+
+    /**
+     * Gets the port the blocklist is shared on.
+     */
+    public int getClusterPort() {
+
+        return clusterPort;
+
+    }
+
+    /**
+     * Sets the port the blocklist is shared on.  It should differ from
+     * the port of the cluster's own membership service.  Takes effect
+     * when the Valve is started.
+     *
+     * @param clusterPort The new port
+     */
+    public void setClusterPort(int clusterPort) {
+
+        this.clusterPort = clusterPort;
+
+    }
+
+    /**
+     * Gets the name of the network interface the blocklist is shared on.
+     */
+    public String getClusterInterface() {
+
+        return clusterInterface;
+
+    }
+
+    /**
+     * Sets the name of the network interface the blocklist is shared on,
+     * such as <code>eth1</code>, or null for the system's default.
+     * Takes effect when the Valve is started.
+     *
+     * @param clusterInterface The new interface name
+     */
+    public void setClusterInterface(String clusterInterface) {
+
+        this.clusterInterface = clusterInterface;
+
+    }
+
+    /**
+     * Sets the secret that all of the cluster's nodes authenticate their
+     * blocklist packets with.  Without one, any host that can send to
+     * the group can have any client blocked on every node, so set one
+     * unless the group is confined to a trusted network.  There is no
+     * getter, so the secret can't be read back through the Valve.
+     * Takes effect when the Valve is started.
+     *
+     * @param clusterSecret The new secret, or null for none
+     */
+    public void setClusterSecret(String clusterSecret) {
+
+        this.clusterSecret = clusterSecret;
+
+    }
+
+    /**
+     * Gets the time between two digests of the clients blocked here, in
+     * seconds.
+     */
+    public int getClusterDigestInterval() {
+
+        return clusterDigestInterval;
+
+    }
+
+    /**
+     * Sets the time between two digests of the clients blocked here, in
+     * seconds.  Digests keep the other nodes' blocks alive, and bring
+     * nodes that missed an announcement up to date, so the interval
+     * should be well under offenderHalfLife.  Takes effect when the
+     * Valve is started.
+     *
+     * @param clusterDigestInterval The new interval
+     */
+    public void setClusterDigestInterval(int clusterDigestInterval) {
+
+        this.clusterDigestInterval = clusterDigestInterval;
+
+    }
+
+    /**
+     * Return descriptive information about this Valve implementation.
+     */
+    public String getInfo() {
+
+        return info;
+
+    }
+
+    // ----------------------------------------------- Public Methods
+
+    /**
+     * Add a lifecycle event listener to this component.
+     *
+     * @param listener The listener to add
+     */
+    public void addLifecycleListener(LifecycleListener listener) {
+
+        lifecycle.addLifecycleListener(listener);
+
+    }
+
+    /**
+     * Get the lifecycle listeners associated with this lifecycle. If this
+     * Lifecycle has no listeners registered, a zero-length array is
+     * returned.
+     */
+    public LifecycleListener[] findLifecycleListeners() {
+
+        return lifecycle.findLifecycleListeners();
+
+    }
+
+    /**
+     * Remove a lifecycle event listener from this component.
+     *
+     * @param listener The listener to remove
+     */
+    public void removeLifecycleListener(LifecycleListener listener) {
+
+        lifecycle.removeLifecycleListener(listener);
+
+    }
+
+    /**
+     * Registers the statistics MBean, if collecting statistics is
+     * switched on, and starts the audit log and the sharing of the
+     * blocklist.
+     *
+     * @exception LifecycleException if this component detects a fatal
+     *  error that prevents this component from being used
+     */
+    public synchronized void start() throws LifecycleException {
+
+        if (started) {
+            return;
+        }
+        lifecycle.fireLifecycleEvent(START_EVENT, null);
+        started = true;
+        registerMetrics();
+        startAuditLog();
+        startBlocklistGossip();
+
+    }
+
+    /**
+     * Unregisters the statistics MBean, if it is registered, writes out
+     * and stops the audit log, and stops sharing the blocklist.
+     *
+     * @exception LifecycleException if this component detects a fatal
+     *  error that needs to be reported
+     */
+    public synchronized void stop() throws LifecycleException {
+
+        if (!started) {
+            return;
+        }
+        lifecycle.fireLifecycleEvent(STOP_EVENT, null);
+        started = false;
+        unregisterMetrics();
+        stopAuditLog();
+        stopBlocklistGossip();
+
+    }
+
+    /**
+     * Checks the rules file for changes, and forgets offenders that have
+     * behaved for long enough.  Called periodically by the container's
+     * background thread.
+     */
+    @Override
+    public void backgroundProcess() {
+
+        super.backgroundProcess();
+        checkRulesFile();
+        OffenderTable offenders = offenderTable;
+        if (offenders != null) {
+            offenders.purge();
+        }
+
+    }
+
+    /**
+     * Puts the rules of a changed rules file into effect, by compiling a
+     * new RuleSet and replacing the current one with it.  If the new
+     * rules are invalid, the current ones stay in effect.
+     *
+     * @param rules The contents of the rules file
+     *
+     * @exception IllegalArgumentException if the rules are invalid
+     */
+    public void rulesChanged(Properties rules) {
+
+        synchronized (this) {
+            Properties previous = fileRules;
+            fileRules = rules;
+            try {
+                rebuildRuleSet();
+            } catch (IllegalArgumentException e) {
+                fileRules = previous;
+                throw e;
+            }
+        }
+        if (rulesWatcher != null) {
+            log.info("BadInputValve: loaded " + ruleSet + " from "
+                + rulesWatcher.getFile() + ".");
+        }
+
+    }
+
+    /**
+     * Logs that the rules file could not be read or was invalid.
+     *
+     * @param e The exception
+     */
+    public void rulesFailed(Exception e) {
+
+        log.error("BadInputValve: cannot load rules file " + rulesFile
+            + ", keeping the current rules.", e);
+
+    }
+
+    /**
+     * Sanitizes request parameters before bad user input gets into the
+     * web application.
+     *
+     * @param request The servlet request to be processed
+     * @param response The servlet response to be created
+     *
+     * @exception IOException if an input/output error occurs
+     * @exception ServletException if a servlet error occurs
+     */
+    @Override
+    public void invoke(Request request, Response response)
+        throws IOException, ServletException {
+
+        // Skip filtering for non-HTTP requests and responses.
+        if (!(request instanceof HttpServletRequest) ||
+            !(response instanceof HttpServletResponse)) {
+            getNext().invoke(request, response);
+            return;
+        }
+
+        BadInputMetrics stats = metrics;
+        if (stats != null) {
+            stats.requestInspected();
+        }
+
+        // Turn away clients whose requests were refused too often
+        // lately, before anything else is done with their requests.
+        OffenderTable offenders = offenderTable;
+        if (offenders != null
+            && offenders.isBlocked(request.getRemoteAddr())) {
+            if (stats != null) {
+                stats.requestBlocked();
+            }
+            ((HttpServletResponse) response).sendError(
+                HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+
+        // Refuse requests with bad headers, cookies or URIs, and then
+        // obviously bad query strings, before the parameters are parsed.
+        if (!processHeaders(request, response)) {
+            return;
+        }
+        if (inspectRawQuery && !processRawQuery(request, response)) {
+            return;
+        }
+
+        // Only let requests through based on the allows and denies.
+        long start = (stats != null) ? System.nanoTime() : 0L;
+        boolean allowed = processAllowsAndDenies(request, response);
+        if (stats != null) {
+            stats.allowsAndDeniesTime(System.nanoTime() - start);
+        }
+        if (allowed) {
+
+            // Filter the input for potentially dangerous JavaScript
+            // code so that bad user input is cleaned out of the request
+            // by the time Tomcat begins to perform the request.
+            try {
+                if (stats != null) {
+                    start = System.nanoTime();
+                }
+                filterParameters(request);
+                if (stats != null) {
+                    stats.filterParametersTime(System.nanoTime() - start);
+                }
+            } catch (MatchTimeoutException e) {
+                log.warn("Parameter " + e.getMessage() + ".  Remote addr: "
+                    + request.getRemoteAddr());
+                if (stats != null) {
+                    stats.requestDenied(null);
+                }
+                recordOffense(request);
+                ((HttpServletResponse) response).sendError(
+                    HttpServletResponse.SC_FORBIDDEN);
+                return;
+            }
+
+            // Perform the request.
+            getNext().invoke(request, response);
+        }
+
+    }
+
+    /**
+     * Stops requests whose undecoded query string contains a forbidden
+     * string pattern in a parameter name or value.  The query string is
+     * percent-decoded on the fly, and the request's parameter map is not
+     * touched, so Tomcat doesn't parse the parameters for requests that
+     * are refused here.
+     *
+     * @param request The servlet request to be processed
+     * @param response The servlet response to be created
+     *
+     * @exception IOException if an input/output error occurs
+     * @exception ServletException if a servlet error occurs
+     *
+     * @return false if the request is forbidden, true otherwise.
+     */
+    public boolean processRawQuery(Request request, Response response)
+        throws IOException, ServletException {
+
+        PatternSetMatcher.Verdict verdict = RawQueryInspector.inspect(
+            request.getQueryString(), ruleSet.getDenyMatcher());
+        if (verdict == null) {
+            return true;
+        }
+        return deny("Query string", verdict, request, response);
+
+    }
+
+    /**
+     * Stops requests that contain forbidden string patterns in the
+     * configured request headers, in cookie names and values, or in the
+     * decoded request URI, depending on which of these are switched on.
+     * Only the deny patterns are applied, because allow patterns are
+     * written for parameters.  None of this makes Tomcat parse the
+     * request's parameters.
+     *
+     * @param request The servlet request to be processed
+     * @param response The servlet response to be created
+     *
+     * @exception IOException if an input/output error occurs
+     * @exception ServletException if a servlet error occurs
+     *
+     * @return false if the request is forbidden, true otherwise.
+     */
+    @SuppressWarnings("unchecked")
+    public boolean processHeaders(Request request, Response response)
+        throws IOException, ServletException {
+
+        PatternSetMatcher matcher = ruleSet.getDenyMatcher();
+        if (matcher.isEmpty()) {
+            return true;
+        }
+
+        // Check the decoded URI first, it's always there.
+        if (inspectURI) {
+            String uri = request.getDecodedRequestURI();
+            if (uri != null) {
+                PatternSetMatcher.Verdict verdict = matcher.evaluate(uri);
+                if (!verdict.isAllowed()) {
+                    return deny("Request URI", verdict, request, response);
+                }
+            }
+        }
+
+        // Check every value of each of the configured headers.
+        String[] headerNames = inspectedHeaderNames;
+        for (int i = 0; i < headerNames.length; i++) {
+            Enumeration<String> values = request.getHeaders(headerNames[i]);
+            while (values.hasMoreElements()) {
+                PatternSetMatcher.Verdict verdict =
+                    matcher.evaluate(values.nextElement());
+                if (!verdict.isAllowed()) {
+                    return deny("Header " + headerNames[i], verdict,
+                                request, response);
+                }
+            }
+        }
+
+        // Check the cookies' names and values.
+        if (inspectCookies) {
+            Cookie[] cookies = request.getCookies();
+            if (cookies != null) {
+                for (int i = 0; i < cookies.length; i++) {
+                    String value = cookies[i].getValue();
+                    PatternSetMatcher.Verdict verdict =
+                        matcher.evaluate(cookies[i].getName());
+                    if (verdict.isAllowed() && value != null) {
+                        verdict = matcher.evaluate(value);
+                    }
+                    if (!verdict.isAllowed()) {
+                        return deny("Cookie " + cookies[i].getName(),
+                                    verdict, request, response);
+                    }
+                }
+            }
+        }
+
+        return true;
+
+    }
+
+    /**
+     * Uses the functionality of the (abstract) RequestFilterValve to
+     * stop requests that contain forbidden string patterns in parameter
+     * names and parameter values.
+     *
+     * @param request The servlet request to be processed
+     * @param response The servlet response to be created
+     *
+     * @exception IOException if an input/output error occurs
+     * @exception ServletException if a servlet error occurs
+     *
+     * @return false if the request is forbidden, true otherwise.
+     */
+    @SuppressWarnings("unchecked")
+    public boolean processAllowsAndDenies(Request request, Response response)
+        throws IOException, ServletException {
+
+        ParameterMap paramMap =
+            (ParameterMap) ((HttpServletRequest) request).getParameterMap();
+        // Loop through the list of parameters.
+        Iterator<String> y = paramMap.keySet().iterator();
+        while (y.hasNext()) {
+            String name = y.next();
+            String[] values = ((HttpServletRequest)
+                request).getParameterValues(name);
+
+            // See if the name contains a forbidden pattern.
+            if (!checkAllowsAndDenies(name, response)) {
+                return false;
+            }
+
+            // Check the parameter's values for the pattern.
+            if (values != null) {
+                for (int i = 0; i < values.length; i++) {
+                    String value = values[i];
+                    if (!checkAllowsAndDenies(value, response)) {
+                        return false;
+                    }
+                }
+            }
+        }
+
+        // No parameter caused a deny.  The request should continue.
+        return true;
+
+    }
+
+    /**
+     * Perform the filtering that has been configured for this Valve,
+     * matching against the specified request property. If the request
+     * is allowed to proceed, this method returns true.  Otherwise,
+     * this method sends a Forbidden error response page, and returns
+     * false.
+     *
+     * <br><br>
+     *
+     * This method follows the semantics of RequestFilterValve.process(),
+     * only this method has a boolean return type and doesn't call
+     * getNext().invoke(request, response).  All of the patterns are
+     * evaluated together by a PatternSetMatcher.
+     *
+     * @param property The request property on which to filter
+     * @param response The servlet response to be processed
+     *
+     * @exception IOException if an input/output error occurs
+     * @exception ServletException if a servlet error occurs
+     *
+     * @return true if the request is still allowed to proceed.
+     */
+    public boolean checkAllowsAndDenies(String property, Response response)
+        throws IOException, ServletException {
+
+        // Evaluate all of the deny and allow patterns in one pass.
+        PatternSetMatcher.Verdict verdict = evaluate(property);
+        if (verdict.isAllowed()) {
+            return true;
+        }
+
+        // Otherwise, deny the request.
+        if (verdict.getRule() != null) {
+            log.warn("Request property matched " + verdict + ".");
+        }
+        BadInputMetrics stats = metrics;
+        if (stats != null) {
+            stats.requestDenied(verdict);
+        }
+        recordOffense(response.getRequest());
+        ServletResponse sres = response.getResponse();
+        if (sres instanceof HttpServletResponse) {
+            HttpServletResponse hres = (HttpServletResponse) sres;
+            hres.sendError(HttpServletResponse.SC_FORBIDDEN);
+        }
+        return false;
+
+    }
+
+    /**
+     * Filters all existing parameters for potentially dangerous content,
+     * and escapes any if they are found.
+     *
+     * @param request The Request that contains the parameters.
+     */
+    public void filterParameters(Request request) {
+
+        EscapeTable table = ruleSet.getEscapeTable();
+        if (table.isEmpty()) {
+            return;
+        }
+
+        ParameterMap paramMap =
+            (ParameterMap) ((HttpServletRequest) request).getParameterMap();
+        // Unlock the parameters map so we can modify the parameters.
+        paramMap.setLocked(false);
+        try {
+            escapeParameters(table, request, paramMap);
+        } finally {
+            // Make sure the parameters map is locked again when we're
+            // done, even if a pattern ran out of match time.
+            paramMap.setLocked(true);
+        }
+
+    }
+
+    /**
+     * Applies all of the substitution rules to the names and values of
+     * the unlocked parameters map.
+     *
+     * @param table The substitution rules to apply
+     * @param request The Request that contains the parameters.
+     * @param paramMap The Request's parameters map
+     */
+    @SuppressWarnings("unchecked")
+    protected void escapeParameters(EscapeTable table, Request request,
+                                    ParameterMap paramMap) {
+
+        // Loop through the list of parameters once, applying all of the
+        // substitution rules to each name and value.  Renamed parameters
+        // are collected as (old name, new name) pairs and moved afterwards
+        // so that the map isn't modified while we iterate over it.
+        ArrayList<String> renames = null;
+        Iterator<Map.Entry<String, String[]>> entries =
+            paramMap.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, String[]> entry = entries.next();
+            String name = entry.getKey();
+            String[] values = entry.getValue();
+
+            // See if the name contains any of the patterns.
+            if (table.mayMatch(name)) {
+                String newName = name;
+                for (int r = 0; r < table.getRuleCount(); r++) {
+                    EscapeTable.Rule rule = table.getRule(r);
+                    String escaped = rule.apply(newName);
+                    if (escaped != newName) {
+                        newName = escaped;
+                        audit(AuditLog.NAME, rule, name, name,
+                              request.getRemoteAddr());
+                    }
+                }
+                if (newName != name) {
+                    countEscape();
+                    if (renames == null) {
+                        renames = new ArrayList<String>();
+                    }
+                    renames.add(name);
+                    renames.add(newName);
+                }
+            }
+
+            // Check the parameter's values for the patterns.
+            if (values != null) {
+                for (int j = 0; j < values.length; j++) {
+                    values[j] = escapeValue(table, request, name, values[j]);
+                }
+            }
+        }
+
+        // The parameters whose names matched a pattern are fixed by
+        // adding the parameter back as the new name, and removing the
+        // old one.
+        if (renames != null) {
+            for (int i = 0; i < renames.size(); i += 2) {
+                String[] values = (String[]) paramMap.get(renames.get(i));
+                request.addParameter(renames.get(i + 1), values);
+                paramMap.remove(renames.get(i));
+            }
+        }
+
+    }
+
+    /**
+     * Applies all of the substitution rules to a single parameter value.
+     * Values without any of the rules' trigger characters are returned
+     * as they are, without being copied.
+     *
+     * @param table The substitution rules to apply
+     * @param request The Request that contains the parameter.
+     * @param name The name of the parameter
+     * @param value The value to filter
+     *
+     * @return the escaped value, or the same String instance if no rule
+     *  matched it.
+     */
+    protected String escapeValue(EscapeTable table, Request request,
+                                 String name, String value) {
+
+        if (value == null || !table.mayMatch(value)) {
+            return value;
+        }
+        VerdictCache cache = verdictCache;
+        VerdictCache.Escape escape =
+            (cache != null && cache.getRuleSet().getEscapeTable() == table)
+            ? cache.escape(value) : VerdictCache.escape(table, value);
+        if (!escape.isChanged()) {
+            return value;
+        }
+        String remoteAddr = request.getRemoteAddr();
+        for (int r = 0; r < escape.getMatchedRuleCount(); r++) {
+            audit(AuditLog.VALUE, escape.getMatchedRule(r), name, value,
+                  remoteAddr);
+        }
+        countEscape();
+        return escape.getValue();
+
+    }
+
+    /**
+     * Logs which deny pattern a part of the request matched, and sends a
+     * Forbidden error response page.
+     *
+     * @param what The part of the request that matched
+     * @param verdict The verdict of the matching deny pattern
+     * @param request The servlet request to be processed
+     * @param response The servlet response to be created
+     *
+     * @exception IOException if an input/output error occurs
+     *
+     * @return false, so that callers can return it.
+     */
+    protected boolean deny(String what, PatternSetMatcher.Verdict verdict,
+                           Request request, Response response)
+        throws IOException {
+
+        log.warn(what + " matched " + verdict + ".  Remote addr: "
+            + request.getRemoteAddr());
+        BadInputMetrics stats = metrics;
+        if (stats != null) {
+            stats.requestDenied(verdict);
+        }
+        recordOffense(request);
+        ServletResponse sres = response.getResponse();
+        if (sres instanceof HttpServletResponse) {
+            HttpServletResponse hres = (HttpServletResponse) sres;
+            hres.sendError(HttpServletResponse.SC_FORBIDDEN);
+        }
+        return false;
+
+    }
+
+    /**
+     * Compiles a new RuleSet from this Valve's configuration, overridden
+     * by the rules file's entries, and puts it into effect.  Requests
+     * that are being filtered keep using the RuleSet they started with.
+     *
+     * @exception IllegalArgumentException if one of the expressions has
+     *  invalid syntax
+     */
+    protected synchronized void rebuildRuleSet() {
+
+        Properties rules = fileRules;
+        HashMap<String, String> escapes =
+            new HashMap<String, String>(parameterEscapes);
+        overrideEscapes(escapes, rules.getProperty("escapeQuotes"),
+                        quotesHashMap);
+        overrideEscapes(escapes, rules.getProperty("escapeAngleBrackets"),
+                        angleBracketsHashMap);
+        overrideEscapes(escapes, rules.getProperty("escapeJavaScript"),
+                        javaScriptHashMap);
+        String timeout = rules.getProperty("matchTimeout");
+        String denyOnTimeout = rules.getProperty("denyOnMatchTimeout");
+
+        ruleSet = new RuleSet(rules.getProperty("allow", allow),
+            rules.getProperty("deny", deny), escapes,
+            (timeout == null) ? matchTimeout : Long.parseLong(timeout.trim()),
+            (denyOnTimeout == null) ? denyOnMatchTimeout
+                : Boolean.parseBoolean(denyOnTimeout.trim()));
+
+        resetVerdictCache();
+
+    }
+
+    /**
+     * Replaces the verdict cache with an empty one for the current
+     * RuleSet, or removes it if caching is switched off.
+     */
+    protected synchronized void resetVerdictCache() {
+
+        verdictCache = (verdictCacheSize > 0)
+            ? new VerdictCache(ruleSet, verdictCacheSize,
+                               verdictCacheMaxLength)
+            : null;
+
+    }
+
+    /**
+     * Replaces the offender table with an empty one, or removes it if
+     * clients are never to be turned away.
+     */
+    protected synchronized void resetOffenderTable() {
+
+        OffenderTable offenders = null;
+        if (offenderThreshold > 0) {
+            offenders = new OffenderTable(offenderTableSize,
+                offenderThreshold, offenderHalfLife * 1000L,
+                offenderTtl * 1000L);
+        }
+        offenderTable = offenders;
+        BadInputMetrics stats = metrics;
+        if (stats != null) {
+            stats.setOffenderTable(offenders);
+        }
+        if (started) {
+            stopBlocklistGossip();
+            startBlocklistGossip();
+        }
+
+    }
+
+    /**
+     * Starts sharing the offender table's blocked clients with the rest
+     * of the cluster, if it is to be shared.  Problems are logged, and
+     * leave the blocklist unshared.
+     */
+    protected synchronized void startBlocklistGossip() {
+
+        OffenderTable offenders = offenderTable;
+        if (!clusterBlocklist || offenders == null) {
+            return;
+        }
+        try {
+            NetworkInterface networkInterface = null;
+            if (clusterInterface != null) {
+                networkInterface =
+                    NetworkInterface.getByName(clusterInterface);
+                if (networkInterface == null) {
+                    throw new IOException("no network interface named "
+                                          + clusterInterface);
+                }
+            }
+            BlocklistGossip gossip = new BlocklistGossip(offenders,
+                InetAddress.getByName(clusterAddress), clusterPort,
+                networkInterface);
+            gossip.setDigestInterval(clusterDigestInterval * 1000L);
+            gossip.setSecret(clusterSecret);
+            gossip.start();
+            blocklistGossip = gossip;
+        } catch (IOException e) {
+            log.warn("BadInputValve: cannot share the blocklist on "
+                     + clusterAddress + ":" + clusterPort + ".", e);
+        }
+
+    }
+
+    /**
+     * Stops sharing the blocklist, if it is being shared.
+     */
+    protected synchronized void stopBlocklistGossip() {
+
+        if (blocklistGossip != null) {
+            blocklistGossip.stop();
+            blocklistGossip = null;
+        }
+
+    }
+
+    /**
+     * Counts a refused request against its client, if clients whose
+     * requests are refused too often are turned away.
+     *
+     * @param request The request that was refused
+     */
+    protected void recordOffense(Request request) {
+
+        OffenderTable offenders = offenderTable;
+        if (offenders != null) {
+            offenders.offend(request.getRemoteAddr());
+        }
+
+    }
+
+    /**
+     * Returns the verdict of the allow and deny rules on a request
+     * property, from the verdict cache if it holds one.
+     *
+     * @param property The request property to evaluate
+     */
+    protected PatternSetMatcher.Verdict evaluate(String property) {
+
+        RuleSet rules = ruleSet;
+        VerdictCache cache = verdictCache;
+        if (cache != null && cache.getRuleSet() == rules) {
+            return cache.evaluate(property);
+        }
+        return rules.getRuleMatcher().evaluate(property);
+
+    }
+
+    /**
+     * Counts one escaped parameter name or value, if statistics are being
+     * collected.
+     */
+    protected void countEscape() {
+
+        BadInputMetrics stats = metrics;
+        if (stats != null) {
+            stats.parameterEscaped();
+        }
+
+    }
+
+    /**
+     * Registers the statistics MBean under a name made of this Valve's
+     * container names, if statistics are being collected.  Problems are
+     * logged, and don't stop the Valve from working.
+     */
+    protected void registerMetrics() {
+
+        BadInputMetrics stats = metrics;
+        if (stats == null) {
+            return;
+        }
+        try {
+            stats.register(new ObjectName(
+                "com.oreilly.tomcat:type=BadInputValve,container="
+                + ObjectName.quote(getContainerPath())));
+        } catch (JMException e) {
+            log.warn("BadInputValve: cannot register metrics MBean.", e);
+        }
+
+    }
+
+    /**
+     * Unregisters the statistics MBean, if it is registered.
+     */
+    protected void unregisterMetrics() {
+
+        BadInputMetrics stats = metrics;
+        if (stats == null) {
+            return;
+        }
+        try {
+            stats.unregister();
+        } catch (JMException e) {
+            log.warn("BadInputValve: cannot unregister metrics MBean.", e);
+        }
+
+    }
+
+    /**
+     * Return the names of this Valve's container and its parents, as a
+     * path such as <code>/Catalina/localhost/app</code>.
+     */
+    protected String getContainerPath() {
+
+        StringBuffer path = new StringBuffer();
+        for (Container c = container; c != null; c = c.getParent()) {
+            path.insert(0, "/" + c.getName());
+        }
+        return path.toString();
+
+    }
+
+    /**
+     * Starts the audit log, unless matches are to be logged as soon as
+     * they're found.
+     */
+    protected void startAuditLog() {
+
+        if (auditWindow <= 0) {
+            return;
+        }
+        AuditLog audit = new AuditLog(new AuditLog.Sink() {
+            public void write(String record) {
+                log.warn("BadInputValve: " + record);
+            }
+        }, auditWindow * 1000L, auditBufferSize, auditMaxRecords);
+        audit.start(getContainerPath());
+        auditLog = audit;
+
+    }
+
+    /**
+     * Stops the audit log, if it is running, after it has logged the
+     * matches it holds.
+     */
+    protected void stopAuditLog() {
+
+        AuditLog audit = auditLog;
+        auditLog = null;
+        if (audit != null) {
+            audit.stop();
+        }
+
+    }
+
+    /**
+     * Records that a parameter name or value matched a substitution
+     * rule, in the audit log if it is running, or else directly in the
+     * log.
+     *
+     * @param kind AuditLog.NAME or AuditLog.VALUE
+     * @param rule The rule that matched
+     * @param name The name of the parameter
+     * @param value The name or value that matched
+     * @param remoteAddr The address of the client
+     */
+    protected void audit(int kind, EscapeTable.Rule rule, String name,
+                         String value, String remoteAddr) {
+
+        AuditLog audit = auditLog;
+        if (audit != null) {
+            audit.publish(kind, rule.getPattern(), name, value, remoteAddr);
+        } else if (kind == AuditLog.NAME) {
+            log.warn("Parameter name " + name + " matched pattern \""
+                + rule.getPattern() + "\".  Remote addr: " + remoteAddr);
+        } else {
+            log.warn("Parameter \"" + name + "\"'s value \"" + value
+                + "\" matched pattern \"" + rule.getPattern()
+                + "\".  Remote addr: " + remoteAddr);
+        }
+
+    }
+
+    /**
+     * Checks the rules file for changes, if there is one, and logs any
+     * problem with it.
+     */
+    protected void checkRulesFile() {
+
+        RuleFileWatcher watcher = rulesWatcher;
+        if (watcher == null) {
+            return;
+        }
+        try {
+            watcher.check();
+        } catch (Exception e) {
+            rulesFailed(e);
+        }
+
+    }
+
+    /**
+     * Adds the specified escapes to, or removes them from, the map of
+     * escapes according to a flag from the rules file.
+     *
+     * @param escapes The escapes to modify
+     * @param flag The flag's value, or null if the file doesn't set it
+     * @param flagEscapes The escapes that the flag controls
+     */
+    protected static void overrideEscapes(
+        HashMap<String, String> escapes, String flag,
+        HashMap<String, String> flagEscapes) {
+
+        if (flag == null) {
+            return;
+        }
+        if (Boolean.parseBoolean(flag.trim())) {
+            escapes.putAll(flagEscapes);
+        } else {
+            escapes.keySet().removeAll(flagEscapes.keySet());
         }
-        // Make sure the parameters map is locked again when we're done.
-        paramMap.setLocked(true);
 
     }
 
@@ -0,0 +1,217 @@
+/*
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (c) 2007 O'Reilly Media.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.oreilly.tomcat.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+
+/**
+ * Checks that EscapeTable escapes values the same way as applying each
+ * mapping with replaceAll(), as the valve and filter used to.
+ */
+public class EscapeTableTest {
+
+    /**
+     * The pieces random values are made of.
+     */
+    private static final String[] PIECES = {
+        "\"", "'", "`", "<", ">", "&", "eval(", "eval (", "Eval(",
+        "setTimeout(", "setTimeout  (", "setInterval(", "execScript\t(",
+        "javascript:", "JavaScript:", "javascript :", "document.cookie",
+        "document", ".", "cookie", "text", " ", "x",
+        "\u00e9", "\u212a", "$1", "\\"
+    };
+
+    // ----------------------------------------------------- Tests
+
+    @Test
+    public void testDefaultEscapesMatchReplaceAll() {
+
+        Map<String, String> escapes = defaultEscapes();
+        EscapeTable table = new EscapeTable(escapes);
+        Random random = new Random(1L);
+        for (int i = 0; i < 20000; i++) {
+            String value = value(random);
+            assertEquals("\"" + value + "\"", replaceAll(escapes, value),
+                         table.escape(value));
+        }
+
+    }
+
+    @Test
+    public void testCharacterRulesFormOneTableRule() {
+
+        Map<String, String> escapes = defaultEscapes();
+        EscapeTable table = new EscapeTable(escapes);
+        // The five quote and angle bracket escapes, then the six
+        // JavaScript ones.
+        assertEquals(7, table.getRules().length);
+        assertTrue(table.getRules()[0].getPattern().startsWith("["));
+        assertEquals("&lt;b&gt;", table.getRules()[0].apply("<b>"));
+
+        // A replacement with a group reference needs a regular
+        // expression.
+        Map<String, String> group = new HashMap<String, String>();
+        group.put("<", "$0$0");
+        assertEquals("<<", new EscapeTable(group).escape("<"));
+
+    }
+
+    @Test
+    public void testUnchangedValueIsSameInstance() {
+
+        EscapeTable table = new EscapeTable(defaultEscapes());
+        String value = new String("1234 + 5 = 1239");
+        assertFalse(table.mayMatch(value));
+        assertSame(value, table.escape(value));
+
+        // "e" may start "eval(", so the rules run, but change nothing.
+        value = new String("evaluate");
+        assertTrue(table.mayMatch(value));
+        assertSame(value, table.escape(value));
+
+    }
+
+    @Test
+    public void testMayMatchIgnoresCase() {
+
+        EscapeTable table = new EscapeTable(defaultEscapes());
+        assertTrue(table.mayMatch("JAVASCRIPT:"));
+        assertTrue(table.mayMatch("<"));
+        assertFalse(table.mayMatch("123 XYZ"));
+        assertFalse(table.mayMatch("\u00c0\u00c1"));
+
+        // A rule without a required literal can match anything.
+        Map<String, String> escapes = new HashMap<String, String>();
+        escapes.put("[0-9]+", "#");
+        table = new EscapeTable(escapes);
+        assertTrue(table.mayMatch("no digits"));
+        assertEquals("a#b", table.escape("a123b"));
+
+    }
+
+    @Test
+    public void testEmpty() {
+
+        assertTrue(EscapeTable.EMPTY.isEmpty());
+        String value = "<\"'>";
+        assertSame(value, EscapeTable.EMPTY.escape(value));
+
+    }
+
+    @Test(expected = MatchTimeoutException.class)
+    public void testTimeoutDenies() {
+
+        timeoutTable(true).escape(slowValue());
+
+    }
+
+    @Test
+    public void testTimeoutLeavesValue() {
+
+        String value = slowValue();
+        assertSame(value, timeoutTable(false).escape(value));
+
+    }
+
+    // ---------------------------------------------- Private Methods
+
+    /**
+     * Return the quote, angle bracket and JavaScript escapes that
+     * BadInputFilter and BadInputValve set up by default.
+     */
+    private static Map<String, String> defaultEscapes() {
+
+        Map<String, String> escapes = new LinkedHashMap<String, String>();
+        escapes.put("\"", "&quot;");
+        escapes.put("\'", "&#39;");
+        escapes.put("`", "&#96;");
+        escapes.put("<", "&lt;");
+        escapes.put(">", "&gt;");
+        escapes.put("document(.*)\\.(.*)cookie", "document&#46;&#99;ookie");
+        escapes.put("eval(\\s*)\\(", "eval&#40;");
+        escapes.put("setTimeout(\\s*)\\(", "setTimeout$1&#40;");
+        escapes.put("setInterval(\\s*)\\(", "setInterval$1&#40;");
+        escapes.put("execScript(\\s*)\\(", "exexScript$1&#40;");
+        escapes.put("(?i)javascript(?-i):", "javascript&#58;");
+        return escapes;
+
+    }
+
+    private static String replaceAll(Map<String, String> escapes,
+                                     String value) {
+
+        Iterator<Map.Entry<String, String>> entries =
+            escapes.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, String> entry = entries.next();
+            value = Pattern.compile(entry.getKey()).matcher(value)
+                .replaceAll(entry.getValue());
+        }
+        return value;
+
+    }
+
+    private static String value(Random random) {
+
+        StringBuilder value = new StringBuilder();
+        int count = random.nextInt(6);
+        for (int i = 0; i < count; i++) {
+            value.append(PIECES[random.nextInt(PIECES.length)]);
+        }
+        return value.toString();
+
+    }
+
+    private static EscapeTable timeoutTable(boolean denyOnTimeout) {
+
+        Map<String, String> escapes = new HashMap<String, String>();
+        escapes.put("(.*a){20}b", "x");
+        return new EscapeTable(escapes, 50L, denyOnTimeout);
+
+    }
+
+    /**
+     * Return a value the timeout table's rule backtracks on for far
+     * longer than the timeout.
+     */
+    private static String slowValue() {
+
+        StringBuilder value = new StringBuilder("b");
+        for (int i = 0; i < 30; i++) {
+            value.append('a');
+        }
+        return value.append('c').toString();
+
+    }
+
+}
@@ -0,0 +1,172 @@
+/*
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (c) 2007 O'Reilly Media.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.oreilly.tomcat.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+
+/**
+ * Checks how OffenderTable scores, forgets and evicts clients, and how
+ * it keys their addresses.
+ */
+public class OffenderTableTest {
+
+    // ----------------------------------------------------- Tests
+
+    @Test
+    public void testThresholdAndDecay() throws InterruptedException {
+
+        OffenderTable table = new OffenderTable(128, 2.0, 1000L, 60000L);
+        assertFalse(table.isBlocked("192.0.2.1"));
+        assertEquals(1.0, table.offend("192.0.2.1"), 0.01);
+        assertFalse(table.isBlocked("192.0.2.1"));
+        assertEquals(2.0, table.offend("192.0.2.1"), 0.05);
+        assertTrue(table.isBlocked("192.0.2.1"));
+        assertFalse(table.isBlocked("192.0.2.2"));
+
+        // After one and a half half-lives the score is about 0.7.
+        Thread.sleep(1500L);
+        assertFalse(table.isBlocked("192.0.2.1"));
+        assertEquals(1, table.getSize());
+        assertEquals(1.0 / 5.0, table.getHitRate(), 0.0);
+
+    }
+
+    @Test
+    public void testTtlForgets() throws InterruptedException {
+
+        OffenderTable table = new OffenderTable(128, 1.0, 60000L, 50L);
+        table.offend("192.0.2.1");
+        table.offend("2001:db8::1");
+        assertTrue(table.isBlocked("192.0.2.1"));
+        assertEquals(2, table.getSize());
+
+        Thread.sleep(100L);
+        table.purge();
+        assertEquals(0, table.getSize());
+        assertFalse(table.isBlocked("192.0.2.1"));
+        assertFalse(table.isBlocked("2001:db8::1"));
+
+    }
+
+    @Test
+    public void testScanDoesNotEvictOffenders() {
+
+        OffenderTable table = new OffenderTable(128, 3.0, 60000L, 60000L);
+        for (int i = 0; i < 10; i++) {
+            table.offend("198.51.100.7");
+        }
+        for (int i = 0; i < 10000; i++) {
+            table.offend("10." + (i >> 8) + "." + (i & 0xff) + ".1");
+            table.offend("2001:db8:" + Integer.toHexString(i) + "::1");
+        }
+        assertTrue(table.isBlocked("198.51.100.7"));
+        assertEquals(128, table.getCapacity());
+        assertEquals(table.getCapacity(), table.getSize());
+        long[] blocked = table.getBlockedKeys();
+        assertEquals(1, blocked.length);
+        assertEquals(OffenderTable.key("198.51.100.7"), blocked[0]);
+
+    }
+
+    @Test
+    public void testBlockOnBehalfOfAnotherNode() throws InterruptedException {
+
+        final List<Long> told = new ArrayList<Long>();
+        OffenderTable table = new OffenderTable(128, 2.0, 60000L, 60000L);
+        table.setListener(new OffenderTable.Listener() {
+            public void blocked(long key) {
+                told.add(Long.valueOf(key));
+            }
+        });
+
+        long key = OffenderTable.key("192.0.2.1");
+        assertTrue(table.block(key));
+        assertFalse(table.block(key));
+        assertFalse(table.block(OffenderTable.NO_KEY));
+        assertTrue(table.isBlocked("192.0.2.1"));
+
+        // Blocks on behalf of other nodes aren't passed on.
+        assertEquals(0, table.getBlockedKeys().length);
+        assertTrue(told.isEmpty());
+
+        table.offend("192.0.2.9");
+        table.offend("192.0.2.9");
+        table.offend("192.0.2.9");
+        assertEquals(1, told.size());
+        assertEquals(OffenderTable.key("192.0.2.9"), told.get(0).longValue());
+        assertEquals(1, table.getBlockedKeys().length);
+
+        // Nor are they once the client has offended here too.
+        table = new OffenderTable(128, 2.0, 60000L, 60000L);
+        long other = OffenderTable.key("192.0.2.5");
+        table.offend("192.0.2.5");
+        assertTrue(table.block(other));
+        assertEquals(0, table.getBlockedKeys().length);
+        assertTrue(table.isBlocked("192.0.2.5"));
+        table.offend("192.0.2.5");
+        assertEquals(0, table.getBlockedKeys().length);
+
+        // A remote block lasts about one half-life.
+        table = new OffenderTable(128, 2.0, 100L, 60000L);
+        table.block(key);
+        assertTrue(table.isBlocked("192.0.2.1"));
+        Thread.sleep(150L);
+        assertFalse(table.isBlocked("192.0.2.1"));
+
+    }
+
+    @Test
+    public void testKey() {
+
+        long ipv4 = OffenderTable.key("127.0.0.1");
+        assertEquals(0xffffffff7f000001L, ipv4);
+        assertEquals(ipv4, OffenderTable.key("::ffff:127.0.0.1"));
+        assertEquals(ipv4, OffenderTable.key("::ffff:7f00:1"));
+        // An IPv6 /64 that spells out an IPv4 address is another client.
+        assertFalse(ipv4 == OffenderTable.key("0:0:7f00:1::1"));
+
+        long ipv6 = OffenderTable.key("2001:db8:1:2::1");
+        assertEquals(0x20010db800010002L, ipv6);
+        assertEquals(ipv6, OffenderTable.key("2001:db8:1:2:ffff:0:0:9"));
+        assertEquals(ipv6, OffenderTable.key("[2001:DB8:1:2::1]"));
+        assertEquals(ipv6, OffenderTable.key("2001:db8:1:2::1%eth0"));
+        assertFalse(ipv6 == OffenderTable.key("2001:db8:1:3::1"));
+
+        assertEquals(OffenderTable.NO_KEY, OffenderTable.key(null));
+        assertEquals(OffenderTable.NO_KEY, OffenderTable.key(""));
+        assertEquals(OffenderTable.NO_KEY, OffenderTable.key("localhost"));
+        assertEquals(OffenderTable.NO_KEY, OffenderTable.key("256.0.0.1"));
+        assertEquals(OffenderTable.NO_KEY, OffenderTable.key("1.2.3"));
+        assertEquals(OffenderTable.NO_KEY, OffenderTable.key("1::2::3"));
+        assertEquals(OffenderTable.NO_KEY, OffenderTable.key("ff02::1"));
+        assertEquals(0.0, new OffenderTable(16, 1.0, 1L, 1L).offend("x"),
+                     0.0);
+
+    }
+
+}
@@ -0,0 +1,248 @@
+/*
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (c) 2007 O'Reilly Media.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.oreilly.tomcat.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+
+/**
+ * Checks that PatternSetMatcher reaches the same verdict as running
+ * every rule's Pattern in turn, the way RequestFilterValve.process()
+ * does, whichever rules its automaton filters out.
+ */
+public class PatternSetMatcherTest {
+
+    /**
+     * Deny rules with and without a required literal, in both cases.
+     */
+    private static final String[] DENIES = {
+        "<script", "(?i)javascript:", "eval\\s*\\(", "\\.\\./",
+        "[0-9]{6}", "drop\\s+table", "(?i:onload)=", "a|b{3}",
+        "\u00e9t\u00e9", "\\bunion\\b.*\\bselect\\b"
+    };
+
+    private static final String[] ALLOWS = {
+        "^[a-z]+$", "ok", "(?i)SAFE"
+    };
+
+    /**
+     * The pieces random values are made of, so that they often contain
+     * the rules' literals, or near misses of them.
+     */
+    private static final String[] PIECES = {
+        "<script", "<scrip", "<SCRIPT", "javascript:", "JavaScript:",
+        "java script:", "eval (", "eval(", "evil(", "../", "..", "/",
+        "123456", "12345", "drop table", "DROP  table", "onload=",
+        "ONLOAD=", "onload", "a", "bbb", "bb", "\u00e9t\u00e9",
+        "\u00c9T\u00c9", "union all select", "unions select", "ok", "O",
+        "k", "safe", "Safe", "x", "Z", " ", "\t", "\u0130", "\u212a"
+    };
+
+    // ----------------------------------------------------- Tests
+
+    @Test
+    public void testRandomValuesMatchRegexPath() {
+
+        Pattern[] denies = compile(DENIES);
+        Pattern[] allows = compile(ALLOWS);
+        checkRandomValues(new PatternSetMatcher(denies, null), denies,
+                          new Pattern[0], 1L);
+        checkRandomValues(new PatternSetMatcher(null, allows),
+                          new Pattern[0], allows, 2L);
+        checkRandomValues(new PatternSetMatcher(denies, allows), denies,
+                          allows, 3L);
+
+    }
+
+    @Test
+    public void testMoreThan64Rules() {
+
+        String[] denies = new String[100];
+        for (int i = 0; i < denies.length; i++) {
+            // Every fifth rule has no literal the automaton can use.
+            denies[i] = (i % 5 == 0) ? "x{" + (i / 5 + 2) + "}"
+                                     : "rule" + i + "\\b";
+        }
+        String[] pieces = new String[] { "rule", "1", "7", "42", "99",
+            "x", "xx", " ", "RULE", "9" };
+        Pattern[] deny = compile(denies);
+        Pattern[] allow = compile(ALLOWS);
+        PatternSetMatcher matcher = new PatternSetMatcher(deny, allow);
+        assertEquals(100 + ALLOWS.length, matcher.getRuleCount());
+        assertTrue(matcher.getFilteredRuleCount() > 64);
+        Random random = new Random(4L);
+        for (int i = 0; i < 20000; i++) {
+            String value = value(random, pieces);
+            check(matcher, deny, allow, value);
+        }
+
+    }
+
+    @Test
+    public void testDefaultVerdicts() {
+
+        Pattern[] denies = compile(new String[] { "bad" });
+        Pattern[] allows = compile(new String[] { "good" });
+
+        PatternSetMatcher none = new PatternSetMatcher(null, null);
+        assertTrue(none.isEmpty());
+        assertSame(PatternSetMatcher.NO_RULES, none.evaluate("anything"));
+
+        PatternSetMatcher denyOnly = new PatternSetMatcher(denies, null);
+        assertSame(PatternSetMatcher.DEFAULT_ALLOW,
+                   denyOnly.evaluate("fine"));
+        assertFalse(denyOnly.evaluate("so bad").isAllowed());
+
+        PatternSetMatcher both = new PatternSetMatcher(denies, allows);
+        assertSame(PatternSetMatcher.DEFAULT_DENY, both.evaluate("fine"));
+        assertTrue(both.evaluate("good").isAllowed());
+        PatternSetMatcher.Verdict verdict = both.evaluate("good but bad");
+        assertFalse("a deny rule comes before the allow rules",
+                    verdict.isAllowed());
+        assertTrue(verdict.isDenyRule());
+        assertSame(denies[0], verdict.getRule());
+
+    }
+
+    @Test
+    public void testRequiredLiteral() {
+
+        assertEquals("<script", literal("<script"));
+        assertEquals("javascript:", literal("(?i)JavaScript:"));
+        assertEquals("table", literal("drop\\s+table"));
+        assertEquals("a+b", literal("a+b", Pattern.LITERAL));
+        assertNull(literal("a|b{3}"));
+        assertNull(literal("[0-9]{6}"));
+        assertNull(literal("x", Pattern.COMMENTS));
+        assertNull(literal("(?iu)caf\u00e9"));
+
+    }
+
+    @Test
+    public void testMatchTimeout() {
+
+        // The value holds the rule's literal, so the rule is verified,
+        // and then backtracks for far longer than the timeout.
+        Pattern[] denies = compile(new String[] { "(.*a){20}b" });
+        StringBuilder value = new StringBuilder("b");
+        for (int i = 0; i < 30; i++) {
+            value.append('a');
+        }
+        value.append('c');
+
+        PatternSetMatcher.Verdict verdict =
+            new PatternSetMatcher(denies, null, 50L, true)
+                .evaluate(value);
+        assertTrue(verdict.isTimedOut());
+        assertFalse(verdict.isAllowed());
+
+        verdict = new PatternSetMatcher(denies, null, 50L, false)
+            .evaluate(value);
+        assertTrue(verdict.isTimedOut());
+        assertTrue(verdict.isAllowed());
+
+    }
+
+    // ---------------------------------------------- Private Methods
+
+    private static void checkRandomValues(PatternSetMatcher matcher,
+                                          Pattern[] denies,
+                                          Pattern[] allows, long seed) {
+
+        Random random = new Random(seed);
+        for (int i = 0; i < 20000; i++) {
+            check(matcher, denies, allows, value(random, PIECES));
+        }
+
+    }
+
+    /**
+     * Check a value's verdict against the Patterns run in turn.
+     */
+    private static void check(PatternSetMatcher matcher, Pattern[] denies,
+                              Pattern[] allows, String value) {
+
+        PatternSetMatcher.Verdict verdict = matcher.evaluate(value);
+        String message = "\"" + value + "\"";
+        for (int i = 0; i < denies.length; i++) {
+            if (denies[i].matcher(value).find()) {
+                assertFalse(message, verdict.isAllowed());
+                assertTrue(message, verdict.isDenyRule());
+                assertEquals(message, i, verdict.getRuleIndex());
+                return;
+            }
+        }
+        for (int i = 0; i < allows.length; i++) {
+            if (allows[i].matcher(value).find()) {
+                assertTrue(message, verdict.isAllowed());
+                assertFalse(message, verdict.isDenyRule());
+                assertEquals(message, i, verdict.getRuleIndex());
+                return;
+            }
+        }
+        assertEquals(message, allows.length == 0, verdict.isAllowed());
+        assertEquals(message, -1, verdict.getRuleIndex());
+
+    }
+
+    private static String value(Random random, String[] pieces) {
+
+        StringBuilder value = new StringBuilder();
+        int count = random.nextInt(6);
+        for (int i = 0; i < count; i++) {
+            value.append(pieces[random.nextInt(pieces.length)]);
+        }
+        return value.toString();
+
+    }
+
+    private static Pattern[] compile(String[] regexes) {
+
+        Pattern[] patterns = new Pattern[regexes.length];
+        for (int i = 0; i < regexes.length; i++) {
+            patterns[i] = Pattern.compile(regexes[i]);
+        }
+        return patterns;
+
+    }
+
+    private static String literal(String regex) {
+
+        return literal(regex, 0);
+
+    }
+
+    private static String literal(String regex, int flags) {
+
+        return PatternSetMatcher.requiredLiteral(
+            Pattern.compile(regex, flags));
+
+    }
+
+}
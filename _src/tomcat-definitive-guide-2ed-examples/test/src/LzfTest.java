@@ -0,0 +1,115 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that what DeltaReplication.Lzf compresses decompresses to the
+ * same bytes, and that corrupt data is refused rather than read past.
+ */
+public class LzfTest {
+
+    private final int[] table = new int[DeltaReplication.Lzf.HASH_SIZE];
+
+
+    @Test
+    public void testRoundTrips() throws IOException {
+
+        Random random = new Random(1L);
+        int[] lengths = { 0, 1, 2, 3, 4, 31, 32, 33, 264, 265, 1000, 65536 };
+        for (int i = 0; i < lengths.length; i++) {
+            byte[] noise = new byte[lengths[i]];
+            random.nextBytes(noise);
+            roundTrip(noise);
+
+            // Short repeats, long runs and distant matches.
+            byte[] text = new byte[lengths[i]];
+            for (int j = 0; j < text.length; j++) {
+                text[j] = (byte) "session attribute ".charAt(
+                    (j * 7 / 5) % 18);
+            }
+            assertTrue(roundTrip(text) < text.length / 2 + 40);
+
+            byte[] zeros = new byte[lengths[i]];
+            assertTrue(roundTrip(zeros) < zeros.length / 16 + 40);
+
+            byte[] mixed = new byte[lengths[i]];
+            for (int j = 0; j < mixed.length; j++) {
+                mixed[j] = (random.nextInt(8) == 0)
+                    ? (byte) random.nextInt() : (byte) (j % 100);
+            }
+            roundTrip(mixed);
+        }
+
+    }
+
+
+    @Test
+    public void testOutputTooSmall() {
+
+        byte[] noise = new byte[1000];
+        new Random(2L).nextBytes(noise);
+        byte[] out = new byte[1000];
+        assertEquals(-1, DeltaReplication.Lzf.compress(noise, noise.length,
+                                                       out, 0, out.length,
+                                                       table));
+
+    }
+
+
+    @Test
+    public void testCorruptData() {
+
+        byte[] text = new byte[500];
+        Arrays.fill(text, (byte) 'x');
+        byte[] out = new byte[600];
+        int end = DeltaReplication.Lzf.compress(text, text.length, out, 0,
+                                                out.length, table);
+
+        // Cut short, a byte too many, a back reference before the start
+        // and a literal run past the end.
+        assertCorrupt(out, end - 1, text.length);
+        assertCorrupt(out, end, text.length - 1);
+        assertCorrupt(new byte[] { 0x20, 0x05 }, 2, 10);
+        assertCorrupt(new byte[] { 0x1f, 1, 2 }, 3, 32);
+        assertCorrupt(new byte[] { (byte) 0xe0 }, 1, 10);
+
+    }
+
+
+    /**
+     * Compress and decompress some data, checking it comes back the same,
+     * and return the compressed length.
+     */
+    private int roundTrip(byte[] in) throws IOException {
+
+        int offset = 3;
+        byte[] out = new byte[offset + in.length + in.length / 32 + 16];
+        int end = DeltaReplication.Lzf.compress(in, in.length, out, offset,
+                                                out.length, table);
+        assertTrue("length " + in.length, end >= offset);
+        byte[] raw = new byte[in.length];
+        DeltaReplication.Lzf.decompress(out, offset, end, raw);
+        assertArrayEquals("length " + in.length, in, raw);
+        return end - offset;
+
+    }
+
+
+    private static void assertCorrupt(byte[] in, int end, int length) {
+
+        try {
+            DeltaReplication.Lzf.decompress(in, 0, end, new byte[length]);
+        } catch (IOException e) {
+            return;
+        }
+        fail("Decompressed corrupt data");
+
+    }
+}
@@ -0,0 +1,192 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that MulticastFragmenter puts messages back together from
+ * fragments in any order, and drops the fragments it can't use.
+ */
+public class MulticastFragmenterTest {
+
+    private static final int MAGIC = 0x4d465231;
+    private static final int SIZE = MulticastFragmenter.FRAGMENT_SIZE;
+
+    private final List<byte[]> messages = new ArrayList<byte[]>();
+    private MulticastFragmenter fragmenter;
+
+
+    @Before
+    public void setUp() {
+
+        fragmenter = new MulticastFragmenter(
+            new MulticastFragmenter.MessageHandler() {
+                public void received(long sender, SocketAddress source,
+                                     ByteBuffer message) {
+                    byte[] copy = new byte[message.remaining()];
+                    message.get(copy);
+                    messages.add(copy);
+                }
+            });
+
+    }
+
+
+    @Test
+    public void testReassemblesOutOfOrder() {
+
+        byte[] message = message(10 * SIZE + 17, 1L);
+        List<ByteBuffer> fragments = fragments(7L, 1, message);
+        Collections.shuffle(fragments, new Random(2L));
+        for (int i = 0; i < fragments.size(); i++) {
+            assertTrue(messages.isEmpty());
+            fragmenter.received(null, null, fragments.get(i));
+        }
+        assertEquals(1, messages.size());
+        assertArrayEquals(message, messages.get(0));
+
+        // Two senders' messages with the same id, interleaved.
+        messages.clear();
+        byte[] other = message(3 * SIZE, 3L);
+        List<ByteBuffer> first = fragments(7L, 2, message);
+        List<ByteBuffer> second = fragments(8L, 2, other);
+        for (int i = 0; i < first.size(); i++) {
+            fragmenter.received(null, null, first.get(i));
+            if (i < second.size()) {
+                fragmenter.received(null, null, second.get(i));
+            }
+        }
+        assertEquals(2, messages.size());
+        assertArrayEquals(other, messages.get(0));
+        assertArrayEquals(message, messages.get(1));
+        assertEquals(3L, fragmenter.getDeliveredCount());
+
+    }
+
+
+    @Test
+    public void testDropsDuplicates() {
+
+        byte[] message = message(3 * SIZE - 1, 4L);
+        List<ByteBuffer> fragments = fragments(7L, 1, message);
+        fragmenter.received(null, null, fragments.get(0).duplicate());
+        fragmenter.received(null, null, fragments.get(0).duplicate());
+        fragmenter.received(null, null, fragments.get(1).duplicate());
+        fragmenter.received(null, null, fragments.get(2).duplicate());
+        assertEquals(1, messages.size());
+        assertArrayEquals(message, messages.get(0));
+
+        // A late copy of a fragment doesn't start the message again.
+        fragmenter.received(null, null, fragments.get(1).duplicate());
+        assertEquals(1L, fragmenter.getDuplicateCount());
+        assertEquals(1, messages.size());
+
+    }
+
+
+    @Test
+    public void testSingleFragment() {
+
+        byte[] message = message(SIZE, 5L);
+        fragmenter.received(null, null, fragments(7L, 1, message).get(0));
+        fragmenter.received(null, null, fragments(7L, 2, new byte[0])
+                                            .get(0));
+        assertEquals(2, messages.size());
+        assertArrayEquals(message, messages.get(0));
+        assertEquals(0, messages.get(1).length);
+
+    }
+
+
+    @Test
+    public void testRejectsBadFragments() {
+
+        fragmenter.setMaxMessageSize(4 * SIZE);
+        byte[] message = message(5 * SIZE, 6L);
+        List<ByteBuffer> fragments = fragments(7L, 1, message);
+        for (int i = 0; i < fragments.size(); i++) {
+            fragmenter.received(null, null, fragments.get(i));
+        }
+        assertEquals(5L, fragmenter.getRejectedCount());
+
+        // An offset off the fragment grid, a short fragment and a
+        // negative length are ignored.
+        fragmenter.received(null, null, fragment(7L, 2, 2 * SIZE, 1,
+                                                 new byte[SIZE]));
+        fragmenter.received(null, null, fragment(7L, 3, 2 * SIZE, SIZE,
+                                                 new byte[SIZE - 1]));
+        fragmenter.received(null, null, fragment(7L, 4, -1, 0,
+                                                 new byte[0]));
+        assertTrue(messages.isEmpty());
+        assertEquals(0L, fragmenter.getDeliveredCount());
+
+    }
+
+
+    @Test
+    public void testExpiresIncompleteMessages() throws InterruptedException {
+
+        fragmenter.setTimeout(20L);
+        List<ByteBuffer> fragments = fragments(7L, 1, message(2 * SIZE, 7L));
+        fragmenter.received(null, null, fragments.get(0));
+        Thread.sleep(50L);
+        fragmenter.expire();
+        assertEquals(1L, fragmenter.getExpiredCount());
+        fragmenter.received(null, null, fragments.get(1));
+        assertTrue(messages.isEmpty());
+
+    }
+
+
+    private static byte[] message(int length, long seed) {
+
+        byte[] message = new byte[length];
+        new Random(seed).nextBytes(message);
+        return message;
+
+    }
+
+
+    /**
+     * Split a message into fragments the way send() does.
+     */
+    private static List<ByteBuffer> fragments(long sender, int messageId,
+                                              byte[] message) {
+
+        List<ByteBuffer> fragments = new ArrayList<ByteBuffer>();
+        int offset = 0;
+        do {
+            int size = Math.min(SIZE, message.length - offset);
+            byte[] payload = new byte[size];
+            System.arraycopy(message, offset, payload, 0, size);
+            fragments.add(fragment(sender, messageId, message.length,
+                                   offset, payload));
+            offset += SIZE;
+        } while (offset < message.length);
+        return fragments;
+
+    }
+
+
+    private static ByteBuffer fragment(long sender, int messageId,
+                                       int length, int offset,
+                                       byte[] payload) {
+
+        ByteBuffer fragment =
+            ByteBuffer.allocate(4 + 8 + 4 + 4 + 4 + payload.length);
+        fragment.putInt(MAGIC).putLong(sender).putInt(messageId)
+                .putInt(length).putInt(offset).put(payload);
+        fragment.flip();
+        return fragment;
+
+    }
+}
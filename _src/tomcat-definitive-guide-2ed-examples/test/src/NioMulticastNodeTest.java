@@ -0,0 +1,81 @@
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+
+import org.junit.Test;
+
+/**
+ * Checks that a stopped NioMulticastNode leaves every group it joined,
+ * and can't be used again.
+ */
+public class NioMulticastNodeTest {
+
+    /**
+     * A group apart from the cluster's and the demos'.
+     */
+    private static final String GROUP = "228.0.0.24";
+
+
+    @Test
+    public void testStopLeavesGroupsOfUnstartedNode() throws IOException {
+
+        NioMulticastNode node = new NioMulticastNode();
+        NioMulticastNode.Membership membership = join(node, 45592);
+        assertTrue(membership.getKey().channel().isOpen());
+        node.stop();
+        assertFalse(membership.getKey().channel().isOpen());
+        assertStopped(node);
+
+    }
+
+
+    @Test
+    public void testStopLeavesGroups() throws Exception {
+
+        NioMulticastNode node = new NioMulticastNode();
+        NioMulticastNode.Membership registered = join(node, 45592);
+        node.start("NioMulticastNodeTest");
+        Thread.sleep(100L);
+        NioMulticastNode.Membership late = join(node, 45593);
+        node.stop();
+        assertFalse(registered.getKey().channel().isOpen());
+        assertFalse(late.getKey().channel().isOpen());
+        assertStopped(node);
+
+        // Stopping again does nothing.
+        node.stop();
+
+    }
+
+
+    private static NioMulticastNode.Membership join(NioMulticastNode node,
+                                                    int port)
+        throws IOException {
+
+        return node.join(InetAddress.getByName(GROUP), port,
+                         NetworkInterface.getByName("lo"), null);
+
+    }
+
+
+    private static void assertStopped(NioMulticastNode node) {
+
+        try {
+            node.start("NioMulticastNodeTest");
+            fail("Started a stopped node");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        try {
+            join(node, 45594);
+            fail("Joined a group with a stopped node");
+        } catch (IOException e) {
+            // Expected.
+        }
+
+    }
+}
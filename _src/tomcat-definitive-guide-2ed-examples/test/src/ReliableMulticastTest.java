@@ -0,0 +1,277 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+/**
+ * Checks that ReliableMulticast delivers each sender's messages in order,
+ * asks for and sends again the ones that are lost, and stands up to NACKs
+ * asking for sequence numbers it never sent.
+ */
+public class ReliableMulticastTest {
+
+    private static final int MAGIC = 0x524d4331;
+    private static final byte DATA = 1;
+    private static final byte NACK = 2;
+    private static final byte HEARTBEAT = 3;
+
+    /**
+     * A group apart from the cluster's and the demos'.
+     */
+    private static final String GROUP = "228.0.0.24";
+
+
+    @Test
+    public void testDeliversInOrder() {
+
+        Recorder recorder = new Recorder();
+        ReliableMulticast node = new ReliableMulticast(recorder);
+        node.received(null, null, data(7L, 1L));
+        node.received(null, null, data(7L, 3L));
+        assertEquals("[delivered 1]", recorder.events.toString());
+        node.received(null, null, data(7L, 2L));
+        node.received(null, null, data(7L, 2L));
+        assertEquals("[delivered 1, delivered 2, delivered 3]",
+                     recorder.events.toString());
+        assertEquals(3L, node.getDeliveredCount());
+
+        // The sender no longer holds 4 and 5, so they are lost, and 7
+        // waits for 6.
+        recorder.events.clear();
+        node.received(null, null, data(7L, 7L));
+        node.received(null, null, heartbeat(7L, 10L, 6L));
+        assertEquals("[lost 4-5]", recorder.events.toString());
+        assertEquals(2L, node.getLostCount());
+        node.received(null, null, data(7L, 6L));
+        assertEquals("[lost 4-5, delivered 6, delivered 7]",
+                     recorder.events.toString());
+
+        // Messages held when the sender gives up on the ones before them
+        // are still delivered.
+        recorder.events.clear();
+        node.received(null, null, data(9L, 1L));
+        node.received(null, null, data(9L, 3L));
+        node.received(null, null, heartbeat(9L, 10L, 5L));
+        assertEquals("[delivered 1, lost 2-2, delivered 3, lost 4-4]",
+                     recorder.events.toString());
+        assertEquals(4L, node.getLostCount());
+
+        // Another sender is numbered apart.
+        recorder.events.clear();
+        node.received(null, null, data(8L, 1L));
+        assertEquals("[delivered 1]", recorder.events.toString());
+
+    }
+
+
+    @Test
+    public void testIgnoresForeignPackets() {
+
+        Recorder recorder = new Recorder();
+        ReliableMulticast node = new ReliableMulticast(recorder);
+        ByteBuffer packet = data(7L, 1L);
+        packet.putInt(0, 0x12345678);
+        node.received(null, null, packet);
+        node.received(null, null, ByteBuffer.allocate(3));
+        node.received(null, null, data(node.getId(), 1L));
+        assertTrue(recorder.events.isEmpty());
+
+    }
+
+
+    @Test
+    public void testRecoversDroppedMessages() throws Exception {
+
+        int messages = 2000;
+        InetAddress group = InetAddress.getByName(GROUP);
+        NetworkInterface loopback = NetworkInterface.getByName("lo");
+
+        ReliableMulticast[] nodes = new ReliableMulticast[2];
+        final AtomicLong[] expected = new AtomicLong[nodes.length];
+        final AtomicLong[] outOfOrder = new AtomicLong[nodes.length];
+        ReliableMulticast sender = new ReliableMulticast(null);
+        try {
+            for (int i = 0; i < nodes.length; i++) {
+                final int n = i;
+                expected[i] = new AtomicLong();
+                outOfOrder[i] = new AtomicLong();
+                nodes[i] = new ReliableMulticast(
+                    new ReliableMulticast.Listener() {
+                        public void delivered(long from, long seq,
+                                              ByteBuffer message) {
+                            long value = message.getLong();
+                            if (value != expected[n].get()) {
+                                outOfOrder[n].incrementAndGet();
+                            }
+                            expected[n].set(value + 1);
+                        }
+                        public void lost(long from, long fromSeq,
+                                         long toSeq) {
+                            outOfOrder[n].incrementAndGet();
+                        }
+                    });
+                nodes[i].setDropRate(0.1);
+                nodes[i].start(group, 45590, loopback);
+            }
+            sender.start(group, 45590, loopback);
+            Thread.sleep(100L);
+
+            ByteBuffer message = ByteBuffer.allocate(64);
+            for (long i = 0; i < messages; i++) {
+                message.clear();
+                message.putLong(i).position(0);
+                sender.send(message);
+                if (i % 100 == 99) {
+                    Thread.sleep(1L);
+                }
+            }
+            long deadline = System.currentTimeMillis() + 10000L;
+            boolean done = false;
+            while (!done && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50L);
+                done = true;
+                for (int i = 0; i < nodes.length; i++) {
+                    done &= nodes[i].getDeliveredCount() == messages;
+                }
+            }
+
+            for (int i = 0; i < nodes.length; i++) {
+                assertEquals(messages, nodes[i].getDeliveredCount());
+                assertEquals(0L, outOfOrder[i].get());
+                assertTrue(nodes[i].getDroppedCount() > 0L);
+                assertTrue(nodes[i].getNackCount() > 0L);
+            }
+            assertTrue(sender.getRetransmitCount() > 0L);
+        } finally {
+            for (int i = 0; i < nodes.length; i++) {
+                if (nodes[i] != null) {
+                    nodes[i].stop();
+                }
+            }
+            sender.stop();
+        }
+
+    }
+
+
+    @Test
+    public void testHostileNacks() throws Exception {
+
+        ReliableMulticast sender = new ReliableMulticast(null, 16);
+        sender.setRetransmitHoldoff(60000L);
+        sender.start(InetAddress.getByName(GROUP), 45591,
+                     NetworkInterface.getByName("lo"));
+        try {
+            ByteBuffer message = ByteBuffer.allocate(8);
+            for (int i = 0; i < 40; i++) {
+                message.clear();
+                sender.send(message);
+            }
+
+            // Only the 16 messages still held are sent again, once.
+            long id = sender.getId();
+            sender.received(null, null, nack(id, new long[] {
+                1L, Long.MAX_VALUE }, 1));
+            assertEquals(16L, sender.getRetransmitCount());
+            sender.received(null, null, nack(id, new long[] {
+                30L, 31L }, 1));
+            assertEquals(16L, sender.getRetransmitCount());
+
+            long[][] hostile = {
+                { Long.MIN_VALUE, Long.MAX_VALUE },
+                { Long.MAX_VALUE, Long.MAX_VALUE },
+                { 0L, 0L },
+                { -5L, -1L },
+                { 10L, 5L },
+                { 41L, Long.MAX_VALUE }
+            };
+            for (int i = 0; i < hostile.length; i++) {
+                sender.received(null, null, nack(id, hostile[i], 1));
+            }
+            // More ranges than the packet holds, and a negative count.
+            sender.received(null, null, nack(id, new long[] { 1L, 2L },
+                                             500));
+            sender.received(null, null, nack(id, new long[] { 1L, 2L },
+                                             -1));
+            assertEquals(16L, sender.getRetransmitCount());
+        } finally {
+            sender.stop();
+        }
+
+    }
+
+
+    private static ByteBuffer data(long sender, long seq) {
+
+        ByteBuffer packet = ByteBuffer.allocate(4 + 1 + 8 + 8 + 8);
+        packet.putInt(MAGIC).put(DATA).putLong(sender).putLong(seq)
+              .putLong(seq);
+        packet.flip();
+        return packet;
+
+    }
+
+
+    private static ByteBuffer heartbeat(long sender, long highest,
+                                        long oldest) {
+
+        ByteBuffer packet = ByteBuffer.allocate(4 + 1 + 8 + 8 + 8);
+        packet.putInt(MAGIC).put(HEARTBEAT).putLong(sender)
+              .putLong(highest).putLong(oldest);
+        packet.flip();
+        return packet;
+
+    }
+
+
+    /**
+     * Return a NACK from another node for runs of the target's messages,
+     * claiming to hold the specified number of runs.
+     */
+    private static ByteBuffer nack(long target, long[] ranges, int count) {
+
+        ByteBuffer packet =
+            ByteBuffer.allocate(4 + 1 + 8 + 8 + 2 + ranges.length * 8);
+        packet.putInt(MAGIC).put(NACK).putLong(target + 1).putLong(target)
+              .putShort((short) count);
+        for (int i = 0; i < ranges.length; i++) {
+            packet.putLong(ranges[i]);
+        }
+        packet.flip();
+        return packet;
+
+    }
+
+
+    /**
+     * Records what a node delivers, by the long each message holds, and
+     * what it reports lost.
+     */
+    private static final class Recorder
+        implements ReliableMulticast.Listener {
+
+        final List<String> events = new ArrayList<String>();
+
+
+        public void delivered(long sender, long seq, ByteBuffer message) {
+
+            assertEquals(seq, message.getLong());
+            events.add("delivered " + seq);
+
+        }
+
+
+        public void lost(long sender, long fromSeq, long toSeq) {
+
+            events.add("lost " + fromSeq + "-" + toSeq);
+
+        }
+    }
+}
@@ -87,6 +87,10 @@ cp %{_topdir}/SOURCES/server.xml %{_topdir}/SOURCES/web.xml \
     %{_topdir}/SOURCES/tomcat-users.xml \
     %{_topdir}/SOURCES/logging.properties %{package_name}/conf/ || :
 
+# Copy the package's own Tomcat components, such as the virtual thread
+# executor, into lib/, if they were built; they need Java 17 to build.
+cp %{_topdir}/SOURCES/%{package_name}-executor.jar %{package_name}/lib/ || :
+
 # Copy ROOT.xml if it's in SOURCES, otherwise it's empty and ends up deleted.
 touch %{_topdir}/SOURCES/ROOT.xml
 mkdir -p %{package_name}/conf/Catalina/localhost || :
@@ -0,0 +1,356 @@
+/*
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (c) 2007 O'Reilly Media.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.oreilly.tomcat.executor;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Compares VirtualThreadExecutor with a pool of platform threads, the
+ * same size as the tomcatThreadPool in the packaged server.xml, on
+ * I/O bound requests: each one computes for a little while, and then
+ * waits for a downstream call, as a servlet that calls a database or a
+ * web service does.  Requests arrive at a fixed rate whether or not
+ * earlier ones have finished, as they do from many clients, and the
+ * latency of each is from its arrival to its end, so that the time it
+ * spends queued for a thread counts.
+ *
+ * <br><br>
+ *
+ * With <code>-pinned</code>, each request waits while holding a
+ * monitor, which pins the virtual thread to its carrier on the JVMs that
+ * can't unmount a thread inside a synchronized block, and shows what
+ * the executor's pinned thread diagnostics report.
+ *
+ * <br><br>
+ *
+ * Usage: <code>ExecutorBenchmark [-rate requests/s] [-duration seconds]
+ * [-wait ms] [-cpu microseconds] [-maxThreads n] [-maxConcurrency n]
+ * [-pinned]</code>
+ */
+public class ExecutorBenchmark {
+
+    private int rate = 2000;
+    private int duration = 10;
+    private int wait = 100;
+    private int cpu = 100;
+    private int maxThreads = 150;
+    private int maxConcurrency = 10000;
+    private boolean pinned = false;
+
+    /**
+     * Keeps the computation of the requests from being optimized away.
+     */
+    private static volatile long sink = 0L;
+
+    public static void main(String[] args) throws Exception {
+
+        ExecutorBenchmark benchmark = new ExecutorBenchmark();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-pinned")) {
+                benchmark.pinned = true;
+                continue;
+            }
+            if (i + 1 == args.length) {
+                usage();
+            }
+            int value = Integer.parseInt(args[++i]);
+            if (arg.equals("-rate")) {
+                benchmark.rate = value;
+            } else if (arg.equals("-duration")) {
+                benchmark.duration = value;
+            } else if (arg.equals("-wait")) {
+                benchmark.wait = value;
+            } else if (arg.equals("-cpu")) {
+                benchmark.cpu = value;
+            } else if (arg.equals("-maxThreads")) {
+                benchmark.maxThreads = value;
+            } else if (arg.equals("-maxConcurrency")) {
+                benchmark.maxConcurrency = value;
+            } else {
+                usage();
+            }
+        }
+        benchmark.run();
+        System.exit(0);
+
+    }
+
+    private static void usage() {
+
+        System.err.println("Usage: ExecutorBenchmark [-rate requests/s] "
+            + "[-duration seconds] [-wait ms] [-cpu microseconds] "
+            + "[-maxThreads n] [-maxConcurrency n] [-pinned]");
+        System.exit(2);
+
+    }
+
+    /**
+     * Run the requests on each executor in turn, and print a line of
+     * results for each.
+     */
+    public void run() throws Exception {
+
+        System.out.println(rate + " requests/s for " + duration + " s, "
+            + cpu + " us of computing and " + wait + " ms of waiting each"
+            + (pinned ? ", waiting while holding a monitor" : ""));
+        if (rate * (wait / 1000.0) > maxThreads) {
+            System.out.println("The platform pool can't keep up: "
+                + (int) (rate * (wait / 1000.0)) + " requests wait at "
+                + "once, on average, but it has " + maxThreads
+                + " threads.");
+        }
+        System.out.println();
+        System.out.println("executor           req/s   p50 ms   p99 ms"
+            + "   max ms  peak threads  rejected  pinned");
+
+        // Warm up both, so that neither pays for the JIT.
+        int measuredDuration = duration;
+        duration = 1;
+        runPlatform(false);
+        runVirtual(false);
+        duration = measuredDuration;
+
+        runPlatform(true);
+        runVirtual(true);
+
+    }
+
+    private void runPlatform(boolean report) throws Exception {
+
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads,
+            maxThreads, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+        pool.prestartAllCoreThreads();
+        Result result = load(pool);
+        pool.shutdown();
+        pool.awaitTermination(60L, TimeUnit.SECONDS);
+        awaitThreads(threads);
+        if (report) {
+            result.print("platform(" + maxThreads + ")", -1L);
+        }
+
+    }
+
+    private void runVirtual(boolean report) throws Exception {
+
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        VirtualThreadExecutor executor = new VirtualThreadExecutor();
+        executor.setName("benchmark");
+        executor.setMaxConcurrency(maxConcurrency);
+        executor.start();
+        Result result = load(executor);
+        executor.stop();
+        // Without virtual threads the executor runs a pool, whose threads
+        // would otherwise count toward the next run's peak.
+        awaitThreads(threads);
+        if (report) {
+            result.peakThreads = executor.getPeakActiveCount();
+            result.print(executor.isVirtual() ? "virtual" : "virtual(none)",
+                         executor.getPinnedCount());
+        }
+
+    }
+
+    /**
+     * Wait, for a while at most, until no more than the specified number
+     * of platform threads are alive.
+     */
+    private static void awaitThreads(int count) throws InterruptedException {
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (threads.getThreadCount() > count
+               && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+
+    }
+
+    /**
+     * Send requests to an executor at the rate for the duration, and
+     * wait for them to finish.
+     */
+    private Result load(Executor executor) throws InterruptedException {
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        int requests = rate * duration;
+        final Result result = new Result(requests);
+        long interval = 1000000000L / rate;
+        long start = System.nanoTime();
+        long next = start;
+        int sent = 0;
+        while (sent < requests) {
+            long now = System.nanoTime();
+            if (now < next) {
+                LockSupport.parkNanos(next - now);
+                continue;
+            }
+            // Catch up in a burst if the thread fell behind, since the
+            // timer can't wake it up as often as the rate needs.
+            while (next <= now && sent < requests) {
+                try {
+                    executor.execute(new Request(result, next));
+                } catch (RejectedExecutionException e) {
+                    result.rejected.incrementAndGet();
+                }
+                sent++;
+                next += interval;
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + 60000L
+            + 2L * wait * requests / Math.max(1, maxThreads);
+        while (result.completed.get() + result.rejected.get() < requests
+               && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        result.elapsed = result.lastEnd.get() - start;
+        result.peakThreads = threads.getPeakThreadCount();
+        return result;
+
+    }
+
+    /**
+     * Compute for a while, as a servlet does to handle a request.
+     */
+    private void compute() {
+
+        long end = System.nanoTime() + cpu * 1000L;
+        long x = 0L;
+        while (System.nanoTime() < end) {
+            x = x * 31L + 17L;
+        }
+        sink += x;
+
+    }
+
+    /**
+     * Wait for a downstream call.
+     */
+    private void downstream() {
+
+        try {
+            Thread.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+    }
+
+    // ----------------------------------------------- Nested Classes
+
+    private final class Request implements Runnable {
+
+        private final Result result;
+        private final long arrival;
+
+        Request(Result result, long arrival) {
+
+            this.result = result;
+            this.arrival = arrival;
+
+        }
+
+        public void run() {
+
+            compute();
+            if (pinned) {
+                synchronized (this) {
+                    downstream();
+                }
+            } else {
+                downstream();
+            }
+            long end = System.nanoTime();
+            result.record(end - arrival);
+            long last = result.lastEnd.get();
+            while (end > last && !result.lastEnd.compareAndSet(last, end)) {
+                last = result.lastEnd.get();
+            }
+
+        }
+
+    }
+
+    private static final class Result {
+
+        private final long[] latencies;
+        private final AtomicInteger index = new AtomicInteger();
+        final AtomicInteger completed = new AtomicInteger();
+        final AtomicInteger rejected = new AtomicInteger();
+        final AtomicLong lastEnd = new AtomicLong();
+        long elapsed = 0L;
+        long peakThreads = 0L;
+
+        Result(int requests) {
+
+            latencies = new long[requests];
+
+        }
+
+        void record(long nanos) {
+
+            latencies[index.getAndIncrement()] = nanos;
+            completed.incrementAndGet();
+
+        }
+
+        void print(String name, long pinned) {
+
+            int n = completed.get();
+            long[] sorted = Arrays.copyOf(latencies, n);
+            Arrays.sort(sorted);
+            System.out.println(String.format(
+                "%-16s %7.0f %8.1f %8.1f %8.1f %13d %9d  %6s",
+                name, n / (Math.max(1L, elapsed) / 1e9),
+                percentile(sorted, 0.50) / 1e6,
+                percentile(sorted, 0.99) / 1e6,
+                percentile(sorted, 1.0) / 1e6, peakThreads,
+                rejected.get(), (pinned < 0L) ? "-" : "" + pinned));
+
+        }
+
+        private static long percentile(long[] sorted, double fraction) {
+
+            if (sorted.length == 0) {
+                return 0L;
+            }
+            int rank = (int) Math.ceil(fraction * sorted.length);
+            return sorted[Math.max(0, rank - 1)];
+
+        }
+
+    }
+
+}
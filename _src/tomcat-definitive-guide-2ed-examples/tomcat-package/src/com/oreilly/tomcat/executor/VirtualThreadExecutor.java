@@ -0,0 +1,826 @@
+/*
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (c) 2007 O'Reilly Media.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.oreilly.tomcat.executor;
+
+import java.lang.reflect.Method;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingStream;
+
+import org.apache.catalina.Executor;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.LifecycleListener;
+import org.apache.catalina.util.LifecycleSupport;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+
+/**
+ * A connector Executor that runs each request on a virtual thread of its
+ * own, instead of on one of a fixed number of pooled threads.  A request
+ * that waits on a slow downstream call then parks its virtual thread,
+ * which costs a little memory, instead of holding one of the
+ * connector's maxThreads, so other requests no longer queue behind it.
+ *
+ * <br><br>
+ *
+ * At most maxConcurrency requests run at once; the rest wait, in order,
+ * for one of them to finish, and once maxQueueSize of them are waiting,
+ * further requests are rejected, which makes the connector close their
+ * connections.  This bounds what the requests may take from the
+ * database, or any other resource that the thread pool used to protect.
+ *
+ * <br><br>
+ *
+ * A virtual thread that blocks while it holds a monitor, or while in
+ * native code, can't be unmounted, and pins its carrier thread, of which
+ * there are only as many as processors; a few of those blocked at once
+ * stall every request.  While the executor is started, it watches the
+ * JVM's flight recorder for pinned virtual threads, counts them, and
+ * logs the stack of each place that pinned one for longer than
+ * pinnedThreshold, once per place.  Setting tracePinnedThreads to
+ * "short" or "full" also has the JVM print the stack of every pinning
+ * event, if no virtual thread was started before this executor.
+ *
+ * <br><br>
+ *
+ * Virtual threads need Java 21 or later.  They are looked up by
+ * reflection, so on older JVMs the executor still works, but runs the
+ * requests on a pool of at most maxThreads platform threads instead, as
+ * the standard executor does, and logs a warning.  To use it,
+ * declare it in server.xml, and name it in the executor attribute of
+ * the connectors:
+ *
+ * <pre>
+ * &lt;Executor name="tomcatVirtualThreads"
+ *     className="com.oreilly.tomcat.executor.VirtualThreadExecutor"
+ *     namePrefix="catalina-vexec-" maxConcurrency="10000"/&gt;
+ * </pre>
+ *
+ * @author Jason Brittain
+ */
+public class VirtualThreadExecutor implements Executor {
+
+    // --------------------------------------------- Static Variables
+
+    /**
+     * The Log instance to log with.
+     */
+    private static Log log = LogFactory.getLog(VirtualThreadExecutor.class);
+
+    /**
+     * The most places that pinned a carrier whose stacks are remembered,
+     * and so logged once each.
+     */
+    private static final int MAX_PINNED_SITES = 100;
+
+    // ------------------------------------------- Instance Variables
+
+    /**
+     * The name of this executor, that connectors refer to it by.
+     */
+    protected String name = null;
+
+    /**
+     * The prefix of the names of the threads, which are numbered.
+     */
+    protected String namePrefix = "catalina-vexec-";
+
+    /**
+     * The most tasks that run at once.
+     */
+    protected int maxConcurrency = 10000;
+
+    /**
+     * The most tasks that wait for one of the running ones to finish.
+     */
+    protected int maxQueueSize = Integer.MAX_VALUE;
+
+    /**
+     * The most platform threads tasks run on, if the JVM has no virtual
+     * threads.
+     */
+    protected int maxThreads = 200;
+
+    /**
+     * The shortest time, in milliseconds, that a virtual thread must pin
+     * its carrier for to be logged, or a negative number to not watch
+     * for pinned threads.
+     */
+    protected long pinnedThreshold = 20L;
+
+    /**
+     * The value to set the jdk.tracePinnedThreads system property to,
+     * "short" or "full", or null to leave it alone.
+     */
+    protected String tracePinnedThreads = null;
+
+    /**
+     * The lifecycle event support for this component.
+     */
+    protected LifecycleSupport lifecycle = new LifecycleSupport(this);
+
+    /**
+     * Whether this executor is running.
+     */
+    protected volatile boolean running = false;
+
+    /**
+     * The factory of the threads tasks run on.
+     */
+    private ThreadFactory threadFactory = null;
+
+    /**
+     * The pool of platform threads tasks run on, if the JVM has no
+     * virtual threads, or null.
+     */
+    private volatile ThreadPoolExecutor platformThreads = null;
+
+    /**
+     * Whether the threads are virtual ones.
+     */
+    private boolean virtual = false;
+
+    /**
+     * One permit for each task that may start running.
+     */
+    private Semaphore permits = null;
+
+    /**
+     * The tasks waiting for a permit.
+     */
+    private final ConcurrentLinkedQueue<Runnable> queue =
+        new ConcurrentLinkedQueue<Runnable>();
+
+    private final AtomicInteger queueSize = new AtomicInteger();
+    private final AtomicInteger activeCount = new AtomicInteger();
+    private final AtomicInteger peakActiveCount = new AtomicInteger();
+    private final AtomicLong submittedCount = new AtomicLong();
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong pinnedCount = new AtomicLong();
+
+    /**
+     * The flight recorder stream that pinned threads are watched with,
+     * or null.  Kept as an Object, so that the flight recorder's classes
+     * are loaded only if they are used.
+     */
+    private Object pinnedMonitor = null;
+
+    // ----------------------------------------------- Public Methods
+
+    /**
+     * Return the name of this executor.
+     */
+    public String getName() {
+
+        return name;
+
+    }
+
+    /**
+     * Set the name of this executor, that connectors refer to it by.
+     *
+     * @param name The new name
+     */
+    public void setName(String name) {
+
+        this.name = name;
+
+    }
+
+    /**
+     * Return the prefix of the thread names.
+     */
+    public String getNamePrefix() {
+
+        return namePrefix;
+
+    }
+
+    /**
+     * Set the prefix of the thread names.
+     *
+     * @param namePrefix The new prefix
+     */
+    public void setNamePrefix(String namePrefix) {
+
+        this.namePrefix = namePrefix;
+
+    }
+
+    /**
+     * Return the most tasks that run at once.
+     */
+    public int getMaxConcurrency() {
+
+        return maxConcurrency;
+
+    }
+
+    /**
+     * Set the most tasks that run at once.  Takes effect when the
+     * executor is started.
+     *
+     * @param maxConcurrency The new limit
+     */
+    public void setMaxConcurrency(int maxConcurrency) {
+
+        this.maxConcurrency = maxConcurrency;
+
+    }
+
+    /**
+     * Return the most tasks that wait for a running one to finish.
+     */
+    public int getMaxQueueSize() {
+
+        return maxQueueSize;
+
+    }
+
+    /**
+     * Set the most tasks that wait for a running one to finish, before
+     * further tasks are rejected.
+     *
+     * @param maxQueueSize The new limit
+     */
+    public void setMaxQueueSize(int maxQueueSize) {
+
+        this.maxQueueSize = maxQueueSize;
+
+    }
+
+    /**
+     * Return the most platform threads tasks run on, if the JVM has no
+     * virtual threads.
+     */
+    public int getMaxThreads() {
+
+        return maxThreads;
+
+    }
+
+    /**
+     * Set the most platform threads tasks run on, if the JVM has no
+     * virtual threads; at most this many tasks then run at once, however
+     * high maxConcurrency is.  Takes effect when the executor is started.
+     *
+     * @param maxThreads The new limit
+     */
+    public void setMaxThreads(int maxThreads) {
+
+        this.maxThreads = maxThreads;
+
+    }
+
+    /**
+     * Return the shortest time, in milliseconds, that a virtual thread
+     * must pin its carrier for to be logged.
+     */
+    public long getPinnedThreshold() {
+
+        return pinnedThreshold;
+
+    }
+
+    /**
+     * Set the shortest time, in milliseconds, that a virtual thread must
+     * pin its carrier for to be logged, or a negative number to not
+     * watch for pinned threads.  Takes effect when the executor is
+     * started.
+     *
+     * @param pinnedThreshold The new threshold
+     */
+    public void setPinnedThreshold(long pinnedThreshold) {
+
+        this.pinnedThreshold = pinnedThreshold;
+
+    }
+
+    /**
+     * Return the value the jdk.tracePinnedThreads system property is
+     * set to on start, or null.
+     */
+    public String getTracePinnedThreads() {
+
+        return tracePinnedThreads;
+
+    }
+
+    /**
+     * Set the value to set the jdk.tracePinnedThreads system property
+     * to on start, "short" or "full".  The JVM reads the property when
+     * the first virtual thread starts, so it takes effect only if no
+     * virtual thread has started before this executor, and only on the
+     * JVMs that support it.
+     *
+     * @param tracePinnedThreads The new value
+     */
+    public void setTracePinnedThreads(String tracePinnedThreads) {
+
+        this.tracePinnedThreads = tracePinnedThreads;
+
+    }
+
+    /**
+     * Return true if tasks run on virtual threads, or false if they run
+     * on platform threads because the JVM has no virtual threads.
+     */
+    public boolean isVirtual() {
+
+        return virtual;
+
+    }
+
+    /**
+     * Return the number of tasks running.
+     */
+    public int getActiveCount() {
+
+        return activeCount.get();
+
+    }
+
+    /**
+     * Return the most tasks that have run at once.
+     */
+    public int getPeakActiveCount() {
+
+        return peakActiveCount.get();
+
+    }
+
+    /**
+     * Return the number of tasks waiting for a running one to finish.
+     */
+    public int getQueueSize() {
+
+        return queueSize.get();
+
+    }
+
+    /**
+     * Return the number of tasks accepted.
+     */
+    public long getSubmittedCount() {
+
+        return submittedCount.get();
+
+    }
+
+    /**
+     * Return the number of tasks that have finished.
+     */
+    public long getCompletedCount() {
+
+        return completedCount.get();
+
+    }
+
+    /**
+     * Return the number of tasks rejected because the queue was full.
+     */
+    public long getRejectedCount() {
+
+        return rejectedCount.get();
+
+    }
+
+    /**
+     * Return the number of times a virtual thread pinned its carrier for
+     * longer than the threshold.
+     */
+    public long getPinnedCount() {
+
+        return pinnedCount.get();
+
+    }
+
+    /**
+     * Run a task on a new thread, as soon as fewer than maxConcurrency
+     * tasks are running.
+     *
+     * @param command The task
+     *
+     * @exception RejectedExecutionException if the executor isn't
+     *  running, or maxQueueSize tasks are waiting already
+     */
+    public void execute(Runnable command) {
+
+        if (!running) {
+            throw new RejectedExecutionException(
+                "Executor " + name + " is not running");
+        }
+        if (permits.tryAcquire()) {
+            start(command);
+            submittedCount.incrementAndGet();
+            return;
+        }
+        if (queueSize.incrementAndGet() > maxQueueSize) {
+            queueSize.decrementAndGet();
+            rejectedCount.incrementAndGet();
+            throw new RejectedExecutionException(
+                "Executor " + name + " has " + maxQueueSize
+                + " tasks waiting already");
+        }
+        submittedCount.incrementAndGet();
+        queue.offer(command);
+        // Every task may have finished after the permit was refused, and
+        // before the task was queued, leaving no thread to start it.
+        startQueued();
+
+    }
+
+    /**
+     * Run a task as soon as possible.  The timeout is not used, since
+     * the queue is not bounded by waiting.
+     *
+     * @param command The task
+     * @param timeout Unused
+     * @param unit Unused
+     */
+    public void execute(Runnable command, long timeout, TimeUnit unit) {
+
+        execute(command);
+
+    }
+
+    /**
+     * Add a lifecycle event listener to this component.
+     *
+     * @param listener The listener to add
+     */
+    public void addLifecycleListener(LifecycleListener listener) {
+
+        lifecycle.addLifecycleListener(listener);
+
+    }
+
+    /**
+     * Get the lifecycle listeners associated with this lifecycle. If this
+     * Lifecycle has no listeners registered, a zero-length array is
+     * returned.
+     */
+    public LifecycleListener[] findLifecycleListeners() {
+
+        return lifecycle.findLifecycleListeners();
+
+    }
+
+    /**
+     * Remove a lifecycle event listener from this component.
+     *
+     * @param listener The listener to remove
+     */
+    public void removeLifecycleListener(LifecycleListener listener) {
+
+        lifecycle.removeLifecycleListener(listener);
+
+    }
+
+    /**
+     * Creates the thread factory, and starts watching for pinned virtual
+     * threads.
+     *
+     * @exception LifecycleException if this component detects a fatal
+     *  error that prevents this component from being used
+     */
+    public synchronized void start() throws LifecycleException {
+
+        if (running) {
+            return;
+        }
+        if (maxConcurrency < 1 || maxThreads < 1) {
+            throw new LifecycleException("Executor " + name
+                + ": maxConcurrency and maxThreads must be at least 1");
+        }
+        lifecycle.fireLifecycleEvent(BEFORE_START_EVENT, null);
+        if (tracePinnedThreads != null
+            && System.getProperty("jdk.tracePinnedThreads") == null) {
+            System.setProperty("jdk.tracePinnedThreads", tracePinnedThreads);
+        }
+        threadFactory = virtualThreadFactory(namePrefix);
+        virtual = (threadFactory != null);
+        if (!virtual) {
+            // A platform thread per task would be up to maxConcurrency
+            // of them, far more than the JVM can afford.
+            int threads = Math.min(maxConcurrency, maxThreads);
+            log.warn("Executor " + name + ": this JVM has no virtual "
+                     + "threads, so tasks run on a pool of at most "
+                     + threads + " platform threads instead");
+            platformThreads = new ThreadPoolExecutor(threads, threads,
+                60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new PlatformThreadFactory(namePrefix));
+            platformThreads.allowCoreThreadTimeOut(true);
+            permits = new Semaphore(threads);
+        } else {
+            platformThreads = null;
+            permits = new Semaphore(maxConcurrency);
+            if (pinnedThreshold >= 0L) {
+                startPinnedMonitor();
+            }
+        }
+        lifecycle.fireLifecycleEvent(START_EVENT, null);
+        running = true;
+        lifecycle.fireLifecycleEvent(AFTER_START_EVENT, null);
+
+    }
+
+    /**
+     * Stops accepting tasks, and watching for pinned virtual threads.
+     * Tasks already accepted, the queued ones included, run to the end,
+     * and then the platform threads, if any, end.
+     *
+     * @exception LifecycleException if this component detects a fatal
+     *  error that needs to be reported
+     */
+    public synchronized void stop() throws LifecycleException {
+
+        if (!running) {
+            return;
+        }
+        lifecycle.fireLifecycleEvent(BEFORE_STOP_EVENT, null);
+        lifecycle.fireLifecycleEvent(STOP_EVENT, null);
+        running = false;
+        stopPinnedMonitor();
+        if (platformThreads != null) {
+            // Hand the queued tasks to the pool, which runs them before
+            // its threads end, since a stopped pool takes no more.
+            Runnable next;
+            while ((next = queue.poll()) != null) {
+                queueSize.decrementAndGet();
+                platformThreads.execute(new Worker(next));
+            }
+            platformThreads.shutdown();
+            platformThreads = null;
+        }
+        lifecycle.fireLifecycleEvent(AFTER_STOP_EVENT, null);
+
+    }
+
+    // ---------------------------------------------- Private Methods
+
+    /**
+     * Start a task on a new virtual thread, or a pooled platform thread,
+     * which holds a permit.
+     */
+    private void start(Runnable task) {
+
+        try {
+            ThreadPoolExecutor pool = platformThreads;
+            if (pool != null) {
+                pool.execute(new Worker(task));
+            } else {
+                threadFactory.newThread(new Worker(task)).start();
+            }
+        } catch (Throwable t) {
+            // Out of memory for thread stacks, most likely.
+            permits.release();
+            rejectedCount.incrementAndGet();
+            throw new RejectedExecutionException(
+                "Executor " + name + " could not start a thread", t);
+        }
+
+    }
+
+    /**
+     * Start queued tasks while there are permits for them.
+     */
+    private void startQueued() {
+
+        while (!queue.isEmpty() && permits.tryAcquire()) {
+            Runnable next = queue.poll();
+            if (next == null) {
+                permits.release();
+                continue;
+            }
+            queueSize.decrementAndGet();
+            try {
+                start(next);
+            } catch (RejectedExecutionException e) {
+                log.error(e.getMessage(), e);
+            }
+        }
+
+    }
+
+    /**
+     * Return a factory of virtual threads, or null if the JVM has none.
+     */
+    private static ThreadFactory virtualThreadFactory(String namePrefix) {
+
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method name = builderClass.getMethod("name", String.class,
+                                                 long.class);
+            builder = name.invoke(builder, namePrefix, Long.valueOf(1L));
+            return (ThreadFactory)
+                builderClass.getMethod("factory").invoke(builder);
+        } catch (Exception e) {
+            // Older than Java 21.
+            return null;
+        }
+
+    }
+
+    private void startPinnedMonitor() {
+
+        try {
+            pinnedMonitor = new PinnedMonitor(this);
+        } catch (Throwable t) {
+            log.info("Executor " + name + ": can't watch for pinned "
+                     + "virtual threads: " + t);
+        }
+
+    }
+
+    private void stopPinnedMonitor() {
+
+        if (pinnedMonitor != null) {
+            ((PinnedMonitor) pinnedMonitor).close();
+            pinnedMonitor = null;
+        }
+
+    }
+
+    // ----------------------------------------------- Nested Classes
+
+    /**
+     * Runs a task, then starts the next queued one, if any, on a new
+     * thread, or another pooled one, handing its permit on.
+     */
+    private final class Worker implements Runnable {
+
+        private final Runnable task;
+
+        Worker(Runnable task) {
+
+            this.task = task;
+
+        }
+
+        public void run() {
+
+            int active = activeCount.incrementAndGet();
+            int peak = peakActiveCount.get();
+            while (active > peak
+                   && !peakActiveCount.compareAndSet(peak, active)) {
+                peak = peakActiveCount.get();
+            }
+            try {
+                task.run();
+            } catch (Throwable t) {
+                log.error("Executor " + name + ": task failed", t);
+            } finally {
+                activeCount.decrementAndGet();
+                completedCount.incrementAndGet();
+                Runnable next = queue.poll();
+                if (next != null) {
+                    queueSize.decrementAndGet();
+                    try {
+                        start(next);
+                    } catch (RejectedExecutionException e) {
+                        log.error(e.getMessage(), e);
+                    }
+                } else {
+                    permits.release();
+                    startQueued();
+                }
+            }
+
+        }
+
+    }
+
+    /**
+     * Makes numbered daemon platform threads, for JVMs without virtual
+     * threads.
+     */
+    private static final class PlatformThreadFactory
+        implements ThreadFactory {
+
+        private final String namePrefix;
+        private final AtomicLong threadNumber = new AtomicLong(1L);
+
+        PlatformThreadFactory(String namePrefix) {
+
+            this.namePrefix = namePrefix;
+
+        }
+
+        public Thread newThread(Runnable r) {
+
+            Thread t = new Thread(r,
+                namePrefix + threadNumber.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+
+        }
+
+    }
+
+    /**
+     * Watches the flight recorder's jdk.VirtualThreadPinned events, counts
+     * them, and logs the stack of each place that pinned a carrier, the
+     * first time it does.
+     */
+    private static final class PinnedMonitor
+        implements Consumer<RecordedEvent> {
+
+        private static final String EVENT = "jdk.VirtualThreadPinned";
+
+        /**
+         * The number of stack frames logged.
+         */
+        private static final int MAX_FRAMES = 12;
+
+        private final VirtualThreadExecutor executor;
+        private final RecordingStream stream;
+        private final ConcurrentHashMap<String, Boolean> sites =
+            new ConcurrentHashMap<String, Boolean>();
+
+        PinnedMonitor(VirtualThreadExecutor executor) {
+
+            this.executor = executor;
+            stream = new RecordingStream();
+            stream.enable(EVENT)
+                  .withThreshold(Duration.ofMillis(executor.pinnedThreshold))
+                  .withStackTrace();
+            stream.onEvent(EVENT, this);
+            stream.startAsync();
+
+        }
+
+        public void accept(RecordedEvent event) {
+
+            executor.pinnedCount.incrementAndGet();
+            RecordedStackTrace stackTrace = event.getStackTrace();
+            if (stackTrace == null) {
+                return;
+            }
+            StringBuilder site = new StringBuilder();
+            int frames = 0;
+            for (RecordedFrame frame : stackTrace.getFrames()) {
+                if (frames++ == MAX_FRAMES) {
+                    site.append("\n\t...");
+                    break;
+                }
+                site.append("\n\tat ")
+                    .append(frame.getMethod().getType().getName())
+                    .append('.').append(frame.getMethod().getName())
+                    .append(':').append(frame.getLineNumber());
+            }
+            String key = site.toString();
+            if (sites.size() < MAX_PINNED_SITES
+                && sites.putIfAbsent(key, Boolean.TRUE) == null) {
+                log.warn("Executor " + executor.name + ": a virtual thread "
+                    + "pinned its carrier for "
+                    + event.getDuration().toMillis() + " ms, blocking "
+                    + "while holding a monitor or in native code; "
+                    + "further pinning here is only counted" + key);
+            }
+
+        }
+
+        void close() {
+
+            stream.close();
+
+        }
+
+    }
+
+}